@@ -0,0 +1,599 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.BloomFilter;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.FilterLoadMessage;
+import org.ScripterRon.BitcoinCore.InventoryItem;
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.MessageHeader;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.Script;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The bloom filter manager maintains the bloom filters loaded on our peers.
+ *
+ * New keys are added to the loaded filter using 'filteradd' messages, so the peers do not
+ * need to receive the complete filter each time a key is added.  The filter is built with
+ * room for additional elements.  The false-positive rate is estimated from the number of
+ * filter elements and from the number of irrelevant transactions matched by the filter.  The
+ * filter is rebuilt and reloaded using 'filterload' when the estimate drifts past the
+ * rebuild threshold.
+ *
+ * The protocol limits the size of a bloom filter, so a wallet with a very large number of
+ * keys would need a filter with a high false-positive rate.  Instead, the keys are divided
+ * into shards and each shard has its own filter.  Each peer loads the filter for a single
+ * shard and merkle block requests are sent to a peer for each shard.  The database handler
+ * merges the matched transactions for a block.  When a peer disconnects, a peer from a shard
+ * with multiple peers is moved to a shard that is no longer covered.
+ *
+ * Relevant ScriptSig elements are the public key and the redeem script.  Relevant
+ * ScriptPubKey elements are the public key hash and the redeem script hash.  The outputs
+ * spent by unconfirmed incoming payments are also included so conflicting transactions
+ * are matched.
+ */
+public class BloomFilterManager implements ConnectionListener {
+
+    /** Target false-positive rate (this is the rate used by BloomFilter) */
+    private static final double TARGET_FP_RATE = 0.0005;
+
+    /** Rebuild the filter when the estimated false-positive rate exceeds the target by this factor */
+    private static final double REBUILD_THRESHOLD = 2.0;
+
+    /** Filter elements for each key */
+    private static final int KEY_ELEMENTS = 4;
+
+    /** Maximum number of elements in a shard (the maximum filter size at the target rate is 18,000) */
+    private static final int MAX_SHARD_ELEMENTS = 16000;
+
+    /** Maximum number of shards */
+    public static final int MAX_SHARDS = 16;
+
+    /** Additional filter capacity as a fraction of the current number of elements */
+    private static final double FILTER_HEADROOM = 0.25;
+
+    /** Minimum additional filter capacity */
+    private static final int MIN_HEADROOM = 15;
+
+    /** Maximum number of keys added using 'filteradd' messages */
+    private static final int MAX_INCREMENTAL_KEYS = 10;
+
+    /** Number of blocks scanned before checking the observed false-positive rate */
+    private static final int FP_WINDOW = 500;
+
+    /** Maximum number of watched outputs included when the filters are rebuilt */
+    private static final int MAX_WATCHED_OUTPOINTS = 500;
+
+    /** Filter shards */
+    private FilterShard[] shards;
+
+    /** Shard assigned to each peer */
+    private final Map<Peer, Integer> peerShards = new HashMap<>();
+
+    /** Peer that has loaded a temporary filter for a key rescan */
+    private Peer rescanPeer;
+
+    /** Outputs spent by unconfirmed incoming payments */
+    private final Set<TransactionID> watchedOutPoints = new LinkedHashSet<>();
+
+    /** Number of blocks scanned during the current window */
+    private int blockCount;
+
+    /** Number of transactions in the blocks scanned during the current window */
+    private long txCount;
+
+    /** Number of false positives during the current window */
+    private int falsePositives;
+
+    /**
+     * Creates the bloom filter manager and builds the initial filters for the wallet keys
+     */
+    public BloomFilterManager() {
+        buildFilters();
+    }
+
+    /**
+     * Returns the number of filter shards
+     *
+     * @return                      Shard count
+     */
+    public synchronized int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the shard assigned to a peer
+     *
+     * @param       peer            Peer
+     * @return                      Shard or -1 if the peer has not loaded a filter
+     */
+    public synchronized int getPeerShard(Peer peer) {
+        Integer shard = peerShards.get(peer);
+        return (shard!=null ? shard : -1);
+    }
+
+    /**
+     * Creates the merkle block requests for a block.  A request is created for each shard
+     * if there are multiple shards.
+     *
+     * @param       blockHash       Block hash
+     * @param       origin          Peer that announced the block or null
+     * @return                      List of requests
+     */
+    public synchronized List<PeerRequest> getBlockRequests(Sha256Hash blockHash, Peer origin) {
+        List<PeerRequest> requests = new ArrayList<>(shards.length);
+        if (shards.length == 1) {
+            requests.add(new PeerRequest(blockHash, InventoryItem.INV_FILTERED_BLOCK, origin));
+        } else {
+            for (int shard=0; shard<shards.length; shard++)
+                requests.add(new PeerRequest(blockHash, InventoryItem.INV_FILTERED_BLOCK, origin, shard));
+        }
+        return requests;
+    }
+
+    /**
+     * Assigns a shard to a new peer and builds the 'filterload' message for the shard.
+     * The shard with the fewest peers is selected.
+     *
+     * @param       peer            Destination peer
+     * @return                      'filterload' message
+     */
+    public synchronized Message buildFilterLoadMessage(Peer peer) {
+        int[] peerCounts = new int[shards.length];
+        peerShards.values().forEach((shard) -> peerCounts[shard]++);
+        int shard = 0;
+        for (int i=1; i<peerCounts.length; i++) {
+            if (peerCounts[i] < peerCounts[shard])
+                shard = i;
+        }
+        peerShards.put(peer, shard);
+        if (shards.length > 1)
+            log.info(String.format("Bloom filter shard %d assigned to %s", shard, peer.getAddress()));
+        return FilterLoadMessage.buildFilterLoadMessage(peer, shards[shard].filter);
+    }
+
+    /**
+     * Adds a key to the bloom filter
+     *
+     * @param       key             New key
+     */
+    public void addKey(ECKey key) {
+        addKeys(Collections.singletonList(key));
+    }
+
+    /**
+     * Adds keys to the bloom filter.  The keys must already be in the wallet key list
+     * and the caller must not hold Parameters.lock.
+     *
+     * A small number of keys is added to the loaded filters using 'filteradd' messages
+     * if the estimated false-positive rate remains acceptable.  Otherwise, the filters are
+     * rebuilt and a new 'filterload' message is sent to each peer.
+     *
+     * @param       keys            New keys
+     */
+    public void addKeys(List<ECKey> keys) {
+        if (keys.isEmpty())
+            return;
+        List<Message> msgList = new ArrayList<>();
+        synchronized(this) {
+            int[] newCounts = new int[shards.length];
+            for (int i=0; i<shards.length; i++)
+                newCounts[i] = shards[i].elementCount;
+            keys.forEach((key) -> newCounts[getShard(key, shards.length)] += KEY_ELEMENTS);
+            boolean rebuild = (keys.size() > MAX_INCREMENTAL_KEYS ||
+                                getShardCount(Arrays.stream(newCounts).sum()) != shards.length);
+            for (int i=0; i<shards.length && !rebuild; i++) {
+                if (shards[i].estimateRate(newCounts[i]) > TARGET_FP_RATE*REBUILD_THRESHOLD)
+                    rebuild = true;
+            }
+            if (rebuild) {
+                log.info(String.format("Rebuilding bloom filter for %d new keys", keys.size()));
+                buildFilters();
+                if (!Parameters.compactFilters)
+                    msgList.addAll(reloadFilters());
+            } else {
+                for (ECKey key : keys) {
+                    int shard = getShard(key, shards.length);
+                    for (byte[] element : getElements(key)) {
+                        shards[shard].filter.insert(element);
+                        shards[shard].elementCount++;
+                        if (!Parameters.compactFilters) {
+                            peerShards.entrySet().stream()
+                                    .filter((entry) -> (entry.getValue() == shard))
+                                    .forEach((entry) -> msgList.add(buildFilterAddMessage(entry.getKey(), element)));
+                        }
+                    }
+                }
+            }
+        }
+        msgList.forEach((msg) -> Parameters.networkHandler.sendMessage(msg));
+    }
+
+    /**
+     * Adds the outputs spent by an unconfirmed incoming payment to the bloom filters.
+     * A transaction spending one of these outputs will then be matched by the filters,
+     * allowing us to detect a conflicting transaction.  The outputs are added to every
+     * shard since they are not associated with a wallet key.  The caller must not hold
+     * Parameters.lock.
+     *
+     * @param       outPoints       Spent outputs
+     */
+    public void watchOutPoints(List<TransactionID> outPoints) {
+        List<Message> msgList = new ArrayList<>();
+        synchronized(this) {
+            for (TransactionID outPoint : outPoints) {
+                if (!watchedOutPoints.add(outPoint))
+                    continue;
+                if (watchedOutPoints.size() > MAX_WATCHED_OUTPOINTS) {
+                    Iterator<TransactionID> it = watchedOutPoints.iterator();
+                    it.next();
+                    it.remove();
+                }
+                byte[] element = getElement(outPoint);
+                for (FilterShard shard : shards) {
+                    shard.filter.insert(element);
+                    shard.elementCount++;
+                }
+                if (!Parameters.compactFilters)
+                    peerShards.keySet().forEach((peer) -> msgList.add(buildFilterAddMessage(peer, element)));
+            }
+        }
+        msgList.forEach((msg) -> Parameters.networkHandler.sendMessage(msg));
+    }
+
+    /**
+     * Records a block scanned using the bloom filter.  This method is called by the
+     * database handler when it processes a merkle block.
+     *
+     * @param       blockTxCount    Number of transactions in the block or 0 if not known
+     */
+    public void blockScanned(int blockTxCount) {
+        List<Message> msgList;
+        synchronized(this) {
+            blockCount++;
+            txCount += blockTxCount;
+            if (blockCount < FP_WINDOW*shards.length || txCount == 0)
+                return;
+            //
+            // Rebuild the filters if the observed false-positive rate is too high.  This can
+            // happen if the filter tweak produces an unlucky set of matches.  Each shard
+            // provides a merkle block for each block, so the false positives are spread
+            // across the shard blocks.
+            //
+            double observedRate = (double)falsePositives/(double)txCount;
+            log.debug(String.format("Bloom filter false-positive rate: Observed %f, Expected %f",
+                                    observedRate, shards[0].estimateRate(shards[0].elementCount)));
+            blockCount = 0;
+            txCount = 0;
+            falsePositives = 0;
+            if (observedRate <= TARGET_FP_RATE*REBUILD_THRESHOLD)
+                return;
+            log.info(String.format("Rebuilding bloom filter: Observed false-positive rate %f", observedRate));
+            buildFilters();
+            if (Parameters.compactFilters)
+                return;
+            msgList = reloadFilters();
+        }
+        msgList.forEach((msg) -> Parameters.networkHandler.sendMessage(msg));
+    }
+
+    /**
+     * Records a false positive.  This method is called by the database handler when it
+     * receives a transaction matched by the filter that is not relevant to the wallet.
+     */
+    public synchronized void falsePositive() {
+        falsePositives++;
+    }
+
+    /**
+     * Assigns a peer for a key rescan and loads a temporary filter containing just the
+     * rescan keys.  The peer is removed from its shard, so we will select a peer from a
+     * shard that is loaded on multiple peers.  The caller must not hold Parameters.lock.
+     *
+     * @param       keys            Rescan keys
+     * @param       excluded        Peers that failed to process the rescan requests
+     * @return                      Rescan peer or null if no peer is available
+     */
+    public Peer assignRescanPeer(List<ECKey> keys, Set<Peer> excluded) {
+        Peer peer;
+        Message msg;
+        synchronized(this) {
+            if (rescanPeer != null)
+                return null;
+            int[] peerCounts = new int[shards.length];
+            peerShards.values().forEach((shard) -> peerCounts[shard]++);
+            for (Map.Entry<Peer, Integer> entry : peerShards.entrySet()) {
+                if (peerCounts[entry.getValue()] > 1 && entry.getKey().isConnected() &&
+                                                !excluded.contains(entry.getKey())) {
+                    rescanPeer = entry.getKey();
+                    break;
+                }
+            }
+            if (rescanPeer == null)
+                return null;
+            peerShards.remove(rescanPeer);
+            int count = keys.size()*KEY_ELEMENTS;
+            BloomFilter filter = new BloomFilter(count + Math.max(MIN_HEADROOM, (int)((double)count*FILTER_HEADROOM)));
+            keys.forEach((key) -> getElements(key).forEach((element) -> filter.insert(element)));
+            msg = FilterLoadMessage.buildFilterLoadMessage(rescanPeer, filter);
+            peer = rescanPeer;
+            log.info(String.format("Key rescan filter loaded on %s", peer.getAddress()));
+        }
+        Parameters.networkHandler.sendMessage(msg);
+        return peer;
+    }
+
+    /**
+     * Releases the rescan peer and reloads the shard filter.  The caller must not
+     * hold Parameters.lock.
+     *
+     * @param       peer            Rescan peer
+     */
+    public void releaseRescanPeer(Peer peer) {
+        Message msg;
+        synchronized(this) {
+            if (peer != rescanPeer)
+                return;
+            rescanPeer = null;
+            if (!peer.isConnected())
+                return;
+            msg = buildFilterLoadMessage(peer);
+        }
+        Parameters.networkHandler.sendMessage(msg);
+    }
+
+    /**
+     * Checks if a peer has loaded a temporary filter for a key rescan
+     *
+     * @param       peer            Peer
+     * @return                      TRUE if this is the rescan peer
+     */
+    public synchronized boolean isRescanPeer(Peer peer) {
+        return (peer == rescanPeer);
+    }
+
+    /**
+     * Notifies when a connection is started
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public void connectionStarted(Peer peer) {
+    }
+
+    /**
+     * Notifies when a connection is terminated.  A peer from a shard with multiple peers
+     * is moved to the shard assigned to the disconnected peer if no other peer has loaded
+     * the filter for the shard.
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public void connectionEnded(Peer peer) {
+        Message msg = null;
+        Peer movedPeer = null;
+        synchronized(this) {
+            if (peer == rescanPeer)
+                rescanPeer = null;
+            Integer shard = peerShards.remove(peer);
+            if (shard == null || peerShards.containsValue(shard))
+                return;
+            int[] peerCounts = new int[shards.length];
+            peerShards.values().forEach((chkShard) -> peerCounts[chkShard]++);
+            int maxShard = 0;
+            for (int i=1; i<peerCounts.length; i++) {
+                if (peerCounts[i] > peerCounts[maxShard])
+                    maxShard = i;
+            }
+            if (peerCounts[maxShard] < 2) {
+                log.warn(String.format("Bloom filter shard %d is not loaded on any peer", shard));
+                return;
+            }
+            for (Map.Entry<Peer, Integer> entry : peerShards.entrySet()) {
+                if (entry.getValue() == maxShard) {
+                    movedPeer = entry.getKey();
+                    break;
+                }
+            }
+            peerShards.put(movedPeer, shard);
+            msg = FilterLoadMessage.buildFilterLoadMessage(movedPeer, shards[shard].filter);
+            log.info(String.format("Bloom filter shard %d moved to %s", shard, movedPeer.getAddress()));
+        }
+        //
+        // Resend outstanding merkle block requests for the moved peer since the
+        // peer will no longer match transactions for its previous shard
+        //
+        synchronized(Parameters.lock) {
+            Iterator<PeerRequest> it = Parameters.processedRequests.iterator();
+            while (it.hasNext()) {
+                PeerRequest request = it.next();
+                if (request.getType() == InventoryItem.INV_FILTERED_BLOCK && request.getPeer() == movedPeer) {
+                    it.remove();
+                    Parameters.pendingRequests.add(request);
+                }
+            }
+        }
+        Parameters.networkHandler.sendMessage(msg);
+    }
+
+    /**
+     * Builds new bloom filters for the wallet keys
+     *
+     * This method must be called while holding the manager lock
+     */
+    private void buildFilters() {
+        List<ECKey> keys;
+        synchronized(Parameters.lock) {
+            keys = new ArrayList<>(Parameters.keys);
+        }
+        int shardCount = getShardCount(keys.size()*KEY_ELEMENTS);
+        List<List<ECKey>> shardKeys = new ArrayList<>(shardCount);
+        for (int i=0; i<shardCount; i++)
+            shardKeys.add(new ArrayList<>());
+        keys.forEach((key) -> shardKeys.get(getShard(key, shardCount)).add(key));
+        shards = new FilterShard[shardCount];
+        for (int i=0; i<shardCount; i++)
+            shards[i] = new FilterShard(shardKeys.get(i), watchedOutPoints);
+        if (shardCount > 1)
+            log.info(String.format("Bloom filter built with %d shards for %d keys", shardCount, keys.size()));
+        blockCount = 0;
+        txCount = 0;
+        falsePositives = 0;
+    }
+
+    /**
+     * Reassigns the peer shards after the filters have been rebuilt and returns the
+     * 'filterload' messages for the peers
+     *
+     * This method must be called while holding the manager lock
+     *
+     * @return                      List of 'filterload' messages
+     */
+    private List<Message> reloadFilters() {
+        List<Peer> peers = new ArrayList<>(peerShards.keySet());
+        peerShards.clear();
+        List<Message> msgList = new ArrayList<>(peers.size());
+        peers.forEach((peer) -> msgList.add(buildFilterLoadMessage(peer)));
+        return msgList;
+    }
+
+    /**
+     * Returns the number of shards needed for the filter elements
+     *
+     * @param       elementCount    Number of filter elements
+     * @return                      Shard count
+     */
+    private static int getShardCount(int elementCount) {
+        int count = (elementCount+MAX_SHARD_ELEMENTS-1)/MAX_SHARD_ELEMENTS;
+        return Math.min(Math.max(count, 1), MAX_SHARDS);
+    }
+
+    /**
+     * Returns the shard for a key
+     *
+     * @param       key             Key
+     * @param       shardCount      Number of shards
+     * @return                      Shard
+     */
+    private static int getShard(ECKey key, int shardCount) {
+        return (Arrays.hashCode(key.getPubKeyHash())&0x7fffffff)%shardCount;
+    }
+
+    /**
+     * Returns the filter elements for a key
+     *
+     * @param       key             Key
+     * @return                      Filter elements
+     */
+    private static List<byte[]> getElements(ECKey key) {
+        List<byte[]> elements = new ArrayList<>(KEY_ELEMENTS);
+        elements.add(key.getPubKey());
+        elements.add(Script.getRedeemScript(key.getPubKeyHash(), false));
+        elements.add(key.getPubKeyHash());
+        elements.add(key.getScriptHash());
+        return elements;
+    }
+
+    /**
+     * Returns the filter element for a transaction output.  This is the serialized
+     * outpoint (transaction hash and output index).
+     *
+     * @param       outPoint        Transaction output
+     * @return                      Filter element
+     */
+    private static byte[] getElement(TransactionID outPoint) {
+        byte[] element = new byte[36];
+        System.arraycopy(Utils.reverseBytes(outPoint.getTxHash().getBytes()), 0, element, 0, 32);
+        Utils.uint32ToByteArrayLE(outPoint.getTxIndex(), element, 32);
+        return element;
+    }
+
+    /**
+     * Builds a 'filteradd' message
+     *
+     * @param       peer            Destination peer
+     * @param       element         Filter element
+     * @return                      'filteradd' message
+     */
+    private static Message buildFilterAddMessage(Peer peer, byte[] element) {
+        SerializedBuffer msgBuffer = new SerializedBuffer(element.length+3);
+        msgBuffer.putVarBytes(element);
+        return new Message(MessageHeader.buildMessage("filteradd", msgBuffer), peer, null);
+    }
+
+    /**
+     * A filter shard contains the bloom filter for a subset of the wallet keys
+     */
+    private static class FilterShard {
+
+        /** Bloom filter */
+        private final BloomFilter filter;
+
+        /** Number of elements in the filter */
+        private int elementCount;
+
+        /** Number of bits in the filter */
+        private final int filterBits;
+
+        /** Number of hash functions */
+        private final int hashFunctions;
+
+        /**
+         * Creates the filter shard
+         *
+         * @param       keys            Keys assigned to the shard
+         * @param       outPoints       Watched outputs
+         */
+        private FilterShard(List<ECKey> keys, Set<TransactionID> outPoints) {
+            int count = keys.size()*KEY_ELEMENTS + outPoints.size();
+            int capacity = count + Math.max(MIN_HEADROOM, (int)((double)count*FILTER_HEADROOM));
+            filter = new BloomFilter(capacity);
+            keys.forEach((key) -> getElements(key).forEach((element) -> filter.insert(element)));
+            outPoints.forEach((outPoint) -> filter.insert(getElement(outPoint)));
+            elementCount = count;
+            filterBits = filter.getFilter().length*8;
+            hashFunctions = filter.getHashFunctions();
+        }
+
+        /**
+         * Estimates the false-positive rate for the filter
+         *
+         * @param       count           Number of filter elements
+         * @return                      Estimated false-positive rate
+         */
+        private double estimateRate(int count) {
+            if (filterBits == 0)
+                return 1.0;
+            return Math.pow(1.0 - Math.exp(-(double)hashFunctions*(double)count/(double)filterBits),
+                            (double)hashFunctions);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+/**
+ * The branch-and-bound selector searches for a set of outputs which covers the target
+ * without creating a change output.  The total must be at least the target and no more
+ * than the target plus the change window.  The search is a depth-first traversal of the
+ * inclusion/exclusion tree with the outputs in descending value order.  A branch is
+ * abandoned when it exceeds the upper bound or when the remaining outputs cannot reach
+ * the target.  The selection with the smallest excess is returned.
+ *
+ * The search ends when every branch has been explored, an exact match is found, the
+ * maximum number of tries is reached or the deadline has passed.
+ */
+public class BranchAndBoundSelector implements CoinSelector {
+
+    /** Maximum number of search steps */
+    private static final int MAX_TRIES = 100000;
+
+    /**
+     * Creates the branch-and-bound selector
+     */
+    public BranchAndBoundSelector() {
+    }
+
+    /**
+     * Returns the selector name
+     *
+     * @return                      Selector name
+     */
+    @Override
+    public String getName() {
+        return "branch-and-bound";
+    }
+
+    /**
+     * Selects the outputs to spend
+     *
+     * @param       values          Effective output values in descending order (all values are positive)
+     * @param       target          Effective value required
+     * @param       changeWindow    Amount above the target which will not be returned as change
+     * @param       deadline        Time when the selector must return (milliseconds)
+     * @return                      Indexes of the selected outputs or null if no changeless selection was found
+     */
+    @Override
+    public int[] select(long[] values, long target, long changeWindow, long deadline) {
+        int count = values.length;
+        long upperBound = target + changeWindow;
+        long remaining = 0;
+        for (long value : values)
+            remaining += value;
+        if (remaining < target)
+            return null;
+        boolean[] selected = new boolean[count];
+        boolean[] bestSelection = null;
+        long bestExcess = Long.MAX_VALUE;
+        long current = 0;
+        int depth = 0;
+        //
+        // 'remaining' is the total of the outputs at or after 'depth' and 'current' is
+        // the total of the selected outputs before 'depth'
+        //
+        for (int tries=0; tries<MAX_TRIES; tries++) {
+            boolean backtrack = false;
+            if (current + remaining < target || current > upperBound) {
+                backtrack = true;
+            } else if (current >= target) {
+                long excess = current - target;
+                if (excess < bestExcess) {
+                    bestExcess = excess;
+                    bestSelection = selected.clone();
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if ((tries&1023) == 0 && System.currentTimeMillis() > deadline)
+                break;
+            if (backtrack) {
+                //
+                // Step back over the excluded outputs and then exclude the last selected output
+                //
+                while (depth > 0 && !selected[depth-1]) {
+                    depth--;
+                    remaining += values[depth];
+                }
+                if (depth == 0)
+                    break;
+                depth--;
+                selected[depth] = false;
+                current -= values[depth];
+                depth++;
+            } else {
+                //
+                // Include the next output unless it has the same value as the previous
+                // output and the previous output was excluded.  That branch has already
+                // been explored.
+                //
+                remaining -= values[depth];
+                if (depth == 0 || selected[depth-1] || values[depth] != values[depth-1]) {
+                    selected[depth] = true;
+                    current += values[depth];
+                }
+                depth++;
+            }
+        }
+        if (bestSelection == null)
+            return null;
+        int selectedCount = 0;
+        for (boolean isSelected : bestSelection) {
+            if (isSelected)
+                selectedCount++;
+        }
+        int[] indexes = new int[selectedCount];
+        selectedCount = 0;
+        for (int i=0; i<count; i++) {
+            if (bestSelection[i])
+                indexes[selectedCount++] = i;
+        }
+        return indexes;
+    }
+}
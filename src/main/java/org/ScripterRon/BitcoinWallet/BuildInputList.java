@@ -19,13 +19,17 @@ import org.ScripterRon.BitcoinCore.ECKey;
 import org.ScripterRon.BitcoinCore.OutPoint;
 import org.ScripterRon.BitcoinCore.Script;
 import org.ScripterRon.BitcoinCore.ScriptOpCodes;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
 import org.ScripterRon.BitcoinCore.SignedInput;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.TransactionInput;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Build the input list for a new transaction
@@ -34,78 +38,137 @@ public class BuildInputList {
 
     /**
      * Build the signed input list for creating a new transaction.  The list will not
-     * include pending transactions, spent transactions or transactions in the safe.
-     * A coinbase transaction must be mature before it can be spent.
+     * include pending transactions, spent transactions, transactions in the safe or
+     * outputs reserved for another send.  A coinbase transaction must be mature before
+     * it can be spent.  The inputs are sorted by value in ascending order.
      *
-     * @param       coinControl         TRUE to use coin control
      * @return                          Signed input list
      * @throws      WalletException     Unable to get list of unspent outputs
      */
-    public static List<SignedInput> buildSignedInputs(boolean coinControl) throws WalletException {
-        List<SignedInput> inputList = new LinkedList<>();
+    public static List<SignedInput> buildSignedInputs() throws WalletException {
+        List<SpendableOutput> outputList = buildSpendableOutputs();
+        List<SignedInput> inputList = new ArrayList<>(outputList.size());
+        outputList.forEach((output) -> inputList.add(output.getInput()));
+        return inputList;
+    }
+
+    /**
+     * Build the spendable output list.  The list will not include pending transactions,
+     * spent transactions, transactions in the safe or outputs reserved for another send.
+     * A coinbase transaction must be mature before it can be spent.  The outputs are
+     * sorted by value in ascending order.
+     *
+     * Our own unconfirmed change is included when spending unconfirmed change is enabled.
+     * The change transaction must be tracked by the mempool tracker, it must not be in
+     * conflict with another transaction and the chain of unconfirmed transactions ending
+     * with the change transaction must not be longer than the chain limit.  The block
+     * height is -1 and the depth is 0 for an unconfirmed output.
+     *
+     * The confirmation depth is computed from the block height and the block height is
+     * read once for each block containing one of the outputs.
+     *
+     * @return                          Spendable output list
+     * @throws      WalletException     Unable to get list of unspent outputs
+     */
+    public static List<SpendableOutput> buildSpendableOutputs() throws WalletException {
         //
-        // Get the list of available transaction outputs
+        // Get the list of unspent transaction outputs
         //
-        List<ReceiveTransaction> txList = Parameters.wallet.getReceiveTxList();
-        Iterator<ReceiveTransaction> it = txList.iterator();
-        while (it.hasNext()) {
-            ReceiveTransaction tx = it.next();
-            if (tx.inSafe() || tx.isSpent()) {
-                it.remove();
-            } else {
-                int depth = Parameters.wallet.getTxDepth(tx.getTxHash());
-                if ((tx.isCoinBase() && depth < Parameters.COINBASE_MATURITY) ||
-                                    (!tx.isCoinBase() && depth < 1)) {
-                    it.remove();
-                }
-            }
-        }
+        List<ReceiveTransaction> txList = Parameters.wallet.getUnspentTxList();
+        List<SpendableOutput> outputList = new ArrayList<>(txList.size());
         //
-        // Sort the unspent outputs based on their value
+        // Index our keys by public key hash and script hash
         //
-        Collections.sort(txList, (ReceiveTransaction rcv1, ReceiveTransaction rcv2) ->
-                                  rcv1.getValue().compareTo(rcv2.getValue()));
+        Map<ByteBuffer, ECKey> keyMap = new HashMap<>();
+        synchronized(Parameters.lock) {
+            for (ECKey key : Parameters.keys) {
+                keyMap.put(ByteBuffer.wrap(key.getPubKeyHash()), key);
+                keyMap.put(ByteBuffer.wrap(key.getScriptHash()), key);
+            }
+        }
         //
-        // Build the list of signed inputs
+        // Build the spendable outputs
         //
+        int chainHeight = Parameters.wallet.getChainHeight();
+        Map<Sha256Hash, Integer> heightMap = new HashMap<>();
+        Map<Sha256Hash, Integer> chainMap = new HashMap<>();
         for (ReceiveTransaction rcvTx : txList) {
+            if (Parameters.outputReservations.contains(new TransactionID(rcvTx.getTxHash(), rcvTx.getTxIndex())))
+                continue;
+            Sha256Hash blockHash = rcvTx.getBlockHash();
+            Integer blockHeight = -1;
+            if (blockHash != null) {
+                blockHeight = heightMap.get(blockHash);
+                if (blockHeight == null) {
+                    StoredHeader header = Parameters.wallet.getHeader(blockHash);
+                    blockHeight = (header != null && header.isOnChain() ? header.getBlockHeight() : -1);
+                    heightMap.put(blockHash, blockHeight);
+                }
+            }
+            int depth = (blockHeight >= 0 ? chainHeight-blockHeight+1 : 0);
+            if (rcvTx.isCoinBase()) {
+                if (depth < Parameters.COINBASE_MATURITY)
+                    continue;
+            } else if (depth < 1) {
+                if (blockHash != null || !rcvTx.isChange() || !Parameters.spendUnconfirmedChange ||
+                        getChainLength(rcvTx.getTxHash(), chainMap) > Parameters.unconfirmedChainLimit)
+                    continue;
+            }
             byte[] scriptBytes = rcvTx.getScriptBytes();
             ECKey key = null;
             int paymentType = Script.getPaymentType(scriptBytes);
             if (paymentType == ScriptOpCodes.PAY_TO_PUBKEY_HASH) {
-                byte[] pubKeyHash = Arrays.copyOfRange(scriptBytes, 3, 23);
-                synchronized(Parameters.lock) {
-                    for (ECKey chkKey : Parameters.keys) {
-                        if (Arrays.equals(chkKey.getPubKeyHash(), pubKeyHash)) {
-                            key = chkKey;
-                            break;
-                        }
-                    }
-                }
-            } else if (paymentType == ScriptOpCodes.PAY_TO_SCRIPT_HASH) {    
-                byte[] scriptHash = Arrays.copyOfRange(scriptBytes, 2, 22);
-                synchronized(Parameters.lock) {
-                    for (ECKey chkKey : Parameters.keys) {
-                        if (Arrays.equals(chkKey.getScriptHash(), scriptHash)) {
-                            key = chkKey;
-                            break;
-                        }
-                    }
-                }
+                key = keyMap.get(ByteBuffer.wrap(Arrays.copyOfRange(scriptBytes, 3, 23)));
+            } else if (paymentType == ScriptOpCodes.PAY_TO_SCRIPT_HASH) {
+                key = keyMap.get(ByteBuffer.wrap(Arrays.copyOfRange(scriptBytes, 2, 22)));
             }
             if (key == null)
                 throw new WalletException(String.format("No key available for transaction output\n  %s : %d",
                                                         rcvTx.getTxHash().toString(), rcvTx.getTxIndex()));
             OutPoint outPoint = new OutPoint(rcvTx.getTxHash(), rcvTx.getTxIndex());
-            SignedInput input = new SignedInput(key, outPoint, rcvTx.getValue(), rcvTx.getScriptBytes());
-            inputList.add(input);
+            SignedInput input = new SignedInput(key, outPoint, rcvTx.getValue(), scriptBytes);
+            outputList.add(new SpendableOutput(rcvTx, input, blockHeight, depth));
         }
         //
-        // Select coins if coin control specified
+        // Sort the spendable outputs based on their value
         //
-        if (coinControl) {
-            CoinControlDialog.showDialog(Main.mainWindow, inputList);
+        outputList.sort((o1, o2) -> o1.getValue().compareTo(o2.getValue()));
+        return outputList;
+    }
+
+    /**
+     * Returns the length of the chain of unconfirmed transactions ending with an
+     * unconfirmed transaction.  A parent transaction which is not tracked by the
+     * mempool tracker is treated as confirmed.  Integer.MAX_VALUE is returned if the
+     * transaction is not tracked or if a transaction in the chain is in conflict with
+     * another transaction, since the transaction might never be confirmed.
+     *
+     * @param       txHash          Unconfirmed transaction hash
+     * @param       chainMap        Chain lengths computed so far (updated)
+     * @return                      Chain length
+     */
+    private static int getChainLength(Sha256Hash txHash, Map<Sha256Hash, Integer> chainMap) {
+        Integer length = chainMap.get(txHash);
+        if (length != null)
+            return length;
+        Transaction tx = Parameters.mempoolTracker.getTransaction(txHash);
+        if (tx == null || Parameters.conflictIndex.isConflicted(txHash)) {
+            length = Integer.MAX_VALUE;
+        } else {
+            length = 1;
+            for (TransactionInput txInput : tx.getInputs()) {
+                Sha256Hash parentHash = txInput.getOutPoint().getHash();
+                if (!Parameters.mempoolTracker.contains(parentHash))
+                    continue;
+                int parentLength = getChainLength(parentHash, chainMap);
+                if (parentLength >= Parameters.unconfirmedChainLimit) {
+                    length = Integer.MAX_VALUE;
+                    break;
+                }
+                length = Math.max(length, parentLength+1);
+            }
         }
-        return inputList;
+        chainMap.put(txHash, length);
+        return length;
     }
 }
@@ -19,19 +19,27 @@ import org.ScripterRon.BitcoinCore.SignedInput;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 
 import java.awt.Dialog;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.WindowConstants;
 import javax.swing.event.ListSelectionEvent;
@@ -40,20 +48,28 @@ import javax.swing.table.AbstractTableModel;
 
 /**
  * Allow the user to select specific coins for a send request
+ *
+ * The table model keeps the spendable outputs in an array and displays a view consisting
+ * of the indexes of the outputs that pass the current filter, in the current sort order.
+ * Filtering and sorting are performed by the model, so the table never sorts or filters
+ * its rows.  The selection state is kept for each output and the selected count and value
+ * are updated as outputs are selected, so the totals do not require a scan of the outputs.
+ * Clicking a column header sorts the view by that column.
  */
 public class CoinControlDialog extends JDialog implements ActionListener, ListSelectionListener {
 
     /** Transaction table column classes */
     private static final Class<?>[] columnClasses = {
-        String.class, String.class, String.class, BigInteger.class};
+        String.class, String.class, String.class, String.class, Date.class, BigInteger.class, String.class};
 
     /** Transaction table column names */
     private static final String[] columnNames = {
-        "Sel", "Name", "Transaction ID", "Amount"};
+        "Sel", "Name", "Address", "Transaction ID", "Date", "Amount", "Conf"};
 
     /** Transaction table column types */
     private static final int[] columnTypes = {
-        SizedTable.SELECTED, SizedTable.NAME, SizedTable.ADDRESS, SizedTable.AMOUNT};
+        SizedTable.SELECTED, SizedTable.NAME, SizedTable.ADDRESS, SizedTable.ADDRESS, SizedTable.DATE,
+        SizedTable.AMOUNT, SizedTable.STATUS};
 
     /** Table scroll pane */
     private final JScrollPane scrollPane;
@@ -63,34 +79,91 @@ public class CoinControlDialog extends JDialog implements ActionListener, ListSe
 
     /** Table model */
     private final CoinControlDialog.TableModel tableModel;
-    
-    /** Signed input list */
-    private final List<SignedInput> inputList;
+
+    /** Minimum amount field */
+    private final JTextField minAmountField;
+
+    /** Maximum amount field */
+    private final JTextField maxAmountField;
+
+    /** Minimum confirmations field */
+    private final JTextField minConfField;
+
+    /** Minimum age field */
+    private final JTextField minAgeField;
+
+    /** Name or address field */
+    private final JTextField nameField;
+
+    /** Selection totals */
+    private final JLabel totalLabel;
+
+    /** Selected inputs */
+    private final List<SignedInput> selectedInputs = new ArrayList<>();
 
     /**
      * Create the coin control dialog
-     * 
-     * The signed input list will be updated based on the selected inputs
      *
      * @param       parent          Parent dialog
-     * @param       inputList       Signed input list
+     * @param       outputList      Spendable outputs
      */
-    public CoinControlDialog(JFrame parent, List<SignedInput> inputList) {
+    public CoinControlDialog(JFrame parent, List<SpendableOutput> outputList) {
         super(parent, "Coin Control", Dialog.ModalityType.DOCUMENT_MODAL);
         setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
-        this.inputList = inputList;
         //
         // Create the coin selection table
         //
-        tableModel = new CoinControlDialog.TableModel(columnNames, columnClasses, inputList);
+        tableModel = new CoinControlDialog.TableModel(columnNames, columnClasses, outputList);
         table = new SizedTable(tableModel, columnTypes);
         table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         table.getSelectionModel().addListSelectionListener(this);
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent me) {
+                int column = table.columnAtPoint(me.getPoint());
+                if (column >= 0)
+                    tableModel.sortView(table.convertColumnIndexToModel(column));
+            }
+        });
         scrollPane = new JScrollPane(table);
         //
-        // Create the buttons (Done, Cancel)
+        // Create the filter fields
+        //
+        minAmountField = new JTextField("", 8);
+        maxAmountField = new JTextField("", 8);
+        minConfField = new JTextField("", 4);
+        minAgeField = new JTextField("", 4);
+        nameField = new JTextField("", 12);
+        JPanel filterPane = new JPanel();
+        filterPane.add(new JLabel("Amount  ", JLabel.RIGHT));
+        filterPane.add(minAmountField);
+        filterPane.add(new JLabel(" to "));
+        filterPane.add(maxAmountField);
+        filterPane.add(Box.createHorizontalStrut(10));
+        filterPane.add(new JLabel("Min conf  ", JLabel.RIGHT));
+        filterPane.add(minConfField);
+        filterPane.add(Box.createHorizontalStrut(10));
+        filterPane.add(new JLabel("Min age (days)  ", JLabel.RIGHT));
+        filterPane.add(minAgeField);
+        filterPane.add(Box.createHorizontalStrut(10));
+        filterPane.add(new JLabel("Name/Address  ", JLabel.RIGHT));
+        filterPane.add(nameField);
+        JPanel filterButtonPane = new ButtonPane(this, 10, new String[] {"Apply Filter", "filter"},
+                                                           new String[] {"Clear Filter", "clear filter"});
+        //
+        // Create the selection totals
+        //
+        totalLabel = new JLabel();
+        JPanel totalPane = new JPanel();
+        totalPane.add(totalLabel);
+        updateTotals();
+        //
+        // Create the buttons (Select Shown, Unselect Shown, Unselect All, Done, Cancel)
         //
-        JPanel buttonPane = new ButtonPane(this, 10, new String[] {"Done", "done"},
+        JPanel buttonPane = new ButtonPane(this, 10, new String[] {"Select Shown", "select shown"},
+                                                     new String[] {"Unselect Shown", "unselect shown"},
+                                                     new String[] {"Unselect All", "unselect all"},
+                                                     new String[] {"Done", "done"},
                                                      new String[] {"Cancel", "cancel"});
         //
         // Set up the content pane
@@ -99,27 +172,35 @@ public class CoinControlDialog extends JDialog implements ActionListener, ListSe
         contentPane.setLayout(new BoxLayout(contentPane, BoxLayout.Y_AXIS));
         contentPane.setOpaque(true);
         contentPane.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        contentPane.add(filterPane);
+        contentPane.add(filterButtonPane);
+        contentPane.add(Box.createVerticalStrut(15));
         contentPane.add(scrollPane);
         contentPane.add(Box.createVerticalStrut(15));
+        contentPane.add(totalPane);
+        contentPane.add(Box.createVerticalStrut(15));
         contentPane.add(buttonPane);
         setContentPane(contentPane);
-    }  
+    }
 
     /**
      * Show the coin control dialog
      *
      * @param       parent              Parent dialog
-     * @param       inputList           Signed input list
+     * @param       outputList          Spendable outputs
+     * @return                          Selected inputs sorted by value (empty if cancelled)
      */
-    public static void showDialog(JFrame parent, List<SignedInput> inputList) {
+    public static List<SignedInput> showDialog(JFrame parent, List<SpendableOutput> outputList) {
         try {
-            CoinControlDialog dialog = new CoinControlDialog(parent, inputList);
+            CoinControlDialog dialog = new CoinControlDialog(parent, outputList);
             dialog.pack();
             dialog.setLocationRelativeTo(parent);
             dialog.setVisible(true);
+            return dialog.selectedInputs;
         } catch (Exception exc) {
             Main.logException("Exception while displaying dialog", exc);
         }
+        return new ArrayList<>();
     }
 
     /**
@@ -129,24 +210,63 @@ public class CoinControlDialog extends JDialog implements ActionListener, ListSe
      */
     @Override
     public void actionPerformed(ActionEvent ae) {
-        String action = ae.getActionCommand();
-        switch (action) {
-            case "done":
-                tableModel.updateInputList(inputList);
-                setVisible(false);
-                dispose();
-                break;
-            case "cancel":
-                inputList.clear();
-                setVisible(false);
-                dispose();
-                break;
+        //
+        // "filter"         - Apply the filter
+        // "clear filter"   - Show all outputs
+        // "select shown"   - Select the outputs in the view
+        // "unselect shown" - Unselect the outputs in the view
+        // "unselect all"   - Unselect all outputs
+        // "done"           - Return the selected inputs
+        // "cancel"         - Return without selecting any inputs
+        //
+        try {
+            String action = ae.getActionCommand();
+            switch (action) {
+                case "filter":
+                    applyFilter();
+                    break;
+                case "clear filter":
+                    minAmountField.setText("");
+                    maxAmountField.setText("");
+                    minConfField.setText("");
+                    minAgeField.setText("");
+                    nameField.setText("");
+                    applyFilter();
+                    break;
+                case "select shown":
+                    tableModel.selectView(true);
+                    updateTotals();
+                    break;
+                case "unselect shown":
+                    tableModel.selectView(false);
+                    updateTotals();
+                    break;
+                case "unselect all":
+                    tableModel.unselectAll();
+                    updateTotals();
+                    break;
+                case "done":
+                    tableModel.getSelectedInputs(selectedInputs);
+                    setVisible(false);
+                    dispose();
+                    break;
+                case "cancel":
+                    selectedInputs.clear();
+                    setVisible(false);
+                    dispose();
+                    break;
+            }
+        } catch (NumberFormatException exc) {
+            JOptionPane.showMessageDialog(this, "Invalid numeric value entered", "Error",
+                                          JOptionPane.ERROR_MESSAGE);
+        } catch (Exception exc) {
+            Main.logException("Exception while processing action event", exc);
         }
     }
-    
+
     /**
      * List selection change (ListSelectionListener interface)
-     * 
+     *
      * @param   se              Selection event
      */
     @Override
@@ -158,49 +278,95 @@ public class CoinControlDialog extends JDialog implements ActionListener, ListSe
             return;
         //
         // Flip the pending state for the selected transaction (the table is set
-        // for single selection with no row sorting)
+        // for single selection and the model sorts the rows)
         //
         int index = lsm.getMinSelectionIndex();
         if (lsm.isSelectedIndex(index)) {
             tableModel.toggleSelection(index);
+            updateTotals();
         }
         lsm.clearSelection();           // This will cause the table row to be redisplayed
     }
 
+    /**
+     * Apply the filter fields to the table view
+     *
+     * @throws      NumberFormatException   Invalid numeric value entered
+     */
+    private void applyFilter() throws NumberFormatException {
+        String text = minAmountField.getText().trim();
+        BigInteger minAmount = (text.isEmpty() ? null : Main.stringToSatoshi(text));
+        text = maxAmountField.getText().trim();
+        BigInteger maxAmount = (text.isEmpty() ? null : Main.stringToSatoshi(text));
+        text = minConfField.getText().trim();
+        int minConf = (text.isEmpty() ? 0 : Integer.parseInt(text));
+        text = minAgeField.getText().trim();
+        int minAge = (text.isEmpty() ? 0 : Integer.parseInt(text));
+        text = nameField.getText().trim();
+        tableModel.filterView(minAmount, maxAmount, minConf, minAge, text.toLowerCase());
+        updateTotals();
+    }
+
+    /**
+     * Update the selection totals
+     */
+    private void updateTotals() {
+        totalLabel.setText(String.format("Showing %,d of %,d outputs    Selected %,d outputs  %s BTC",
+                                         tableModel.getRowCount(), tableModel.getOutputCount(),
+                                         tableModel.getSelectedCount(),
+                                         Main.satoshiToString(BigInteger.valueOf(tableModel.getSelectedValue()))));
+    }
+
     /**
      * Table model
      */
     private class TableModel extends AbstractTableModel {
 
         /** Column names */
-        private String[] columnNames;
+        private final String[] columnNames;
 
         /** Column classes */
-        private Class<?>[] columnClasses;
-        
-        /** Input list */
-        private List<SignedInput> inputList;
-        
-        /** Selection list */
-        private List<Boolean> selectionList;
+        private final Class<?>[] columnClasses;
+
+        /** Spendable outputs */
+        private final SpendableOutput[] outputs;
+
+        /** Output selection states */
+        private final boolean[] selected;
+
+        /** Output indexes in the current view */
+        private int[] view;
+
+        /** Number of selected outputs */
+        private int selectedCount;
+
+        /** Total value of the selected outputs (satoshis) */
+        private long selectedValue;
+
+        /** Sort column or -1 if the view is in value order */
+        private int sortColumn = -1;
+
+        /** Sort in ascending order */
+        private boolean sortAscending = true;
 
         /**
          * Create the table model
          *
          * @param       columnName          Column names
          * @param       columnClasses       Column classes
-         * @param       inputList           Signed input list
+         * @param       outputList          Spendable outputs sorted by value
          */
-        public TableModel(String[] columnNames, Class<?>[] columnClasses, List<SignedInput> inputList) {
+        public TableModel(String[] columnNames, Class<?>[] columnClasses, List<SpendableOutput> outputList) {
             super();
             if (columnNames.length != columnClasses.length)
                 throw new IllegalArgumentException("Number of names not same as number of classes");
             this.columnNames = columnNames;
             this.columnClasses = columnClasses;
-            this.inputList = new ArrayList<>(inputList);
-            this.selectionList = new ArrayList<>(inputList.size());
-            for (int i=0; i<inputList.size(); i++)
-                selectionList.add(false);
+            this.outputs = outputList.toArray(new SpendableOutput[outputList.size()]);
+            this.selected = new boolean[outputs.length];
+            this.view = new int[outputs.length];
+            for (int i=0; i<outputs.length; i++)
+                view[i] = i;
         }
 
         /**
@@ -242,7 +408,7 @@ public class CoinControlDialog extends JDialog implements ActionListener, ListSe
          */
         @Override
         public int getRowCount() {
-            return inputList.size();
+            return view.length;
         }
 
         /**
@@ -254,52 +420,226 @@ public class CoinControlDialog extends JDialog implements ActionListener, ListSe
          */
         @Override
         public Object getValueAt(int row, int column) {
-            if (row >= inputList.size())
+            if (row >= view.length)
                 throw new IndexOutOfBoundsException("Table row " + row + " is not valid");
             Object value;
-            SignedInput input = inputList.get(row);
+            int index = view[row];
+            SpendableOutput output = outputs[index];
             switch (column) {
                 case 0:                                     // Selection status
-                    value = selectionList.get(row) ? "x" : "";
+                    value = selected[index] ? "x" : "";
                     break;
                 case 1:                                     // Name
-                    value = input.getKey().getLabel();
+                    value = output.getName();
+                    break;
+                case 2:                                     // Address
+                    value = output.getAddressString();
                     break;
-                case 2:                                     // Transaction identifier
-                    value = input.getOutPoint().getHash().toString();
+                case 3:                                     // Transaction identifier
+                    value = output.getTransaction().getTxHash().toString();
                     break;
-                case 3:                                     // Amount
-                    value = input.getValue();
+                case 4:                                     // Date
+                    value = new Date(output.getTransaction().getTxTime()*1000);
+                    break;
+                case 5:                                     // Amount
+                    value = output.getValue();
+                    break;
+                case 6:                                     // Confirmations
+                    value = Integer.toString(output.getDepth());
                     break;
                 default:
                     throw new IndexOutOfBoundsException("Table column " + column + " is not valid");
             }
             return value;
         }
-        
+
+        /**
+         * Returns the number of spendable outputs
+         *
+         * @return                  Output count
+         */
+        public int getOutputCount() {
+            return outputs.length;
+        }
+
+        /**
+         * Returns the number of selected outputs
+         *
+         * @return                  Selected count
+         */
+        public int getSelectedCount() {
+            return selectedCount;
+        }
+
+        /**
+         * Returns the total value of the selected outputs
+         *
+         * @return                  Selected value (satoshis)
+         */
+        public long getSelectedValue() {
+            return selectedValue;
+        }
+
         /**
          * Toggle a row selection
-         * 
+         *
          * @param   row                 Table row
          */
         public void toggleSelection(int row) {
-            if (row >= selectionList.size())
+            if (row >= view.length)
                 throw new IndexOutOfBoundsException("Table row " + row + " is not valid");
-            selectionList.set(row, !selectionList.get(row));
+            setSelected(view[row], !selected[view[row]]);
+        }
+
+        /**
+         * Select or unselect the outputs in the current view
+         *
+         * @param   select              TRUE to select the outputs
+         */
+        public void selectView(boolean select) {
+            for (int index : view)
+                setSelected(index, select);
+            if (view.length > 0)
+                fireTableRowsUpdated(0, view.length-1);
+        }
+
+        /**
+         * Unselect all outputs
+         */
+        public void unselectAll() {
+            Arrays.fill(selected, false);
+            selectedCount = 0;
+            selectedValue = 0;
+            if (view.length > 0)
+                fireTableRowsUpdated(0, view.length-1);
         }
-        
+
         /**
-         * Update the signed input list based on the row selections
-         * 
-         * @param   updateList          Selected signed inputs
+         * Set the selection state for an output and update the selection totals
+         *
+         * @param   index               Output index
+         * @param   select              TRUE to select the output
          */
-        public void updateInputList(List<SignedInput> updateList) {
-            updateList.clear();
-            for (int i=0; i<inputList.size(); i++) {
-                if (selectionList.get(i)) {
-                    updateList.add(inputList.get(i));
+        private void setSelected(int index, boolean select) {
+            if (selected[index] == select)
+                return;
+            selected[index] = select;
+            long value = outputs[index].getValue().longValue();
+            if (select) {
+                selectedCount++;
+                selectedValue += value;
+            } else {
+                selectedCount--;
+                selectedValue -= value;
+            }
+        }
+
+        /**
+         * Rebuild the view using the supplied filter.  The view remains in the current sort order.
+         *
+         * @param   minAmount           Minimum amount or null
+         * @param   maxAmount           Maximum amount or null
+         * @param   minConf             Minimum number of confirmations
+         * @param   minAge              Minimum age in days
+         * @param   text                Name or address text (lower case) or an empty string
+         */
+        public void filterView(BigInteger minAmount, BigInteger maxAmount, int minConf, int minAge, String text) {
+            long maxTime = System.currentTimeMillis()/1000 - (long)minAge*24*60*60;
+            int[] newView = new int[outputs.length];
+            int count = 0;
+            for (int i=0; i<outputs.length; i++) {
+                SpendableOutput output = outputs[i];
+                if (minAmount != null && output.getValue().compareTo(minAmount) < 0)
+                    continue;
+                if (maxAmount != null && output.getValue().compareTo(maxAmount) > 0)
+                    continue;
+                if (output.getDepth() < minConf)
+                    continue;
+                if (minAge > 0 && output.getTransaction().getTxTime() > maxTime)
+                    continue;
+                if (!text.isEmpty() && !output.getName().toLowerCase().contains(text) &&
+                                       !output.getAddressString().toLowerCase().contains(text))
+                    continue;
+                newView[count++] = i;
+            }
+            view = Arrays.copyOf(newView, count);
+            if (sortColumn >= 0)
+                sortRows();
+            fireTableDataChanged();
+        }
+
+        /**
+         * Sort the view by a column.  The sort order is reversed if the view is already
+         * sorted by the column.
+         *
+         * @param   column              Column number
+         */
+        public void sortView(int column) {
+            if (column == sortColumn) {
+                sortAscending = !sortAscending;
+            } else {
+                sortColumn = column;
+                sortAscending = true;
+            }
+            sortRows();
+            fireTableDataChanged();
+        }
+
+        /**
+         * Sort the view rows using the current sort column.  The sort key is obtained once
+         * for each row and the rows with equal keys remain in value order.
+         */
+        private void sortRows() {
+            Comparable<?>[] keys = new Comparable<?>[outputs.length];
+            for (int index : view) {
+                SpendableOutput output = outputs[index];
+                switch (sortColumn) {
+                    case 0:
+                        keys[index] = selected[index] ? 0 : 1;
+                        break;
+                    case 1:
+                        keys[index] = output.getName().toLowerCase();
+                        break;
+                    case 2:
+                        keys[index] = output.getAddressString();
+                        break;
+                    case 3:
+                        keys[index] = output.getTransaction().getTxHash().toString();
+                        break;
+                    case 4:
+                        keys[index] = output.getTransaction().getTxTime();
+                        break;
+                    case 6:
+                        keys[index] = output.getDepth();
+                        break;
+                    default:
+                        keys[index] = index;            // Outputs are in value order
                 }
             }
+            @SuppressWarnings("unchecked")
+            Comparator<Integer> comparator = (i1, i2) -> {
+                int cmp = ((Comparable<Object>)keys[i1]).compareTo(keys[i2]);
+                return (cmp != 0 ? cmp : Integer.compare(i1, i2));
+            };
+            Integer[] rows = new Integer[view.length];
+            for (int i=0; i<view.length; i++)
+                rows[i] = view[i];
+            Arrays.sort(rows, (sortAscending ? comparator : comparator.reversed()));
+            for (int i=0; i<rows.length; i++)
+                view[i] = rows[i];
+        }
+
+        /**
+         * Return the selected inputs in value order
+         *
+         * @param   inputList           List to receive the selected inputs
+         */
+        public void getSelectedInputs(List<SignedInput> inputList) {
+            inputList.clear();
+            for (int i=0; i<outputs.length; i++) {
+                if (selected[i])
+                    inputList.add(outputs[i].getInput());
+            }
         }
     }
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.SignedInput;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The coin selection engine chooses the inputs for a new transaction.  The engine keeps
+ * the spendable outputs in descending value order and passes their effective values to
+ * each coin selector in turn until one of them finds a selection.  The default selectors
+ * are the branch-and-bound selector, which looks for a selection without change, followed
+ * by the knapsack selector.  The largest outputs are used if no selector finds a selection
+ * within the time limit.
+ *
+ * The effective value of an output is its value less the fee for the input spending it.
+ * Outputs whose value does not cover the input fee are not used.
+ */
+public class CoinSelection {
+
+    /** Default selection time limit (milliseconds) */
+    public static final long TIME_LIMIT = 250;
+
+    /** Spendable outputs in descending value order */
+    private final List<SpendableOutput> outputs;
+
+    /** Output values in descending order (satoshis) */
+    private final long[] values;
+
+    /** Coin selectors */
+    private final List<CoinSelector> selectors;
+
+    /**
+     * Creates the coin selection engine using the default selectors
+     *
+     * @param       outputList      Spendable outputs
+     */
+    public CoinSelection(List<SpendableOutput> outputList) {
+        this(outputList, Arrays.asList(new BranchAndBoundSelector(), new KnapsackSelector()));
+    }
+
+    /**
+     * Creates the coin selection engine
+     *
+     * @param       outputList      Spendable outputs
+     * @param       selectors       Coin selectors in the order they are to be used
+     */
+    public CoinSelection(List<SpendableOutput> outputList, List<CoinSelector> selectors) {
+        this.selectors = selectors;
+        outputs = new ArrayList<>(outputList);
+        outputs.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
+        values = new long[outputs.size()];
+        for (int i=0; i<values.length; i++)
+            values[i] = outputs.get(i).getValue().longValue();
+    }
+
+    /**
+     * Selects the inputs for a transaction
+     *
+     * @param       amount          Send amount
+     * @param       baseFee         Fee for the transaction without any inputs
+     * @param       inputFee        Fee for each input
+     * @param       changeWindow    Amount above the target which will not be returned as change
+     * @param       timeLimit       Time limit (milliseconds)
+     * @return                      Selection result
+     */
+    public Result select(BigInteger amount, BigInteger baseFee, BigInteger inputFee, BigInteger changeWindow,
+                                        long timeLimit) {
+        long startTime = System.currentTimeMillis();
+        long fee = inputFee.longValue();
+        long target = amount.add(baseFee).longValue();
+        //
+        // Build the effective values for the outputs that cover their input fee
+        //
+        int count = 0;
+        while (count < values.length && values[count] > fee)
+            count++;
+        long[] effectiveValues = new long[count];
+        for (int i=0; i<count; i++)
+            effectiveValues[i] = values[i] - fee;
+        //
+        // Try each selector in turn.  Each selector except the last is allowed an equal
+        // share of the remaining time and the last selector is allowed the rest of the time.
+        //
+        long endTime = startTime + timeLimit;
+        for (int i=0; i<selectors.size(); i++) {
+            CoinSelector selector = selectors.get(i);
+            long now = System.currentTimeMillis();
+            long deadline = (i == selectors.size()-1 ? endTime : now + (endTime-now)/(selectors.size()-i));
+            int[] indexes = selector.select(effectiveValues, target, changeWindow.longValue(), deadline);
+            if (indexes != null)
+                return buildResult(selector.getName(), indexes, startTime);
+        }
+        //
+        // Use the largest outputs if no selector found a selection
+        //
+        long total = 0;
+        int selectedCount = 0;
+        while (selectedCount < count && total < target)
+            total += effectiveValues[selectedCount++];
+        if (total < target)
+            return buildResult("none", new int[0], startTime);
+        int[] indexes = new int[selectedCount];
+        for (int i=0; i<selectedCount; i++)
+            indexes[i] = i;
+        return buildResult("largest-first", indexes, startTime);
+    }
+
+    /**
+     * Builds the selection result
+     *
+     * @param       name            Selector name
+     * @param       indexes         Indexes of the selected outputs
+     * @param       startTime       Time the selection started (milliseconds)
+     * @return                      Selection result
+     */
+    private Result buildResult(String name, int[] indexes, long startTime) {
+        List<SignedInput> inputs = new ArrayList<>(indexes.length);
+        for (int index : indexes)
+            inputs.add(outputs.get(index).getInput());
+        Collections.sort(inputs, (i1, i2) -> i1.getValue().compareTo(i2.getValue()));
+        long elapsed = System.currentTimeMillis() - startTime;
+        log.debug(String.format("Coin selection: %s selected %d of %d outputs in %d ms",
+                                name, inputs.size(), outputs.size(), elapsed));
+        return new Result(name, inputs);
+    }
+
+    /**
+     * The result of a coin selection
+     */
+    public static class Result {
+
+        /** Name of the selector which made the selection */
+        private final String selectorName;
+
+        /** Selected inputs in ascending value order */
+        private final List<SignedInput> inputs;
+
+        /**
+         * Creates a selection result
+         *
+         * @param       selectorName    Selector name
+         * @param       inputs          Selected inputs
+         */
+        private Result(String selectorName, List<SignedInput> inputs) {
+            this.selectorName = selectorName;
+            this.inputs = inputs;
+        }
+
+        /**
+         * Returns the name of the selector which made the selection
+         *
+         * @return                  Selector name
+         */
+        public String getSelectorName() {
+            return selectorName;
+        }
+
+        /**
+         * Returns the selected inputs
+         *
+         * @return                  Selected inputs in ascending value order (empty if the outputs do not cover the amount)
+         */
+        public List<SignedInput> getInputs() {
+            return inputs;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+/**
+ * A coin selector chooses the outputs to spend for a new transaction.  The selector works
+ * with effective values, which are the output values less the fee needed to spend each
+ * output, so the target already includes the fee for the rest of the transaction.
+ */
+public interface CoinSelector {
+
+    /**
+     * Returns the selector name
+     *
+     * @return                      Selector name
+     */
+    String getName();
+
+    /**
+     * Selects the outputs to spend
+     *
+     * @param       values          Effective output values in descending order (all values are positive)
+     * @param       target          Effective value required
+     * @param       changeWindow    Amount above the target which will not be returned as change
+     * @param       deadline        Time when the selector must return (milliseconds)
+     * @return                      Indexes of the selected outputs or null if no selection was found
+     */
+    int[] select(long[] values, long target, long changeWindow, long deadline);
+}
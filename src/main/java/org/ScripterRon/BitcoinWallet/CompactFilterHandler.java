@@ -0,0 +1,820 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.BlockHeader;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.InventoryItem;
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.MessageHeader;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.RejectMessage;
+import org.ScripterRon.BitcoinCore.ScriptOpCodes;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.Utils;
+import org.ScripterRon.BitcoinCore.VerificationException;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact filter handler scans the block chain using BIP 157/158 compact block filters
+ * instead of bloom filters.  The filters are requested from a peer in batches.  The filter
+ * headers for the batch are requested first and are used to verify the filters.  The filters
+ * are then matched against our output scripts and the full block is downloaded for each
+ * matching filter.  The full blocks are passed to the database handler in height order.
+ *
+ * Our scripts are never sent to a peer, so the peer does not learn which addresses
+ * belong to the wallet.
+ *
+ * The filter headers for each batch are requested from a second peer as well and the
+ * batch is discarded if the two header chains do not agree, so a single peer cannot
+ * serve a made-up filter header chain.  A single peer is used only when the user has
+ * configured static connections.  The transactions in each downloaded block are checked
+ * against the merkle root in the block header.
+ *
+ * The scan height is stored in the wallet database and is updated as each batch is
+ * completed, so an interrupted scan resumes where it left off.
+ */
+public class CompactFilterHandler implements ConnectionListener {
+
+    /** Basic filter type */
+    private static final int FILTER_TYPE = 0;
+
+    /** Maximum number of filters in a batch */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /** Batch timeout (milliseconds) */
+    private static final long BATCH_TIMEOUT = 60*1000;
+
+    /** Batch states */
+    private enum BatchState {IDLE, HEADERS, FILTERS, BLOCKS, PROCESSING}
+
+    /** Current batch state */
+    private BatchState state = BatchState.IDLE;
+
+    /** Peer providing the compact filters for the current batch */
+    private Peer scanPeer;
+
+    /** Peer cross-checking the filter headers for the current batch or null */
+    private Peer checkPeer;
+
+    /** Current batch identifier */
+    private int batchId;
+
+    /** Height of the block preceding the current batch */
+    private int batchHeight;
+
+    /** Block hashes for the current batch */
+    private List<Sha256Hash> batchList;
+
+    /** Block hash index for the current batch */
+    private final Map<Sha256Hash, Integer> batchMap = new HashMap<>();
+
+    /** Filter hashes for the current batch */
+    private List<byte[]> filterHashes;
+
+    /** Filters for the current batch */
+    private GolombFilter[] filters;
+
+    /** Number of filters received for the current batch */
+    private int filterCount;
+
+    /** Matching block indexes for the current batch */
+    private List<Integer> matchList;
+
+    /** Downloaded blocks for the current batch */
+    private final Map<Integer, FullBlock> blockMap = new HashMap<>();
+
+    /** Number of matching blocks passed to the database handler */
+    private int releaseCount;
+
+    /** Filter header at the end of the current batch */
+    private byte[] batchFilterHeader;
+
+    /** Filter header at the end of the current batch reported by the check peer */
+    private byte[] checkFilterHeader;
+
+    /** Filter header at the end of the last completed batch */
+    private byte[] lastFilterHeader;
+
+    /** Height of the last filter header */
+    private int lastFilterHeight = -1;
+
+    /** Batch timeout */
+    private TimerWheel.Timeout batchTimeout;
+
+    /** Rescan in progress */
+    private boolean rescanning = false;
+
+    /**
+     * Creates the compact filter handler
+     */
+    public CompactFilterHandler() {
+    }
+
+    /**
+     * Starts a new filter batch if a batch is not in progress and we have blocks that
+     * haven't been scanned yet.  This method is called by the database handler when its
+     * queue is empty and by the network handler when a new connection is started.
+     */
+    public void startScan() {
+        List<Message> msgList = new ArrayList<>(1);
+        synchronized(this) {
+            if (state != BatchState.IDLE)
+                return;
+            try {
+                //
+                // Nothing to do if we have scanned all of the blocks in the chain
+                //
+                int scanHeight = Parameters.wallet.getScanHeight();
+                int chainHeight = Parameters.wallet.getChainHeight();
+                if (scanHeight >= chainHeight) {
+                    if (rescanning) {
+                        rescanning = false;
+                        Parameters.databaseHandler.rescanCompleted();
+                    }
+                    return;
+                }
+                //
+                // Select a peer that provides compact filters.  We prefer a peer that
+                // reported a chain height at least as high as ours.
+                //
+                List<Peer> peerList = new ArrayList<>();
+                List<Peer> lowPeers = new ArrayList<>();
+                Parameters.networkHandler.getConnections().stream()
+                        .filter((peer) -> ((peer.getServices()&Parameters.NODE_COMPACT_FILTERS) != 0))
+                        .forEach((peer) -> {
+                            if (peer.getHeight() >= chainHeight)
+                                peerList.add(peer);
+                            else
+                                lowPeers.add(peer);
+                        });
+                List<Peer> checkList = new ArrayList<>(peerList);
+                checkList.addAll(lowPeers);
+                if (peerList.isEmpty())
+                    peerList.addAll(lowPeers);
+                if (peerList.isEmpty())
+                    return;
+                Peer selectedPeer = peerList.get((int)((double)peerList.size() * Math.random()));
+                //
+                // Select a different peer to cross-check the filter headers
+                //
+                checkList.remove(selectedPeer);
+                if (checkList.isEmpty() && !Parameters.networkHandler.isStaticConnections()) {
+                    log.debug("Waiting for a second compact filter peer to check the filter headers");
+                    return;
+                }
+                scanPeer = selectedPeer;
+                checkPeer = (checkList.isEmpty() ? null :
+                                    checkList.get((int)((double)checkList.size() * Math.random())));
+                //
+                // Get the block hashes for the batch
+                //
+                batchList = Parameters.wallet.getChainList(scanHeight, Sha256Hash.ZERO_HASH);
+                if (batchList.isEmpty())
+                    return;
+                if (batchList.size() > MAX_BATCH_SIZE)
+                    batchList = batchList.subList(0, MAX_BATCH_SIZE);
+                batchHeight = scanHeight;
+                batchId++;
+                batchMap.clear();
+                for (int i=0; i<batchList.size(); i++)
+                    batchMap.put(batchList.get(i), i);
+                //
+                // Request the filter headers for the batch
+                //
+                msgList.add(buildFilterRequest("getcfheaders", scanPeer));
+                if (checkPeer != null)
+                    msgList.add(buildFilterRequest("getcfheaders", checkPeer));
+                state = BatchState.HEADERS;
+                batchTimeout = Parameters.networkHandler.schedule(() -> batchTimeout(), BATCH_TIMEOUT);
+                log.debug(String.format("'getcfheaders' message sent to %s%s for blocks %d-%d",
+                                        scanPeer.getAddress(),
+                                        (checkPeer != null ? " and "+checkPeer.getAddress() : ""),
+                                        batchHeight+1, batchHeight+batchList.size()));
+            } catch (WalletException exc) {
+                log.error("Unable to start compact filter batch", exc);
+                return;
+            }
+        }
+        msgList.forEach((msg) -> Parameters.networkHandler.sendMessage(msg));
+    }
+
+    /**
+     * Rescans the block chain starting after the specified height
+     *
+     * @param       scanHeight          Height of the last block that doesn't need to be scanned
+     * @throws      WalletException     Unable to update the scan height
+     */
+    public void rescan(int scanHeight) throws WalletException {
+        synchronized(this) {
+            resetBatch();
+            Parameters.wallet.setScanHeight(scanHeight);
+            lastFilterHeight = -1;
+            lastFilterHeader = null;
+            rescanning = true;
+        }
+        startScan();
+    }
+
+    /**
+     * Rewinds the scan after a chain reorganization below the scan height.  The blocks
+     * on the new chain following the junction block have not been scanned.  The current
+     * batch is discarded since it may contain blocks that are no longer on the chain.
+     * This method is called by the database handler, which starts a new batch when its
+     * queue is empty.
+     *
+     * @param       junctionHeight      Height of the junction block
+     * @throws      WalletException     Unable to update the scan height
+     */
+    public void chainReorganized(int junctionHeight) throws WalletException {
+        synchronized(this) {
+            if (state == BatchState.BLOCKS)
+                discardBlockRequests();
+            resetBatch();
+            Parameters.wallet.setScanHeight(junctionHeight);
+            lastFilterHeight = -1;
+            lastFilterHeader = null;
+        }
+        log.info(String.format("Compact filter scan restarted at block %d after chain reorganization",
+                               junctionHeight+1));
+    }
+
+    /**
+     * Checks if a block chain rescan is in progress
+     *
+     * @return                          TRUE if the rescan has not reached the chain head
+     */
+    public synchronized boolean isRescanning() {
+        return rescanning;
+    }
+
+    /**
+     * Checks if a full block belongs to the current batch.  A block from a discarded
+     * batch is not processed since the block will be scanned again by a later batch.
+     *
+     * @param       block               Full block
+     * @return                          TRUE if the block belongs to the current batch
+     */
+    public synchronized boolean isCurrentBatch(FullBlock block) {
+        return (state != BatchState.IDLE && block.getBatchId() == batchId);
+    }
+
+    /**
+     * Discards the current batch after the database handler is unable to process a full
+     * block.  The database updates for the block have been rolled back, so the next batch
+     * starts with the block.  This method is called by the database handler, which starts
+     * a new batch when its queue is empty.
+     *
+     * @param       block               Full block
+     */
+    public void batchFailed(FullBlock block) {
+        synchronized(this) {
+            if (!isCurrentBatch(block))
+                return;
+            if (state == BatchState.BLOCKS)
+                discardBlockRequests();
+            resetBatch();
+            lastFilterHeight = -1;
+            lastFilterHeader = null;
+        }
+        log.warn(String.format("Compact filter batch discarded after block %s failed", block.getHeader().getHash()));
+    }
+
+    /**
+     * Completes the current batch.  This method is called by the database handler when
+     * it has processed the last full block in the batch.
+     *
+     * @param       scanHeight          Height of the last block in the batch
+     */
+    public void batchCompleted(int scanHeight) {
+        synchronized(this) {
+            if (state != BatchState.PROCESSING && state != BatchState.BLOCKS)
+                return;
+            try {
+                Parameters.wallet.setScanHeight(scanHeight);
+            } catch (WalletException exc) {
+                log.error("Unable to update the compact filter scan height", exc);
+            }
+            lastFilterHeader = batchFilterHeader;
+            lastFilterHeight = scanHeight;
+            resetBatch();
+            if (scanHeight%10000 < MAX_BATCH_SIZE)
+                log.info(String.format("Compact filter scan at block %d", scanHeight));
+        }
+        startScan();
+    }
+
+    /**
+     * Processes a compact filter message.  The 'cfheaders', 'cfilter' and 'block' messages
+     * are handled by the compact filter handler.  All other messages are handled by
+     * the message processor.
+     *
+     * @param       msg                     Message
+     * @return                              TRUE if the message was processed
+     * @throws      EOFException            End-of-data while processing message
+     * @throws      VerificationException   Message verification failed
+     */
+    public boolean processMessage(Message msg) throws EOFException, VerificationException {
+        byte[] msgBytes = msg.getBuffer().array();
+        int length = (int)Utils.readUint32LE(msgBytes, 16);
+        String cmd = new String(msgBytes, 4, 12).replace((char)0, ' ').trim();
+        if (!cmd.equals("cfheaders") && !cmd.equals("cfilter") && !cmd.equals("block"))
+            return false;
+        //
+        // Verify the message checksum
+        //
+        if (MessageHeader.HEADER_LENGTH+length != msgBytes.length)
+            throw new EOFException(String.format("End-of-data while processing '%s' message", cmd));
+        byte[] digest = Utils.doubleDigest(msgBytes, MessageHeader.HEADER_LENGTH, length);
+        if (Utils.readUint32LE(digest, 0) != Utils.readUint32LE(msgBytes, 20))
+            throw new VerificationException(String.format("'%s' message checksum is not correct", cmd),
+                                            RejectMessage.REJECT_MALFORMED, Sha256Hash.ZERO_HASH);
+        byte[] payload = Arrays.copyOfRange(msgBytes, MessageHeader.HEADER_LENGTH, msgBytes.length);
+        //
+        // Process the message
+        //
+        switch (cmd) {
+            case "cfheaders":
+                processFilterHeaders(msg.getPeer(), payload);
+                break;
+            case "cfilter":
+                processFilter(msg.getPeer(), payload);
+                break;
+            case "block":
+                processBlock(msg.getPeer(), payload);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Processes a 'cfheaders' message
+     *
+     * @param       peer                    Peer sending the message
+     * @param       payload                 Message payload
+     * @throws      EOFException            End-of-data while processing message
+     * @throws      VerificationException   Message verification failed
+     */
+    private void processFilterHeaders(Peer peer, byte[] payload) throws EOFException, VerificationException {
+        List<Message> msgList = new ArrayList<>(1);
+        VerificationException failure = null;
+        SerializedBuffer inBuffer = new SerializedBuffer(payload);
+        int filterType = inBuffer.getByte()&0xff;
+        Sha256Hash stopHash = new Sha256Hash(Utils.reverseBytes(inBuffer.getBytes(32)));
+        byte[] prevHeader = inBuffer.getBytes(32);
+        int count = inBuffer.getVarInt();
+        if (count < 0 || count > 2000 || count*32 > inBuffer.available())
+            throw new EOFException("End-of-data while processing 'cfheaders' message");
+        List<byte[]> hashList = new ArrayList<>(count);
+        for (int i=0; i<count; i++)
+            hashList.add(inBuffer.getBytes(32));
+        synchronized(this) {
+            if ((peer != scanPeer && peer != checkPeer) || state != BatchState.HEADERS || filterType != FILTER_TYPE)
+                return;
+            //
+            // The filter headers must cover the requested blocks and the previous header must
+            // match the last header for the previous batch (if we have it)
+            //
+            if (!stopHash.equals(batchList.get(batchList.size()-1)) || count != batchList.size()) {
+                failure = new VerificationException("'cfheaders' message does not match the request",
+                                                    RejectMessage.REJECT_INVALID, stopHash);
+            } else if (lastFilterHeader != null && lastFilterHeight == batchHeight &&
+                                            !Arrays.equals(prevHeader, lastFilterHeader)) {
+                failure = new VerificationException("'cfheaders' previous filter header is not correct",
+                                                    RejectMessage.REJECT_INVALID, stopHash);
+            }
+        }
+        if (failure != null) {
+            discardBatch(peer);
+            throw failure;
+        }
+        boolean mismatch = false;
+        synchronized(this) {
+            if ((peer != scanPeer && peer != checkPeer) || state != BatchState.HEADERS)
+                return;
+            //
+            // Calculate the filter header chain for the batch
+            //
+            byte[] filterHeader = calculateFilterHeader(prevHeader, hashList);
+            if (peer == scanPeer) {
+                batchFilterHeader = filterHeader;
+                filterHashes = hashList;
+            } else {
+                checkFilterHeader = filterHeader;
+            }
+            //
+            // Wait for the headers from both peers and then compare the filter headers at
+            // the end of the batch.  The header depends on the previous header and all of
+            // the filter hashes, so the header chains agree if the last headers agree.
+            // We can't tell which peer is wrong, so we will discard the batch and start
+            // again with a new pair of peers.
+            //
+            if (batchFilterHeader == null || (checkPeer != null && checkFilterHeader == null))
+                return;
+            if (checkPeer != null && !Arrays.equals(batchFilterHeader, checkFilterHeader)) {
+                log.warn(String.format("Compact filter headers from %s and %s do not match for blocks %d-%d",
+                                       scanPeer.getAddress(), checkPeer.getAddress(),
+                                       batchHeight+1, batchHeight+batchList.size()));
+                resetBatch();
+                mismatch = true;
+            } else {
+                //
+                // Request the filters for the batch
+                //
+                filters = new GolombFilter[count];
+                filterCount = 0;
+                state = BatchState.FILTERS;
+                msgList.add(buildFilterRequest("getcfilters", scanPeer));
+            }
+        }
+        if (mismatch)
+            startScan();
+        msgList.forEach((msg) -> Parameters.networkHandler.sendMessage(msg));
+    }
+
+    /**
+     * Calculates the filter header chain for a batch.  Each filter header is the double
+     * SHA-256 digest of the filter hash followed by the previous filter header.
+     *
+     * @param       prevHeader          Filter header preceding the batch
+     * @param       hashList            Filter hashes for the batch
+     * @return                          Filter header for the last filter in the batch
+     */
+    static byte[] calculateFilterHeader(byte[] prevHeader, List<byte[]> hashList) {
+        byte[] filterHeader = prevHeader;
+        byte[] headerBytes = new byte[64];
+        for (byte[] filterHash : hashList) {
+            System.arraycopy(filterHash, 0, headerBytes, 0, 32);
+            System.arraycopy(filterHeader, 0, headerBytes, 32, 32);
+            filterHeader = Utils.doubleDigest(headerBytes);
+        }
+        return filterHeader;
+    }
+
+    /**
+     * Processes a 'cfilter' message
+     *
+     * @param       peer                    Peer sending the message
+     * @param       payload                 Message payload
+     * @throws      EOFException            End-of-data while processing message
+     * @throws      VerificationException   Message verification failed
+     */
+    private void processFilter(Peer peer, byte[] payload) throws EOFException, VerificationException {
+        SerializedBuffer inBuffer = new SerializedBuffer(payload);
+        int filterType = inBuffer.getByte()&0xff;
+        Sha256Hash blockHash = new Sha256Hash(Utils.reverseBytes(inBuffer.getBytes(32)));
+        byte[] filterBytes = inBuffer.getBytes(inBuffer.getVarInt());
+        List<GolombFilter> filterList;
+        synchronized(this) {
+            if (peer != scanPeer || state != BatchState.FILTERS || filterType != FILTER_TYPE)
+                return;
+            Integer index = batchMap.get(blockHash);
+            if (index == null || filters[index] != null)
+                return;
+            //
+            // The filter hash must match the hash in the filter header chain
+            //
+            if (!Arrays.equals(Utils.doubleDigest(filterBytes), filterHashes.get(index))) {
+                filterList = null;
+            } else {
+                filters[index] = new GolombFilter(blockHash, filterBytes);
+                if (++filterCount < filters.length)
+                    return;
+                filterList = Arrays.asList(filters);
+            }
+        }
+        if (filterList == null) {
+            discardBatch(peer);
+            throw new VerificationException("Compact filter does not match the filter header",
+                                            RejectMessage.REJECT_INVALID, blockHash);
+        }
+        //
+        // Match our scripts against the filters once we have received all of the
+        // filters for the batch
+        //
+        List<byte[]> scripts = getScripts();
+        boolean[] results = GolombFilter.matchAll(filterList, scripts);
+        boolean wakeup = false;
+        boolean completed = false;
+        int scanHeight;
+        synchronized(this) {
+            if (peer != scanPeer || state != BatchState.FILTERS)
+                return;
+            scanHeight = batchHeight+batchList.size();
+            matchList = new ArrayList<>();
+            for (int i=0; i<results.length; i++) {
+                if (results[i])
+                    matchList.add(i);
+            }
+            blockMap.clear();
+            releaseCount = 0;
+            state = BatchState.BLOCKS;
+            if (matchList.isEmpty()) {
+                completed = true;
+            } else {
+                //
+                // Request the matching blocks
+                //
+                log.info(String.format("%d compact filter matches for blocks %d-%d",
+                                       matchList.size(), batchHeight+1, scanHeight));
+                synchronized(Parameters.lock) {
+                    for (Integer index : matchList) {
+                        PeerRequest request = new PeerRequest(batchList.get(index), InventoryItem.INV_BLOCK, scanPeer);
+                        if (!Parameters.pendingRequests.contains(request) &&
+                                            !Parameters.processedRequests.contains(request)) {
+                            Parameters.pendingRequests.add(request);
+                            wakeup = true;
+                        }
+                    }
+                }
+            }
+        }
+        if (completed)
+            batchCompleted(scanHeight);
+        if (wakeup)
+            Parameters.networkHandler.wakeup();
+    }
+
+    /**
+     * Processes a 'block' message
+     *
+     * @param       peer                    Peer sending the message
+     * @param       payload                 Message payload
+     * @throws      EOFException            End-of-data while processing message
+     * @throws      VerificationException   Message verification failed
+     */
+    private void processBlock(Peer peer, byte[] payload) throws EOFException, VerificationException {
+        if (payload.length < 80)
+            throw new EOFException("End-of-data while processing 'block' message");
+        //
+        // Build the block header and compute the block hash
+        //
+        Sha256Hash blockHash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(payload, 0, 80)));
+        BlockHeader header = new BlockHeader((int)Utils.readUint32LE(payload, 0), blockHash,
+                new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(payload, 4, 36))),
+                Utils.readUint32LE(payload, 68), Utils.readUint32LE(payload, 72),
+                new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(payload, 36, 68))),
+                (int)Utils.readUint32LE(payload, 76), null);
+        //
+        // Get the block transactions
+        //
+        SerializedBuffer inBuffer = new SerializedBuffer(payload);
+        inBuffer.getBytes(80);
+        int count = inBuffer.getVarInt();
+        if (count < 1 || count > inBuffer.available())
+            throw new EOFException("End-of-data while processing 'block' message");
+        List<Transaction> txList = new ArrayList<>(count);
+        for (int i=0; i<count; i++)
+            txList.add(new Transaction(inBuffer));
+        //
+        // The transactions must match the merkle root in the block header.  Otherwise, the
+        // peer has made up the block contents.  The block is requested from a different
+        // peer and the peer that sent the block is disconnected.
+        //
+        Sha256Hash merkleRoot = FullBlock.calculateMerkleRoot(txList);
+        boolean verified = (merkleRoot != null && merkleRoot.equals(header.getMerkleRoot()));
+        //
+        // Mark the request as completed
+        //
+        synchronized(Parameters.lock) {
+            Iterator<PeerRequest> it = Parameters.processedRequests.iterator();
+            while (it.hasNext()) {
+                PeerRequest request = it.next();
+                if (request.getType() == InventoryItem.INV_BLOCK && request.getHash().equals(blockHash)) {
+                    it.remove();
+                    if (verified)
+                        Parameters.networkHandler.requestResponse(request);
+                    else
+                        Parameters.pendingRequests.add(request);
+                    break;
+                }
+            }
+            if (!verified) {
+                peer.setBanScore(Parameters.MAX_BAN_SCORE);
+                peer.setDisconnect(true);
+            }
+        }
+        if (!verified) {
+            Parameters.networkHandler.wakeup();
+            throw new VerificationException("Block transactions do not match the merkle root",
+                                            RejectMessage.REJECT_INVALID, blockHash);
+        }
+        //
+        // Release the blocks that are ready for processing.  The blocks must be processed
+        // in height order.
+        //
+        List<FullBlock> releaseList = new ArrayList<>();
+        synchronized(this) {
+            if (state != BatchState.BLOCKS)
+                return;
+            Integer index = batchMap.get(blockHash);
+            if (index == null || !matchList.contains(index) || blockMap.containsKey(index))
+                return;
+            boolean lastBlock = (index.equals(matchList.get(matchList.size()-1)));
+            int scanHeight = (lastBlock ? batchHeight+batchList.size() : batchHeight+index+1);
+            blockMap.put(index, new FullBlock(header, txList, scanHeight, lastBlock, batchId));
+            while (releaseCount < matchList.size()) {
+                FullBlock block = blockMap.get(matchList.get(releaseCount));
+                if (block == null)
+                    break;
+                releaseList.add(block);
+                releaseCount++;
+            }
+            if (releaseCount == matchList.size()) {
+                state = BatchState.PROCESSING;
+                if (batchTimeout != null) {
+                    batchTimeout.cancel();
+                    batchTimeout = null;
+                }
+            }
+        }
+        //
+        // Queue the blocks for the database handler.  This is done outside the synchronized
+        // block since the database handler calls batchCompleted() after processing the
+        // last block.
+        //
+        try {
+            for (FullBlock block : releaseList)
+                Parameters.databaseQueue.put(block);
+        } catch (InterruptedException exc) {
+            log.error("Thread interrupted while adding to database handler queue", exc);
+        }
+    }
+
+    /**
+     * Notifies when a connection is started
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public void connectionStarted(Peer peer) {
+        if ((peer.getServices()&Parameters.NODE_COMPACT_FILTERS) != 0)
+            startScan();
+    }
+
+    /**
+     * Notifies when a connection is terminated.  The current batch is discarded if
+     * the peer was providing the filters.
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public void connectionEnded(Peer peer) {
+        boolean restart = false;
+        synchronized(this) {
+            if ((peer == scanPeer && (state == BatchState.HEADERS || state == BatchState.FILTERS)) ||
+                                (peer == checkPeer && state == BatchState.HEADERS)) {
+                log.info(String.format("Compact filter batch discarded for %s", peer.getAddress()));
+                resetBatch();
+                restart = true;
+            }
+        }
+        if (restart)
+            startScan();
+    }
+
+    /**
+     * Discards the current batch if it has not completed within the batch timeout
+     */
+    private void batchTimeout() {
+        synchronized(this) {
+            batchTimeout = null;
+            if (state == BatchState.IDLE || state == BatchState.PROCESSING)
+                return;
+            log.warn(String.format("Compact filter batch timed out for %s", scanPeer.getAddress()));
+            //
+            // Discard any outstanding block requests.  Blocks that have already been passed
+            // to the database handler update the scan height as they are processed, so the
+            // next batch starts after the last block processed.
+            //
+            if (state == BatchState.BLOCKS)
+                discardBlockRequests();
+            resetBatch();
+        }
+        startScan();
+    }
+
+    /**
+     * Discards the outstanding block requests for the current batch
+     *
+     * This method must be called while holding the handler lock
+     */
+    private void discardBlockRequests() {
+        synchronized(Parameters.lock) {
+            Parameters.pendingRequests.removeIf((request) ->
+                    (request.getType()==InventoryItem.INV_BLOCK && batchMap.containsKey(request.getHash())));
+            Parameters.processedRequests.removeIf((request) ->
+                    (request.getType()==InventoryItem.INV_BLOCK && batchMap.containsKey(request.getHash())));
+        }
+    }
+
+    /**
+     * Discards the current batch after a peer sends an invalid response and starts
+     * a new batch
+     *
+     * @param       peer            Peer sending the invalid response
+     */
+    private void discardBatch(Peer peer) {
+        synchronized(this) {
+            if (peer != scanPeer && peer != checkPeer)
+                return;
+            log.warn(String.format("Compact filter batch discarded for %s", peer.getAddress()));
+            resetBatch();
+        }
+        startScan();
+    }
+
+    /**
+     * Resets the batch state
+     *
+     * This method must be called while holding the handler lock
+     */
+    private void resetBatch() {
+        if (batchTimeout != null) {
+            batchTimeout.cancel();
+            batchTimeout = null;
+        }
+        state = BatchState.IDLE;
+        scanPeer = null;
+        checkPeer = null;
+        batchFilterHeader = null;
+        checkFilterHeader = null;
+        batchList = null;
+        batchMap.clear();
+        filterHashes = null;
+        filters = null;
+        matchList = null;
+        blockMap.clear();
+    }
+
+    /**
+     * Builds a 'getcfheaders' or 'getcfilters' message for the current batch
+     *
+     * This method must be called while holding the handler lock
+     *
+     * @param       cmd             Message command
+     * @param       peer            Destination peer
+     * @return                      Message
+     */
+    private Message buildFilterRequest(String cmd, Peer peer) {
+        SerializedBuffer msgBuffer = new SerializedBuffer(37);
+        msgBuffer.putByte((byte)FILTER_TYPE)
+                 .putInt(batchHeight+1)
+                 .putBytes(Utils.reverseBytes(batchList.get(batchList.size()-1).getBytes()));
+        return new Message(MessageHeader.buildMessage(cmd, msgBuffer), peer, null);
+    }
+
+    /**
+     * Returns the output scripts for our keys.  We need the P2PKH script and the
+     * P2SH-P2WPKH script for each key.
+     *
+     * @return                      List of output scripts
+     */
+    private List<byte[]> getScripts() {
+        List<byte[]> scripts = new ArrayList<>();
+        synchronized(Parameters.lock) {
+            for (ECKey key : Parameters.keys) {
+                byte[] pubKeyHash = key.getPubKeyHash();
+                byte[] p2pkh = new byte[25];
+                p2pkh[0] = (byte)ScriptOpCodes.OP_DUP;
+                p2pkh[1] = (byte)ScriptOpCodes.OP_HASH160;
+                p2pkh[2] = (byte)20;
+                System.arraycopy(pubKeyHash, 0, p2pkh, 3, 20);
+                p2pkh[23] = (byte)ScriptOpCodes.OP_EQUALVERIFY;
+                p2pkh[24] = (byte)ScriptOpCodes.OP_CHECKSIG;
+                scripts.add(p2pkh);
+                byte[] scriptHash = key.getScriptHash();
+                byte[] p2sh = new byte[23];
+                p2sh[0] = (byte)ScriptOpCodes.OP_HASH160;
+                p2sh[1] = (byte)20;
+                System.arraycopy(scriptHash, 0, p2sh, 2, 20);
+                p2sh[22] = (byte)ScriptOpCodes.OP_EQUAL;
+                scripts.add(p2sh);
+            }
+        }
+        return scripts;
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.TransactionInput;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The conflict index records the transactions spending each output for the wallet
+ * transactions and for any transaction that spends the same output as a wallet
+ * transaction.  An unconfirmed transaction is conflicted if another transaction spends
+ * one of its inputs.  The conflict status is updated when a transaction is added to the
+ * index, when a transaction is confirmed and when the block chain is reorganized.
+ *
+ * The number of indexed transactions is limited and the oldest transaction is removed
+ * when the limit is reached.
+ *
+ * The index is updated by the database handler thread and the conflict status is read
+ * by the GUI thread, so the methods are synchronized.
+ */
+public class ConflictIndex {
+
+    /** Maximum number of indexed transactions */
+    private static final int MAX_TRANSACTIONS = 5000;
+
+    /** Indexed transactions in order of arrival */
+    private final Map<Sha256Hash, Entry> txMap = new LinkedHashMap<>();
+
+    /** Spending transactions indexed by the spent output */
+    private final Map<TransactionID, List<Sha256Hash>> spentMap = new HashMap<>();
+
+    /** Conflicted transactions */
+    private final Set<Sha256Hash> conflicted = new HashSet<>();
+
+    /**
+     * Creates the conflict index
+     */
+    public ConflictIndex() {
+    }
+
+    /**
+     * Loads the send transactions from the wallet database
+     *
+     * @throws      WalletException     Unable to get the send transactions
+     */
+    public void load() throws WalletException {
+        for (SendTransaction sendTx : Parameters.wallet.getSendTxList())
+            add(sendTx.getTransaction(), sendTx.getBlockHash(), true);
+    }
+
+    /**
+     * Checks if a transaction is indexed
+     *
+     * @param       txHash          Transaction hash
+     * @return                      TRUE if the transaction is indexed
+     */
+    public synchronized boolean contains(Sha256Hash txHash) {
+        return txMap.containsKey(txHash);
+    }
+
+    /**
+     * Checks if a transaction is conflicted
+     *
+     * @param       txHash          Transaction hash
+     * @return                      TRUE if another transaction spends one of its inputs
+     */
+    public synchronized boolean isConflicted(Sha256Hash txHash) {
+        return conflicted.contains(txHash);
+    }
+
+    /**
+     * Returns the chain block for an indexed transaction
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Chain block or null if the transaction is unconfirmed or not indexed
+     */
+    public synchronized Sha256Hash getBlockHash(Sha256Hash txHash) {
+        Entry entry = txMap.get(txHash);
+        return (entry != null ? entry.blockHash : null);
+    }
+
+    /**
+     * Returns the indexed transactions spending an output
+     *
+     * @param       outPoint        Transaction output
+     * @return                      List of spending transaction hashes
+     */
+    public synchronized List<Sha256Hash> getSpenders(TransactionID outPoint) {
+        List<Sha256Hash> spenders = spentMap.get(outPoint);
+        return (spenders != null ? new ArrayList<>(spenders) : Collections.emptyList());
+    }
+
+    /**
+     * Adds a transaction to the index.  A transaction that is not relevant to the wallet
+     * is added only if it spends an output that is spent by an indexed transaction.
+     *
+     * @param       tx              Transaction
+     * @param       blockHash       Chain block containing the transaction or null if unconfirmed
+     * @param       isRelevant      TRUE if the transaction is relevant to the wallet
+     * @return                      Transactions with a changed conflict status or null if
+     *                              the transaction was not added
+     */
+    public synchronized List<Sha256Hash> add(Transaction tx, Sha256Hash blockHash, boolean isRelevant) {
+        Sha256Hash txHash = tx.getHash();
+        if (tx.isCoinBase() || txMap.containsKey(txHash))
+            return null;
+        List<TransactionID> inputs = new ArrayList<>(tx.getInputs().size());
+        boolean isSpender = false;
+        for (TransactionInput txInput : tx.getInputs()) {
+            OutPoint outPoint = txInput.getOutPoint();
+            TransactionID outPointID = new TransactionID(outPoint.getHash(), outPoint.getIndex());
+            inputs.add(outPointID);
+            if (spentMap.containsKey(outPointID))
+                isSpender = true;
+        }
+        if (!isRelevant && !isSpender)
+            return null;
+        List<Sha256Hash> changed = new ArrayList<>();
+        if (txMap.size() >= MAX_TRANSACTIONS)
+            removeEntry(txMap.values().iterator().next(), changed);
+        Entry entry = new Entry(txHash, inputs, blockHash);
+        txMap.put(txHash, entry);
+        Set<Sha256Hash> affected = new HashSet<>();
+        affected.add(txHash);
+        for (TransactionID outPointID : inputs) {
+            List<Sha256Hash> spenders = spentMap.get(outPointID);
+            if (spenders == null) {
+                spenders = new ArrayList<>(1);
+                spentMap.put(outPointID, spenders);
+            }
+            if (!spenders.contains(txHash))
+                spenders.add(txHash);
+            if (spenders.size() > 1)
+                affected.addAll(spenders);
+        }
+        updateStatus(affected, changed);
+        return changed;
+    }
+
+    /**
+     * Removes a transaction from the index.  This is done when the database updates for
+     * the transaction have been rolled back.
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Transactions with a changed conflict status
+     */
+    public synchronized List<Sha256Hash> remove(Sha256Hash txHash) {
+        List<Sha256Hash> changed = new ArrayList<>();
+        Entry entry = txMap.get(txHash);
+        if (entry != null)
+            removeEntry(entry, changed);
+        return changed;
+    }
+
+    /**
+     * Sets the chain block for a transaction.  This is done when the transaction is
+     * confirmed and when the confirmation has been rolled back.
+     *
+     * @param       txHash          Transaction hash
+     * @param       blockHash       Chain block containing the transaction or null if unconfirmed
+     * @return                      Transactions with a changed conflict status
+     */
+    public synchronized List<Sha256Hash> setBlock(Sha256Hash txHash, Sha256Hash blockHash) {
+        List<Sha256Hash> changed = new ArrayList<>();
+        Entry entry = txMap.get(txHash);
+        if (entry != null && !Objects.equals(blockHash, entry.blockHash)) {
+            entry.blockHash = blockHash;
+            updateStatus(getAffected(Collections.singletonList(entry)), changed);
+        }
+        return changed;
+    }
+
+    /**
+     * Clears the confirmations for the conflicting transactions that are no longer on the
+     * chain after a block chain reorganization.  Only transactions that spend an output
+     * with multiple spenders need to be checked since the conflict status of the other
+     * transactions does not depend on the chain.
+     *
+     * @return                          Transactions with a changed conflict status
+     * @throws      WalletException     Unable to get a block header
+     */
+    public List<Sha256Hash> chainReorganized() throws WalletException {
+        Map<Sha256Hash, Sha256Hash> blockMap = new HashMap<>();
+        synchronized(this) {
+            spentMap.values().stream()
+                    .filter((spenders) -> spenders.size() > 1)
+                    .forEach((spenders) -> spenders.forEach((txHash) -> {
+                        Entry entry = txMap.get(txHash);
+                        if (entry.blockHash != null)
+                            blockMap.put(txHash, entry.blockHash);
+                    }));
+        }
+        List<Sha256Hash> removed = new ArrayList<>();
+        for (Map.Entry<Sha256Hash, Sha256Hash> mapEntry : blockMap.entrySet()) {
+            if (!Parameters.wallet.getHeader(mapEntry.getValue()).isOnChain())
+                removed.add(mapEntry.getKey());
+        }
+        List<Sha256Hash> changed = new ArrayList<>();
+        synchronized(this) {
+            List<Entry> entries = new ArrayList<>(removed.size());
+            for (Sha256Hash txHash : removed) {
+                Entry entry = txMap.get(txHash);
+                if (entry != null) {
+                    entry.blockHash = null;
+                    entries.add(entry);
+                }
+            }
+            updateStatus(getAffected(entries), changed);
+        }
+        if (!removed.isEmpty())
+            log.info(String.format("%d conflicting transactions are no longer confirmed", removed.size()));
+        return changed;
+    }
+
+    /**
+     * Returns the transactions sharing an input with the specified transactions
+     *
+     * @param       entries         Transaction entries
+     * @return                      Set of transaction hashes (including the specified transactions)
+     */
+    private Set<Sha256Hash> getAffected(Collection<Entry> entries) {
+        Set<Sha256Hash> affected = new HashSet<>();
+        for (Entry entry : entries) {
+            affected.add(entry.txHash);
+            for (TransactionID outPointID : entry.inputs) {
+                List<Sha256Hash> spenders = spentMap.get(outPointID);
+                if (spenders != null)
+                    affected.addAll(spenders);
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Updates the conflict status for a set of transactions.  An unconfirmed transaction
+     * is conflicted if one of its inputs has multiple spenders.
+     *
+     * @param       txHashes        Transaction hashes
+     * @param       changed         Transactions with a changed status are added to this list
+     */
+    private void updateStatus(Collection<Sha256Hash> txHashes, List<Sha256Hash> changed) {
+        for (Sha256Hash txHash : txHashes) {
+            Entry entry = txMap.get(txHash);
+            boolean isConflicted = false;
+            if (entry != null && entry.blockHash == null) {
+                for (TransactionID outPointID : entry.inputs) {
+                    if (spentMap.get(outPointID).size() > 1) {
+                        isConflicted = true;
+                        break;
+                    }
+                }
+            }
+            if (isConflicted ? conflicted.add(txHash) : conflicted.remove(txHash)) {
+                changed.add(txHash);
+                if (isConflicted)
+                    log.warn(String.format("Conflicting transaction detected\n  Tx %s", txHash));
+            }
+        }
+    }
+
+    /**
+     * Removes a transaction from the index
+     *
+     * @param       entry           Transaction entry
+     * @param       changed         Transactions with a changed status are added to this list
+     */
+    private void removeEntry(Entry entry, List<Sha256Hash> changed) {
+        Set<Sha256Hash> affected = getAffected(Collections.singletonList(entry));
+        txMap.remove(entry.txHash);
+        if (conflicted.remove(entry.txHash))
+            changed.add(entry.txHash);
+        for (TransactionID outPointID : entry.inputs) {
+            List<Sha256Hash> spenders = spentMap.get(outPointID);
+            spenders.remove(entry.txHash);
+            if (spenders.isEmpty())
+                spentMap.remove(outPointID);
+        }
+        affected.remove(entry.txHash);
+        updateStatus(affected, changed);
+    }
+
+    /**
+     * An indexed transaction
+     */
+    private static class Entry {
+
+        /** Transaction hash */
+        private final Sha256Hash txHash;
+
+        /** Spent outputs */
+        private final List<TransactionID> inputs;
+
+        /** Chain block containing the transaction or null if unconfirmed */
+        private Sha256Hash blockHash;
+
+        /**
+         * Creates a transaction entry
+         *
+         * @param       txHash          Transaction hash
+         * @param       inputs          Spent outputs
+         * @param       blockHash       Chain block or null
+         */
+        private Entry(Sha256Hash txHash, List<TransactionID> inputs, Sha256Hash blockHash) {
+            this.txHash = txHash;
+            this.inputs = inputs;
+            this.blockHash = blockHash;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.ScripterRon.BitcoinCore.BlockHeader;
 import org.ScripterRon.BitcoinCore.ECKey;
 import org.ScripterRon.BitcoinCore.InventoryItem;
 import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.Peer;
 import org.ScripterRon.BitcoinCore.ScriptOpCodes;
 import org.ScripterRon.BitcoinCore.Sha256Hash;
 import org.ScripterRon.BitcoinCore.Transaction;
@@ -29,11 +30,20 @@ import org.ScripterRon.BitcoinCore.TransactionOutput;
 import org.ScripterRon.BitcoinCore.VerificationException;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import org.ScripterRon.BitcoinCore.Script;
 
 /**
@@ -45,20 +55,137 @@ import org.ScripterRon.BitcoinCore.Script;
  */
 public class DatabaseHandler implements Runnable {
 
+    /** Maximum number of queued items processed in a unit of work */
+    private static final int UNIT_MAX_ITEMS = 200;
+
+    /** Maximum unit of work duration (milliseconds) */
+    private static final long UNIT_MAX_TIME = 500;
+
+    /** Maximum number of outstanding filtered block requests */
+    private static final int SYNC_WINDOW = 50;
+
+    /** Time to wait for the filtered block scan to make progress (milliseconds) */
+    private static final long SYNC_TIMEOUT = 2*60*1000;
+
+    /** Interval between filtered block scan checks while the queue is idle (milliseconds) */
+    private static final long SYNC_CHECK_INTERVAL = 30*1000;
+
+    /** Allowance for block timestamp variation when comparing to the wallet birthday (seconds) */
+    private static final long BIRTHDAY_MARGIN = 2*60*60;
+
+    /** Maximum number of matched transactions waiting to be received */
+    private static final int MAX_TX_MAP = 5000;
+
     /** Database handler thread */
     private Thread handlerThread;
 
     /** Database handler shutdown */
     private boolean handlerShutdown = false;
 
-    /** Transaction map */
-    private final Map<Sha256Hash, Sha256Hash> txMap = new HashMap<>(50);
+    /** Matched transactions waiting to be received (the oldest entry is removed when the map is full) */
+    private final Map<Sha256Hash, Sha256Hash> txMap = new LinkedHashMap<Sha256Hash, Sha256Hash>(50) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Sha256Hash> eldest) {
+            return (size() > MAX_TX_MAP);
+        }
+    };
 
     /** Wallet listeners */
     List<WalletListener> listeners = new LinkedList<>();
 
-    /** Block chain rescan height */
-    private int rescanHeight = 0;
+    /** Number of queued items processed in the current unit of work */
+    private int unitItems;
+
+    /** Start time for the current unit of work */
+    private long unitStartTime;
+
+    /** Listener notifications deferred until the current unit of work is committed */
+    private final List<Consumer<WalletListener>> pendingEvents = new ArrayList<>();
+
+    /** Transaction changes deferred until the current unit of work is committed */
+    private final List<TransactionChange> pendingChanges = new ArrayList<>();
+
+    /** Wallet events deferred until the current unit of work is committed */
+    private final List<WalletEvent> pendingWalletEvents = new ArrayList<>();
+
+    /** Cache and filter updates deferred until the current unit of work is committed */
+    private final List<Runnable> pendingActions = new ArrayList<>();
+
+    /**
+     * Block heights for the confirmed wallet transactions that have not reached the confirmation
+     * depth.  The map is used only by the database handler thread (a wallet transaction is stored
+     * by the database handler thread through storeTransaction()).
+     */
+    private final Map<Sha256Hash, Integer> depthMap = new HashMap<>();
+
+    /**
+     * Transaction map, orphan pool, mempool tracker and conflict index updates made by the
+     * current item (undone if the item fails)
+     */
+    private final List<Runnable> itemUndo = new ArrayList<>();
+
+    /**
+     * Transaction map, orphan pool, mempool tracker and conflict index updates made by the
+     * current unit of work (undone if the commit fails)
+     */
+    private final List<Runnable> unitUndo = new ArrayList<>();
+
+    /** Handler state before the current item changed it or null */
+    private HandlerState itemState;
+
+    /** Handler state before the current unit of work changed it or null */
+    private HandlerState unitState;
+
+    /** Number of deferred listener notifications when the current item started */
+    private int itemEvents;
+
+    /** Number of deferred transaction changes when the current item started */
+    private int itemChanges;
+
+    /** Number of deferred wallet events when the current item started */
+    private int itemWalletEvents;
+
+    /** Number of deferred actions when the current item started */
+    private int itemActions;
+
+    /** Orphan block pool */
+    private final OrphanPool orphanPool = new OrphanPool();
+
+    /** Active key rescan or null */
+    private KeyRescan keyRescan;
+
+    /** Block chain rescan in progress */
+    private boolean rescanActive = false;
+
+    /** Height of the first block replayed from the transaction cache or -1 */
+    private int replayHeight = -1;
+
+    /** Replaying cached transactions */
+    private boolean replayActive = false;
+
+    /** Time when the replay started waiting for the scanned block transactions */
+    private long replayWaitTime;
+
+    /** Height of the next filtered block to request */
+    private int syncHeight = 0;
+
+    /** Outstanding filtered block requests */
+    private final Map<Sha256Hash, Integer> syncBlocks = new HashMap<>();
+
+    /** Number of shard responses received for outstanding filtered blocks */
+    private final Map<Sha256Hash, Integer> syncResponses = new HashMap<>();
+
+    /** Filtered blocks received ahead of the scan height */
+    private final Set<Integer> syncReceived = new HashSet<>();
+
+    /** Scan height when the filtered block scan last made progress */
+    private int syncScanHeight = -1;
+
+    /** Time when the filtered block scan last made progress */
+    private long syncProgressTime;
+
+    /** Time when the filtered block scan was last checked */
+    private long syncCheckTime;
 
     /**
      * Creates a database handler
@@ -94,44 +221,214 @@ public class DatabaseHandler implements Runnable {
         //
         // Get the chain height of the latest block before the rescan time
         //
-        rescanHeight = Parameters.wallet.getRescanHeight(rescanTime);
+        int rescanHeight = Parameters.wallet.getRescanHeight(rescanTime);
+        //
+        // Rescan the compact block filters if we are using compact filters
+        //
+        if (Parameters.compactFilters) {
+            int scanHeight = Math.max(rescanHeight-1, 0);
+            log.info(String.format("Compact filter rescan started at height %d", scanHeight+1));
+            Parameters.compactFilterHandler.rescan(scanHeight);
+            return;
+        }
         //
-        // Issue a 'getdata' request for the first block
+        // Reset the filtered block scan.  This is done by the database handler thread
+        // since it owns the filtered block requests.
         //
         if (rescanHeight > 0) {
-            log.info(String.format("Block chain rescan started at height %d", rescanHeight));
-            Sha256Hash blockHash = Parameters.wallet.getBlockHash(rescanHeight);
-            PeerRequest request = new PeerRequest(blockHash, InventoryItem.INV_FILTERED_BLOCK);
-            synchronized(Parameters.lock) {
-                Parameters.pendingRequests.add(request);
+            try {
+                Parameters.databaseQueue.put(new RescanRequest(rescanHeight));
+            } catch (InterruptedException exc) {
+                log.error("Thread interrupted while adding to database handler queue", exc);
             }
-            Parameters.networkHandler.wakeup();
         }
     }
 
+    /**
+     * Rescan the block chain for newly imported keys.  The existing wallet transactions
+     * are retained and the new transactions are added to the wallet.  The new keys must
+     * have been added to the bloom filter.
+     *
+     * @param       keys                New keys
+     */
+    public void rescanKeys(List<ECKey> keys) {
+        if (keys.isEmpty())
+            return;
+        try {
+            Parameters.databaseQueue.put(new KeyRescanRequest(keys));
+        } catch (InterruptedException exc) {
+            log.error("Thread interrupted while adding to database handler queue", exc);
+        }
+    }
+
+    /**
+     * Moves the key rescan to another peer after the rescan peer returned 'notfound'
+     * for a rescan block
+     *
+     * @param       peer                Rescan peer
+     */
+    public void rescanPeerFailed(Peer peer) {
+        try {
+            Parameters.databaseQueue.put(new KeyRescanFailure(peer));
+        } catch (InterruptedException exc) {
+            log.error("Thread interrupted while adding to database handler queue", exc);
+        }
+    }
+
+    /**
+     * Notifies the wallet listeners that a block chain rescan has completed.  This is
+     * called by the compact filter handler when the rescan reaches the chain head.
+     */
+    public void rescanCompleted() {
+        log.info("Block rescan completed");
+        notifyListeners((listener) -> listener.rescanCompleted());
+    }
+
+    /**
+     * Stores a transaction created by the wallet.  The transaction is processed by the
+     * database handler thread and the unit of work is committed before the returned
+     * future completes, so the wallet updates (including the change output) are visible
+     * to the other threads once the transaction has been stored.
+     *
+     * @param       tx                  Transaction
+     * @return                          Future completed when the transaction has been stored
+     */
+    public CompletableFuture<Void> storeTransaction(Transaction tx) {
+        SendRequest request = new SendRequest(tx);
+        try {
+            Parameters.databaseQueue.put(request);
+        } catch (InterruptedException exc) {
+            log.error("Thread interrupted while adding to database handler queue", exc);
+            request.getFuture().completeExceptionally(exc);
+        }
+        return request.getFuture();
+    }
+
     /**
      * Processes blocks and transactions until stopped
+     *
+     * The database updates for the queued blocks and transactions are grouped into a
+     * unit of work.  The unit of work is committed when the maximum number of items have
+     * been processed, when the maximum time has elapsed, before requesting more blocks
+     * from the network or after storing a transaction created by the wallet.  Listeners
+     * are notified after the unit of work has been committed.
+     *
+     * A savepoint is set before each item is processed.  The database updates and the
+     * handler state changes made by an item are rolled back if the item fails, so a
+     * failed item does not leave partial updates in the unit of work.
      */
     @Override
     public void run() {
         log.info("Database handler started");
         handlerThread = Thread.currentThread();
+        boolean commit = true;
+        Object obj = null;
         //
         // Process blocks and transactions until we are shutdown
         //
         try {
             while (!handlerShutdown) {
-                Object obj = Parameters.databaseQueue.take();
-                if (obj instanceof BlockHeader) {
-                    processBlock(new StoredHeader((BlockHeader)obj));
-                    if (Parameters.databaseQueue.isEmpty()) {
-                        if (Parameters.wallet.getChainHeight() >= Parameters.networkChainHeight)
-                            Parameters.loadingChain = false;
-                        else
-                            Parameters.networkHandler.getBlocks();
+                //
+                // Check the filtered block scan and the key rescan periodically.  The
+                // outstanding requests are resent when the scan has stalled, which otherwise
+                // would not be noticed until another block is received.
+                //
+                long checkTime = syncCheckTime + SYNC_CHECK_INTERVAL - System.currentTimeMillis();
+                if (isSyncPending() && checkTime <= 0) {
+                    checkFilteredBlocks();
+                    continue;
+                }
+                if (Parameters.wallet.isUnitActive()) {
+                    long waitTime = unitStartTime + UNIT_MAX_TIME - System.currentTimeMillis();
+                    obj = (waitTime > 0 ? Parameters.databaseQueue.poll(waitTime, TimeUnit.MILLISECONDS) : null);
+                    if (obj == null) {
+                        commitUnit();
+                        continue;
+                    }
+                } else if (isSyncPending()) {
+                    obj = Parameters.databaseQueue.poll(checkTime, TimeUnit.MILLISECONDS);
+                    if (obj == null)
+                        continue;
+                } else {
+                    obj = Parameters.databaseQueue.take();
+                }
+                beginUnit();
+                try {
+                    beginItem();
+                    if (obj instanceof PeerBlock) {
+                        PeerBlock peerBlock = (PeerBlock)obj;
+                        processBlock(new StoredHeader(peerBlock.getHeader()), peerBlock.getPeer(),
+                                     peerBlock.getTxCount());
+                        if (Parameters.databaseQueue.isEmpty()) {
+                            //
+                            // Request more headers if we are not at the network chain height.  The
+                            // filtered blocks are requested while we are downloading the headers
+                            // once the headers have passed the wallet birthday.
+                            //
+                            if (Parameters.wallet.getChainHeight() >= Parameters.networkChainHeight) {
+                                Parameters.loadingChain = false;
+                            } else {
+                                commitUnit();
+                                Parameters.networkHandler.getBlocks();
+                            }
+                            requestFilteredBlocks();
+                            requestKeyRescan();
+                        }
+                    } else if (obj instanceof RescanRequest) {
+                        startRescan(((RescanRequest)obj).getHeight());
+                    } else if (obj instanceof KeyRescanRequest) {
+                        startKeyRescan(((KeyRescanRequest)obj).getKeys());
+                    } else if (obj instanceof KeyRescanFailure) {
+                        if (keyRescan != null) {
+                            keyRescan.peerFailed(((KeyRescanFailure)obj).getPeer());
+                            requestKeyRescan();
+                        }
+                    } else if (obj instanceof SendRequest) {
+                        processTransaction(((SendRequest)obj).getTransaction());
+                    } else if (obj instanceof Transaction) {
+                        processTransaction((Transaction)obj);
+                        if (replayHeight > 0 && Parameters.databaseQueue.isEmpty())
+                            requestFilteredBlocks();
+                    } else if (obj instanceof FullBlock) {
+                        processFullBlock((FullBlock)obj);
                     }
-                } else if (obj instanceof Transaction) {
-                    processTransaction((Transaction)obj);
+                    endItem();
+                } catch (WalletException exc) {
+                    //
+                    // Roll back the updates made by the failed item.  The compact filter batch
+                    // is discarded if a full block fails since the scan height has not been
+                    // advanced past the block.
+                    //
+                    log.warn("Database updates for the failed item have been rolled back");
+                    rollbackItem();
+                    if (obj instanceof SendRequest)
+                        ((SendRequest)obj).getFuture().completeExceptionally(exc);
+                    else if (obj instanceof FullBlock)
+                        Parameters.compactFilterHandler.batchFailed((FullBlock)obj);
+                }
+                //
+                // Commit a wallet transaction immediately so the sender sees the updates
+                //
+                if (obj instanceof SendRequest && !((SendRequest)obj).getFuture().isDone()) {
+                    if (commitUnit())
+                        ((SendRequest)obj).getFuture().complete(null);
+                    else
+                        ((SendRequest)obj).getFuture().completeExceptionally(
+                                new WalletException("Unable to commit the wallet transaction"));
+                }
+                //
+                // Commit the unit of work if it is full
+                //
+                unitItems++;
+                if (unitItems >= UNIT_MAX_ITEMS || System.currentTimeMillis()-unitStartTime >= UNIT_MAX_TIME)
+                    commitUnit();
+                //
+                // Scan the compact block filters for new blocks once we have processed
+                // the pending blocks and transactions
+                //
+                if (Parameters.compactFilters && Parameters.databaseQueue.isEmpty()) {
+                    commitUnit();
+                    Parameters.compactFilterHandler.startScan();
                 }
             }
         } catch (InterruptedException exc) {
@@ -139,37 +436,761 @@ public class DatabaseHandler implements Runnable {
                 log.warn("Database handler interrupted", exc);
         } catch (Exception exc) {
             log.error("Exception while processing request", exc);
+            commit = false;
         }
         //
         // Stopping
         //
+        if (commit) {
+            commitUnit();
+        } else {
+            Parameters.wallet.rollbackUnit();
+            rollbackState();
+        }
+        //
+        // Fail the wallet transactions that have not been stored
+        //
+        WalletException stopped = new WalletException("The database handler has been stopped");
+        if (obj instanceof SendRequest)
+            ((SendRequest)obj).getFuture().completeExceptionally(stopped);
+        Parameters.databaseQueue.stream()
+                .filter((request) -> request instanceof SendRequest)
+                .forEach((request) -> ((SendRequest)request).getFuture().completeExceptionally(stopped));
         log.info("Database handler stopped");
     }
 
+    /**
+     * Starts a new unit of work if one is not already active.  The updates will be
+     * committed immediately if we are unable to start the unit of work.
+     */
+    private void beginUnit() {
+        if (Parameters.wallet.isUnitActive())
+            return;
+        try {
+            Parameters.wallet.beginUnit();
+            unitStartTime = System.currentTimeMillis();
+            unitItems = 0;
+        } catch (WalletException exc) {
+            log.error("Unable to start unit of work", exc);
+        }
+    }
+
+    /**
+     * Commits the current unit of work and notifies the listeners.  The handler state
+     * changes made by the unit of work are undone if the commit fails.
+     *
+     * @return                          TRUE if the unit of work was committed
+     */
+    private boolean commitUnit() {
+        if (!Parameters.wallet.isUnitActive())
+            return true;
+        List<Consumer<WalletListener>> events = new ArrayList<>(pendingEvents);
+        List<TransactionChange> changes = new ArrayList<>(pendingChanges);
+        List<WalletEvent> walletEvents = new ArrayList<>(pendingWalletEvents);
+        List<Runnable> actions = new ArrayList<>(pendingActions);
+        pendingEvents.clear();
+        pendingChanges.clear();
+        pendingWalletEvents.clear();
+        pendingActions.clear();
+        itemEvents = 0;
+        itemChanges = 0;
+        itemWalletEvents = 0;
+        itemActions = 0;
+        endItem();
+        try {
+            Parameters.wallet.commitUnit();
+        } catch (WalletException exc) {
+            log.error(String.format("Unit of work discarded: %d items", unitItems), exc);
+            rollbackState();
+            return false;
+        }
+        unitUndo.clear();
+        unitState = null;
+        actions.forEach((action) -> action.run());
+        events.forEach((event) -> listeners.forEach(event));
+        if (!changes.isEmpty())
+            listeners.forEach((listener) -> listener.txUpdated(changes));
+        if (!walletEvents.isEmpty())
+            Parameters.eventPublisher.publish(walletEvents);
+        return true;
+    }
+
+    /**
+     * Starts processing a queued item.  A savepoint is set so the database updates made
+     * by the item can be rolled back if the item fails.
+     *
+     * @throws      WalletException     Unable to set the savepoint
+     */
+    private void beginItem() throws WalletException {
+        itemEvents = pendingEvents.size();
+        itemChanges = pendingChanges.size();
+        itemWalletEvents = pendingWalletEvents.size();
+        itemActions = pendingActions.size();
+        Parameters.wallet.setSavepoint();
+    }
+
+    /**
+     * Completes processing of a queued item.  The handler state changes made by the
+     * item become part of the unit of work.
+     */
+    private void endItem() {
+        if (unitState == null)
+            unitState = itemState;
+        itemState = null;
+        unitUndo.addAll(itemUndo);
+        itemUndo.clear();
+    }
+
+    /**
+     * Rolls back the database updates and handler state changes made by a failed item.
+     * The notifications and actions deferred by the item are discarded.
+     */
+    private void rollbackItem() {
+        try {
+            Parameters.wallet.rollbackSavepoint();
+        } catch (WalletException exc) {
+            log.error("Unable to roll back the failed item, discarding the unit of work", exc);
+            Parameters.wallet.rollbackUnit();
+            rollbackState();
+            return;
+        }
+        for (int i=itemUndo.size()-1; i>=0; i--)
+            itemUndo.get(i).run();
+        itemUndo.clear();
+        if (itemState != null)
+            itemState.restore();
+        itemState = null;
+        pendingEvents.subList(Math.min(itemEvents, pendingEvents.size()), pendingEvents.size()).clear();
+        pendingChanges.subList(Math.min(itemChanges, pendingChanges.size()), pendingChanges.size()).clear();
+        pendingWalletEvents.subList(Math.min(itemWalletEvents, pendingWalletEvents.size()),
+                                    pendingWalletEvents.size()).clear();
+        pendingActions.subList(Math.min(itemActions, pendingActions.size()), pendingActions.size()).clear();
+    }
+
+    /**
+     * Undoes the handler state changes made by a discarded unit of work and discards
+     * the deferred notifications and actions
+     */
+    private void rollbackState() {
+        endItem();
+        for (int i=unitUndo.size()-1; i>=0; i--)
+            unitUndo.get(i).run();
+        unitUndo.clear();
+        if (unitState != null)
+            unitState.restore();
+        unitState = null;
+        pendingEvents.clear();
+        pendingChanges.clear();
+        pendingWalletEvents.clear();
+        pendingActions.clear();
+    }
+
+    /**
+     * Saves the handler state before the current item changes it.  The state is saved
+     * once for each item and is restored if the item or the unit of work is discarded.
+     * Nothing is done if there is no active unit of work.
+     */
+    private void saveState() {
+        if (itemState == null && Parameters.wallet.isUnitActive())
+            itemState = new HandlerState();
+    }
+
+    /**
+     * Adds a matched transaction to the transaction map
+     *
+     * @param       txHash              Transaction hash
+     * @param       blockHash           Hash of the block containing the transaction
+     */
+    private void putTxMap(Sha256Hash txHash, Sha256Hash blockHash) {
+        Sha256Hash prevHash;
+        synchronized(Parameters.lock) {
+            prevHash = txMap.put(txHash, blockHash);
+        }
+        if (Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> restoreTxMap(txHash, prevHash));
+    }
+
+    /**
+     * Removes a matched transaction from the transaction map
+     *
+     * @param       txHash              Transaction hash
+     * @return                          Hash of the block containing the transaction or null
+     */
+    private Sha256Hash removeTxMap(Sha256Hash txHash) {
+        Sha256Hash prevHash;
+        synchronized(Parameters.lock) {
+            prevHash = txMap.remove(txHash);
+        }
+        if (prevHash != null && Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> restoreTxMap(txHash, prevHash));
+        return prevHash;
+    }
+
+    /**
+     * Restores a transaction map entry
+     *
+     * @param       txHash              Transaction hash
+     * @param       blockHash           Previous block hash or null if there was no entry
+     */
+    private void restoreTxMap(Sha256Hash txHash, Sha256Hash blockHash) {
+        synchronized(Parameters.lock) {
+            if (blockHash != null)
+                txMap.put(txHash, blockHash);
+            else
+                txMap.remove(txHash);
+        }
+    }
+
+    /**
+     * Removes and returns the orphan children of a block
+     *
+     * @param       parentHash          Parent block hash
+     * @return                          List of child blocks (empty if there are no orphan children)
+     */
+    private List<StoredHeader> removeOrphanChildren(Sha256Hash parentHash) {
+        List<StoredHeader> children = orphanPool.removeChildren(parentHash);
+        if (!children.isEmpty() && Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> children.forEach((childHeader) -> orphanPool.add(childHeader, null)));
+        return children;
+    }
+
+    /**
+     * Adds an orphan block to the orphan pool
+     *
+     * @param       blockHeader         Block header
+     * @param       peer                Origin peer or null
+     */
+    private void addOrphan(StoredHeader blockHeader, Peer peer) {
+        Sha256Hash blockHash = blockHeader.getHash();
+        if (orphanPool.contains(blockHash))
+            return;
+        orphanPool.add(blockHeader, peer);
+        if (Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> orphanPool.remove(blockHash));
+    }
+
+    /**
+     * Removes an orphan block from the orphan pool
+     *
+     * @param       blockHeader         Block header
+     */
+    private void removeOrphan(StoredHeader blockHeader) {
+        if (!orphanPool.contains(blockHeader.getHash()))
+            return;
+        orphanPool.remove(blockHeader.getHash());
+        if (Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> orphanPool.add(blockHeader, null));
+    }
+
+    /**
+     * Adds an unconfirmed wallet transaction to the mempool tracker
+     *
+     * @param       tx                  Transaction
+     */
+    private void trackTransaction(Transaction tx) {
+        if (Parameters.mempoolTracker.add(tx) && Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> Parameters.mempoolTracker.remove(tx.getHash()));
+    }
+
+    /**
+     * Removes a transaction from the mempool tracker
+     *
+     * @param       txHash              Transaction hash
+     */
+    private void untrackTransaction(Sha256Hash txHash) {
+        long txTime = Parameters.mempoolTracker.getTxTime(txHash);
+        Transaction tx = Parameters.mempoolTracker.remove(txHash);
+        if (tx != null && Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> Parameters.mempoolTracker.add(tx, txTime));
+    }
+
+    /**
+     * Adds a transaction to the conflict index
+     *
+     * @param       tx                  Transaction
+     * @param       blockHash           Chain block containing the transaction or null if unconfirmed
+     * @param       isRelevant          TRUE if the transaction is relevant to the wallet
+     * @return                          Transactions with a changed conflict status or null if
+     *                                  the transaction was not added
+     */
+    private List<Sha256Hash> indexTransaction(Transaction tx, Sha256Hash blockHash, boolean isRelevant) {
+        List<Sha256Hash> changed = Parameters.conflictIndex.add(tx, blockHash, isRelevant);
+        if (changed != null && Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> Parameters.conflictIndex.remove(tx.getHash()));
+        return changed;
+    }
+
+    /**
+     * Sets the chain block for a transaction in the conflict index
+     *
+     * @param       txHash              Transaction hash
+     * @param       blockHash           Chain block containing the transaction
+     * @return                          Transactions with a changed conflict status
+     */
+    private List<Sha256Hash> setConflictBlock(Sha256Hash txHash, Sha256Hash blockHash) {
+        Sha256Hash prevHash = Parameters.conflictIndex.getBlockHash(txHash);
+        List<Sha256Hash> changed = Parameters.conflictIndex.setBlock(txHash, blockHash);
+        if (!blockHash.equals(prevHash) && Parameters.conflictIndex.contains(txHash) &&
+                                            Parameters.wallet.isUnitActive())
+            itemUndo.add(() -> Parameters.conflictIndex.setBlock(txHash, prevHash));
+        return changed;
+    }
+
+    /**
+     * Performs an action that can not be undone.  The action is deferred until the
+     * current unit of work is committed if the current thread has an active unit of work.
+     *
+     * @param       action              Action
+     */
+    private void deferAction(Runnable action) {
+        if (Parameters.wallet.isUnitActive())
+            pendingActions.add(action);
+        else
+            action.run();
+    }
+
+    /**
+     * Adds a wallet transaction to the transaction cache.  The cache is append-only, so
+     * the transaction is not added until the current unit of work has been committed.
+     *
+     * @param       blockHash           Block containing the transaction
+     * @param       tx                  Transaction
+     */
+    private void cacheTransaction(Sha256Hash blockHash, Transaction tx) {
+        deferAction(() -> {
+            try {
+                Parameters.txCache.addTransaction(blockHash, tx);
+            } catch (WalletException exc) {
+                log.warn(String.format("Transaction not cached\n  %s", tx.getHash()));
+            }
+        });
+    }
+
+    /**
+     * Notifies the listeners.  The notification is deferred until the current unit of
+     * work is committed if the current thread has an active unit of work.
+     *
+     * @param       event               Listener notification
+     */
+    private void notifyListeners(Consumer<WalletListener> event) {
+        if (Parameters.wallet.isUnitActive())
+            pendingEvents.add(event);
+        else
+            listeners.forEach(event);
+    }
+
+    /**
+     * Notifies the listeners that one or more transactions have been updated.  The changes
+     * made in the same unit of work are combined into a single notification.
+     *
+     * @param       changes             Transaction changes
+     */
+    private void notifyTxUpdated(List<TransactionChange> changes) {
+        if (Parameters.wallet.isUnitActive())
+            pendingChanges.addAll(changes);
+        else
+            listeners.forEach((listener) -> listener.txUpdated(changes));
+    }
+
+    /**
+     * Publishes a wallet event.  The event is deferred until the current unit of work is
+     * committed if the current thread has an active unit of work.
+     *
+     * @param       event               Wallet event
+     */
+    private void publishEvent(WalletEvent event) {
+        if (Parameters.wallet.isUnitActive())
+            pendingWalletEvents.add(event);
+        else
+            Parameters.eventPublisher.publish(Collections.singletonList(event));
+    }
+
+    /**
+     * Records the block height for a confirmed wallet transaction.  A DEPTH_REACHED event
+     * is published when the transaction reaches the confirmation depth.  Nothing is done
+     * if there are no event subscribers.
+     *
+     * @param       txHash              Transaction hash
+     * @param       blockHeight         Height of the block containing the transaction
+     */
+    private void watchDepth(Sha256Hash txHash, int blockHeight) {
+        if (!Parameters.eventPublisher.hasSubscribers())
+            return;
+        int depth = Parameters.wallet.getChainHeight()-blockHeight+1;
+        if (depth >= Parameters.TRANSACTION_CONFIRMED) {
+            publishEvent(WalletEvent.depthReached(txHash, blockHeight, depth));
+        } else {
+            saveState();
+            depthMap.put(txHash, blockHeight);
+        }
+    }
+
+    /**
+     * Publishes the SEND_CONFIRMED events for the existing wallet transactions confirmed
+     * by a block and starts watching their confirmation depth.  Nothing is done if there
+     * are no event subscribers or the block is not on the chain.
+     *
+     * @param       blockHash           Block hash
+     * @param       matches             Matched transactions
+     * @throws      WalletException     Unable to get the block header or transaction
+     */
+    private void publishConfirmations(Sha256Hash blockHash, List<Sha256Hash> matches) throws WalletException {
+        if (matches.isEmpty() || !Parameters.eventPublisher.hasSubscribers())
+            return;
+        StoredHeader header = Parameters.wallet.getHeader(blockHash);
+        if (!header.isOnChain())
+            return;
+        for (Sha256Hash txHash : matches) {
+            if (depthMap.containsKey(txHash) || Parameters.wallet.isNewTransaction(txHash))
+                continue;
+            SendTransaction sendTx = Parameters.wallet.getSendTx(txHash);
+            if (sendTx != null)
+                publishEvent(WalletEvent.sendConfirmed(sendTx, blockHash, header.getBlockHeight()));
+            watchDepth(txHash, header.getBlockHeight());
+        }
+    }
+
+    /**
+     * Notifies the listeners that the status of one or more transactions has changed
+     *
+     * @param       txList              Transaction hashes
+     */
+    private void notifyStatusChanged(List<Sha256Hash> txList) {
+        List<TransactionChange> changes = new ArrayList<>(txList.size());
+        txList.forEach((txHash) -> changes.add(new TransactionChange(txHash)));
+        notifyTxUpdated(changes);
+    }
+
+    /**
+     * Starts a block chain rescan using the bloom filter.  The blocks covered by the
+     * transaction cache for all of the wallet keys are replayed from the cache once the
+     * preceding blocks have been scanned.
+     *
+     * @param       rescanHeight        Height of the first block to scan
+     * @throws      WalletException     Unable to update the scan height
+     */
+    private void startRescan(int rescanHeight) throws WalletException {
+        log.info(String.format("Block chain rescan started at height %d", rescanHeight));
+        saveState();
+        syncBlocks.clear();
+        syncResponses.clear();
+        syncReceived.clear();
+        syncHeight = rescanHeight;
+        rescanActive = true;
+        replayHeight = -1;
+        replayWaitTime = 0;
+        if (Parameters.txCache != null) {
+            int coverageStart;
+            synchronized(Parameters.lock) {
+                coverageStart = Parameters.txCache.getCoverageStart(Parameters.keys);
+            }
+            if (coverageStart >= 0) {
+                replayHeight = Math.max(coverageStart, rescanHeight);
+                log.info(String.format("Blocks %d-%d will be replayed from the transaction cache",
+                                       replayHeight, Parameters.txCache.getCoverageEnd()));
+            }
+        }
+        Parameters.wallet.setScanHeight(rescanHeight-1);
+        requestFilteredBlocks();
+    }
+
+    /**
+     * Requests filtered blocks for the wallet.  The filtered blocks are requested
+     * following the scan height, which is the height of the last block scanned for
+     * wallet transactions.  Blocks earlier than the wallet birthday (the earliest key
+     * creation time) are skipped.  The headers are downloaded independently, so we
+     * request blocks as the chain grows and keep a window of outstanding requests.
+     *
+     * @throws      WalletException     Unable to get the chain blocks
+     */
+    private void requestFilteredBlocks() throws WalletException {
+        if (Parameters.compactFilters)
+            return;
+        saveState();
+        int chainHeight = Parameters.wallet.getChainHeight();
+        int scanHeight = Parameters.wallet.getScanHeight();
+        //
+        // Skip the blocks preceding the wallet birthday.  We don't know the birthday
+        // height until the headers have passed the birthday.
+        //
+        if (syncBlocks.isEmpty() && scanHeight < chainHeight && !rescanActive) {
+            long birthday = getBirthday();
+            StoredHeader chainHeader = Parameters.wallet.getHeader(Parameters.wallet.getChainHead());
+            if (chainHeader.getBlockTime() < birthday) {
+                setScanHeight(chainHeight);
+                return;
+            }
+            int birthdayHeight = Parameters.wallet.getRescanHeight(birthday);
+            if (birthdayHeight-1 > scanHeight) {
+                scanHeight = birthdayHeight-1;
+                setScanHeight(scanHeight);
+                log.info(String.format("Filtered block scan started at wallet birthday height %d",
+                                       birthdayHeight));
+            }
+        }
+        //
+        // Replay the cached transactions once the blocks preceding the cache coverage
+        // have been scanned.  We wait for the transactions for the scanned blocks so the
+        // cached transactions are processed in chain order.
+        //
+        long currentTime = System.currentTimeMillis();
+        if (replayHeight > 0 && syncBlocks.isEmpty() && scanHeight >= replayHeight-1) {
+            boolean txPending;
+            synchronized(Parameters.lock) {
+                txPending = !txMap.isEmpty();
+            }
+            if (replayWaitTime == 0)
+                replayWaitTime = currentTime;
+            if (!txPending || currentTime-replayWaitTime > SYNC_TIMEOUT) {
+                scanHeight = replayTransactions(replayHeight);
+                replayHeight = -1;
+                replayWaitTime = 0;
+            }
+        }
+        //
+        // Request the next set of filtered blocks.  The outstanding requests are sent
+        // again if we haven't received a filtered block recently since a request is
+        // discarded if no peer is able to process it.
+        //
+        syncHeight = Math.max(syncHeight, scanHeight+1);
+        List<PeerRequest> requests = new ArrayList<>();
+        if (syncBlocks.isEmpty() || scanHeight != syncScanHeight) {
+            syncScanHeight = scanHeight;
+            syncProgressTime = currentTime;
+        } else if (currentTime-syncProgressTime > SYNC_TIMEOUT) {
+            log.warn(String.format("Filtered block scan stalled at height %d, resending requests", scanHeight));
+            syncBlocks.keySet().forEach((blockHash) ->
+                    requests.addAll(Parameters.filterManager.getBlockRequests(blockHash, null)));
+            syncResponses.clear();
+            syncProgressTime = currentTime;
+        }
+        while (syncBlocks.size() < SYNC_WINDOW && syncHeight <= chainHeight &&
+                                (replayHeight < 0 || syncHeight < replayHeight)) {
+            Sha256Hash blockHash = Parameters.wallet.getBlockHash(syncHeight);
+            syncBlocks.put(blockHash, syncHeight);
+            requests.addAll(Parameters.filterManager.getBlockRequests(blockHash, null));
+            syncHeight++;
+        }
+        if (!requests.isEmpty()) {
+            synchronized(Parameters.lock) {
+                requests.stream()
+                        .filter((request) -> !Parameters.pendingRequests.contains(request) &&
+                                             !Parameters.processedRequests.contains(request))
+                        .forEach((request) -> Parameters.pendingRequests.add(request));
+            }
+            Parameters.networkHandler.wakeup();
+        }
+        //
+        // Notify the listeners when a rescan has reached the chain head
+        //
+        if (rescanActive && syncBlocks.isEmpty() && replayHeight < 0 && scanHeight >= chainHeight) {
+            rescanActive = false;
+            log.info("Block rescan completed");
+            notifyListeners((listener) -> listener.rescanCompleted());
+        }
+    }
+
+    /**
+     * Checks if the filtered block scan has outstanding requests or is waiting to
+     * replay the cached transactions, or if a key rescan is active
+     *
+     * @return                          TRUE if the filtered block scan is pending
+     */
+    private boolean isSyncPending() {
+        return (!Parameters.compactFilters && (!syncBlocks.isEmpty() || replayHeight > 0 || keyRescan != null));
+    }
+
+    /**
+     * Checks if a block chain rescan or a key rescan is in progress.  The rescan can find
+     * outputs for newly imported keys in transactions that are already in the wallet.
+     *
+     * @return                          TRUE if a rescan is in progress
+     */
+    private boolean isRescanActive() {
+        if (Parameters.compactFilters)
+            return Parameters.compactFilterHandler.isRescanning();
+        return (rescanActive || keyRescan != null);
+    }
+
+    /**
+     * Checks the filtered block scan and the key rescan.  This resends the outstanding
+     * requests if the scan has stalled, starts the replay once the scanned block
+     * transactions have been received (or the replay wait has timed out) and moves
+     * the key rescan to another peer if the rescan peer is not responding.
+     */
+    private void checkFilteredBlocks() {
+        syncCheckTime = System.currentTimeMillis();
+        beginUnit();
+        try {
+            beginItem();
+            requestFilteredBlocks();
+            requestKeyRescan();
+            endItem();
+        } catch (WalletException exc) {
+            log.error("Unable to check the filtered block scan", exc);
+            rollbackItem();
+        }
+    }
+
+    /**
+     * Replays the cached transactions for the blocks covered by the transaction cache
+     *
+     * @param       startHeight         Height of the first block to replay
+     * @return                          Height of the last block replayed
+     * @throws      WalletException     Unable to get the cached transactions
+     */
+    private int replayTransactions(int startHeight) throws WalletException {
+        int endHeight = Math.min(Parameters.txCache.getCoverageEnd(), Parameters.wallet.getChainHeight());
+        int height = startHeight-1;
+        int txCount = 0;
+        replayActive = true;
+        try {
+            while (height < endHeight) {
+                List<Sha256Hash> chainList = Parameters.wallet.getChainList(height, Sha256Hash.ZERO_HASH);
+                if (chainList.isEmpty())
+                    break;
+                for (Sha256Hash blockHash : chainList) {
+                    if (height == endHeight)
+                        break;
+                    height++;
+                    for (Transaction tx : Parameters.txCache.getTransactions(blockHash)) {
+                        putTxMap(tx.getHash(), blockHash);
+                        processTransaction(tx);
+                        txCount++;
+                    }
+                }
+            }
+        } finally {
+            replayActive = false;
+        }
+        if (height > Parameters.wallet.getScanHeight())
+            Parameters.wallet.setScanHeight(height);
+        log.info(String.format("Replayed %d cached transactions for blocks %d-%d", txCount, startHeight, height));
+        return Math.max(height, Parameters.wallet.getScanHeight());
+    }
+
+    /**
+     * Sets the scan height and extends the transaction cache coverage
+     *
+     * @param       scanHeight          New scan height
+     * @throws      WalletException     Unable to update the scan height
+     */
+    private void setScanHeight(int scanHeight) throws WalletException {
+        int prevHeight = Parameters.wallet.getScanHeight();
+        Parameters.wallet.setScanHeight(scanHeight);
+        if (Parameters.txCache != null)
+            Parameters.txCache.blocksScanned(prevHeight, scanHeight);
+    }
+
+    /**
+     * Starts a key rescan for newly imported keys.  The blocks following the scan
+     * height will be scanned using the wallet bloom filter, so we just need to scan
+     * the blocks from the key birthday up to the scan height.  A full rescan without
+     * deleting the existing transactions is done if we don't have a peer available
+     * for the key rescan.
+     *
+     * @param       keys                New keys
+     * @throws      WalletException     Unable to get the chain blocks
+     */
+    private void startKeyRescan(List<ECKey> keys) throws WalletException {
+        long birthday = Long.MAX_VALUE;
+        for (ECKey key : keys)
+            birthday = Math.min(birthday, key.getCreationTime()-BIRTHDAY_MARGIN);
+        int startHeight = Math.max(Parameters.wallet.getRescanHeight(birthday), 1);
+        if (Parameters.compactFilters) {
+            log.info(String.format("Compact filter rescan started at height %d", startHeight));
+            Parameters.compactFilterHandler.rescan(startHeight-1);
+            return;
+        }
+        if (Parameters.txCache != null)
+            Parameters.txCache.addKeys(keys, Parameters.wallet.getScanHeight()+1);
+        if (startHeight > Parameters.wallet.getScanHeight())
+            return;
+        log.info(String.format("Key rescan for %d keys started at height %d", keys.size(), startHeight));
+        if (keyRescan != null) {
+            keyRescan.addKeys(keys, startHeight);
+        } else {
+            keyRescan = new KeyRescan(keys, startHeight);
+        }
+        if (!keyRescan.hasPeer())
+            requestKeyRescan();
+        if (keyRescan != null && !keyRescan.hasPeer()) {
+            log.info("No peer available for key rescan, starting block chain rescan");
+            keyRescan.cancel();
+            keyRescan = null;
+            startRescan(startHeight);
+        }
+    }
+
+    /**
+     * Requests the next set of key rescan blocks
+     *
+     * @throws      WalletException     Unable to get the chain blocks
+     */
+    private void requestKeyRescan() throws WalletException {
+        if (keyRescan != null && keyRescan.requestBlocks()) {
+            //
+            // The transaction cache now covers the rescan keys from the rescan start
+            //
+            if (Parameters.txCache != null)
+                Parameters.txCache.addKeys(keyRescan.getKeys(), keyRescan.getStartHeight());
+            keyRescan = null;
+        }
+    }
+
+    /**
+     * Returns the wallet birthday.  This is the earliest key creation time less an
+     * allowance for block timestamp variation.
+     *
+     * @return                          Wallet birthday in seconds
+     */
+    private long getBirthday() {
+        long birthday = Long.MAX_VALUE;
+        synchronized(Parameters.lock) {
+            for (ECKey key : Parameters.keys)
+                birthday = Math.min(birthday, key.getCreationTime());
+        }
+        return (birthday == Long.MAX_VALUE ? birthday : birthday-BIRTHDAY_MARGIN);
+    }
+
     /**
      * Processes a block
      *
      * @param       blockHeader         Block header
+     * @param       peer                Origin peer or null
+     * @param       txCount             Number of transactions in the block or 0 if not known
+     * @throws      WalletException     Unable to process the block
      */
-    private void processBlock(StoredHeader blockHeader) {
+    private void processBlock(StoredHeader blockHeader, Peer peer, int txCount) throws WalletException {
         Sha256Hash blockHash = blockHeader.getHash();
         try {
             //
             // Update the transaction map with the new transactions.  This allows us to
             // match transactions to this block and is necessary if the block is added to
             // the chain before we receive the transactions (this is the normal case since
-            // the peer sends the transactions after sending the merkle block).
+            // the peer sends the transactions after sending the merkle block).  An existing
+            // wallet transaction is included during a rescan so the entries for newly imported
+            // keys will be confirmed.
             //
-            synchronized(Parameters.lock) {
-                List<Sha256Hash> matches = blockHeader.getMatches();
-                if (matches != null) {
-                    for (Sha256Hash txHash : matches) {
-                        if (Parameters.wallet.isNewTransaction(txHash))
-                            txMap.put(txHash, blockHash);
-                    }
+            List<Sha256Hash> matches = blockHeader.getMatches();
+            if (matches != null) {
+                boolean rescanning = isRescanActive();
+                for (Sha256Hash txHash : matches) {
+                    if (Parameters.txCache != null || rescanning || Parameters.wallet.isNewTransaction(txHash))
+                        putTxMap(txHash, blockHash);
                 }
             }
             //
+            // Stop tracking the unconfirmed transactions contained in the block
+            //
+            if (matches != null)
+                matches.forEach((txHash) -> untrackTransaction(txHash));
+            //
+            // Record the merkle block for the bloom filter statistics
+            //
+            if (matches != null && !Parameters.compactFilters)
+                Parameters.filterManager.blockScanned(txCount);
+            //
             // Process the block
             //
             if (Parameters.wallet.isNewBlock(blockHash)) {
@@ -179,35 +1200,67 @@ public class DatabaseHandler implements Runnable {
                 //
                 Parameters.wallet.storeHeader(blockHeader);
                 updateChain(blockHeader);
-                if (blockHeader.isOnChain()) {
-                    Sha256Hash parentHash = blockHash;
-                    while (parentHash != null)
-                        parentHash = processChildBlock(parentHash);
+                connectOrphans(blockHash);
+                if (matches != null) {
+                    updateConflicts(blockHash, matches);
+                    publishConfirmations(blockHash, matches);
                 }
             } else {
                 //
-                // The block already exists, so just update the matched transactions
+                // The block already exists, so just update the matched transactions.  Each
+                // bloom filter shard matches a subset of the wallet transactions, so we need
+                // to merge the new matches with the existing matches when using multiple shards.
+                // A key rescan block matches just the rescan keys, so we need to merge the
+                // matches for a key rescan as well.
                 //
-                Parameters.wallet.updateMatches(blockHeader);
-                if (rescanHeight != 0) {
+                int shardCount = Parameters.filterManager.getShardCount();
+                boolean rescanBlock = (matches != null && keyRescan != null &&
+                                        keyRescan.isRescanBlock(peer, blockHash));
+                if ((shardCount > 1 || rescanBlock) && matches != null) {
+                    List<Sha256Hash> storedMatches = Parameters.wallet.getHeader(blockHash).getMatches();
+                    if (storedMatches != null && !storedMatches.isEmpty()) {
+                        List<Sha256Hash> mergedMatches = new ArrayList<>(storedMatches);
+                        matches.stream()
+                                .filter((txHash) -> !mergedMatches.contains(txHash))
+                                .forEach((txHash) -> mergedMatches.add(txHash));
+                        blockHeader = new StoredHeader(new BlockHeader(blockHeader.getVersion(), blockHash,
+                                        blockHeader.getPrevHash(), blockHeader.getBlockTime(),
+                                        blockHeader.getTargetDifficulty(), blockHeader.getMerkleRoot(),
+                                        blockHeader.getNonce(), mergedMatches));
+                    }
+                }
+                if (matches != null) {
+                    Parameters.wallet.updateMatches(blockHeader);
+                    updateConflicts(blockHash, matches);
+                    publishConfirmations(blockHash, matches);
+                }
+                if (rescanBlock) {
+                    keyRescan.blockReceived(blockHash);
+                    requestKeyRescan();
+                } else if (matches != null && syncBlocks.containsKey(blockHash)) {
+                    saveState();
                     //
-                    // We are doing a rescan, so request the next block in the chain
+                    // Wait until we have received the filtered block for each shard
                     //
-                    rescanHeight++;
-                    if (rescanHeight > Parameters.wallet.getChainHeight()) {
-                        rescanHeight = 0;
-                        log.info("Block rescan completed");
-                        listeners.forEach((listener) -> listener.rescanCompleted());
-                    } else {
-                        if (rescanHeight%1000 == 0)
-                            log.debug(String.format("Block rescan at block %d", rescanHeight));
-                        Sha256Hash nextHash = Parameters.wallet.getBlockHash(rescanHeight);
-                        PeerRequest request = new PeerRequest(nextHash, InventoryItem.INV_FILTERED_BLOCK);
-                        synchronized(Parameters.lock) {
-                            Parameters.pendingRequests.add(request);
-                        }
-                        Parameters.networkHandler.wakeup();
+                    if (shardCount > 1) {
+                        int responses = syncResponses.merge(blockHash, 1, Integer::sum);
+                        if (responses < shardCount)
+                            return;
+                        syncResponses.remove(blockHash);
+                    }
+                    //
+                    // Advance the scan height and request more filtered blocks
+                    //
+                    syncReceived.add(syncBlocks.remove(blockHash));
+                    int scanHeight = Parameters.wallet.getScanHeight();
+                    while (syncReceived.remove(scanHeight+1))
+                        scanHeight++;
+                    if (scanHeight != Parameters.wallet.getScanHeight()) {
+                        setScanHeight(scanHeight);
+                        if (scanHeight%1000 == 0)
+                            log.debug(String.format("Filtered block scan at block %d", scanHeight));
                     }
+                    requestFilteredBlocks();
                 } else {
                     //
                     // See if this block is on the chain.  If it isn't, update the chain.
@@ -215,30 +1268,104 @@ public class DatabaseHandler implements Runnable {
                     StoredHeader chkHeader = Parameters.wallet.getHeader(blockHash);
                     if (!chkHeader.isOnChain()) {
                         updateChain(blockHeader);
-                        if (blockHeader.isOnChain()) {
-                            Sha256Hash parentHash = blockHash;
-                            while (parentHash != null)
-                                parentHash = processChildBlock(parentHash);
-                        }
+                        removeOrphan(blockHeader);
+                        connectOrphans(blockHash);
                     }
                 }
             }
         } catch (BlockNotFoundException exc) {
-            PeerRequest request = new PeerRequest(exc.getHash(), InventoryItem.INV_FILTERED_BLOCK);
-            boolean wakeup = false;
-            synchronized(Parameters.lock) {
-                if (!Parameters.pendingRequests.contains(request) && !Parameters.processedRequests.contains(request)) {
-                    Parameters.pendingRequests.add(request);
-                    wakeup = true;
-                }
-            }
-            if (wakeup)
-                Parameters.networkHandler.wakeup();
+            //
+            // Add the block to the orphan pool and request the missing headers.  We don't
+            // need to request the headers if we are downloading the headers since the
+            // next 'getheaders' request will locate the missing blocks.
+            //
+            addOrphan(blockHeader, peer);
+            if (!Parameters.loadingChain)
+                Parameters.networkHandler.getHeaders(null);
         } catch (VerificationException exc) {
             log.error(String.format("Checkpoint verification failed\n  %s", exc.getHash()), exc);
+            throw new WalletException("Checkpoint verification failed", exc.getHash(), exc);
         } catch (WalletException exc) {
             log.error(String.format("Unable to process block\n  %s", blockHash.toString()), exc);
+            throw exc;
+        }
+    }
+
+    /**
+     * Processes a full block downloaded because its compact block filter matched one of
+     * our scripts.  The block header is processed with the list of wallet transactions
+     * contained in the block and then each wallet transaction is processed.  A compact
+     * filter can produce a false positive, so the block may not contain any wallet
+     * transactions.
+     *
+     * @param       block               Full block
+     * @throws      WalletException     Unable to process the block
+     */
+    private void processFullBlock(FullBlock block) throws WalletException {
+        BlockHeader header = block.getHeader();
+        //
+        // Skip a block from a discarded batch (for example, the batch was discarded
+        // because the chain was reorganized).  The block will be scanned again by a
+        // later batch if it is still on the chain.
+        //
+        if (!Parameters.compactFilterHandler.isCurrentBatch(block)) {
+            log.debug(String.format("Skipping block from discarded compact filter batch\n  %s", header.getHash()));
+            return;
+        }
+        try {
+            //
+            // Locate the transactions that pay one of our addresses or spend one of our
+            // outputs.  An output can be spent by a later transaction in the same block.
+            //
+            Set<TransactionID> outpoints = new HashSet<>();
+            Parameters.wallet.getReceiveTxList().forEach((rcv) ->
+                    outpoints.add(new TransactionID(rcv.getTxHash(), rcv.getTxIndex())));
+            List<Transaction> txList = new ArrayList<>();
+            List<Sha256Hash> matches = new ArrayList<>();
+            for (Transaction tx : block.getTransactions()) {
+                boolean isRelevant = false;
+                if (!tx.isCoinBase()) {
+                    for (TransactionInput txInput : tx.getInputs()) {
+                        OutPoint outPoint = txInput.getOutPoint();
+                        if (outpoints.contains(new TransactionID(outPoint.getHash(), outPoint.getIndex()))) {
+                            isRelevant = true;
+                            break;
+                        }
+                    }
+                }
+                List<TransactionOutput> txOutputs = tx.getOutputs();
+                for (int txIndex=0; txIndex<txOutputs.size(); txIndex++) {
+                    if (checkAddress(txOutputs.get(txIndex), true) != null) {
+                        outpoints.add(new TransactionID(tx.getHash(), txIndex));
+                        isRelevant = true;
+                    }
+                }
+                if (isRelevant) {
+                    txList.add(tx);
+                    matches.add(tx.getHash());
+                }
+            }
+            //
+            // Process the block and then process the matching transactions
+            //
+            if (!matches.isEmpty()) {
+                log.info(String.format("Block %s contains %d wallet transactions", header.getHash(), matches.size()));
+                processBlock(new StoredHeader(new BlockHeader(header.getVersion(), header.getHash(),
+                            header.getPrevHash(), header.getBlockTime(), header.getTargetDifficulty(),
+                            header.getMerkleRoot(), header.getNonce(), matches)), null, 0);
+                for (Transaction tx : txList)
+                    processTransaction(tx);
+            }
+            //
+            // Update the compact filter scan height
+            //
+            Parameters.wallet.setScanHeight(block.getScanHeight());
+        } catch (WalletException exc) {
+            log.error(String.format("Unable to process block\n  %s", header.getHash()), exc);
+            throw exc;
         }
+        if (block.isLastBlock())
+            Parameters.compactFilterHandler.batchCompleted(block.getScanHeight());
     }
 
     /**
@@ -271,12 +1398,73 @@ public class DatabaseHandler implements Runnable {
         // This means the cumulative chain work is greater.
         //
         if (blockHeader.getChainWork().compareTo(Parameters.wallet.getChainWork()) > 0) {
+            int prevChainHeight = Parameters.wallet.getChainHeight();
+            int junctionHeight = chainList.get(0).getBlockHeight();
+            List<Sha256Hash> detachedList = new ArrayList<>();
+            if (junctionHeight < prevChainHeight && Parameters.eventPublisher.hasSubscribers()) {
+                for (int height=prevChainHeight; height>junctionHeight; height--)
+                    detachedList.add(Parameters.wallet.getBlockHash(height));
+            }
             Parameters.wallet.setChainHead(chainList);
+            saveState();
+            //
+            // Scan the new chain blocks if the chain was reorganized below the scan height
+            //
+            if (junctionHeight < Parameters.wallet.getScanHeight()) {
+                if (Parameters.compactFilters) {
+                    Parameters.compactFilterHandler.chainReorganized(junctionHeight);
+                } else {
+                    Parameters.wallet.setScanHeight(junctionHeight);
+                    syncBlocks.clear();
+                    syncResponses.clear();
+                    syncReceived.clear();
+                    syncHeight = junctionHeight+1;
+                }
+                if (Parameters.txCache != null)
+                    Parameters.txCache.chainReorganized(junctionHeight);
+            }
+            //
+            // Clear the conflicts decided by blocks that are no longer on the chain
+            //
+            if (junctionHeight < prevChainHeight) {
+                List<Sha256Hash> conflicts = Parameters.conflictIndex.chainReorganized();
+                if (!conflicts.isEmpty())
+                    notifyStatusChanged(conflicts);
+            }
+            //
+            // Publish the blocks detached and attached by a chain reorganization.  The
+            // transactions in the detached blocks are no longer confirmed.
+            //
+            if (!detachedList.isEmpty()) {
+                for (int i=0; i<detachedList.size(); i++)
+                    publishEvent(WalletEvent.blockEvent(WalletEvent.EventType.BLOCK_DETACHED,
+                                                        detachedList.get(i), prevChainHeight-i));
+                for (int i=1; i<chainList.size(); i++)
+                    publishEvent(WalletEvent.blockEvent(WalletEvent.EventType.BLOCK_ATTACHED,
+                                                        chainList.get(i).getHash(), chainList.get(i).getBlockHeight()));
+            }
+            if (junctionHeight < prevChainHeight)
+                depthMap.values().removeIf((height) -> height > junctionHeight);
             for (int i=1; i<chainList.size(); i++) {
                 chainHeader = chainList.get(i);
                 chainHeader.setChain(true);
-                for (WalletListener listener : listeners)
-                    listener.addChainBlock(chainHeader);
+                StoredHeader addedHeader = chainHeader;
+                notifyListeners((listener) -> listener.addChainBlock(addedHeader));
+            }
+            //
+            // Publish the wallet transactions that have reached the confirmation depth
+            //
+            if (!depthMap.isEmpty()) {
+                int chainHeight = Parameters.wallet.getChainHeight();
+                Iterator<Map.Entry<Sha256Hash, Integer>> it = depthMap.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Sha256Hash, Integer> entry = it.next();
+                    int depth = chainHeight-entry.getValue()+1;
+                    if (depth >= Parameters.TRANSACTION_CONFIRMED) {
+                        publishEvent(WalletEvent.depthReached(entry.getKey(), entry.getValue(), depth));
+                        it.remove();
+                    }
+                }
             }
             Parameters.networkChainHeight = Math.max(Parameters.networkChainHeight, blockHeader.getBlockHeight());
         } else {
@@ -286,59 +1474,116 @@ public class DatabaseHandler implements Runnable {
     }
 
     /**
-     * Process a child block and see if it can now be added to the chain.  This happens
-     * if we are unable to resolve a chain because we are missing a block and have to
-     * ask a peer to send us the block.
+     * Updates the conflict status for the wallet transactions confirmed by a block.
+     * Nothing is done if the block is not on the chain.
      *
-     * @param       parentHash              Parent block hash
+     * @param       blockHash           Block hash
+     * @param       matches             Matched transactions
+     * @throws      WalletException     Unable to get the block header
+     */
+    private void updateConflicts(Sha256Hash blockHash, List<Sha256Hash> matches) throws WalletException {
+        List<Sha256Hash> txList = new ArrayList<>();
+        matches.stream()
+                .filter((txHash) -> Parameters.conflictIndex.contains(txHash))
+                .forEach((txHash) -> txList.add(txHash));
+        if (txList.isEmpty() || !Parameters.wallet.getHeader(blockHash).isOnChain())
+            return;
+        List<Sha256Hash> conflicts = new ArrayList<>();
+        for (Sha256Hash txHash : txList)
+            conflicts.addAll(setConflictBlock(txHash, blockHash));
+        if (!conflicts.isEmpty())
+            notifyStatusChanged(conflicts);
+    }
+
+    /**
+     * Connects the orphan descendants of a block.  This happens if we are unable to
+     * resolve a chain because we are missing a block and have to ask a peer to send
+     * us the block.  The orphan pool is indexed by the parent block hash, so we can
+     * connect all of the descendants in a single pass.
+     *
+     * An orphan is stored in the database before it is added to the pool, so we look for
+     * a stored child that is not on the chain when the pool has no children for a block.
+     * This connects an orphan that was evicted or expired from the pool or was received
+     * before the wallet was restarted.  The orphan will not be requested again since the
+     * block is already in the database.
+     *
+     * @param       blockHash               Block hash
+     * @throws      BlockNotFoundException  A block in the chain was not found
      * @throws      VerificationException   Checkpoint verification failed
      * @throws      WalletException         Unable to process child block
      */
-    private Sha256Hash processChildBlock(Sha256Hash parentHash) throws VerificationException, WalletException {
-        Sha256Hash nextParent = null;
-        StoredHeader childHeader = Parameters.wallet.getChildHeader(parentHash);
-        if (childHeader != null && !childHeader.isOnChain()) {
-            updateChain(childHeader);
-            if (childHeader.isOnChain()) {
-                nextParent = childHeader.getHash();
+    private void connectOrphans(Sha256Hash blockHash)
+                                throws BlockNotFoundException, VerificationException, WalletException {
+        List<Sha256Hash> parentList = new LinkedList<>();
+        parentList.add(blockHash);
+        while (!parentList.isEmpty()) {
+            Sha256Hash parentHash = parentList.remove(0);
+            List<StoredHeader> children = removeOrphanChildren(parentHash);
+            if (children.isEmpty()) {
+                StoredHeader childHeader = Parameters.wallet.getChildHeader(parentHash);
+                if (childHeader != null && !childHeader.isOnChain())
+                    children = Collections.singletonList(childHeader);
+            }
+            for (StoredHeader childHeader : children) {
+                updateChain(childHeader);
+                parentList.add(childHeader.getHash());
             }
         }
-        return nextParent;
     }
 
     /**
      * Processes a transaction received from the network or created by the wallet
      *
      * @param       tx                  Transaction
+     * @throws      WalletException     Unable to process the transaction
      */
-    public void processTransaction(Transaction tx) {
+    private void processTransaction(Transaction tx) throws WalletException {
         Sha256Hash txHash = tx.getHash();
         Sha256Hash blockHash;
+        Sha256Hash cacheBlockHash;
         long txTime;
+        int blockHeight = -1;
         boolean txUpdated = false;
+        boolean isRelevant = false;
+        List<TransactionChange> changes = new ArrayList<>();
         try {
             //
             // Get the block containing this transaction.  If the block is
             // on the chain, we will add the block hash to the transaction
             // entries that we create to indicate they have been confirmed.
             //
-            synchronized(Parameters.lock) {
-                blockHash = txMap.get(txHash);
-                if (blockHash != null)
-                    txMap.remove(txHash);
-            }
+            blockHash = removeTxMap(txHash);
+            cacheBlockHash = (Parameters.txCache != null ? blockHash : null);
             if (blockHash != null) {
                 StoredHeader blockHeader = Parameters.wallet.getHeader(blockHash);
                 txTime = blockHeader.getBlockTime();
-                if (!blockHeader.isOnChain())
+                if (!blockHeader.isOnChain()) {
                     blockHash = null;
+                } else {
+                    blockHeight = blockHeader.getBlockHeight();
+                    //
+                    // Unconfirmed transactions spending the same outputs can no longer be confirmed
+                    //
+                    untrackTransaction(txHash);
+                    for (Sha256Hash conflictHash : Parameters.mempoolTracker.getConflicts(tx)) {
+                        untrackTransaction(conflictHash);
+                        log.info(String.format("Unconfirmed transaction conflicts with confirmed transaction\n"
+                                    + "  Tx %s\n  Confirmed tx %s", conflictHash, txHash));
+                    }
+                }
             } else {
                 txTime = System.currentTimeMillis()/1000;
             }
             //
-            // Process the transaction
+            // Process a new transaction.  An existing wallet transaction is processed again
+            // during a rescan since it can have outputs for newly imported keys or spend
+            // the outputs of newly imported keys.  Only the missing wallet entries are added
+            // for an existing transaction.
             //
-            if (Parameters.wallet.isNewTransaction(txHash)) {
+            boolean isNew = Parameters.wallet.isNewTransaction(txHash);
+            if (isNew || isRescanActive()) {
+                List<ReceiveTransaction> storedList = (isNew ? Collections.emptyList() :
+                                                                Parameters.wallet.getReceiveTxList());
                 //
                 // See if the transaction is sending us coins by checking the outputs.
                 // We need to check each output since we could be sending coins
@@ -354,17 +1599,24 @@ public class DatabaseHandler implements Runnable {
                     if (key != null) {
                         if (key.isChange())
                             totalChange = totalChange.add(txOutput.getValue());
+                        int outputIndex = txIndex;
+                        if (storedList.stream().anyMatch((rcv) -> rcv.getTxHash().equals(txHash) &&
+                                                                  rcv.getTxIndex() == outputIndex))
+                            continue;
                         ReceiveTransaction rcvTx = new ReceiveTransaction(tx.getNormalizedID(),
                                 txHash, txIndex, txTime, blockHash, key.toAddress(), txOutput.getValue(),
                                 txOutput.getScriptBytes(), key.isChange(), tx.isCoinBase());
                         Parameters.wallet.storeReceiveTx(rcvTx);
+                        changes.add(new TransactionChange(TransactionChange.ChangeType.ADDED, rcvTx));
+                        if (!key.isChange())
+                            publishEvent(WalletEvent.paymentReceived(rcvTx));
                         txUpdated = true;
                     }
                 }
                 //
-                // Mark the connected output as spent if this transaction is spending our coins
+                // Mark the connected output as spent if this transaction is spending our coins.
+                // An output has already been marked as spent if this is an existing transaction.
                 //
-                boolean isRelevant = false;
                 List<ReceiveTransaction> rcvList = Parameters.wallet.getReceiveTxList();
                 List<TransactionInput> txInputs = tx.getInputs();
                 BigInteger totalInput = BigInteger.ZERO;
@@ -374,8 +1626,13 @@ public class DatabaseHandler implements Runnable {
                         if (rcv.getTxHash().equals(txOutPoint.getHash()) &&
                                                     rcv.getTxIndex() == txOutPoint.getIndex()) {
                             totalInput = totalInput.add(rcv.getValue());
-                            Parameters.wallet.setTxSpent(rcv.getTxHash(), rcv.getTxIndex(), true);
                             isRelevant = true;
+                            if (!isNew && rcv.isSpent())
+                                break;
+                            Parameters.wallet.setTxSpent(rcv.getTxHash(), rcv.getTxIndex(), true);
+                            rcv.setSpent(true);
+                            changes.add(new TransactionChange(TransactionChange.ChangeType.UPDATED, rcv));
+                            publishEvent(WalletEvent.outputSpent(rcv, txHash, blockHash));
                             txUpdated = true;
                             break;
                         }
@@ -387,7 +1644,7 @@ public class DatabaseHandler implements Runnable {
                 // by 15 seconds so that the send transaction will be sorted before the receive
                 // transaction in case we are sending the coins to ourself.
                 //
-                if (isRelevant) {
+                if (isRelevant && (isNew || Parameters.wallet.getSendTx(txHash) == null)) {
                     Address address = null;
                     for (TransactionOutput txOutput : txOutputs) {
                         address = (Address)checkAddress(txOutput, false);
@@ -401,16 +1658,75 @@ public class DatabaseHandler implements Runnable {
                                 txTime-15, blockHash, address, sentValue, fee,
                                 (tx.isWitness() ? tx.getWitnessBytes() : tx.getBytes()));
                         Parameters.wallet.storeSendTx(sendTx);
+                        changes.add(new TransactionChange(TransactionChange.ChangeType.ADDED, sendTx));
+                        if (blockHash != null)
+                            publishEvent(WalletEvent.sendConfirmed(sendTx, blockHash, blockHeight));
                     }
                 }
+            }
+            if (isNew) {
+                //
+                // Add the transaction to the conflict index.  A transaction that is not relevant
+                // to the wallet is indexed if it spends the same output as a wallet transaction.
+                //
+                List<Sha256Hash> conflicts = indexTransaction(tx, blockHash, txUpdated || isRelevant);
+                if (conflicts != null)
+                    conflicts.forEach((conflictHash) -> changes.add(new TransactionChange(conflictHash)));
+                //
+                // Watch the outputs spent by an unconfirmed incoming payment so we will
+                // receive a conflicting transaction spending the same outputs
+                //
+                if (txUpdated && !isRelevant && blockHash == null && !tx.isCoinBase()) {
+                    List<TransactionInput> txInputs = tx.getInputs();
+                    List<TransactionID> outPoints = new ArrayList<>(txInputs.size());
+                    txInputs.forEach((txInput) -> outPoints.add(
+                            new TransactionID(txInput.getOutPoint().getHash(), txInput.getOutPoint().getIndex())));
+                    deferAction(() -> Parameters.filterManager.watchOutPoints(outPoints));
+                }
+                //
+                // The transaction was matched by the bloom filter but is not relevant to
+                // the wallet, so it is a false positive
+                //
+                if (!txUpdated && !isRelevant && conflicts == null && !replayActive)
+                    Parameters.filterManager.falsePositive();
+                //
+                // Track an unconfirmed wallet transaction
+                //
+                if ((txUpdated || isRelevant) && blockHash == null)
+                    trackTransaction(tx);
+                //
+                // Watch the confirmation depth for a confirmed wallet transaction
+                //
+                if ((txUpdated || isRelevant) && blockHash != null)
+                    watchDepth(txHash, blockHeight);
+                //
+                // Add a wallet transaction to the transaction cache
+                //
+                if ((txUpdated || isRelevant) && cacheBlockHash != null)
+                    cacheTransaction(cacheBlockHash, tx);
+            } else {
+                //
+                // Update the conflict status for a confirmed wallet transaction
+                //
+                if (blockHash != null) {
+                    List<Sha256Hash> conflicts = setConflictBlock(txHash, blockHash);
+                    if (!conflicts.isEmpty())
+                        notifyStatusChanged(conflicts);
+                }
                 //
-                // Notify any listeners that one or more transactions have been updated
+                // Add an existing wallet transaction to the transaction cache
                 //
-                if (txUpdated)
-                    listeners.forEach((listener) -> listener.txUpdated());
+                if (cacheBlockHash != null)
+                    cacheTransaction(cacheBlockHash, tx);
             }
+            //
+            // Notify any listeners that one or more transactions have been updated
+            //
+            if (!changes.isEmpty())
+                notifyTxUpdated(changes);
         } catch (WalletException exc) {
             log.error(String.format("Unable to process transaction\n  %s", txHash), exc);
+            throw exc;
         }
     }
 
@@ -474,4 +1790,185 @@ public class DatabaseHandler implements Runnable {
         }
         return result;
     }
+
+    /**
+     * A rescan request is queued by rescanChain() so the database handler thread
+     * can reset the filtered block scan
+     */
+    private static class RescanRequest {
+
+        /** Height of the first block to scan */
+        private final int height;
+
+        /**
+         * Creates a rescan request
+         *
+         * @param       height          Height of the first block to scan
+         */
+        private RescanRequest(int height) {
+            this.height = height;
+        }
+
+        /**
+         * Returns the height of the first block to scan
+         *
+         * @return                      Block height
+         */
+        private int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * A key rescan failure is queued by rescanPeerFailed() so the database handler thread
+     * can move the key rescan to another peer
+     */
+    private static class KeyRescanFailure {
+
+        /** Rescan peer */
+        private final Peer peer;
+
+        /**
+         * Creates a key rescan failure
+         *
+         * @param       peer            Rescan peer
+         */
+        private KeyRescanFailure(Peer peer) {
+            this.peer = peer;
+        }
+
+        /**
+         * Returns the rescan peer
+         *
+         * @return                      Peer
+         */
+        private Peer getPeer() {
+            return peer;
+        }
+    }
+
+    /**
+     * A key rescan request is queued by rescanKeys() so the database handler thread
+     * can start the key rescan
+     */
+    private static class KeyRescanRequest {
+
+        /** New keys */
+        private final List<ECKey> keys;
+
+        /**
+         * Creates a key rescan request
+         *
+         * @param       keys            New keys
+         */
+        private KeyRescanRequest(List<ECKey> keys) {
+            this.keys = new ArrayList<>(keys);
+        }
+
+        /**
+         * Returns the new keys
+         *
+         * @return                      Key list
+         */
+        private List<ECKey> getKeys() {
+            return keys;
+        }
+    }
+
+    /**
+     * A send request is queued by storeTransaction() so the database handler thread
+     * can store a transaction created by the wallet
+     */
+    private static class SendRequest {
+
+        /** Transaction */
+        private final Transaction tx;
+
+        /** Future completed when the transaction has been stored */
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * Creates a send request
+         *
+         * @param       tx              Transaction
+         */
+        private SendRequest(Transaction tx) {
+            this.tx = tx;
+        }
+
+        /**
+         * Returns the transaction
+         *
+         * @return                      Transaction
+         */
+        private Transaction getTransaction() {
+            return tx;
+        }
+
+        /**
+         * Returns the future completed when the transaction has been stored
+         *
+         * @return                      Future
+         */
+        private CompletableFuture<Void> getFuture() {
+            return future;
+        }
+    }
+
+    /**
+     * Handler state saved before an item changes it.  The transaction map is not saved
+     * since it is large; its updates are recorded separately.
+     */
+    private class HandlerState {
+
+        /** Confirmation depth map */
+        private final Map<Sha256Hash, Integer> savedDepthMap = new HashMap<>(depthMap);
+
+        /** Outstanding filtered block requests */
+        private final Map<Sha256Hash, Integer> savedSyncBlocks = new HashMap<>(syncBlocks);
+
+        /** Shard responses */
+        private final Map<Sha256Hash, Integer> savedSyncResponses = new HashMap<>(syncResponses);
+
+        /** Filtered blocks received ahead of the scan height */
+        private final Set<Integer> savedSyncReceived = new HashSet<>(syncReceived);
+
+        /** Height of the next filtered block to request */
+        private final int savedSyncHeight = syncHeight;
+
+        /** Scan height when the filtered block scan last made progress */
+        private final int savedSyncScanHeight = syncScanHeight;
+
+        /** Time when the filtered block scan last made progress */
+        private final long savedSyncProgressTime = syncProgressTime;
+
+        /** Block chain rescan in progress */
+        private final boolean savedRescanActive = rescanActive;
+
+        /** Height of the first block replayed from the transaction cache */
+        private final int savedReplayHeight = replayHeight;
+
+        /** Time when the replay started waiting */
+        private final long savedReplayWaitTime = replayWaitTime;
+
+        /**
+         * Restores the saved handler state
+         */
+        private void restore() {
+            depthMap.clear();
+            depthMap.putAll(savedDepthMap);
+            syncBlocks.clear();
+            syncBlocks.putAll(savedSyncBlocks);
+            syncResponses.clear();
+            syncResponses.putAll(savedSyncResponses);
+            syncReceived.clear();
+            syncReceived.addAll(savedSyncReceived);
+            syncHeight = savedSyncHeight;
+            syncScanHeight = savedSyncScanHeight;
+            syncProgressTime = savedSyncProgressTime;
+            rescanActive = savedRescanActive;
+            replayHeight = savedReplayHeight;
+            replayWaitTime = savedReplayWaitTime;
+        }
+    }
 }
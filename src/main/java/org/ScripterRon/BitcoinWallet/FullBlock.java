@@ -0,0 +1,146 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.BlockHeader;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A full block is downloaded when the compact block filter for the block matches
+ * one of our scripts.  The database handler processes the block transactions and
+ * then updates the compact filter scan height.
+ *
+ * The block header is verified by the header chain but the transactions are not, so
+ * the compact filter handler checks the transactions against the merkle root in the
+ * header before it creates the full block.
+ */
+public class FullBlock {
+
+    /** Block header */
+    private final BlockHeader header;
+
+    /** Block transactions */
+    private final List<Transaction> txList;
+
+    /** Scan height after the block has been processed */
+    private final int scanHeight;
+
+    /** Last block in the compact filter batch */
+    private final boolean lastBlock;
+
+    /** Compact filter batch identifier */
+    private final int batchId;
+
+    /**
+     * Creates a full block
+     *
+     * @param       header          Block header
+     * @param       txList          Block transactions
+     * @param       scanHeight      Scan height after the block has been processed
+     * @param       lastBlock       TRUE if this is the last block in the compact filter batch
+     * @param       batchId         Compact filter batch identifier
+     */
+    public FullBlock(BlockHeader header, List<Transaction> txList, int scanHeight, boolean lastBlock,
+                                    int batchId) {
+        this.header = header;
+        this.txList = txList;
+        this.scanHeight = scanHeight;
+        this.lastBlock = lastBlock;
+        this.batchId = batchId;
+    }
+
+    /**
+     * Returns the block header
+     *
+     * @return                      Block header
+     */
+    public BlockHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the block transactions
+     *
+     * @return                      Transaction list
+     */
+    public List<Transaction> getTransactions() {
+        return txList;
+    }
+
+    /**
+     * Returns the scan height after the block has been processed
+     *
+     * @return                      Scan height
+     */
+    public int getScanHeight() {
+        return scanHeight;
+    }
+
+    /**
+     * Checks if this is the last block in the compact filter batch
+     *
+     * @return                      TRUE if this is the last block
+     */
+    public boolean isLastBlock() {
+        return lastBlock;
+    }
+
+    /**
+     * Returns the compact filter batch identifier
+     *
+     * @return                      Batch identifier
+     */
+    public int getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * Calculates the merkle root for a list of block transactions.  Null is returned if
+     * two identical nodes are hashed together, since a list mutated by duplicating the
+     * transactions at the end produces the same merkle root as the original list.
+     *
+     * @param       txList          Block transactions
+     * @return                      Merkle root or null if the transaction list is mutated
+     */
+    public static Sha256Hash calculateMerkleRoot(List<Transaction> txList) {
+        if (txList.isEmpty())
+            return null;
+        List<byte[]> level = new ArrayList<>(txList.size());
+        for (Transaction tx : txList)
+            level.add(Utils.reverseBytes(tx.getHash().getBytes()));
+        byte[] nodeBytes = new byte[64];
+        while (level.size() > 1) {
+            List<byte[]> nextLevel = new ArrayList<>((level.size()+1)/2);
+            for (int i=0; i<level.size(); i+=2) {
+                byte[] left = level.get(i);
+                byte[] right = (i+1 < level.size() ? level.get(i+1) : left);
+                if (i+1 < level.size() && Arrays.equals(left, right))
+                    return null;
+                System.arraycopy(left, 0, nodeBytes, 0, 32);
+                System.arraycopy(right, 0, nodeBytes, 32, 32);
+                nextLevel.add(Utils.doubleDigest(nodeBytes));
+            }
+            level = nextLevel;
+        }
+        return new Sha256Hash(Utils.reverseBytes(level.get(0)));
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A Golomb-coded set is a compact probabilistic set representation.  It is used
+ * for the BIP 158 basic block filter, which contains the output scripts created by
+ * a block and the output scripts spent by a block.
+ *
+ * Each filter element is hashed using SipHash-2-4 keyed with the first 16 bytes of the
+ * block hash and then mapped to the range [0, N*M).  The sorted values are delta-encoded
+ * using Golomb-Rice coding with parameter P.
+ */
+public class GolombFilter {
+
+    /** Golomb-Rice coding parameter */
+    private static final int P = 19;
+
+    /** Inverse false-positive rate */
+    private static final long M = 784931;
+
+    /** SipHash key (first 8 bytes) */
+    private final long k0;
+
+    /** SipHash key (second 8 bytes) */
+    private final long k1;
+
+    /** Number of elements in the filter */
+    private final int elementCount;
+
+    /** Encoded filter data */
+    private final byte[] filterData;
+
+    /** Offset of the Golomb-Rice bit stream */
+    private final int dataOffset;
+
+    /**
+     * Creates a filter from the serialized filter data
+     *
+     * @param       blockHash           Block hash
+     * @param       filterData          Serialized filter
+     * @throws      EOFException        End-of-data while processing filter
+     */
+    public GolombFilter(Sha256Hash blockHash, byte[] filterData) throws EOFException {
+        //
+        // The key is the first 16 bytes of the block hash in internal (reversed) byte order
+        //
+        byte[] hashBytes = blockHash.getBytes();
+        byte[] keyBytes = new byte[16];
+        for (int i=0; i<16; i++)
+            keyBytes[i] = hashBytes[31-i];
+        k0 = readLongLE(keyBytes, 0);
+        k1 = readLongLE(keyBytes, 8);
+        //
+        // The filter starts with the element count as a variable-length integer
+        //
+        this.filterData = filterData;
+        if (filterData.length < 1)
+            throw new EOFException("End-of-data while processing compact filter");
+        int first = filterData[0]&0xff;
+        long count;
+        if (first < 253) {
+            count = first;
+            dataOffset = 1;
+        } else if (first == 253) {
+            count = readInt(filterData, 1, 2);
+            dataOffset = 3;
+        } else if (first == 254) {
+            count = readInt(filterData, 1, 4);
+            dataOffset = 5;
+        } else {
+            count = readInt(filterData, 1, 8);
+            dataOffset = 9;
+        }
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new EOFException("Compact filter element count is not valid");
+        elementCount = (int)count;
+    }
+
+    /**
+     * Returns the number of elements in the filter
+     *
+     * @return                          Element count
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * Checks if any of the items are in the filter
+     *
+     * @param       items               Items to check
+     * @return                          TRUE if at least one item matches the filter
+     * @throws      EOFException        End-of-data while processing filter
+     */
+    public boolean matchAny(List<byte[]> items) throws EOFException {
+        if (elementCount == 0 || items.isEmpty())
+            return false;
+        //
+        // Hash the items and sort the values so we can make a single pass through the filter
+        //
+        long range = (long)elementCount*M;
+        long[] values = new long[items.size()];
+        for (int i=0; i<values.length; i++)
+            values[i] = hashToRange(items.get(i), range);
+        Arrays.sort(values);
+        //
+        // Decode the filter values and compare them to the item values
+        //
+        BitReader reader = new BitReader(filterData, dataOffset);
+        long filterValue = 0;
+        int index = 0;
+        for (int i=0; i<elementCount; i++) {
+            filterValue += reader.readGolomb();
+            while (values[index] < filterValue) {
+                if (++index == values.length)
+                    return false;
+            }
+            if (values[index] == filterValue)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Matches the items against a list of filters.  The filters are processed in parallel
+     * using the common fork-join pool.
+     *
+     * @param       filters             Filters to check
+     * @param       items               Items to check
+     * @return                          Array of match results in the same order as the filter list
+     * @throws      EOFException        End-of-data while processing a filter
+     */
+    public static boolean[] matchAll(List<GolombFilter> filters, List<byte[]> items) throws EOFException {
+        boolean[] results = new boolean[filters.size()];
+        boolean[] failed = new boolean[1];
+        IntStream.range(0, results.length).parallel().forEach((i) -> {
+            try {
+                results[i] = filters.get(i).matchAny(items);
+            } catch (EOFException exc) {
+                failed[0] = true;
+            }
+        });
+        if (failed[0])
+            throw new EOFException("End-of-data while processing compact filter");
+        return results;
+    }
+
+    /**
+     * Maps an item to the range [0, range) by multiplying the 64-bit item hash by the range
+     * and keeping the upper 64 bits of the 128-bit product
+     *
+     * @param       item                Item
+     * @param       range               Range
+     * @return                          Mapped value
+     */
+    private long hashToRange(byte[] item, long range) {
+        long hash = sipHash(k0, k1, item);
+        long x0 = hash&0xffffffffL, x1 = hash>>>32;
+        long y0 = range&0xffffffffL, y1 = range>>>32;
+        long p00 = x0*y0, p01 = x0*y1, p10 = x1*y0, p11 = x1*y1;
+        long middle = (p00>>>32) + (p01&0xffffffffL) + (p10&0xffffffffL);
+        return p11 + (p01>>>32) + (p10>>>32) + (middle>>>32);
+    }
+
+    /**
+     * Calculates the SipHash-2-4 value for a byte array
+     *
+     * @param       k0                  First half of the key
+     * @param       k1                  Second half of the key
+     * @param       data                Data bytes
+     * @return                          64-bit hash
+     */
+    static long sipHash(long k0, long k1, byte[] data) {
+        long v0 = k0^0x736f6d6570736575L;
+        long v1 = k1^0x646f72616e646f6dL;
+        long v2 = k0^0x6c7967656e657261L;
+        long v3 = k1^0x7465646279746573L;
+        int length = data.length;
+        int end = length - (length%8);
+        for (int offset=0; offset<end; offset+=8) {
+            long m = readLongLE(data, offset);
+            v3 ^= m;
+            for (int i=0; i<2; i++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+        long m = ((long)length&0xff)<<56;
+        for (int i=end; i<length; i++)
+            m |= ((long)data[i]&0xff)<<(8*(i-end));
+        v3 ^= m;
+        for (int i=0; i<2; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= m;
+        v2 ^= 0xff;
+        for (int i=0; i<4; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0^v1^v2^v3;
+    }
+
+    /**
+     * Reads a 64-bit little-endian value
+     *
+     * @param       bytes               Byte array
+     * @param       offset              Starting offset
+     * @return                          64-bit value
+     */
+    private static long readLongLE(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i=0; i<8; i++)
+            value |= ((long)bytes[offset+i]&0xff)<<(8*i);
+        return value;
+    }
+
+    /**
+     * Reads a little-endian integer
+     *
+     * @param       bytes               Byte array
+     * @param       offset              Starting offset
+     * @param       length              Number of bytes
+     * @return                          Integer value
+     * @throws      EOFException        End-of-data reached
+     */
+    private static long readInt(byte[] bytes, int offset, int length) throws EOFException {
+        if (offset+length > bytes.length)
+            throw new EOFException("End-of-data while processing compact filter");
+        long value = 0;
+        for (int i=0; i<length; i++)
+            value |= ((long)bytes[offset+i]&0xff)<<(8*i);
+        return value;
+    }
+
+    /**
+     * Reads a Golomb-Rice encoded bit stream (most-significant bit first)
+     */
+    private static class BitReader {
+
+        /** Data bytes */
+        private final byte[] bytes;
+
+        /** Current bit position */
+        private long bitPosition;
+
+        /** Bit position at the end of the data */
+        private final long bitLimit;
+
+        /**
+         * Creates the bit reader
+         *
+         * @param       bytes           Data bytes
+         * @param       offset          Starting byte offset
+         */
+        private BitReader(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.bitPosition = (long)offset*8;
+            this.bitLimit = (long)bytes.length*8;
+        }
+
+        /**
+         * Reads the next bit
+         *
+         * @return                      Bit value
+         * @throws      EOFException    End-of-data reached
+         */
+        private int readBit() throws EOFException {
+            if (bitPosition >= bitLimit)
+                throw new EOFException("End-of-data while processing compact filter");
+            int bit = (bytes[(int)(bitPosition>>>3)]>>>(7-(int)(bitPosition&7)))&1;
+            bitPosition++;
+            return bit;
+        }
+
+        /**
+         * Reads the next Golomb-Rice encoded value.  The quotient is encoded in unary
+         * followed by the P-bit remainder.
+         *
+         * @return                      Decoded value
+         * @throws      EOFException    End-of-data reached
+         */
+        private long readGolomb() throws EOFException {
+            long quotient = 0;
+            while (readBit() == 1)
+                quotient++;
+            long remainder = 0;
+            for (int i=0; i<P; i++)
+                remainder = (remainder<<1) | readBit();
+            return (quotient<<P) | remainder;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.BlockHeader;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The header verifier checks a batch of block headers before they are passed to the
+ * database handler.  Each header is serialized and hashed to verify the block hash, the
+ * block hash must not exceed the target difficulty and the previous block hash must
+ * match the hash of the preceding header in the batch.
+ *
+ * The batch is split into ranges which are verified in parallel using the common
+ * fork-join pool.  The result is the length of the verified prefix, so the caller can
+ * queue the headers up to the first failure and discard the rest of the batch.
+ */
+public class HeaderVerifier {
+
+    /** Number of headers verified by a single task */
+    private static final int TASK_THRESHOLD = 64;
+
+    /** Serialized block header length */
+    private static final int HEADER_LENGTH = 80;
+
+    /**
+     * Verifies a batch of block headers
+     *
+     * @param       hdrList         Block headers in chain order
+     * @return                      Number of headers verified before the first failure
+     */
+    public static int verify(List<BlockHeader> hdrList) {
+        if (hdrList.isEmpty())
+            return 0;
+        return ForkJoinPool.commonPool().invoke(new VerifyTask(hdrList, 0, hdrList.size()));
+    }
+
+    /**
+     * Verifies a single block header
+     *
+     * @param       header          Block header
+     * @param       prevHeader      Preceding header in the batch or null
+     * @return                      TRUE if the header is valid
+     */
+    private static boolean verifyHeader(BlockHeader header, BlockHeader prevHeader) {
+        //
+        // Check the linkage to the preceding header
+        //
+        if (prevHeader != null && !header.getPrevHash().equals(prevHeader.getHash()))
+            return false;
+        //
+        // Serialize the header and verify the block hash
+        //
+        byte[] bytes = new byte[HEADER_LENGTH];
+        Utils.uint32ToByteArrayLE(header.getVersion(), bytes, 0);
+        System.arraycopy(Utils.reverseBytes(header.getPrevHash().getBytes()), 0, bytes, 4, 32);
+        System.arraycopy(Utils.reverseBytes(header.getMerkleRoot().getBytes()), 0, bytes, 36, 32);
+        Utils.uint32ToByteArrayLE(header.getBlockTime(), bytes, 68);
+        Utils.uint32ToByteArrayLE(header.getTargetDifficulty(), bytes, 72);
+        Utils.uint32ToByteArrayLE(header.getNonce(), bytes, 76);
+        Sha256Hash blockHash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes)));
+        if (!blockHash.equals(header.getHash()))
+            return false;
+        //
+        // Verify the proof of work
+        //
+        BigInteger target = decodeCompactBits(header.getTargetDifficulty());
+        if (target.signum() <= 0)
+            return false;
+        return (new BigInteger(1, blockHash.getBytes()).compareTo(target) <= 0);
+    }
+
+    /**
+     * Decodes the compact representation of the target difficulty.  The high-order byte
+     * is the number of bytes in the target and the low-order 3 bytes are the most
+     * significant bytes of the target.
+     *
+     * @param       compact         Compact target
+     * @return                      Target (zero if the target is negative)
+     */
+    private static BigInteger decodeCompactBits(long compact) {
+        int size = (int)(compact>>>24)&0xff;
+        long mantissa = compact&0x007fffffL;
+        if ((compact&0x00800000L) != 0)
+            return BigInteger.ZERO;
+        BigInteger target = BigInteger.valueOf(mantissa);
+        if (size <= 3)
+            return target.shiftRight(8*(3-size));
+        return target.shiftLeft(8*(size-3));
+    }
+
+    /**
+     * Verifies a range of headers and returns the index of the first failure within the
+     * range or the end of the range if all of the headers are valid
+     */
+    private static class VerifyTask extends RecursiveTask<Integer> {
+
+        /** Block headers */
+        private final List<BlockHeader> hdrList;
+
+        /** Start of the range */
+        private final int start;
+
+        /** End of the range (exclusive) */
+        private final int end;
+
+        /**
+         * Creates a verification task
+         *
+         * @param       hdrList         Block headers
+         * @param       start           Start of the range
+         * @param       end             End of the range (exclusive)
+         */
+        private VerifyTask(List<BlockHeader> hdrList, int start, int end) {
+            this.hdrList = hdrList;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Verifies the headers
+         *
+         * @return                      Index of the first failure or the end of the range
+         */
+        @Override
+        protected Integer compute() {
+            if (end-start <= TASK_THRESHOLD) {
+                for (int i=start; i<end; i++) {
+                    if (!verifyHeader(hdrList.get(i), (i>0 ? hdrList.get(i-1) : null)))
+                        return i;
+                }
+                return end;
+            }
+            int middle = (start+end)>>>1;
+            VerifyTask lowTask = new VerifyTask(hdrList, start, middle);
+            VerifyTask highTask = new VerifyTask(hdrList, middle, end);
+            highTask.fork();
+            int lowResult = lowTask.compute();
+            int highResult = highTask.join();
+            return (lowResult < middle ? lowResult : highResult);
+        }
+    }
+}
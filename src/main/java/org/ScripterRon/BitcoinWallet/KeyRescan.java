@@ -0,0 +1,249 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.InventoryItem;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A key rescan scans the block chain for transactions involving newly imported keys.
+ * A single peer loads a temporary bloom filter containing just the new keys and the
+ * filtered blocks are requested from that peer starting at the key birthday.  The
+ * rescan runs alongside the normal block chain synchronization, which continues to use
+ * the remaining peers.  The matched transactions are added to the existing wallet
+ * transactions.
+ *
+ * The key rescan is used only by the database handler thread and is not synchronized.
+ */
+public class KeyRescan {
+
+    /** Maximum number of outstanding filtered block requests */
+    private static final int RESCAN_WINDOW = 50;
+
+    /** Time to wait for the rescan peer to return a filtered block (milliseconds) */
+    private static final long REQUEST_TIMEOUT = 60*1000;
+
+    /** Rescan keys */
+    private final List<ECKey> keys;
+
+    /** Rescan peer */
+    private Peer peer;
+
+    /** Height of the first block scanned */
+    private int startHeight;
+
+    /** Height of the next block to request */
+    private int nextHeight;
+
+    /** Height of the last block scanned */
+    private int scanHeight;
+
+    /** Outstanding filtered block requests */
+    private final Map<Sha256Hash, Integer> blocks = new HashMap<>();
+
+    /** Filtered blocks received ahead of the scan height */
+    private final Set<Integer> received = new HashSet<>();
+
+    /** Time when each outstanding filtered block was requested */
+    private final Map<Sha256Hash, Long> requestTimes = new HashMap<>();
+
+    /** Peers that failed to return the rescan blocks */
+    private final Set<Peer> failedPeers = new HashSet<>();
+
+    /**
+     * Creates a key rescan
+     *
+     * @param       keys            Rescan keys
+     * @param       startHeight     Height of the first block to scan
+     */
+    public KeyRescan(List<ECKey> keys, int startHeight) {
+        this.keys = new ArrayList<>(keys);
+        this.startHeight = startHeight;
+        this.nextHeight = startHeight;
+        this.scanHeight = startHeight-1;
+    }
+
+    /**
+     * Adds keys to an active rescan.  The rescan is restarted with a new filter and
+     * resumes at the earlier of the current scan height and the start height.
+     *
+     * @param       newKeys         Rescan keys
+     * @param       startHeight     Height of the first block to scan for the new keys
+     */
+    public void addKeys(List<ECKey> newKeys, int startHeight) {
+        newKeys.stream().filter((key) -> !keys.contains(key)).forEach((key) -> keys.add(key));
+        scanHeight = Math.min(scanHeight, startHeight-1);
+        this.startHeight = Math.min(this.startHeight, startHeight);
+        releasePeer();
+    }
+
+    /**
+     * Returns the rescan keys
+     *
+     * @return                      Key list
+     */
+    public List<ECKey> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Returns the height of the first block scanned
+     *
+     * @return                      Block height
+     */
+    public int getStartHeight() {
+        return startHeight;
+    }
+
+    /**
+     * Checks if a rescan peer has been assigned
+     *
+     * @return                      TRUE if the rescan has a peer
+     */
+    public boolean hasPeer() {
+        return (peer != null);
+    }
+
+    /**
+     * Checks if a filtered block is a response to a rescan request
+     *
+     * @param       blockPeer       Peer that sent the filtered block
+     * @param       blockHash       Block hash
+     * @return                      TRUE if this is a rescan block
+     */
+    public boolean isRescanBlock(Peer blockPeer, Sha256Hash blockHash) {
+        return (blockPeer != null && blockPeer == peer && blocks.containsKey(blockHash));
+    }
+
+    /**
+     * Records a rescan block and advances the scan height
+     *
+     * @param       blockHash       Block hash
+     */
+    public void blockReceived(Sha256Hash blockHash) {
+        Integer height = blocks.remove(blockHash);
+        if (height == null)
+            return;
+        requestTimes.remove(blockHash);
+        received.add(height);
+        while (received.remove(scanHeight+1))
+            scanHeight++;
+    }
+
+    /**
+     * Moves the rescan to another peer after the rescan peer returned 'notfound' for a
+     * rescan block.  Nothing is done if the peer is no longer the rescan peer.
+     *
+     * @param       failedPeer      Peer that failed to return a rescan block
+     */
+    public void peerFailed(Peer failedPeer) {
+        if (failedPeer == null || failedPeer != peer)
+            return;
+        log.warn(String.format("Key rescan peer %s failed to return a block, selecting a new peer",
+                               peer.getAddress()));
+        failedPeers.add(peer);
+        releasePeer();
+    }
+
+    /**
+     * Requests the next set of rescan blocks.  A new rescan peer is assigned if the
+     * current peer has disconnected or has not returned a requested block within the
+     * request timeout.
+     *
+     * @return                      TRUE if the rescan has reached the chain head
+     * @throws      WalletException Unable to get the chain blocks
+     */
+    public boolean requestBlocks() throws WalletException {
+        int chainHeight = Parameters.wallet.getChainHeight();
+        if (blocks.isEmpty() && scanHeight >= chainHeight) {
+            releasePeer();
+            log.info(String.format("Key rescan completed at height %d", scanHeight));
+            return true;
+        }
+        //
+        // Move the rescan to another peer if the rescan peer is ignoring our requests
+        //
+        long currentTime = System.currentTimeMillis();
+        if (peer != null && peer.isConnected() &&
+                    requestTimes.values().stream().anyMatch((time) -> currentTime-time > REQUEST_TIMEOUT)) {
+            log.warn(String.format("Key rescan peer %s is not responding, selecting a new peer",
+                                   peer.getAddress()));
+            failedPeers.add(peer);
+            releasePeer();
+        }
+        //
+        // Assign a rescan peer and restart the outstanding requests if we don't have a peer
+        //
+        if (peer == null || !peer.isConnected()) {
+            releasePeer();
+            failedPeers.removeIf((failedPeer) -> !failedPeer.isConnected());
+            peer = Parameters.filterManager.assignRescanPeer(keys, failedPeers);
+            if (peer == null)
+                return false;
+            log.info(String.format("Key rescan for %d keys resumed at height %d", keys.size(), scanHeight+1));
+        }
+        //
+        // Request the next set of filtered blocks from the rescan peer
+        //
+        List<PeerRequest> requests = new ArrayList<>();
+        while (blocks.size() < RESCAN_WINDOW && nextHeight <= chainHeight) {
+            Sha256Hash blockHash = Parameters.wallet.getBlockHash(nextHeight);
+            blocks.put(blockHash, nextHeight);
+            requestTimes.put(blockHash, currentTime);
+            requests.add(new PeerRequest(blockHash, InventoryItem.INV_FILTERED_BLOCK, peer, true));
+            nextHeight++;
+        }
+        if (!requests.isEmpty()) {
+            synchronized(Parameters.lock) {
+                Parameters.pendingRequests.addAll(requests);
+            }
+            Parameters.networkHandler.wakeup();
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the rescan
+     */
+    public void cancel() {
+        releasePeer();
+    }
+
+    /**
+     * Releases the rescan peer and discards the outstanding requests.  The next request
+     * resumes following the current scan height.
+     */
+    private void releasePeer() {
+        if (peer != null) {
+            Parameters.filterManager.releaseRescanPeer(peer);
+            peer = null;
+        }
+        blocks.clear();
+        received.clear();
+        requestTimes.clear();
+        nextHeight = scanHeight+1;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The knapsack selector is used when there is no changeless selection.  An output which
+ * matches the target is used if there is one.  Otherwise, the outputs smaller than the
+ * target plus the minimum change are combined using a randomized approximation of the
+ * best subset, first for the target and then for the target plus the minimum change.
+ * The smallest output larger than the target is used instead if it is closer to the
+ * target than the best subset.
+ *
+ * The minimum change is the change window, so the change output is not dust.  The
+ * approximation stops when the deadline has passed and returns the best subset found.
+ * The selector returns the smallest larger output or no selection if no subset was
+ * found before the deadline.
+ */
+public class KnapsackSelector implements CoinSelector {
+
+    /** Number of approximation passes */
+    private static final int ITERATIONS = 1000;
+
+    /** Random number generator */
+    private final Random random = new Random();
+
+    /**
+     * Creates the knapsack selector
+     */
+    public KnapsackSelector() {
+    }
+
+    /**
+     * Returns the selector name
+     *
+     * @return                      Selector name
+     */
+    @Override
+    public String getName() {
+        return "knapsack";
+    }
+
+    /**
+     * Selects the outputs to spend
+     *
+     * @param       values          Effective output values in descending order (all values are positive)
+     * @param       target          Effective value required
+     * @param       changeWindow    Minimum change
+     * @param       deadline        Time when the selector must return (milliseconds)
+     * @return                      Indexes of the selected outputs or null if the outputs do not cover the target
+     */
+    @Override
+    public int[] select(long[] values, long target, long changeWindow, long deadline) {
+        //
+        // Use an exact match if we have one and locate the smallest output larger than
+        // the target plus the minimum change.  The smaller outputs are candidates for
+        // the subset.
+        //
+        int lowestLarger = -1;
+        int[] applicable = new int[values.length];
+        int applicableCount = 0;
+        long applicableTotal = 0;
+        for (int i=0; i<values.length; i++) {
+            if (values[i] == target)
+                return new int[] {i};
+            if (values[i] < target + changeWindow) {
+                applicable[applicableCount++] = i;
+                applicableTotal += values[i];
+            } else {
+                lowestLarger = i;           // Values are in descending order
+            }
+        }
+        applicable = Arrays.copyOf(applicable, applicableCount);
+        if (applicableTotal == target)
+            return applicable;
+        if (applicableTotal < target)
+            return (lowestLarger >= 0 ? new int[] {lowestLarger} : null);
+        //
+        // Find the best subset of the smaller outputs
+        //
+        boolean[] bestSelection = new boolean[applicableCount];
+        long bestTotal = approximateBestSubset(values, applicable, target, bestSelection, deadline);
+        if (bestTotal != target && applicableTotal >= target + changeWindow) {
+            boolean[] changeSelection = new boolean[applicableCount];
+            long changeTotal = approximateBestSubset(values, applicable, target + changeWindow,
+                                                     changeSelection, deadline);
+            if (changeTotal > 0) {
+                bestTotal = changeTotal;
+                bestSelection = changeSelection;
+            }
+        }
+        //
+        // Use the smallest larger output if no subset was found before the deadline, if the
+        // subset did not reach the target plus the minimum change or if the larger output is
+        // closer to the target
+        //
+        if (bestTotal < 0)
+            return (lowestLarger >= 0 ? new int[] {lowestLarger} : null);
+        if (lowestLarger >= 0 && ((bestTotal != target && bestTotal < target + changeWindow) ||
+                                  values[lowestLarger] <= bestTotal))
+            return new int[] {lowestLarger};
+        int selectedCount = 0;
+        for (boolean isSelected : bestSelection) {
+            if (isSelected)
+                selectedCount++;
+        }
+        int[] indexes = new int[selectedCount];
+        selectedCount = 0;
+        for (int i=0; i<applicableCount; i++) {
+            if (bestSelection[i])
+                indexes[selectedCount++] = applicable[i];
+        }
+        return indexes;
+    }
+
+    /**
+     * Finds an approximation of the smallest subset total that is at least the target
+     *
+     * @param       values          Effective output values
+     * @param       applicable      Indexes of the candidate outputs
+     * @param       target          Subset target
+     * @param       bestSelection   Best subset (updated)
+     * @param       deadline        Time when the search must stop (milliseconds)
+     * @return                      Total of the best subset or -1 if no subset was found
+     */
+    private long approximateBestSubset(long[] values, int[] applicable, long target,
+                                       boolean[] bestSelection, long deadline) {
+        int count = applicable.length;
+        boolean[] included = new boolean[count];
+        long bestTotal = Long.MAX_VALUE;
+        for (int rep=0; rep<ITERATIONS && bestTotal != target; rep++) {
+            if (System.currentTimeMillis() > deadline)
+                break;
+            Arrays.fill(included, false);
+            long subsetTotal = 0;
+            boolean reachedTarget = false;
+            for (int pass=0; pass<2 && !reachedTarget; pass++) {
+                for (int i=0; i<count; i++) {
+                    //
+                    // The first pass selects outputs at random and the second pass adds
+                    // the outputs not selected by the first pass
+                    //
+                    if (pass == 0 ? random.nextBoolean() : !included[i]) {
+                        subsetTotal += values[applicable[i]];
+                        included[i] = true;
+                        if (subsetTotal >= target) {
+                            reachedTarget = true;
+                            if (subsetTotal < bestTotal) {
+                                bestTotal = subsetTotal;
+                                System.arraycopy(included, 0, bestSelection, 0, count);
+                            }
+                            subsetTotal -= values[applicable[i]];
+                            included[i] = false;
+                        }
+                    }
+                }
+            }
+        }
+        return (bestTotal != Long.MAX_VALUE ? bestTotal : -1);
+    }
+}
@@ -276,39 +276,64 @@ public class Main {
                 Parameters.keys.add(changeKey);
             }
             //
-            // Create our bloom filter
+            // Track our unconfirmed transactions and the transactions spending the same outputs
+            //
+            Parameters.mempoolTracker = new MempoolTracker();
+            Parameters.mempoolTracker.load();
+            Parameters.conflictIndex = new ConflictIndex();
+            Parameters.conflictIndex.load();
+            Parameters.rebroadcastHandler = new RebroadcastHandler();
+            Parameters.sentTxCache = new SentTransactionCache();
+            //
+            // Create the wallet event publisher
             //
-            // Relevant ScriptSig elements are the public key and the redeem script
-            // Relevant ScriptPubKey elements are the public key hash and the redeem script hash
+            Parameters.eventPublisher = new WalletEventPublisher();
             //
-            int elementCount = Parameters.keys.size()*4 + 15;
-            BloomFilter filter = new BloomFilter(elementCount);
-            Parameters.keys.forEach((key) -> {
-                filter.insert(key.getPubKey());
-                filter.insert(Script.getRedeemScript(key.getPubKeyHash(), false));
-                filter.insert(key.getPubKeyHash());
-                filter.insert(key.getScriptHash());
-            });
-            Parameters.bloomFilter = filter;
+            // Create the wallet service used by the GUI
+            //
+            Parameters.walletService = new WalletService();
+            Parameters.outputReservations = new OutputReservations();
+            //
+            // Create our bloom filter
+            //
+            Parameters.filterManager = new BloomFilterManager();
             //
             // Create our inventory handler
             //
             Parameters.messageListener = new WalletMessageListener();
             //
+            // Create our compact filter handler if we are using compact block filters
+            //
+            if (Parameters.compactFilters)
+                Parameters.compactFilterHandler = new CompactFilterHandler();
+            //
+            // Open the transaction cache if it is enabled.  The cache is not used with
+            // compact block filters since the full blocks are downloaded.
+            //
+            if (Parameters.cacheTransactions && !Parameters.compactFilters)
+                Parameters.txCache = new TransactionCache(dataPath, Parameters.keys,
+                                                          Parameters.wallet.getScanHeight());
+            //
             // Start the worker threads
             //
             // DatabaseListener - 1 thread
             // NetworkListener - 1 thread
             // MessageHandler - 1 thread
+            // RebroadcastHandler - 1 thread
             //
             threadGroup = new ThreadGroup("Workers");
 
             Parameters.databaseHandler = new DatabaseHandler();
+            Parameters.databaseHandler.addListener(Parameters.sentTxCache);
             Thread thread = new Thread(threadGroup, Parameters.databaseHandler);
             thread.start();
             threads.add(thread);
 
             Parameters.networkHandler = new NetworkHandler(peerAddresses);
+            Parameters.networkHandler.addListener(Parameters.filterManager);
+            Parameters.networkHandler.addListener(Parameters.rebroadcastHandler);
+            if (Parameters.compactFilterHandler != null)
+                Parameters.networkHandler.addListener(Parameters.compactFilterHandler);
             thread = new Thread(threadGroup, Parameters.networkHandler);
             thread.start();
             threads.add(thread);
@@ -317,6 +342,10 @@ public class Main {
             thread = new Thread(threadGroup, messageHandler);
             thread.start();
             threads.add(thread);
+
+            thread = new Thread(threadGroup, Parameters.rebroadcastHandler);
+            thread.start();
+            threads.add(thread);
             //
             // Start the GUI
             //
@@ -366,6 +395,9 @@ public class Main {
         Parameters.networkHandler.shutdown();
         Parameters.databaseHandler.shutdown();
         messageHandler.shutdown();
+        Parameters.rebroadcastHandler.shutdown();
+        Parameters.eventPublisher.shutdown();
+        Parameters.walletService.shutdown();
         //
         // Wait for threads to terminate
         //
@@ -378,8 +410,10 @@ public class Main {
             log.info("Interrupted while waiting for threads to stop");
         }
         //
-        // Close the database
+        // Close the transaction cache and the database
         //
+        if (Parameters.txCache != null)
+            Parameters.txCache.close();
         Parameters.wallet.close();
         //
         // Save the application properties
@@ -468,6 +502,20 @@ public class Main {
                     case "passphrase":
                         Parameters.passPhrase = value;
                         break;
+                    case "compactfilters":
+                        Parameters.compactFilters = Boolean.parseBoolean(value);
+                        break;
+                    case "txcache":
+                        Parameters.cacheTransactions = Boolean.parseBoolean(value);
+                        break;
+                    case "spendchange":
+                        Parameters.spendUnconfirmedChange = Boolean.parseBoolean(value);
+                        break;
+                    case "changechain":
+                        Parameters.unconfirmedChainLimit = Integer.parseInt(value);
+                        if (Parameters.unconfirmedChainLimit < 1)
+                            throw new IllegalArgumentException(String.format("Invalid configuration option: %s", line));
+                        break;
                     default:
                         throw new IllegalArgumentException(String.format("Invalid configuration option: %s", line));
                 }
@@ -19,24 +19,12 @@ import static org.ScripterRon.BitcoinWallet.Main.log;
 import org.ScripterRon.BitcoinCore.AddressFormatException;
 import org.ScripterRon.BitcoinCore.DumpedPrivateKey;
 import org.ScripterRon.BitcoinCore.ECKey;
-import org.ScripterRon.BitcoinCore.FilterLoadMessage;
-import org.ScripterRon.BitcoinCore.InventoryItem;
-import org.ScripterRon.BitcoinCore.InventoryMessage;
-import org.ScripterRon.BitcoinCore.Message;
-import org.ScripterRon.BitcoinCore.Peer;
-import org.ScripterRon.BitcoinCore.Script;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.List;
 
 import java.awt.Color;
 import java.awt.Dimension;
@@ -53,12 +41,13 @@ import javax.swing.JMenuBar;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
 import javax.swing.WindowConstants;
 
 /**
  * This is the main application window
  */
-public final class MainWindow extends JFrame implements ActionListener, ConnectionListener, WalletListener {
+public final class MainWindow extends JFrame implements ActionListener {
 
     /** Main window is minimized */
     private boolean windowMinimized = false;
@@ -66,15 +55,15 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
     /** Synchronizing title set */
     private boolean synchronizingTitle = false;
 
-    /** Rebroadcast pending transactions */
-    private boolean txBroadcastDone = false;
-
     /** Rescanning block chain */
     private boolean rescanChain = false;
 
     /** Transaction panel */
     private final TransactionPanel transactionPanel;
 
+    /** Notification bus */
+    private final NotificationBus notificationBus;
+
     /**
      * Create the application window
      */
@@ -173,115 +162,44 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
         //
         addWindowListener(new ApplicationWindowListener());
         //
-        // Receive connection events
-        //
-        Parameters.networkHandler.addListener(this);
-        //
-        // Receive wallet events
+        // Receive connection and wallet events through the notification bus
         //
-        Parameters.databaseHandler.addListener(this);
+        notificationBus = new NotificationBus((batch) -> processNotifications(batch));
+        Parameters.networkHandler.addListener(notificationBus);
+        Parameters.databaseHandler.addListener(notificationBus);
     }
 
     /**
-     * Connection started (ConnectionListener interface)
+     * Processes a batch of notifications (event dispatch thread)
      *
-     * @param       peer            Peer node
+     * @param       batch           Merged notifications
      */
-    @Override
-    public void connectionStarted(Peer peer) {
+    private void processNotifications(NotificationBus.Batch batch) {
         //
-        // Indicate we are synchronizing with the network if we are down-level
+        // Update the table for the changed transactions
         //
-        if (!synchronizingTitle && Parameters.networkChainHeight > Parameters.wallet.getChainHeight()) {
-            synchronizingTitle = true;
-            javax.swing.SwingUtilities.invokeLater(() -> {
-                setTitle("Bitcoin Wallet - Synchronizing with network");
-            });
-        }
+        if (!batch.getChanges().isEmpty())
+            transactionPanel.transactionsChanged(batch.getChanges());
         //
-        // Broadcast pending transactions
+        // Update the table status column for the new chain depth
         //
-        if (!txBroadcastDone) {
-            txBroadcastDone = true;
-            try {
-                List<SendTransaction> sendList = Parameters.wallet.getSendTxList();
-                if (!sendList.isEmpty()) {
-                    List<InventoryItem> invList = new ArrayList<>(sendList.size());
-                    for (SendTransaction sendTx : sendList) {
-                        int depth = Parameters.wallet.getTxDepth(sendTx.getTxHash());
-                        if (depth == 0)
-                            invList.add(new InventoryItem(InventoryItem.INV_TX, sendTx.getTxHash()));
-                    }
-                    if (!invList.isEmpty()) {
-                        Message invMsg = InventoryMessage.buildInventoryMessage(peer, invList);
-                        Parameters.networkHandler.sendMessage(invMsg);
-                        log.info(String.format("Pending transaction inventory sent to %s",
-                                               peer.getAddress().toString()));
-                    }
-                }
-            } catch (WalletException exc) {
-                Main.logException("Unable to get send transaction list", exc);
-            }
-        }
-    }
-
-    /**
-     * Connection ended (ConnectionListener interface)
-     *
-     * @param       peer            Peer node
-     */
-    @Override
-    public void connectionEnded(Peer peer) {
-    }
-
-    /**
-     * Notification when a block is added to the chain (WalletListener interface)
-     *
-     * @param       blockHeader     Block header
-     */
-    @Override
-    public void addChainBlock(StoredHeader blockHeader) {
-        //
-        // Update the table status column for the new chain depth.  Indicate we are
-        // no longer synchronizing with the network if we are now caught up.
-        //
-        javax.swing.SwingUtilities.invokeLater(() -> {
+        if (batch.isRescanCompleted())
+            rescanChain = false;
+        if (batch.getChainBlock() != null || batch.isRescanCompleted())
             transactionPanel.statusChanged();
-            if (synchronizingTitle && !rescanChain &&
-                                Parameters.networkChainHeight <= Parameters.wallet.getChainHeight()) {
-                synchronizingTitle = false;
-                setTitle("Bitcoin Wallet");
-            }
-        });
-    }
-
-    /**
-     * Notification when one or more transactions have been updated (WalletListener interface)
-     */
-    @Override
-    public void txUpdated() {
-        javax.swing.SwingUtilities.invokeLater(() -> {
-            transactionPanel.walletChanged();
-        });
-    }
-
-    /**
-     * Notification when a block chain rescan is completed
-     */
-    @Override
-    public void rescanCompleted() {
         //
-        // Update the table status column for any new transactions.  Indicate we are
-        // no longer synchronizing with the network if we are now caught up.
+        // Indicate we are synchronizing with the network if we are down-level and indicate
+        // we are no longer synchronizing if we are now caught up
         //
-        javax.swing.SwingUtilities.invokeLater(() -> {
-            rescanChain = false;
-            transactionPanel.statusChanged();
-            if (synchronizingTitle && Parameters.networkChainHeight <= Parameters.wallet.getChainHeight()) {
-                synchronizingTitle = false;
-                setTitle("Bitcoin Wallet");
-            }
-        });
+        if (!synchronizingTitle && batch.isPeersChanged() &&
+                                Parameters.networkChainHeight > Parameters.wallet.getChainHeight()) {
+            synchronizingTitle = true;
+            setTitle("Bitcoin Wallet - Synchronizing with network");
+        } else if (synchronizingTitle && !rescanChain &&
+                                Parameters.networkChainHeight <= Parameters.wallet.getChainHeight()) {
+            synchronizingTitle = false;
+            setTitle("Bitcoin Wallet");
+        }
     }
 
     /**
@@ -315,11 +233,11 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
                     break;
                 case "view receive":
                     ReceiveAddressDialog.showDialog(this);
-                    transactionPanel.statusChanged();
+                    transactionPanel.labelsChanged();
                     break;
                 case "view send":
                     SendAddressDialog.showDialog(this);
-                    transactionPanel.statusChanged();
+                    transactionPanel.labelsChanged();
                     break;
                 case "send coins":
                     SendDialog.showDialog(this);
@@ -347,12 +265,8 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
                     rescan();
                     break;
             }
-        } catch (IOException exc) {
-            Main.logException("Unable to process key file", exc);
         } catch (AddressFormatException exc) {
             Main.logException("Key format is not valid", exc);
-        } catch (WalletException exc) {
-            Main.logException("Unable to perform database operation", exc);
         } catch (Exception exc) {
             Main.logException("Exception while processing action event", exc);
         }
@@ -361,173 +275,71 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
     /**
      * Export keys as Base58-encoded strings (compatible with the Bitcoin-Qt client) to "BitcoinWallet.keys"
      *
-     * The keys will be written to the BitcoinWallet.keys file in the following format:
-     *   Label: <text>
-     *   Time: <creation-time>
-     *   Address: <bitcoin-address>
-     *   Private: <private-key>
-     *
-     * @throws      IOException         Unable to create export file
+     * The keys are written by the wallet service in the format described by WalletService.exportKeys()
      */
-    private void exportPrivateKeys() throws IOException {
-        StringBuilder keyText = new StringBuilder(256);
+    private void exportPrivateKeys() {
         File keyFile = new File(Main.dataPath+Main.fileSeparator+"BitcoinWallet.keys");
-        if (keyFile.exists())
-            keyFile.delete();
-        //
-        // Write the keys to BitcoinWallet.keys
-        //
-        try (BufferedWriter out = new BufferedWriter(new FileWriter(keyFile))) {
-            for (ECKey key : Parameters.keys) {
-                String address = key.toAddress().toString();
-                DumpedPrivateKey dumpedKey = key.getPrivKeyEncoded();
-                keyText.append("Label:");
-                keyText.append(key.getLabel());
-                keyText.append("\nTime:");
-                keyText.append(Long.toString(key.getCreationTime()));
-                keyText.append("\nAddress:");
-                keyText.append(address);
-                keyText.append("\nPrivate:");
-                keyText.append(dumpedKey.toString());
-                keyText.append("\n\n");
-                out.write(keyText.toString());
-                keyText.delete(0,keyText.length());
-            }
-        }
-        JOptionPane.showMessageDialog(this, "Keys exported to BitcoinWallet.keys", "Keys Exported",
-                                      JOptionPane.INFORMATION_MESSAGE);
+        ProgressMonitor monitor = new ProgressMonitor(this, "Exporting keys", null, 0, 100);
+        Parameters.walletService.exportKeys(keyFile, (completed, total) -> setProgress(monitor, completed, total))
+                .whenCompleteAsync((count, exc) -> {
+            monitor.close();
+            if (exc != null)
+                Main.logException("Unable to process key file", WalletService.getCause(exc));
+            else
+                JOptionPane.showMessageDialog(this, "Keys exported to BitcoinWallet.keys", "Keys Exported",
+                                              JOptionPane.INFORMATION_MESSAGE);
+        }, WalletService.GUI_EXECUTOR);
     }
 
     /**
      * Import private keys from "BitcoinWallet.keys"
      *
      * The keys will be read from the BitcoinWallet.keys file.  The keys must be in the format created by
-     * exportPrivateKeys().  Blank lines and lines beginning with '#' will be ignored.  Lines containing
-     * unrecognized prefixes will also be ignored.
-     *
-     * @throws      AddressFormatException      Address format is not valid
-     * @throws      IOException                 Unable to read file
-     * @throws      WalletException             Unable to update database
+     * exportPrivateKeys().  The keys are imported by the wallet service and a block chain scan is
+     * started for the new keys.
      */
-    private void importPrivateKeys() throws IOException, AddressFormatException, WalletException {
+    private void importPrivateKeys() {
         File keyFile = new File(Main.dataPath+Main.fileSeparator+"BitcoinWallet.keys");
         if (!keyFile.exists()) {
             JOptionPane.showMessageDialog(this, "BitcoinWallet.keys does not exist",
                                           "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
-        //
-        // Read each line from the key file
-        //
-        try (BufferedReader in = new BufferedReader(new FileReader(keyFile))) {
-            String line;
-            String importedLabel = "";
-            String importedTime = "";
-            String importedAddress = "";
-            String encodedPrivateKey = "";
-            boolean foundKey = false;
-            boolean filterChanged = false;
-            while ((line=in.readLine()) != null) {
-                //
-                // Remove leading and trailing whitespace
-                //
-                line = line.trim();
-                //
-                // Skip comment lines and blank lines
-                //
-                if (line.length() == 0 || line.charAt(0) == '#')
-                    continue;
-                int sep = line.indexOf(':');
-                if (sep <1 || line.length() == sep+1)
-                    continue;
-                //
-                // Parse the line formatted as "keyword:value".  The following keywords are supported and
-                // must appear in the listed order:
-                //    Label = Name assigned to the key (may be omitted)
-                //    Time = Key creation time (may be omitted)
-                //    Address = Bitcoin address for the key (may be omitted)
-                //    Private = Private key (must be specified and must be the last line for the key)
-                //
-                String keyword = line.substring(0, sep);
-                String value = line.substring(sep+1);
-                switch (keyword) {
-                    case "Label":
-                        importedLabel = value;
-                        break;
-                    case "Time":
-                        importedTime = value;
-                        break;
-                    case "Address":
-                        importedAddress = value;
-                        break;
-                    case "Private":
-                        encodedPrivateKey = value;
-                        foundKey = true;
-                        break;
-                }
-                //
-                // Add the key to the wallet and update the bloom filter
-                //
-                if (foundKey) {
-                    DumpedPrivateKey dumpedKey = new DumpedPrivateKey(encodedPrivateKey);
-                    ECKey key = dumpedKey.getKey();
-                    if (importedAddress.equals(key.toAddress().toString())) {
-                        key.setLabel(importedLabel);
-                        key.setCreationTime(Long.parseLong(importedTime));
-                        if (!Parameters.keys.contains(key)) {
-                            Parameters.wallet.storeKey(key);
-                            synchronized(Parameters.lock) {
-                                boolean added = false;
-                                for (int i=0; i<Parameters.keys.size(); i++) {
-                                    if (Parameters.keys.get(i).getLabel().compareToIgnoreCase(importedLabel) > 0) {
-                                        Parameters.keys.add(i, key);
-                                        added = true;
-                                        break;
-                                    }
-                                }
-                                if (!added)
-                                    Parameters.keys.add(key);
-                                Parameters.bloomFilter.insert(key.getPubKey());
-                                Parameters.bloomFilter.insert(Script.getRedeemScript(key.getPubKeyHash(), false));
-                                Parameters.bloomFilter.insert(key.getPubKeyHash());
-                                Parameters.bloomFilter.insert(key.getScriptHash());
-                                filterChanged = true;
-                            }
-                        }
-                    } else {
-                        JOptionPane.showMessageDialog(this,
-                                String.format("Address %s does not match imported private key", importedAddress),
-                                "Error", JOptionPane.ERROR_MESSAGE);
-                    }
-                    //
-                    // Reset for the next key
-                    //
-                    foundKey = false;
-                    importedLabel = "";
-                    importedTime = "";
-                    importedAddress = "";
-                    encodedPrivateKey = "";
-                }
-            }
-            //
-            // Broadcast the modified bloom filter
-            //
-            if (filterChanged) {
-                Message filterMsg = FilterLoadMessage.buildFilterLoadMessage(null, Parameters.bloomFilter);
-                Parameters.networkHandler.broadcastMessage(filterMsg);
+        ProgressMonitor monitor = new ProgressMonitor(this, "Importing keys", null, 0, 100);
+        Parameters.walletService.importKeys(keyFile, (completed, total) -> setProgress(monitor, completed, total))
+                .whenCompleteAsync((mismatches, exc) -> {
+            monitor.close();
+            if (exc != null) {
+                Main.logException("Unable to process key file", WalletService.getCause(exc));
+                return;
             }
-        }
-        JOptionPane.showMessageDialog(this, "Keys imported from BitcoinWallet.keys", "Keys Imported",
-                                      JOptionPane.INFORMATION_MESSAGE);
+            for (String address : mismatches)
+                JOptionPane.showMessageDialog(this,
+                        String.format("Address %s does not match imported private key", address),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(this, "Keys imported from BitcoinWallet.keys", "Keys Imported",
+                                          JOptionPane.INFORMATION_MESSAGE);
+        }, WalletService.GUI_EXECUTOR);
     }
-    
+
+    /**
+     * Update a progress monitor
+     *
+     * @param       monitor         Progress monitor
+     * @param       completed       Number of steps completed
+     * @param       total           Total number of steps
+     */
+    private void setProgress(ProgressMonitor monitor, int completed, int total) {
+        if (total > 0)
+            monitor.setProgress((int)((long)completed*100/total));
+    }
+
     /**
      * Import a private key from the terminal
      * 
      * @throws      AddressFormatException      Address format is not valid
-     * @throws      WalletException             Unable to update database
      */
-    private void importPrivateKey() throws AddressFormatException, WalletException {
+    private void importPrivateKey() throws AddressFormatException {
         String encodedPrivateKey;
         String label;
         Date keyDate;
@@ -587,57 +399,32 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
         ECKey key = dumpedKey.getKey();
         key.setLabel(label);
         key.setCreationTime(keyDate.getTime()/1000);
-        if (!Parameters.keys.contains(key)) {
-            Parameters.wallet.storeKey(key);
-            synchronized(Parameters.lock) {
-                boolean added = false;
-                for (int i=0; i<Parameters.keys.size(); i++) {
-                    if (Parameters.keys.get(i).getLabel().compareToIgnoreCase(label) > 0) {
-                        Parameters.keys.add(i, key);
-                        added = true;
-                        break;
-                    }
-                }
-                if (!added)
-                    Parameters.keys.add(key);
-                Parameters.bloomFilter.insert(key.getPubKey());
-                Parameters.bloomFilter.insert(Script.getRedeemScript(key.getPubKeyHash(), false));
-                Parameters.bloomFilter.insert(key.getPubKeyHash());
-                Parameters.bloomFilter.insert(key.getScriptHash());
-                Message filterMsg = FilterLoadMessage.buildFilterLoadMessage(null, Parameters.bloomFilter);
-                Parameters.networkHandler.broadcastMessage(filterMsg);
-            }
-        }
-        JOptionPane.showMessageDialog(this, "'" + label + "' imported", "Key Imported", JOptionPane.INFORMATION_MESSAGE);
+        String importedLabel = label;
+        Parameters.walletService.importKey(key).whenCompleteAsync((added, exc) -> {
+            if (exc != null)
+                Main.logException("Unable to perform database operation", WalletService.getCause(exc));
+            else
+                JOptionPane.showMessageDialog(this, "'" + importedLabel + "' imported", "Key Imported",
+                                              JOptionPane.INFORMATION_MESSAGE);
+        }, WalletService.GUI_EXECUTOR);
     }
 
     /**
-     * Rescan the block chain
-     *
-     * @throws      WalletException     Unable to scan block chain
+     * Rescan the block chain.  The wallet service deletes the existing transactions and
+     * starts the rescan.
      */
-    private void rescan() throws WalletException {
-        //
-        // Get the earliest key creation time
-        //
-        long creationTime = System.currentTimeMillis()/1000;
-        for (ECKey key : Parameters.keys)
-            creationTime = Math.min(creationTime, key.getCreationTime());
+    private void rescan() {
         //
         // Indicate we are synchronizing with the network
         //
         synchronizingTitle = true;
         rescanChain = true;
         setTitle("Bitcoin Wallet - Synchronizing with network");
-        //
-        // Delete existing transactions
-        //
-        Parameters.wallet.deleteTransactions();
-        transactionPanel.walletChanged();
-        //
-        // Initiate a block chain rescan
-        //
-        Parameters.databaseHandler.rescanChain(creationTime);
+        Parameters.walletService.rescan().whenCompleteAsync((result, exc) -> {
+            if (exc != null)
+                Main.logException("Unable to scan block chain", WalletService.getCause(exc));
+            transactionPanel.walletChanged();
+        }, WalletService.GUI_EXECUTOR);
     }
 
     /**
@@ -660,6 +447,9 @@ public final class MainWindow extends JFrame implements ActionListener, Connecti
         //
         // All done
         //
+        log.info(String.format("Notification bus: %d events, %d merged, %d dropped, %d batches",
+                               notificationBus.getEventCount(), notificationBus.getMergedCount(),
+                               notificationBus.getDroppedCount(), notificationBus.getBatchCount()));
         Main.shutdown();
     }
 
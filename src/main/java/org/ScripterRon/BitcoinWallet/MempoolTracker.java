@@ -0,0 +1,306 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.TransactionInput;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The mempool tracker holds the unconfirmed wallet transactions.  The transactions are
+ * indexed by transaction hash and by the outputs spent by each transaction.  A transaction
+ * is removed when it is confirmed or when it expires.  The number of transactions is
+ * limited and the oldest transaction is removed when the limit is reached.
+ *
+ * The tracker is used by the database handler thread and by the GUI thread when the
+ * user sends coins, so the methods are synchronized.
+ */
+public class MempoolTracker {
+
+    /** Maximum number of unconfirmed transactions */
+    private static final int MAX_TRANSACTIONS = 1000;
+
+    /** Unconfirmed transaction expiration time (milliseconds) */
+    private static final long TX_EXPIRY = 14*24*60*60*1000L;
+
+    /** Unconfirmed transactions in order of arrival */
+    private final Map<Sha256Hash, Entry> txMap = new LinkedHashMap<>();
+
+    /** Spending transaction indexed by the spent output */
+    private final Map<TransactionID, Sha256Hash> spentMap = new HashMap<>();
+
+    /**
+     * Creates the mempool tracker
+     */
+    public MempoolTracker() {
+    }
+
+    /**
+     * Loads the unconfirmed send transactions from the wallet database.  This is done
+     * at startup so we continue to track the transactions we sent before the wallet
+     * was stopped.
+     *
+     * @throws      WalletException     Unable to get the send transactions
+     */
+    public void load() throws WalletException {
+        for (SendTransaction sendTx : Parameters.wallet.getSendTxList()) {
+            if (sendTx.getBlockHash() == null)
+                add(sendTx.getTransaction(), sendTx.getTxTime()*1000);
+        }
+        log.info(String.format("Tracking %d unconfirmed transactions", size()));
+    }
+
+    /**
+     * Returns the number of unconfirmed transactions
+     *
+     * @return                      Transaction count
+     */
+    public synchronized int size() {
+        return txMap.size();
+    }
+
+    /**
+     * Checks if a transaction is being tracked
+     *
+     * @param       txHash          Transaction hash
+     * @return                      TRUE if the transaction is unconfirmed
+     */
+    public synchronized boolean contains(Sha256Hash txHash) {
+        return txMap.containsKey(txHash);
+    }
+
+    /**
+     * Returns an unconfirmed transaction
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Transaction or null if the transaction is not being tracked
+     */
+    public synchronized Transaction getTransaction(Sha256Hash txHash) {
+        Entry entry = txMap.get(txHash);
+        return (entry != null ? entry.getTransaction() : null);
+    }
+
+    /**
+     * Returns the unconfirmed transactions in order of arrival
+     *
+     * @return                      Transaction list
+     */
+    public synchronized List<Transaction> getTransactions() {
+        expire(System.currentTimeMillis());
+        List<Transaction> txList = new ArrayList<>(txMap.size());
+        txMap.values().forEach((entry) -> txList.add(entry.getTransaction()));
+        return txList;
+    }
+
+    /**
+     * Returns the time an unconfirmed transaction was received
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Receive time (milliseconds) or 0 if the transaction is not being tracked
+     */
+    public synchronized long getTxTime(Sha256Hash txHash) {
+        Entry entry = txMap.get(txHash);
+        return (entry != null ? entry.getTime() : 0);
+    }
+
+    /**
+     * Returns the unconfirmed transaction spending an output
+     *
+     * @param       outPoint        Transaction output
+     * @return                      Spending transaction hash or null
+     */
+    public synchronized Sha256Hash getSpender(TransactionID outPoint) {
+        return spentMap.get(outPoint);
+    }
+
+    /**
+     * Adds an unconfirmed transaction received now
+     *
+     * @param       tx              Transaction
+     * @return                      TRUE if the transaction was added
+     */
+    public boolean add(Transaction tx) {
+        return add(tx, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds an unconfirmed transaction.  Expired transactions are removed and the oldest
+     * transaction is removed if the tracker is full.
+     *
+     * @param       tx              Transaction
+     * @param       txTime          Time the transaction was received (milliseconds)
+     * @return                      TRUE if the transaction was added
+     */
+    public synchronized boolean add(Transaction tx, long txTime) {
+        Sha256Hash txHash = tx.getHash();
+        long currentTime = System.currentTimeMillis();
+        if (txMap.containsKey(txHash) || currentTime-txTime >= TX_EXPIRY)
+            return false;
+        expire(currentTime);
+        if (txMap.size() >= MAX_TRANSACTIONS)
+            removeEntry(txMap.values().iterator().next());
+        txMap.put(txHash, new Entry(tx, txTime));
+        if (!tx.isCoinBase()) {
+            for (TransactionInput txInput : tx.getInputs()) {
+                OutPoint outPoint = txInput.getOutPoint();
+                spentMap.put(new TransactionID(outPoint.getHash(), outPoint.getIndex()), txHash);
+            }
+        }
+        log.debug(String.format("Unconfirmed transaction added to tracker (%d transactions)\n  Tx %s",
+                                txMap.size(), txHash));
+        return true;
+    }
+
+    /**
+     * Removes a transaction.  This is done when the transaction is confirmed.
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Removed transaction or null if the transaction was not tracked
+     */
+    public synchronized Transaction remove(Sha256Hash txHash) {
+        Entry entry = txMap.get(txHash);
+        if (entry == null)
+            return null;
+        removeEntry(entry);
+        return entry.getTransaction();
+    }
+
+    /**
+     * Returns the unconfirmed transactions that spend the same outputs as a transaction
+     *
+     * @param       tx              Transaction
+     * @return                      List of conflicting transaction hashes
+     */
+    public synchronized List<Sha256Hash> getConflicts(Transaction tx) {
+        List<Sha256Hash> conflicts = new ArrayList<>();
+        if (tx.isCoinBase())
+            return conflicts;
+        for (TransactionInput txInput : tx.getInputs()) {
+            OutPoint outPoint = txInput.getOutPoint();
+            Sha256Hash spender = spentMap.get(new TransactionID(outPoint.getHash(), outPoint.getIndex()));
+            if (spender != null && !spender.equals(tx.getHash()) && !conflicts.contains(spender))
+                conflicts.add(spender);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Removes the unconfirmed transactions that spend the same outputs as a confirmed
+     * transaction.  These transactions can never be confirmed.
+     *
+     * @param       tx              Confirmed transaction
+     * @return                      List of removed transaction hashes
+     */
+    public synchronized List<Sha256Hash> removeConflicts(Transaction tx) {
+        List<Sha256Hash> conflicts = getConflicts(tx);
+        conflicts.forEach((txHash) -> removeEntry(txMap.get(txHash)));
+        return conflicts;
+    }
+
+    /**
+     * Removes expired transactions
+     *
+     * @param       currentTime     Current time (milliseconds)
+     */
+    private void expire(long currentTime) {
+        Iterator<Entry> it = txMap.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (currentTime-entry.getTime() < TX_EXPIRY)
+                continue;
+            it.remove();
+            removeIndex(entry);
+            log.info(String.format("Unconfirmed transaction expired\n  Tx %s", entry.getTransaction().getHash()));
+        }
+    }
+
+    /**
+     * Removes a transaction and its spent outputs
+     *
+     * @param       entry           Transaction entry
+     */
+    private void removeEntry(Entry entry) {
+        txMap.remove(entry.getTransaction().getHash());
+        removeIndex(entry);
+    }
+
+    /**
+     * Removes the spent outputs for a transaction
+     *
+     * @param       entry           Transaction entry
+     */
+    private void removeIndex(Entry entry) {
+        Transaction tx = entry.getTransaction();
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput txInput : tx.getInputs()) {
+            OutPoint outPoint = txInput.getOutPoint();
+            TransactionID spentID = new TransactionID(outPoint.getHash(), outPoint.getIndex());
+            if (tx.getHash().equals(spentMap.get(spentID)))
+                spentMap.remove(spentID);
+        }
+    }
+
+    /**
+     * An unconfirmed transaction
+     */
+    private static class Entry {
+
+        /** Transaction */
+        private final Transaction tx;
+
+        /** Time the transaction was received */
+        private final long time;
+
+        /**
+         * Creates a transaction entry
+         *
+         * @param       tx              Transaction
+         * @param       time            Time received (milliseconds)
+         */
+        private Entry(Transaction tx, long time) {
+            this.tx = tx;
+            this.time = time;
+        }
+
+        /**
+         * Returns the transaction
+         *
+         * @return                      Transaction
+         */
+        private Transaction getTransaction() {
+            return tx;
+        }
+
+        /**
+         * Returns the time the transaction was received
+         *
+         * @return                      Time in milliseconds
+         */
+        private long getTime() {
+            return time;
+        }
+    }
+}
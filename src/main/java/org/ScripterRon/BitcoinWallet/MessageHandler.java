@@ -94,7 +94,8 @@ public class MessageHandler implements Runnable {
         PeerAddress address = peer.getAddress();
         int reasonCode = 0;
         try {
-            MessageProcessor.processMessage(msg, Parameters.messageListener);
+            if (!Parameters.compactFilters || !Parameters.compactFilterHandler.processMessage(msg))
+                MessageProcessor.processMessage(msg, Parameters.messageListener);
             msg.setBuffer(null);
         } catch (EOFException exc) {
             MessageHeader.MessageCommand cmdOp = msg.getCommand();
@@ -16,9 +16,7 @@
 package org.ScripterRon.BitcoinWallet;
 import static org.ScripterRon.BitcoinWallet.Main.log;
 
-import org.ScripterRon.BitcoinCore.FilterLoadMessage;
 import org.ScripterRon.BitcoinCore.GetAddressMessage;
-import org.ScripterRon.BitcoinCore.GetBlocksMessage;
 import org.ScripterRon.BitcoinCore.GetDataMessage;
 import org.ScripterRon.BitcoinCore.GetHeadersMessage;
 import org.ScripterRon.BitcoinCore.InventoryItem;
@@ -40,12 +38,13 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.stream.Collectors;
 
 /**
  * The network handler creates outbound connections and adds them to the
@@ -62,9 +61,45 @@ import java.util.TimerTask;
  */
 public class NetworkHandler implements Runnable {
 
-    /** Number of outbound connections */
+    /** Default number of outbound connections */
     private static final int MAX_OUTBOUND_CONNECTIONS = 4;
 
+    /** Interval between peer address list updates (milliseconds) */
+    private static final long PEER_UPDATE_INTERVAL = 30*60*1000;
+
+    /** Time allowed to complete the version handshake (milliseconds) */
+    private static final long HANDSHAKE_TIMEOUT = 60*1000;
+
+    /** Send a 'ping' after the peer has been inactive for this long (milliseconds) */
+    private static final long PING_INTERVAL = 5*60*1000;
+
+    /** Close the connection after the peer has been inactive for this long (milliseconds) */
+    private static final long INACTIVITY_TIMEOUT = 10*60*1000;
+
+    /** Initial delay between outbound connection attempts (milliseconds) */
+    private static final long CONNECT_DELAY = 1000;
+
+    /** Maximum delay between outbound connection attempts (milliseconds) */
+    private static final long MAX_CONNECT_DELAY = 60*1000;
+
+    /** Time to wait for a 'getdata' response (milliseconds) */
+    private static final long REQUEST_TIMEOUT = 30*1000;
+
+    /** Time to wait for a 'getheaders' or 'getblocks' response (milliseconds) */
+    private static final long SYNC_TIMEOUT = 60*1000;
+
+    /** Interval between stalled peer checks (milliseconds) */
+    private static final long STALL_CHECK_INTERVAL = 15*1000;
+
+    /** Time a request must be outstanding before the peer can be considered stalled (milliseconds) */
+    private static final long STALL_GRACE_TIME = 10*1000;
+
+    /** A peer is stalled if its receive rate falls below this fraction of the median rate */
+    private static final double STALL_FRACTION = 0.25;
+
+    /** Time before we will connect again to a stalled peer (milliseconds) */
+    private static final long STALL_BACKOFF = 10*60*1000;
+
     /** Network seed nodes */
     private static final String[] dnsSeeds = new String[] {
             "seed.bitcoin.sipa.be",         // Pieter Wuille
@@ -75,10 +110,22 @@ public class NetworkHandler implements Runnable {
     /** Network handler thread */
     private Thread handlerThread;
 
-    /** Network timer */
-    private Timer timer;
+    /** Network timer wheel */
+    private final TimerWheel timerWheel = new TimerWheel();
+
+    /** Pending outbound connection timeout */
+    private TimerWheel.Timeout connectTimeout;
+
+    /** Number of consecutive failed outbound connections */
+    private int connectFailures;
+
+    /** Handshake timeouts */
+    private final Map<Peer, TimerWheel.Timeout> handshakeTimeouts = new HashMap<>();
+
+    /** Peer activity timeouts */
+    private final Map<Peer, TimerWheel.Timeout> activityTimeouts = new HashMap<>();
 
-    /** Number of outbound connections */
+    /** Minimum number of outbound connections */
     private int outboundCount;
 
     /** Network selector */
@@ -90,14 +137,17 @@ public class NetworkHandler implements Runnable {
     /** Connection listeners */
     private final List<ConnectionListener> listeners = new LinkedList<>();
 
-    /** Time of Last peer database update */
-    private long lastPeerUpdateTime;
+    /** Peer statistics */
+    private final Map<Peer, PeerStats> peerStats = new HashMap<>();
 
-    /** Time of last outbound connection attempt */
-    private long lastOutboundConnectTime;
+    /** Stalled peer addresses and the time when the back-off ends */
+    private final Map<PeerAddress, Long> stalledAddresses = new HashMap<>();
 
-    /** Last connection check time */
-    private long lastConnectionCheckTime;
+    /** Shard requests waiting for a peer that has loaded the shard filter */
+    private final List<PeerRequest> deferredRequests = new LinkedList<>();
+
+    /** Time of Last peer database update */
+    private long lastPeerUpdateTime;
 
     /** Network shutdown */
     private boolean networkShutdown = false;
@@ -137,10 +187,8 @@ public class NetworkHandler implements Runnable {
      */
     @Override
     public void run() {
-        log.info(String.format("Network handler started: Max connections %d", MAX_OUTBOUND_CONNECTIONS));
+        log.info(String.format("Network handler started: Max connections %d", getMaxOutbound()));
         lastPeerUpdateTime = System.currentTimeMillis()/1000;
-        lastOutboundConnectTime = lastPeerUpdateTime;
-        lastConnectionCheckTime = lastPeerUpdateTime;
         handlerThread = Thread.currentThread();
         //
         // Get the peer nodes DNS discovery if we are not using static connections
@@ -150,20 +198,16 @@ public class NetworkHandler implements Runnable {
         //
         // Create the initial outbound connections
         //
-        while (!networkShutdown && outboundCount < MAX_OUTBOUND_CONNECTIONS/2 &&
+        while (!networkShutdown && outboundCount < getMaxOutbound()/2 &&
                                    connections.size() < Parameters.peerAddresses.size())
             if (!connectOutbound())
                 break;
         //
-        // Create a timer to wake us up every 2 minutes
+        // Schedule the periodic network tasks
         //
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                wakeup();
-            }
-        }, 2*60*1000, 2*60*1000);
+        timerWheel.schedule(() -> updatePeerAddresses(), PEER_UPDATE_INTERVAL);
+        timerWheel.schedule(() -> checkStalledPeers(), STALL_CHECK_INTERVAL);
+        scheduleConnect();
         //
         // Process network events until shutdown() is called
         //
@@ -176,7 +220,6 @@ public class NetworkHandler implements Runnable {
         //
         // Stopping
         //
-        timer.cancel();
         log.info("Network handler stopped");
     }
 
@@ -195,7 +238,10 @@ public class NetworkHandler implements Runnable {
             // a key after the channel is closed will cause an exception to be
             // thrown, so it is best to test for just one event at a time.
             //
-            count = networkSelector.select();
+            // We will wait until the next timeout expires if there are no
+            // network events.
+            //
+            count = networkSelector.select(timerWheel.getNextDelay(System.currentTimeMillis()));
             if (count > 0 && !networkShutdown) {
                 Set<SelectionKey> selectedKeys = networkSelector.selectedKeys();
                 Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
@@ -220,80 +266,16 @@ public class NetworkHandler implements Runnable {
                 if (!Parameters.completedMessages.isEmpty())
                     processCompletedMessages();
                 //
-                // Process peer requests
-                //
-                if (!Parameters.pendingRequests.isEmpty() || !Parameters.processedRequests.isEmpty())
-                    processRequests();
-                //
-                // Remove peer addresses that we haven't seen in the last 30 minutes
-                //
-                long currentTime = System.currentTimeMillis()/1000;
-                if (currentTime > lastPeerUpdateTime + (30*60)) {
-                    synchronized(Parameters.lock) {
-                        Iterator<PeerAddress> iterator = Parameters.peerAddresses.iterator();
-                        while (iterator.hasNext()) {
-                            PeerAddress address = iterator.next();
-                            if (address.isStatic())
-                                continue;
-                            long timestamp = address.getTimeStamp();
-                            if (timestamp < lastPeerUpdateTime) {
-                                Parameters.peerMap.remove(address);
-                                iterator.remove();
-                            }
-                        }
-                    }
-                    lastPeerUpdateTime = currentTime;
-                }
+                // Run expired timeouts
                 //
-                // Check for inactive peer connections every 5 minutes
+                timerWheel.advance(System.currentTimeMillis());
                 //
-                // Close the connection if the peer hasn't completed the version handshake within 5 minutes.
-                // Send a 'ping' message if the peer has been inactive for 5 minutes.
-                // Close the connection if the peer has been inactive for 10 minutes.
-                //
-                if (currentTime > lastConnectionCheckTime+5*60) {
-                    lastConnectionCheckTime = currentTime;
-                    List<Peer> inactiveList = new LinkedList<>();
-                    connections.forEach((chkPeer) -> {
-                        PeerAddress chkAddress = chkPeer.getAddress();
-                        if (chkAddress.getTimeStamp() < currentTime-10*60) {
-                            inactiveList.add(chkPeer);
-                        } else if (chkAddress.getTimeStamp() < currentTime-5*60) {
-                            if (chkPeer.getVersionCount() < 2) {
-                                inactiveList.add(chkPeer);
-                            } else if (!chkPeer.wasPingSent()) {
-                                chkPeer.setPing(true);
-                                Message chkMsg = PingMessage.buildPingMessage(chkPeer);
-                                synchronized(Parameters.lock) {
-                                    chkPeer.getOutputList().add(chkMsg);
-                                    SelectionKey chkKey = chkPeer.getKey();
-                                    chkKey.interestOps(chkKey.interestOps() | SelectionKey.OP_WRITE);
-                                    log.info(String.format("'ping' message sent to %s", chkAddress.toString()));
-                                }
-                            }
-                        }
-                    });
-                    inactiveList.forEach((chkPeer) -> {
-                        log.info(String.format("Closing connection due to inactivity: %s",
-                                               chkPeer.getAddress().toString()));
-                        closeConnection(chkPeer);
-                        synchronized(Parameters.lock) {
-                            PeerAddress chkAddress = chkPeer.getAddress();
-                            Parameters.peerMap.remove(chkAddress);
-                            Parameters.peerAddresses.remove(chkAddress);
-                        }
-                    });
-                }
-                //
-                // Create a new outbound connection if we have less than the
-                // maximum number and we haven't tried for 60 seconds
+                // Process peer requests
                 //
-                if (currentTime > lastOutboundConnectTime+60) {
-                    lastOutboundConnectTime = currentTime;
-                    if (outboundCount < MAX_OUTBOUND_CONNECTIONS &&
-                                        connections.size() < Parameters.peerAddresses.size())
-                        connectOutbound();
-                }
+                if (!deferredRequests.isEmpty())
+                    releaseDeferredRequests();
+                if (!Parameters.pendingRequests.isEmpty())
+                    processRequests();
             }
         } catch (ClosedChannelException exc) {
             log.error("Network channel closed unexpectedly", exc);
@@ -384,18 +366,96 @@ public class NetworkHandler implements Runnable {
      */
     public void getBlocks() {
         //
-        // Always issue a 'getheaders' message if this is the initial download since all
-        // of the requested headers are delivered in a single 'headers' message.  Otherwise,
-        // issue a 'getblocks' message if we haven't issued one recently.
+        // Always issue a 'getheaders' message if we are downloading the headers since the
+        // 'headers' response contains the next set of headers.  Otherwise, issue a
+        // 'getheaders' message if we haven't issued one recently.
         //
         if (!Parameters.loadingChain && Parameters.wallet.getChainHeight() < getBlocksHeight+50)
             return;
+        sendGetBlocks();
+    }
+
+    /**
+     * Sends a 'getheaders' message to a peer.  This is used when we are using compact
+     * block filters and need the headers for a new block.
+     *
+     * @param       peer            Peer or null to select a random peer
+     */
+    public void getHeaders(Peer peer) {
+        Peer headersPeer = peer;
+        synchronized(Parameters.lock) {
+            if (headersPeer == null) {
+                List<Peer> peerList = connections.stream()
+                        .filter((chkPeer) -> (chkPeer.getVersionCount()>2))
+                        .collect(Collectors.toList());
+                if (peerList.isEmpty())
+                    return;
+                headersPeer = peerList.get((int)((double)peerList.size() * Math.random()));
+            }
+        }
+        Message headersMsg = buildGetBlocksMessage(headersPeer);
+        synchronized(Parameters.lock) {
+            headersPeer.getOutputList().add(headersMsg);
+            SelectionKey key = headersPeer.getKey();
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            syncRequestSent(headersPeer);
+        }
+        log.info(String.format("'getheaders' message sent to %s", headersPeer.getAddress()));
+        wakeup();
+    }
+
+    /**
+     * Returns the peers that have completed the connection handshake
+     *
+     * @return                      List of connected peers
+     */
+    public List<Peer> getConnections() {
+        synchronized(Parameters.lock) {
+            return connections.stream()
+                    .filter((peer) -> (peer.getVersionCount()>2))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Checks if the user configured static connections
+     *
+     * @return                      TRUE if only static connections are used
+     */
+    public boolean isStaticConnections() {
+        return staticConnections;
+    }
+
+    /**
+     * Schedules a task to run on the network handler thread
+     *
+     * @param       task            Task to run
+     * @param       delay           Delay in milliseconds
+     * @return                      Timeout that can be used to cancel the task
+     */
+    public TimerWheel.Timeout schedule(Runnable task, long delay) {
+        TimerWheel.Timeout timeout = timerWheel.schedule(task, delay);
+        wakeup();
+        return timeout;
+    }
+
+    /**
+     * Sends a 'getblocks' or 'getheaders' message to a random peer that is ahead of us.
+     * Nothing is sent if there is no such peer (for example, when the only connection
+     * has just been closed).  The sync will then be restarted when the next connection
+     * completes its handshake.
+     */
+    private void sendGetBlocks() {
         //
         // Pick a connected peer
         //
         Peer peer;
         boolean peerFound = false;
         synchronized(Parameters.lock) {
+            if (connections.isEmpty()) {
+                getBlocksHeight = -1;
+                return;
+            }
             int index = (int)((double)connections.size() * Math.random());
             peer = connections.get(index);
             if (peer.getVersionCount()>2 && peer.getHeight()>Parameters.wallet.getChainHeight()) {
@@ -420,7 +480,7 @@ public class NetworkHandler implements Runnable {
             }
         }
         //
-        // Send a 'getblocks' or 'getheaders' message to the selected peer
+        // Send a 'getheaders' message to the selected peer
         //
         if (peerFound) {
             Message blocksMsg = buildGetBlocksMessage(peer);
@@ -428,15 +488,39 @@ public class NetworkHandler implements Runnable {
                 peer.getOutputList().add(blocksMsg);
                 SelectionKey key = peer.getKey();
                 key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                syncRequestSent(peer);
             }
-            log.info(String.format("'%s' message sent to %s",
-                    blocksMsg.getCommand()==MessageHeader.MessageCommand.GETBLOCKS?"getblocks":"getheaders",
-                    peer.getAddress()));
+            log.info(String.format("'getheaders' message sent to %s", peer.getAddress()));
             getBlocksHeight = Parameters.wallet.getChainHeight();
+        } else {
+            getBlocksHeight = -1;
         }
         wakeup();
     }
 
+    /**
+     * Checks if we can connect to a peer address.  The address must not be connected,
+     * it must be a static address if we are using static connections and it must not
+     * be in the back-off period for a stalled peer.  Static addresses are never backed off.
+     *
+     * This method must be called while holding Parameters.lock
+     *
+     * @param       address         Peer address
+     * @param       currentTime     Current time (milliseconds)
+     * @return                      TRUE if we can connect to the address
+     */
+    private boolean isAvailable(PeerAddress address, long currentTime) {
+        if (address.isConnected() || (staticConnections && !address.isStatic()))
+            return false;
+        Long backoffTime = stalledAddresses.get(address);
+        if (backoffTime == null)
+            return true;
+        if (backoffTime > currentTime)
+            return false;
+        stalledAddresses.remove(address);
+        return true;
+    }
+
     /**
      * Creates a new outbound connection
      *
@@ -452,14 +536,15 @@ public class NetworkHandler implements Runnable {
         //
         PeerAddress address;
         boolean addressFound = true;
+        long currentTime = System.currentTimeMillis();
         synchronized(Parameters.lock) {
             int index = (int)((double)Parameters.peerAddresses.size() * Math.random());
             address = Parameters.peerAddresses.get(index);
-            if (address.isConnected() || (staticConnections && !address.isStatic())) {
+            if (!isAvailable(address, currentTime)) {
                 addressFound = false;
                 for (int i=index+1; i<Parameters.peerAddresses.size(); i++) {
                     address = Parameters.peerAddresses.get(i);
-                    if (!address.isConnected() && (!staticConnections || address.isStatic())) {
+                    if (isAvailable(address, currentTime)) {
                         addressFound = true;
                         break;
                     }
@@ -468,7 +553,7 @@ public class NetworkHandler implements Runnable {
             if (!addressFound) {
                 for (int i=0; i<index; i++) {
                     address = Parameters.peerAddresses.get(i);
-                    if (!address.isConnected() && (!staticConnections || address.isStatic())) {
+                    if (isAvailable(address, currentTime)) {
                         addressFound = true;
                         break;
                     }
@@ -494,7 +579,9 @@ public class NetworkHandler implements Runnable {
             outboundCount++;
             synchronized(Parameters.lock) {
                 connections.add(peer);
+                peerStats.put(peer, new PeerStats(peer));
             }
+            handshakeTimeouts.put(peer, timerWheel.schedule(() -> handshakeTimeout(peer), HANDSHAKE_TIMEOUT));
         } catch (IOException exc) {
             log.error(String.format("Unable to open connection to %s", address.toString()), exc);
             networkShutdown = true;
@@ -573,6 +660,9 @@ public class NetworkHandler implements Runnable {
                             closeConnection(peer);
                         break;
                     }
+                    PeerStats stats = peerStats.get(peer);
+                    if (stats != null)
+                        stats.addBytes(count);
                 }
                 //
                 // Process the message header
@@ -691,10 +781,17 @@ public class NetworkHandler implements Runnable {
             peer.setOutputBuffer(null);
             peer.getOutputList().clear();
             outboundCount--;
+            TimerWheel.Timeout timeout = handshakeTimeouts.remove(peer);
+            if (timeout != null)
+                timeout.cancel();
+            timeout = activityTimeouts.remove(peer);
+            if (timeout != null)
+                timeout.cancel();
             address.setConnected(false);
             peer.setConnected(false);
             synchronized(Parameters.lock) {
                 connections.remove(peer);
+                peerStats.remove(peer);
             }
             //
             // Close the channel
@@ -706,8 +803,14 @@ public class NetworkHandler implements Runnable {
             //
             if (peer.getVersionCount() > 2) {
                 listeners.forEach((listener) -> listener.connectionEnded(peer));
+            } else {
+                connectFailures++;
             }
             log.info(String.format("Connection closed with peer %s", address.toString()));
+            //
+            // Replace the connection
+            //
+            scheduleConnect();
         } catch (IOException exc) {
             log.error(String.format("Error while closing socket channel with %s", address.toString()), exc);
         }
@@ -752,6 +855,11 @@ public class NetworkHandler implements Runnable {
             if (peer.getVersionCount() == 2) {
                 peer.incVersionCount();
                 log.info(String.format("Connection handshake completed with %s", address.toString()));
+                connectFailures = 0;
+                TimerWheel.Timeout timeout = handshakeTimeouts.remove(peer);
+                if (timeout != null)
+                    timeout.cancel();
+                activityTimeouts.put(peer, timerWheel.schedule(() -> checkActivity(peer), PING_INTERVAL));
                 Parameters.networkChainHeight = Math.max(Parameters.networkChainHeight, peer.getHeight());
                 //
                 // Send a 'getaddr' message to exchange peer address lists.
@@ -767,27 +875,55 @@ public class NetworkHandler implements Runnable {
                     log.info(String.format("'getaddr' message sent to %s", address.toString()));
                 }
                 //
-                // Load our bloom filter
+                // Load our bloom filter unless we are using compact block filters
                 //
-                Message filterMsg = FilterLoadMessage.buildFilterLoadMessage(peer, Parameters.bloomFilter);
-                synchronized(Parameters.lock) {
-                    peer.getOutputList().add(filterMsg);
-                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                if (!Parameters.compactFilters) {
+                    Message filterMsg = Parameters.filterManager.buildFilterLoadMessage(peer);
+                    synchronized(Parameters.lock) {
+                        peer.getOutputList().add(filterMsg);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    log.info(String.format("'filterload' message sent to %s", address.toString()));
+                    //
+                    // Ask the peer to announce the transactions in its memory pool that match
+                    // our filter (BIP 35).  This allows us to detect unconfirmed transactions
+                    // that were broadcast while we were not connected.
+                    //
+                    Message mempoolMsg = new Message(MessageHeader.buildMessage("mempool", new byte[0]),
+                                                     peer, null);
+                    synchronized(Parameters.lock) {
+                        peer.getOutputList().add(mempoolMsg);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    log.info(String.format("'mempool' message sent to %s", address.toString()));
                 }
-                log.info(String.format("'filterload' message sent to %s", address.toString()));
                 //
-                // Send a 'getblocks' or 'getheaders' message if we are down-level and haven't sent one yet
+                // Ask the peer to announce new blocks using 'headers' instead of 'inv' (BIP 130).
+                // This allows us to add the block to the chain without waiting for the merkle block.
+                //
+                if (peer.getVersion() >= Parameters.SENDHEADERS_VERSION) {
+                    Message headersMsg = new Message(MessageHeader.buildMessage("sendheaders", new byte[0]),
+                                                     peer, null);
+                    synchronized(Parameters.lock) {
+                        peer.getOutputList().add(headersMsg);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    log.info(String.format("'sendheaders' message sent to %s", address.toString()));
+                }
+                //
+                // Send a 'getheaders' message if we are down-level and haven't sent one yet.  We
+                // download the headers to the network chain height before processing new block
+                // announcements.  The database handler requests the filtered blocks as the
+                // headers are added to the chain.
                 //
                 if (getBlocksHeight<0 && Parameters.wallet.getChainHeight()<peer.getHeight()) {
-                    if (Parameters.wallet.getChainHeight() == 0)
-                        Parameters.loadingChain = true;
+                    Parameters.loadingChain = true;
                     Message blocksMsg = buildGetBlocksMessage(peer);
-                    log.info(String.format("'%s' message sent to %s",
-                            blocksMsg.getCommand()==MessageHeader.MessageCommand.GETBLOCKS?"getblocks":"getheaders",
-                            address));
+                    log.info(String.format("'getheaders' message sent to %s", address));
                     synchronized(Parameters.lock) {
                         peer.getOutputList().add(blocksMsg);
                         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        syncRequestSent(peer);
                     }
                     getBlocksHeight = Parameters.wallet.getChainHeight();
                 }
@@ -800,7 +936,7 @@ public class NetworkHandler implements Runnable {
     }
 
     /**
-     * Build the 'getblocks' or 'getheaders' message
+     * Build the 'getheaders' message
      *
      * @param       peer            The destination peer
      * @return                      Message to sent to peer
@@ -840,58 +976,77 @@ public class NetworkHandler implements Runnable {
             //
             invList.add(Parameters.wallet.getChainHead());
         }
-        return Parameters.loadingChain ?
-                GetHeadersMessage.buildGetHeadersMessage(peer, invList, Sha256Hash.ZERO_HASH) :
-                GetBlocksMessage.buildGetBlocksMessage(peer, invList, Sha256Hash.ZERO_HASH);
+        return GetHeadersMessage.buildGetHeadersMessage(peer, invList, Sha256Hash.ZERO_HASH);
+    }
+
+    /**
+     * Checks if a peer has loaded the bloom filter shard for a request.  A targeted
+     * request must be processed by the origin peer and a merkle block request can not
+     * be processed by a peer that has loaded a temporary filter for a key rescan.
+     *
+     * @param       request         Peer request
+     * @param       peer            Peer
+     * @return                      TRUE if the peer can process the request
+     */
+    private boolean isShardPeer(PeerRequest request, Peer peer) {
+        if (request.isTargeted())
+            return (peer == request.getOrigin());
+        if (request.getType() == InventoryItem.INV_FILTERED_BLOCK && Parameters.filterManager.isRescanPeer(peer))
+            return false;
+        int shard = request.getShard();
+        return (shard < 0 || Parameters.filterManager.getPeerShard(peer) == shard);
+    }
+
+    /**
+     * Returns the maximum number of outbound connections.  We need at least one
+     * connection for each bloom filter shard.
+     *
+     * @return                      Maximum number of outbound connections
+     */
+    private int getMaxOutbound() {
+        return Math.min(Math.max(MAX_OUTBOUND_CONNECTIONS, Parameters.filterManager.getShardCount()),
+                        BloomFilterManager.MAX_SHARDS);
     }
 
     /**
      * Process peer requests
      */
     private void processRequests() {
-        long currentTime = System.currentTimeMillis()/1000;
+        long currentTime = System.currentTimeMillis();
         PeerRequest request;
         Peer peer;
         //
-        // Check for request timeouts (we will wait 30 seconds for a response)
-        //
-        synchronized(Parameters.lock) {
-            while (!Parameters.processedRequests.isEmpty()) {
-                request = Parameters.processedRequests.get(0);
-                if (request.getTimeStamp() >= currentTime-30 || request.isProcessing())
-                    break;
-                //
-                // Move the request back to the pending queue
-                //
-                Parameters.processedRequests.remove(0);
-                Parameters.pendingRequests.add(request);
-            }
-        }
-        //
         // Send pending requests
         //
         while (!Parameters.pendingRequests.isEmpty()) {
             synchronized(Parameters.lock) {
                 request = Parameters.pendingRequests.remove(0);
                 Parameters.processedRequests.add(request);
+                TimerWheel.Timeout timeout = request.getTimeout();
+                if (timeout != null) {
+                    timeout.cancel();
+                    request.setTimeout(null);
+                }
             }
             //
             // Send the request to the origin peer unless we already tried or the peer is
             // no longer connected
             //
             peer = request.getOrigin();
-            if (peer != null && (request.wasContacted(peer) || !peer.isConnected()))
+            if (peer != null && (request.wasContacted(peer) || !peer.isConnected() || !isShardPeer(request, peer)))
                 peer = null;
             //
             // Select a peer to process the request.  The peer must provide network
-            // services and must not have been contacted for this request.
+            // services, must have loaded the bloom filter shard for the request and
+            // must not have been contacted for this request.
             //
             if (peer == null) {
                 int index = (int)(((double)connections.size())*Math.random());
                 for (int i=index; i<connections.size(); i++) {
                     Peer chkPeer = connections.get(i);
                     if ((chkPeer.getServices()&NetParams.NODE_NETWORK)!=0 &&
-                                                !request.wasContacted(chkPeer) && chkPeer.isConnected()) {
+                                                !request.wasContacted(chkPeer) && chkPeer.isConnected() &&
+                                                isShardPeer(request, chkPeer)) {
                         peer = chkPeer;
                         break;
                     }
@@ -900,7 +1055,8 @@ public class NetworkHandler implements Runnable {
                     for (int i=0; i<index; i++) {
                         Peer chkPeer = connections.get(i);
                         if ((chkPeer.getServices()&NetParams.NODE_NETWORK)!=0 &&
-                                                !request.wasContacted(chkPeer) && chkPeer.isConnected()) {
+                                                !request.wasContacted(chkPeer) && chkPeer.isConnected() &&
+                                                isShardPeer(request, chkPeer)) {
                             peer = chkPeer;
                             break;
                         }
@@ -908,15 +1064,33 @@ public class NetworkHandler implements Runnable {
                 }
             }
             //
+            // Keep a shard request until a peer that hasn't been contacted loads the shard
+            // filter.  The database handler waits for a merkle block from each shard, so
+            // discarding the request would stall the block chain synchronization.  We will
+            // start a new connection since the new peer is assigned a shard that isn't
+            // loaded on any other peer.
+            //
+            if (peer == null && request.getShard() >= 0 && !request.isTargeted()) {
+                synchronized(Parameters.lock) {
+                    Parameters.processedRequests.remove(request);
+                }
+                deferredRequests.add(request);
+                log.debug(String.format("No peer available for shard %d, deferring request\n  %s",
+                                        request.getShard(), request.getHash()));
+                scheduleConnect();
+                continue;
+            }
+            //
             // Discard the request if all of the available peers have been contacted.  We will
             // increment the banscore for the origin peer since he is broadcasting inventory
-            // that he doesn't have.
+            // that he doesn't have.  We won't do this for a targeted request since we didn't
+            // receive an 'inv' message.
             //
             if (peer == null) {
                 Peer originPeer = request.getOrigin();
                 synchronized(Parameters.lock) {
                     Parameters.processedRequests.remove(request);
-                    if (originPeer != null) {
+                    if (originPeer != null && request.getShard() < 0 && !request.isTargeted()) {
                         int banScore = originPeer.getBanScore() + 2;
                         originPeer.setBanScore(banScore);
                         if (banScore >= Parameters.MAX_BAN_SCORE)
@@ -932,8 +1106,10 @@ public class NetworkHandler implements Runnable {
             //
             // Send the request to the peer
             //
+            PeerRequest timedRequest = request;
             request.addPeer(peer);
             request.setTimeStamp(currentTime);
+            request.setTimeout(timerWheel.schedule(() -> requestTimeout(timedRequest), REQUEST_TIMEOUT));
             List<InventoryItem> invList = new ArrayList<>(1);
             invList.add(new InventoryItem(request.getType(), request.getHash()));
             Message msg = GetDataMessage.buildGetDataMessage(peer, invList);
@@ -945,6 +1121,329 @@ public class NetworkHandler implements Runnable {
         }
     }
 
+    /**
+     * Returns deferred shard requests to the pending request list when a peer that
+     * hasn't been contacted has loaded the shard filter
+     */
+    private void releaseDeferredRequests() {
+        boolean released = false;
+        Iterator<PeerRequest> it = deferredRequests.iterator();
+        while (it.hasNext()) {
+            PeerRequest request = it.next();
+            for (Peer peer : connections) {
+                if ((peer.getServices()&NetParams.NODE_NETWORK)!=0 && peer.isConnected() &&
+                                            !request.wasContacted(peer) && isShardPeer(request, peer)) {
+                    it.remove();
+                    synchronized(Parameters.lock) {
+                        if (!Parameters.pendingRequests.contains(request) &&
+                                            !Parameters.processedRequests.contains(request))
+                            Parameters.pendingRequests.add(request);
+                    }
+                    released = true;
+                    break;
+                }
+            }
+        }
+        if (released)
+            log.debug("Deferred shard requests released");
+    }
+
+    /**
+     * Schedules an outbound connection attempt if we have less than the maximum number
+     * of outbound connections.  The delay between attempts doubles for each consecutive
+     * connection that fails before completing the version handshake.
+     */
+    private void scheduleConnect() {
+        scheduleConnect(Math.min(CONNECT_DELAY<<Math.min(connectFailures, 16), MAX_CONNECT_DELAY));
+    }
+
+    /**
+     * Schedules an outbound connection attempt after the specified delay.  We will wait
+     * the maximum delay before trying again if there are no peer addresses available.
+     *
+     * @param       delay           Delay in milliseconds
+     */
+    private void scheduleConnect(long delay) {
+        if (networkShutdown || connectTimeout != null || outboundCount >= getMaxOutbound())
+            return;
+        connectTimeout = timerWheel.schedule(() -> {
+            connectTimeout = null;
+            if (outboundCount < getMaxOutbound() && connections.size() < Parameters.peerAddresses.size() &&
+                                        connectOutbound())
+                scheduleConnect();
+            else
+                scheduleConnect(MAX_CONNECT_DELAY);
+        }, delay);
+    }
+
+    /**
+     * Closes the connection if the peer has not completed the version handshake
+     *
+     * @param       peer            Peer
+     */
+    private void handshakeTimeout(Peer peer) {
+        handshakeTimeouts.remove(peer);
+        if (!peer.isConnected() || peer.getVersionCount() > 2)
+            return;
+        log.info(String.format("Closing connection due to handshake timeout: %s", peer.getAddress().toString()));
+        closeConnection(peer);
+        removeAddress(peer.getAddress());
+    }
+
+    /**
+     * Checks for an inactive peer
+     *
+     * Send a 'ping' message if the peer has been inactive for 5 minutes.
+     * Close the connection if the peer has been inactive for 10 minutes.
+     * Otherwise, schedule the next check based on the time of the last message
+     * received from the peer.
+     *
+     * @param       peer            Peer
+     */
+    private void checkActivity(Peer peer) {
+        activityTimeouts.remove(peer);
+        if (!peer.isConnected())
+            return;
+        PeerAddress address = peer.getAddress();
+        long lastActivity = address.getTimeStamp()*1000;
+        long currentTime = System.currentTimeMillis();
+        long nextCheck;
+        if (lastActivity <= currentTime-INACTIVITY_TIMEOUT) {
+            log.info(String.format("Closing connection due to inactivity: %s", address.toString()));
+            closeConnection(peer);
+            removeAddress(address);
+            return;
+        }
+        if (lastActivity <= currentTime-PING_INTERVAL) {
+            if (!peer.wasPingSent()) {
+                peer.setPing(true);
+                Message msg = PingMessage.buildPingMessage(peer);
+                synchronized(Parameters.lock) {
+                    peer.getOutputList().add(msg);
+                    SelectionKey key = peer.getKey();
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                log.info(String.format("'ping' message sent to %s", address.toString()));
+            }
+            nextCheck = lastActivity+INACTIVITY_TIMEOUT;
+        } else {
+            nextCheck = lastActivity+PING_INTERVAL;
+        }
+        activityTimeouts.put(peer, timerWheel.schedule(() -> checkActivity(peer), nextCheck-currentTime));
+    }
+
+    /**
+     * Moves a request back to the pending queue if the peer has not responded
+     *
+     * @param       request         Peer request
+     */
+    private void requestTimeout(PeerRequest request) {
+        synchronized(Parameters.lock) {
+            request.setTimeout(null);
+            if (request.isProcessing()) {
+                request.setTimeout(timerWheel.schedule(() -> requestTimeout(request), REQUEST_TIMEOUT));
+            } else if (Parameters.processedRequests.remove(request)) {
+                Parameters.pendingRequests.add(request);
+            }
+        }
+    }
+
+    /**
+     * Removes peer addresses that we haven't seen in the last 30 minutes
+     */
+    private void updatePeerAddresses() {
+        long currentTime = System.currentTimeMillis()/1000;
+        synchronized(Parameters.lock) {
+            Iterator<PeerAddress> iterator = Parameters.peerAddresses.iterator();
+            while (iterator.hasNext()) {
+                PeerAddress address = iterator.next();
+                if (address.isStatic())
+                    continue;
+                long timestamp = address.getTimeStamp();
+                if (timestamp < lastPeerUpdateTime) {
+                    Parameters.peerMap.remove(address);
+                    iterator.remove();
+                }
+            }
+        }
+        lastPeerUpdateTime = currentTime;
+        timerWheel.schedule(() -> updatePeerAddresses(), PEER_UPDATE_INTERVAL);
+    }
+
+    /**
+     * Removes a peer address from the address list unless it is a static address
+     *
+     * @param       address         Peer address
+     */
+    private void removeAddress(PeerAddress address) {
+        if (address.isStatic())
+            return;
+        synchronized(Parameters.lock) {
+            Parameters.peerMap.remove(address);
+            Parameters.peerAddresses.remove(address);
+        }
+    }
+
+    /**
+     * Records a 'getheaders' or 'getblocks' request
+     *
+     * This method must be called while holding Parameters.lock
+     *
+     * @param       peer            Peer processing the request
+     */
+    private void syncRequestSent(Peer peer) {
+        PeerStats stats = peerStats.get(peer);
+        if (stats != null)
+            stats.setSyncRequestTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Records the response to a 'getheaders' or 'getblocks' request.  This method is
+     * called by the message handler when a 'headers' or block 'inv' message is received.
+     *
+     * @param       peer            Peer sending the response
+     */
+    public void syncResponse(Peer peer) {
+        synchronized(Parameters.lock) {
+            PeerStats stats = peerStats.get(peer);
+            if (stats != null && stats.getSyncRequestTime() != 0) {
+                stats.addResponse(System.currentTimeMillis()-stats.getSyncRequestTime());
+                stats.setSyncRequestTime(0);
+            }
+        }
+    }
+
+    /**
+     * Records the response to a 'getdata' request.  This method is called by the
+     * message handler when the requested item is received.
+     *
+     * @param       request         Completed request
+     */
+    public void requestResponse(PeerRequest request) {
+        synchronized(Parameters.lock) {
+            TimerWheel.Timeout timeout = request.getTimeout();
+            if (timeout != null) {
+                timeout.cancel();
+                request.setTimeout(null);
+            }
+            Peer peer = request.getPeer();
+            PeerStats stats = (peer!=null ? peerStats.get(peer) : null);
+            if (stats != null)
+                stats.addResponse(System.currentTimeMillis()-request.getTimeStamp());
+        }
+    }
+
+    /**
+     * Checks for peers that are stalling the block chain download
+     *
+     * A peer is stalled if it has a request outstanding for longer than the grace period
+     * and its receive rate is less than a fraction of the median receive rate for the
+     * peers with outstanding requests.  Idle peers are not included in the median since
+     * they are not expected to be sending data.  The median is not used unless there are
+     * at least two busy peers.  A peer is also stalled if it doesn't respond to a 'getheaders'
+     * or 'getblocks' request within the sync timeout.  Requests assigned to a stalled peer
+     * are reassigned to other peers and the stalled peer is replaced with a new connection.
+     * We will not connect to the stalled peer again until the back-off period has ended,
+     * since a slow peer may be a transient condition.  Static peers are reconnected
+     * without a back-off period.  We will replace at most one peer for each check.
+     */
+    private void checkStalledPeers() {
+        long currentTime = System.currentTimeMillis();
+        timerWheel.schedule(() -> checkStalledPeers(), STALL_CHECK_INTERVAL);
+        Peer stalledPeer = null;
+        boolean syncStalled = false;
+        synchronized(Parameters.lock) {
+            //
+            // Calculate the receive rate for each active peer
+            //
+            List<PeerStats> statsList = new ArrayList<>(connections.size());
+            connections.stream()
+                .filter((peer) -> (peer.getVersionCount()>2))
+                .map((peer) -> peerStats.get(peer))
+                .filter((stats) -> (stats!=null))
+                .forEach((stats) -> {
+                    stats.updateByteRate(currentTime);
+                    statsList.add(stats);
+                });
+            if (statsList.isEmpty())
+                return;
+            //
+            // Locate the oldest outstanding 'getdata' request for each peer
+            //
+            Map<Peer, Long> requestMap = new HashMap<>();
+            Parameters.processedRequests.stream()
+                .filter((request) -> (!request.isProcessing() && request.getPeer()!=null))
+                .forEach((request) -> {
+                    Long requestTime = requestMap.get(request.getPeer());
+                    if (requestTime == null || request.getTimeStamp() < requestTime)
+                        requestMap.put(request.getPeer(), request.getTimeStamp());
+                });
+            //
+            // Calculate the median receive rate for the peers with outstanding requests
+            //
+            double[] rates = statsList.stream()
+                .filter((stats) -> (stats.getSyncRequestTime()!=0 || requestMap.containsKey(stats.getPeer())))
+                .mapToDouble((stats) -> stats.getByteRate())
+                .sorted()
+                .toArray();
+            double medianRate = (rates.length < 2 ? 0.0 : (rates.length%2 != 0 ? rates[rates.length/2] :
+                                        (rates[rates.length/2-1]+rates[rates.length/2])/2.0));
+            //
+            // Look for a stalled peer
+            //
+            for (PeerStats stats : statsList) {
+                Peer peer = stats.getPeer();
+                long syncTime = stats.getSyncRequestTime();
+                Long requestTime = requestMap.get(peer);
+                long oldestTime = Math.min(syncTime!=0 ? syncTime : currentTime,
+                                           requestTime!=null ? requestTime : currentTime);
+                if (syncTime != 0 && syncTime < currentTime-SYNC_TIMEOUT) {
+                    stalledPeer = peer;
+                } else if (rates.length >= 2 && oldestTime < currentTime-STALL_GRACE_TIME &&
+                                            stats.getByteRate() < medianRate*STALL_FRACTION) {
+                    stalledPeer = peer;
+                }
+                if (stalledPeer != null) {
+                    syncStalled = (syncTime != 0);
+                    log.info(String.format("Peer %s is stalled: %,.0f bytes/sec, median %,.0f bytes/sec, "
+                                    + "latency %,d msec",
+                                    peer.getAddress().toString(), stats.getByteRate(), medianRate,
+                                    stats.getLatency()));
+                    break;
+                }
+            }
+            if (stalledPeer == null)
+                return;
+            //
+            // Reassign outstanding 'getdata' requests.  The requests will be sent to a different
+            // peer since the stalled peer has already been contacted.
+            //
+            Iterator<PeerRequest> it = Parameters.processedRequests.iterator();
+            while (it.hasNext()) {
+                PeerRequest request = it.next();
+                if (request.getPeer() == stalledPeer && !request.isProcessing()) {
+                    it.remove();
+                    Parameters.pendingRequests.add(request);
+                }
+            }
+        }
+        //
+        // Replace the stalled peer.  We will not connect to the peer again until the
+        // back-off period has ended.  A static address is not backed off since it may
+        // be the only peer we are allowed to use.
+        //
+        synchronized(Parameters.lock) {
+            if (!stalledPeer.getAddress().isStatic())
+                stalledAddresses.put(stalledPeer.getAddress(), currentTime+STALL_BACKOFF);
+        }
+        closeConnection(stalledPeer);
+        //
+        // Resend the 'getheaders' or 'getblocks' request to a different peer
+        //
+        if (syncStalled)
+            sendGetBlocks();
+    }
+
     /**
      * Performs DNS lookups to get the initial peer list
      */
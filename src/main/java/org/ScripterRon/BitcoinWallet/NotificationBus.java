@@ -0,0 +1,343 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.Peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.swing.Timer;
+
+/**
+ * The notification bus passes wallet and connection events from the worker threads to
+ * the GUI.  The events received during a frame interval are merged and delivered to the
+ * GUI as a single batch on the event dispatch thread.  A batch contains the latest chain
+ * block, the changed wallet transactions, the rescan completion and the change in the
+ * number of connected peers.
+ *
+ * An event is merged if it is combined with a pending event and is dropped if a later
+ * event makes it obsolete.  A transaction change is keyed by the transaction output, so
+ * multiple changes to the same output result in a single change.
+ *
+ * The listener methods are called by the database handler and network handler threads,
+ * so the pending events are synchronized.
+ */
+public class NotificationBus implements WalletListener, ConnectionListener {
+
+    /** Frame interval (milliseconds) */
+    private static final int FRAME_INTERVAL = 50;
+
+    /** Batch consumer */
+    private final Consumer<Batch> consumer;
+
+    /** Delivery timer */
+    private final Timer timer;
+
+    /** Latest chain block or null */
+    private StoredHeader chainBlock;
+
+    /** Pending transaction changes */
+    private final Map<TransactionID, TransactionChange> changeMap = new LinkedHashMap<>();
+
+    /** Rescan completed */
+    private boolean rescanCompleted;
+
+    /** Connected peers have changed */
+    private boolean peersChanged;
+
+    /** Change in the number of connected peers */
+    private int peerChange;
+
+    /** Delivery is scheduled */
+    private boolean deliveryScheduled;
+
+    /** Number of events received */
+    private long eventCount;
+
+    /** Number of events merged with a pending event */
+    private long mergedCount;
+
+    /** Number of events dropped */
+    private long droppedCount;
+
+    /** Number of batches delivered */
+    private long batchCount;
+
+    /**
+     * Creates the notification bus
+     *
+     * @param       consumer        Batch consumer called on the event dispatch thread
+     */
+    public NotificationBus(Consumer<Batch> consumer) {
+        this.consumer = consumer;
+        timer = new Timer(FRAME_INTERVAL, (ae) -> deliver());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Returns the number of events received
+     *
+     * @return                      Event count
+     */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Returns the number of events merged with a pending event
+     *
+     * @return                      Merged count
+     */
+    public synchronized long getMergedCount() {
+        return mergedCount;
+    }
+
+    /**
+     * Returns the number of events dropped because a later event made them obsolete
+     *
+     * @return                      Dropped count
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of batches delivered
+     *
+     * @return                      Batch count
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Notification when a block is added to the chain (WalletListener interface).  Only
+     * the latest chain block is delivered.
+     *
+     * @param       blockHeader     Block header
+     */
+    @Override
+    public synchronized void addChainBlock(StoredHeader blockHeader) {
+        eventCount++;
+        if (chainBlock != null)
+            droppedCount++;
+        chainBlock = blockHeader;
+        schedule();
+    }
+
+    /**
+     * Notification when one or more transactions have been updated (WalletListener interface).
+     * The changes are merged with the pending changes for the same transaction output.
+     *
+     * @param       changes         Transaction changes
+     */
+    @Override
+    public synchronized void txUpdated(List<TransactionChange> changes) {
+        for (TransactionChange change : changes) {
+            eventCount++;
+            WalletTransaction tx = change.getTransaction();
+            int txIndex = (tx == null ? -2 : (tx instanceof ReceiveTransaction ?
+                                                        ((ReceiveTransaction)tx).getTxIndex() : -1));
+            TransactionID key = new TransactionID(change.getTxHash(), txIndex);
+            TransactionChange prevChange = changeMap.get(key);
+            if (prevChange == null) {
+                changeMap.put(key, change);
+            } else if (prevChange.getType() == TransactionChange.ChangeType.ADDED &&
+                                change.getType() == TransactionChange.ChangeType.DELETED) {
+                changeMap.remove(key);
+                droppedCount += 2;
+            } else if (prevChange.getType() == TransactionChange.ChangeType.ADDED &&
+                                change.getType() == TransactionChange.ChangeType.UPDATED) {
+                changeMap.put(key, new TransactionChange(TransactionChange.ChangeType.ADDED, tx));
+                mergedCount++;
+            } else {
+                changeMap.put(key, change);
+                mergedCount++;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Notification when a block chain rescan is completed (WalletListener interface)
+     */
+    @Override
+    public synchronized void rescanCompleted() {
+        eventCount++;
+        if (rescanCompleted)
+            mergedCount++;
+        rescanCompleted = true;
+        schedule();
+    }
+
+    /**
+     * Notifies when a connection is started (ConnectionListener interface)
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public synchronized void connectionStarted(Peer peer) {
+        peerChanged(1);
+    }
+
+    /**
+     * Notifies when a connection is terminated (ConnectionListener interface)
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public synchronized void connectionEnded(Peer peer) {
+        peerChanged(-1);
+    }
+
+    /**
+     * Records a change in the number of connected peers
+     *
+     * @param       change          Peer count change
+     */
+    private void peerChanged(int change) {
+        eventCount++;
+        if (peersChanged)
+            mergedCount++;
+        peersChanged = true;
+        peerChange += change;
+        schedule();
+    }
+
+    /**
+     * Schedules delivery of the pending events at the end of the frame interval
+     *
+     * This method must be called while holding the bus lock
+     */
+    private void schedule() {
+        if (!deliveryScheduled) {
+            deliveryScheduled = true;
+            timer.start();
+        }
+    }
+
+    /**
+     * Delivers the pending events (event dispatch thread)
+     */
+    private void deliver() {
+        Batch batch;
+        synchronized(this) {
+            deliveryScheduled = false;
+            batch = new Batch(chainBlock, new ArrayList<>(changeMap.values()), rescanCompleted,
+                              peersChanged, peerChange);
+            chainBlock = null;
+            changeMap.clear();
+            rescanCompleted = false;
+            peersChanged = false;
+            peerChange = 0;
+            batchCount++;
+        }
+        try {
+            consumer.accept(batch);
+        } catch (Exception exc) {
+            log.error("Exception while processing notification batch", exc);
+        }
+    }
+
+    /**
+     * A batch of merged events
+     */
+    public static class Batch {
+
+        /** Latest chain block or null */
+        private final StoredHeader chainBlock;
+
+        /** Transaction changes */
+        private final List<TransactionChange> changes;
+
+        /** Rescan completed */
+        private final boolean rescanCompleted;
+
+        /** Connected peers have changed */
+        private final boolean peersChanged;
+
+        /** Change in the number of connected peers */
+        private final int peerChange;
+
+        /**
+         * Creates a batch
+         *
+         * @param       chainBlock      Latest chain block or null
+         * @param       changes         Transaction changes
+         * @param       rescanCompleted TRUE if a rescan was completed
+         * @param       peersChanged    TRUE if a connection was started or ended
+         * @param       peerChange      Change in the number of connected peers
+         */
+        private Batch(StoredHeader chainBlock, List<TransactionChange> changes,
+                                        boolean rescanCompleted, boolean peersChanged, int peerChange) {
+            this.chainBlock = chainBlock;
+            this.changes = Collections.unmodifiableList(changes);
+            this.rescanCompleted = rescanCompleted;
+            this.peersChanged = peersChanged;
+            this.peerChange = peerChange;
+        }
+
+        /**
+         * Returns the latest chain block
+         *
+         * @return                  Chain block or null if no blocks were added
+         */
+        public StoredHeader getChainBlock() {
+            return chainBlock;
+        }
+
+        /**
+         * Returns the transaction changes
+         *
+         * @return                  Transaction changes
+         */
+        public List<TransactionChange> getChanges() {
+            return changes;
+        }
+
+        /**
+         * Checks if a rescan was completed
+         *
+         * @return                  TRUE if a rescan was completed
+         */
+        public boolean isRescanCompleted() {
+            return rescanCompleted;
+        }
+
+        /**
+         * Checks if a connection was started or ended
+         *
+         * @return                  TRUE if the connected peers have changed
+         */
+        public boolean isPeersChanged() {
+            return peersChanged;
+        }
+
+        /**
+         * Returns the change in the number of connected peers
+         *
+         * @return                  Peer count change
+         */
+        public int getPeerChange() {
+            return peerChange;
+        }
+    }
+}
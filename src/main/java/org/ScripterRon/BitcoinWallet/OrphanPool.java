@@ -0,0 +1,262 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The orphan pool holds blocks that can not be added to the chain because the parent
+ * block is not available.  The orphans are indexed by the parent block hash, so all of
+ * the descendants of a block can be connected without searching the database for child
+ * blocks.
+ *
+ * The pool size is limited and the oldest orphan is removed when the limit is reached.
+ * The number of orphans from a single peer is also limited so a misbehaving peer can not
+ * fill the pool.  Orphans are removed when they expire.
+ *
+ * The orphan pool is used only by the database handler thread and is not synchronized.
+ */
+public class OrphanPool {
+
+    /** Maximum number of orphan blocks */
+    private static final int MAX_ORPHANS = 500;
+
+    /** Maximum number of orphan blocks from a single peer */
+    private static final int MAX_PEER_ORPHANS = 100;
+
+    /** Orphan expiration time (milliseconds) */
+    private static final long ORPHAN_EXPIRY = 20*60*1000;
+
+    /** Orphan blocks in order of arrival */
+    private final Map<Sha256Hash, Orphan> orphanMap = new LinkedHashMap<>();
+
+    /** Orphan blocks indexed by parent hash */
+    private final Map<Sha256Hash, List<Orphan>> parentMap = new HashMap<>();
+
+    /** Number of orphan blocks for each peer */
+    private final Map<Peer, Integer> peerCounts = new HashMap<>();
+
+    /**
+     * Creates the orphan pool
+     */
+    public OrphanPool() {
+    }
+
+    /**
+     * Returns the number of orphan blocks
+     *
+     * @return                      Orphan count
+     */
+    public int size() {
+        return orphanMap.size();
+    }
+
+    /**
+     * Checks if a block is in the orphan pool
+     *
+     * @param       blockHash       Block hash
+     * @return                      TRUE if the block is an orphan
+     */
+    public boolean contains(Sha256Hash blockHash) {
+        return orphanMap.containsKey(blockHash);
+    }
+
+    /**
+     * Adds an orphan block to the pool.  Expired orphans are removed and the oldest orphan
+     * is removed if the pool is full.  The oldest orphan from the origin peer is removed if
+     * the peer has reached its limit.
+     *
+     * @param       header          Block header
+     * @param       peer            Origin peer or null
+     */
+    public void add(StoredHeader header, Peer peer) {
+        Sha256Hash blockHash = header.getHash();
+        if (orphanMap.containsKey(blockHash))
+            return;
+        //
+        // Remove expired orphans
+        //
+        long currentTime = System.currentTimeMillis();
+        Iterator<Orphan> it = orphanMap.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            if (currentTime-orphan.getTime() < ORPHAN_EXPIRY)
+                break;
+            it.remove();
+            removeIndex(orphan);
+        }
+        //
+        // Enforce the peer limit and the pool limit
+        //
+        if (peer != null && peerCounts.getOrDefault(peer, 0) >= MAX_PEER_ORPHANS) {
+            for (Orphan orphan : orphanMap.values()) {
+                if (orphan.getPeer() == peer) {
+                    removeOrphan(orphan);
+                    break;
+                }
+            }
+        }
+        if (orphanMap.size() >= MAX_ORPHANS)
+            removeOrphan(orphanMap.values().iterator().next());
+        //
+        // Add the new orphan
+        //
+        Orphan orphan = new Orphan(header, peer, currentTime);
+        orphanMap.put(blockHash, orphan);
+        List<Orphan> children = parentMap.get(header.getPrevHash());
+        if (children == null) {
+            children = new ArrayList<>(1);
+            parentMap.put(header.getPrevHash(), children);
+        }
+        children.add(orphan);
+        if (peer != null)
+            peerCounts.merge(peer, 1, Integer::sum);
+        log.debug(String.format("Orphan block added to pool (%d orphans)\n  Block %s",
+                                orphanMap.size(), blockHash));
+    }
+
+    /**
+     * Removes and returns the orphan children of a block
+     *
+     * @param       parentHash      Parent block hash
+     * @return                      List of child blocks (empty if there are no orphan children)
+     */
+    public List<StoredHeader> removeChildren(Sha256Hash parentHash) {
+        List<Orphan> children = parentMap.remove(parentHash);
+        if (children == null)
+            return Collections.emptyList();
+        List<StoredHeader> headers = new ArrayList<>(children.size());
+        for (Orphan orphan : children) {
+            orphanMap.remove(orphan.getHeader().getHash());
+            decrementPeer(orphan.getPeer());
+            headers.add(orphan.getHeader());
+        }
+        return headers;
+    }
+
+    /**
+     * Removes a block from the pool.  This is done when an orphan block has been
+     * added to the chain without going through the parent index.
+     *
+     * @param       blockHash       Block hash
+     */
+    public void remove(Sha256Hash blockHash) {
+        Orphan orphan = orphanMap.remove(blockHash);
+        if (orphan != null)
+            removeIndex(orphan);
+    }
+
+    /**
+     * Removes an orphan from the pool
+     *
+     * @param       orphan          Orphan block
+     */
+    private void removeOrphan(Orphan orphan) {
+        orphanMap.remove(orphan.getHeader().getHash());
+        removeIndex(orphan);
+    }
+
+    /**
+     * Removes an orphan from the parent index and the peer counts
+     *
+     * @param       orphan          Orphan block
+     */
+    private void removeIndex(Orphan orphan) {
+        Sha256Hash parentHash = orphan.getHeader().getPrevHash();
+        List<Orphan> children = parentMap.get(parentHash);
+        if (children != null) {
+            children.remove(orphan);
+            if (children.isEmpty())
+                parentMap.remove(parentHash);
+        }
+        decrementPeer(orphan.getPeer());
+    }
+
+    /**
+     * Decrements the orphan count for a peer
+     *
+     * @param       peer            Origin peer or null
+     */
+    private void decrementPeer(Peer peer) {
+        if (peer != null)
+            peerCounts.computeIfPresent(peer, (key, count) -> (count > 1 ? count-1 : null));
+    }
+
+    /**
+     * An orphan block
+     */
+    private static class Orphan {
+
+        /** Block header */
+        private final StoredHeader header;
+
+        /** Origin peer */
+        private final Peer peer;
+
+        /** Time the orphan was added to the pool */
+        private final long time;
+
+        /**
+         * Creates an orphan block
+         *
+         * @param       header          Block header
+         * @param       peer            Origin peer or null
+         * @param       time            Time added (milliseconds)
+         */
+        private Orphan(StoredHeader header, Peer peer, long time) {
+            this.header = header;
+            this.peer = peer;
+            this.time = time;
+        }
+
+        /**
+         * Returns the block header
+         *
+         * @return                      Block header
+         */
+        private StoredHeader getHeader() {
+            return header;
+        }
+
+        /**
+         * Returns the origin peer
+         *
+         * @return                      Origin peer or null
+         */
+        private Peer getPeer() {
+            return peer;
+        }
+
+        /**
+         * Returns the time the orphan was added
+         *
+         * @return                      Time in milliseconds
+         */
+        private long getTime() {
+            return time;
+        }
+    }
+}
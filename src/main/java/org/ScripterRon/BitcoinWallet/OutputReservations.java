@@ -0,0 +1,107 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.SignedInput;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The output reservations hold the wallet outputs selected for a send which has not
+ * been stored in the wallet yet.  A reserved output is not offered to another send, so
+ * several sends can be built at the same time without spending the same output twice.
+ * The reservation is released when the send is abandoned or fails and when the new
+ * transaction has been stored in the wallet, since the spent outputs are then marked
+ * as spent in the database.
+ *
+ * The reservations are used by the wallet service thread and by the GUI thread, so the
+ * methods are synchronized.
+ */
+public class OutputReservations {
+
+    /** Reserved outputs */
+    private final Set<TransactionID> reserved = new HashSet<>();
+
+    /**
+     * Creates the output reservations
+     */
+    public OutputReservations() {
+    }
+
+    /**
+     * Returns the number of reserved outputs
+     *
+     * @return                      Number of reserved outputs
+     */
+    public synchronized int size() {
+        return reserved.size();
+    }
+
+    /**
+     * Checks if an output is reserved
+     *
+     * @param       outPoint        Transaction output
+     * @return                      TRUE if the output is reserved
+     */
+    public synchronized boolean contains(TransactionID outPoint) {
+        return reserved.contains(outPoint);
+    }
+
+    /**
+     * Reserves the outputs spent by a list of inputs.  Nothing is reserved if any
+     * of the outputs is already reserved.
+     *
+     * @param       inputs          Signed inputs
+     * @return                      TRUE if the outputs were reserved
+     */
+    public synchronized boolean reserve(List<SignedInput> inputs) {
+        List<TransactionID> outPoints = getOutPoints(inputs);
+        for (TransactionID outPoint : outPoints) {
+            if (reserved.contains(outPoint))
+                return false;
+        }
+        reserved.addAll(outPoints);
+        return true;
+    }
+
+    /**
+     * Releases the outputs spent by a list of inputs
+     *
+     * @param       inputs          Signed inputs
+     */
+    public synchronized void release(List<SignedInput> inputs) {
+        reserved.removeAll(getOutPoints(inputs));
+    }
+
+    /**
+     * Returns the outputs spent by a list of inputs
+     *
+     * @param       inputs          Signed inputs
+     * @return                      Transaction outputs
+     */
+    private static List<TransactionID> getOutPoints(List<SignedInput> inputs) {
+        List<TransactionID> outPoints = new ArrayList<>(inputs.size());
+        for (SignedInput input : inputs) {
+            OutPoint outPoint = input.getOutPoint();
+            outPoints.add(new TransactionID(outPoint.getHash(), outPoint.getIndex()));
+        }
+        return outPoints;
+    }
+}
@@ -16,7 +16,6 @@
 package org.ScripterRon.BitcoinWallet;
 
 import org.ScripterRon.BitcoinCore.Address;
-import org.ScripterRon.BitcoinCore.BloomFilter;
 import org.ScripterRon.BitcoinCore.ECKey;
 import org.ScripterRon.BitcoinCore.Message;
 import org.ScripterRon.BitcoinCore.MessageListener;
@@ -38,6 +37,12 @@ public class Parameters {
     /** Minimum supported protocol level (we require SPV support) */
     public static final int MIN_PROTOCOL_VERSION = 70001;
 
+    /** Minimum protocol level for 'sendheaders' support (BIP 130) */
+    public static final int SENDHEADERS_VERSION = 70012;
+
+    /** Compact block filter service (BIP 157) */
+    public static final long NODE_COMPACT_FILTERS = 64;
+
     /** Default network port */
     public static final int DEFAULT_PORT = 8333;
 
@@ -92,14 +97,41 @@ public class Parameters {
     /** Database handler */
     public static DatabaseHandler databaseHandler;
 
+    /** Compact filter handler */
+    public static CompactFilterHandler compactFilterHandler;
+
     /** Inventory handler */
     public static MessageListener messageListener;
 
+    /** Unconfirmed transaction tracker */
+    public static MempoolTracker mempoolTracker;
+
+    /** Sent transaction cache */
+    public static SentTransactionCache sentTxCache;
+
+    /** Rebroadcast handler */
+    public static RebroadcastHandler rebroadcastHandler;
+
+    /** Transaction conflict index */
+    public static ConflictIndex conflictIndex;
+
+    /** Wallet event publisher */
+    public static WalletEventPublisher eventPublisher;
+
+    /** Wallet service for the GUI */
+    public static WalletService walletService;
+
+    /** Outputs reserved for sends in progress */
+    public static OutputReservations outputReservations;
+
+    /** Transaction cache or null if the cache is not enabled */
+    public static TransactionCache txCache;
+
     /** Wallet database */
     public static Wallet wallet;
 
-    /** Bloom filter */
-    public static BloomFilter bloomFilter;
+    /** Bloom filter manager */
+    public static BloomFilterManager filterManager;
 
     /** Key list */
     public static List<ECKey> keys;
@@ -116,6 +148,18 @@ public class Parameters {
     /** Loading block chain */
     public static boolean loadingChain = false;
 
+    /** Use compact block filters instead of bloom filters */
+    public static boolean compactFilters = false;
+
+    /** Cache the wallet transactions for block chain rescans */
+    public static boolean cacheTransactions = false;
+
+    /** Spend our own unconfirmed change */
+    public static boolean spendUnconfirmedChange = false;
+
+    /** Maximum length of an unconfirmed transaction chain when spending unconfirmed change */
+    public static int unconfirmedChainLimit = 5;
+
     /** Wallet passphrase */
     public static String passPhrase;
 }
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.BlockHeader;
+import org.ScripterRon.BitcoinCore.Peer;
+
+/**
+ * A peer block is a block header received from a peer.  The origin peer is used
+ * to enforce the orphan block limits when the parent block is not available.  The
+ * block transaction count is available for a merkle block and is used for the bloom
+ * filter statistics.
+ */
+public class PeerBlock {
+
+    /** Block header */
+    private final BlockHeader header;
+
+    /** Origin peer */
+    private final Peer peer;
+
+    /** Number of transactions in the block or 0 if not known */
+    private final int txCount;
+
+    /**
+     * Creates a peer block
+     *
+     * @param       header          Block header
+     * @param       peer            Origin peer
+     */
+    public PeerBlock(BlockHeader header, Peer peer) {
+        this(header, peer, 0);
+    }
+
+    /**
+     * Creates a peer block for a merkle block
+     *
+     * @param       header          Block header
+     * @param       peer            Origin peer
+     * @param       txCount         Number of transactions in the block
+     */
+    public PeerBlock(BlockHeader header, Peer peer, int txCount) {
+        this.header = header;
+        this.peer = peer;
+        this.txCount = txCount;
+    }
+
+    /**
+     * Returns the block header
+     *
+     * @return                      Block header
+     */
+    public BlockHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the origin peer
+     *
+     * @return                      Origin peer
+     */
+    public Peer getPeer() {
+        return peer;
+    }
+
+    /**
+     * Returns the number of transactions in the block
+     *
+     * @return                      Transaction count or 0 if not known
+     */
+    public int getTxCount() {
+        return txCount;
+    }
+}
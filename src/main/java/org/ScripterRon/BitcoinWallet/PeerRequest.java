@@ -37,12 +37,24 @@ public class PeerRequest {
     /** The inventory type */
     private int type;
 
+    /** Bloom filter shard or -1 if any peer can process the request */
+    private final int shard;
+
+    /** Request must be processed by the origin peer */
+    private final boolean targeted;
+
     /** Map of peers that have been contacted for this request */
     private final Map<Peer, Peer> peerMap = new HashMap<>(25);
 
-    /** Timestamp */
+    /** Peer that was last contacted for this request */
+    private Peer peer;
+
+    /** Time when the request was last sent (milliseconds) */
     private long timeStamp;
 
+    /** Response timeout */
+    private TimerWheel.Timeout timeout;
+
     /** Request is being processed */
     private boolean processing;
 
@@ -64,9 +76,50 @@ public class PeerRequest {
      * @param       origin          Peer that sent the 'inv' message
      */
     public PeerRequest(Sha256Hash hash, int type, Peer origin) {
+        this(hash, type, origin, -1);
+    }
+
+    /**
+     * Creates a new peer request for a bloom filter shard.  A merkle block request
+     * must be processed by a peer that has loaded the filter for the shard.
+     *
+     * @param       hash            The transaction or block hash
+     * @param       type            The inventory type (INV_FILTERED_BLOCK or INV_TX)
+     * @param       origin          Peer that sent the 'inv' message
+     * @param       shard           Bloom filter shard or -1 if any peer can process the request
+     */
+    public PeerRequest(Sha256Hash hash, int type, Peer origin, int shard) {
+        this(hash, type, origin, shard, false);
+    }
+
+    /**
+     * Creates a new peer request that must be processed by the origin peer.  This is
+     * used for a key rescan where the peer has loaded a temporary bloom filter.
+     *
+     * @param       hash            The transaction or block hash
+     * @param       type            The inventory type (INV_FILTERED_BLOCK or INV_TX)
+     * @param       origin          Peer that must process the request
+     * @param       targeted        TRUE if the request must be processed by the origin peer
+     */
+    public PeerRequest(Sha256Hash hash, int type, Peer origin, boolean targeted) {
+        this(hash, type, origin, -1, targeted);
+    }
+
+    /**
+     * Creates a new peer request
+     *
+     * @param       hash            The transaction or block hash
+     * @param       type            The inventory type (INV_FILTERED_BLOCK or INV_TX)
+     * @param       origin          Peer that sent the 'inv' message
+     * @param       shard           Bloom filter shard or -1 if any peer can process the request
+     * @param       targeted        TRUE if the request must be processed by the origin peer
+     */
+    private PeerRequest(Sha256Hash hash, int type, Peer origin, int shard, boolean targeted) {
         this.hash = hash;
         this.type = type;
         this.origin = origin;
+        this.shard = shard;
+        this.targeted = targeted;
     }
 
     /**
@@ -96,10 +149,37 @@ public class PeerRequest {
         return type;
     }
 
+    /**
+     * Returns the bloom filter shard
+     *
+     * @return      Shard or -1 if any peer can process the request
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Checks if the request must be processed by the origin peer
+     *
+     * @return      TRUE if the request must be processed by the origin peer
+     */
+    public boolean isTargeted() {
+        return targeted;
+    }
+
+    /**
+     * Returns the peer that was last contacted for this request
+     *
+     * @return      Peer or null if the request has not been sent
+     */
+    public Peer getPeer() {
+        return peer;
+    }
+
     /**
      * Returns the request timestamp
      *
-     * @return      Request timestamp
+     * @return      Time when the request was last sent (milliseconds)
      */
     public long getTimeStamp() {
         return timeStamp;
@@ -108,12 +188,30 @@ public class PeerRequest {
     /**
      * Sets the request timestamp
      *
-     * @param       timeStamp       Request timestamp
+     * @param       timeStamp       Time when the request was sent (milliseconds)
      */
     public void setTimeStamp(long timeStamp) {
         this.timeStamp = timeStamp;
     }
 
+    /**
+     * Returns the response timeout
+     *
+     * @return      Response timeout or null if no timeout is scheduled
+     */
+    public TimerWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the response timeout
+     *
+     * @param       timeout         Response timeout or null to clear the timeout
+     */
+    public void setTimeout(TimerWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * Checks if a peer has already been contacted for this request
      *
@@ -132,6 +230,7 @@ public class PeerRequest {
     public void addPeer(Peer peer) {
         if (peerMap.get(peer) == null)
             peerMap.put(peer, peer);
+        this.peer = peer;
     }
 
     /**
@@ -159,7 +258,7 @@ public class PeerRequest {
      */
     @Override
     public int hashCode() {
-        return hash.hashCode()^type;
+        return hash.hashCode()^type^(shard<<8)^(targeted ? 0x10000 : 0);
     }
 
     /**
@@ -171,6 +270,7 @@ public class PeerRequest {
     @Override
     public boolean equals(Object obj) {
         return (obj!=null && (obj instanceof PeerRequest) && hash.equals(((PeerRequest)obj).hash) &&
-                                        type==((PeerRequest)obj).type);
+                                        type==((PeerRequest)obj).type && shard==((PeerRequest)obj).shard &&
+                                        targeted==((PeerRequest)obj).targeted);
     }
 }
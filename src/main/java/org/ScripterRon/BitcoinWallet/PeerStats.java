@@ -0,0 +1,154 @@
+/**
+ * Copyright 2016 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Peer;
+
+/**
+ * Peer statistics are used to detect a peer that is stalling the block chain download.
+ * We track the number of bytes received from the peer and the time it takes the peer
+ * to respond to 'getheaders', 'getblocks' and 'getdata' requests.
+ *
+ * All times are in milliseconds.
+ */
+public class PeerStats {
+
+    /** Weight given to a new latency sample */
+    private static final double LATENCY_WEIGHT = 0.25;
+
+    /** Peer */
+    private final Peer peer;
+
+    /** Bytes received during the current measurement window */
+    private long windowBytes;
+
+    /** Start of the current measurement window */
+    private long windowStart;
+
+    /** Receive rate (bytes/second) for the last measurement window */
+    private double byteRate;
+
+    /** Average response latency */
+    private double latency;
+
+    /** Number of responses received */
+    private int responseCount;
+
+    /** Time when the last 'getheaders' or 'getblocks' message was sent (0 if no request pending) */
+    private long syncRequestTime;
+
+    /**
+     * Creates the statistics for a new peer connection
+     *
+     * @param       peer            Peer
+     */
+    public PeerStats(Peer peer) {
+        this.peer = peer;
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the peer
+     *
+     * @return                      Peer
+     */
+    public Peer getPeer() {
+        return peer;
+    }
+
+    /**
+     * Adds bytes received from the peer
+     *
+     * @param       count           Number of bytes received
+     */
+    public void addBytes(int count) {
+        windowBytes += count;
+    }
+
+    /**
+     * Ends the current measurement window and returns the receive rate for the window
+     *
+     * @param       currentTime     Current time
+     * @return                      Receive rate (bytes/second)
+     */
+    public double updateByteRate(long currentTime) {
+        long elapsed = currentTime - windowStart;
+        if (elapsed > 0) {
+            byteRate = (double)windowBytes*1000.0/(double)elapsed;
+            windowBytes = 0;
+            windowStart = currentTime;
+        }
+        return byteRate;
+    }
+
+    /**
+     * Returns the receive rate for the last measurement window
+     *
+     * @return                      Receive rate (bytes/second)
+     */
+    public double getByteRate() {
+        return byteRate;
+    }
+
+    /**
+     * Adds a response latency sample
+     *
+     * @param       elapsed         Time between the request and the response
+     */
+    public void addResponse(long elapsed) {
+        if (responseCount == 0)
+            latency = (double)elapsed;
+        else
+            latency = latency + LATENCY_WEIGHT*((double)elapsed - latency);
+        responseCount++;
+    }
+
+    /**
+     * Returns the average response latency
+     *
+     * @return                      Average latency or 0 if no responses have been received
+     */
+    public long getLatency() {
+        return (long)latency;
+    }
+
+    /**
+     * Returns the number of responses received
+     *
+     * @return                      Response count
+     */
+    public int getResponseCount() {
+        return responseCount;
+    }
+
+    /**
+     * Returns the time when the pending 'getheaders' or 'getblocks' request was sent
+     *
+     * @return                      Request time or 0 if there is no pending request
+     */
+    public long getSyncRequestTime() {
+        return syncRequestTime;
+    }
+
+    /**
+     * Sets the time when a 'getheaders' or 'getblocks' request was sent
+     *
+     * @param       requestTime     Request time or 0 if there is no pending request
+     */
+    public void setSyncRequestTime(long requestTime) {
+        syncRequestTime = requestTime;
+    }
+}
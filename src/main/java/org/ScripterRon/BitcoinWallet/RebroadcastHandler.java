@@ -0,0 +1,317 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.InventoryItem;
+import org.ScripterRon.BitcoinCore.InventoryMessage;
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rebroadcast handler announces our unconfirmed send transactions.  The pending
+ * transactions are announced to each peer when the connection is started and are
+ * announced again to all peers with an increasing interval until another peer announces
+ * the transaction to us or the transaction is confirmed.  A transaction is confirmed
+ * once it is no longer tracked by the mempool tracker.
+ *
+ * The propagation latency is the time from the first broadcast until the transaction is
+ * announced by another peer.
+ *
+ * The rebroadcast handler continues running until its shutdown() method is called.
+ */
+public class RebroadcastHandler implements Runnable, ConnectionListener {
+
+    /** Initial rebroadcast interval (milliseconds) */
+    private static final long INITIAL_INTERVAL = 60*1000;
+
+    /** Maximum rebroadcast interval (milliseconds) */
+    private static final long MAX_INTERVAL = 60*60*1000;
+
+    /** Maximum inventory items in a single 'inv' message */
+    private static final int MAX_INV_ITEMS = 1000;
+
+    /** Rebroadcast handler thread */
+    private Thread handlerThread;
+
+    /** Rebroadcast handler shutdown */
+    private boolean handlerShutdown = false;
+
+    /** Pending send transactions */
+    private final Map<Sha256Hash, PendingSend> pendingMap = new LinkedHashMap<>();
+
+    /** Newly connected peers */
+    private final LinkedBlockingQueue<Peer> peerQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates the rebroadcast handler
+     */
+    public RebroadcastHandler() {
+    }
+
+    /**
+     * Shuts down the rebroadcast handler
+     */
+    public void shutdown() {
+        handlerShutdown = true;
+        handlerThread.interrupt();
+    }
+
+    /**
+     * Broadcasts a new send transaction to all peers
+     *
+     * @param       txHash          Transaction hash
+     */
+    public void broadcast(Sha256Hash txHash) {
+        long currentTime = System.currentTimeMillis();
+        synchronized(this) {
+            PendingSend pendingSend = pendingMap.get(txHash);
+            if (pendingSend == null) {
+                pendingSend = new PendingSend(txHash, currentTime);
+                pendingMap.put(txHash, pendingSend);
+            }
+            pendingSend.announceCount++;
+        }
+        sendInventory(null, Collections.singletonList(txHash));
+    }
+
+    /**
+     * Records a transaction announcement from a peer.  The transaction is no longer
+     * announced to all peers once another peer has announced it.
+     *
+     * @param       txHash          Transaction hash
+     */
+    public void transactionSeen(Sha256Hash txHash) {
+        long latency;
+        synchronized(this) {
+            PendingSend pendingSend = pendingMap.get(txHash);
+            if (pendingSend == null || pendingSend.seenTime != 0)
+                return;
+            pendingSend.seenTime = System.currentTimeMillis();
+            latency = pendingSend.seenTime-pendingSend.broadcastTime;
+        }
+        log.info(String.format("Transaction propagated in %d ms after %d announcements\n  Tx %s",
+                               latency, getAnnounceCount(txHash), txHash));
+    }
+
+    /**
+     * Returns the propagation latency for a pending send transaction
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Latency in milliseconds or -1 if the transaction has not
+     *                              been announced by another peer
+     */
+    public synchronized long getPropagationLatency(Sha256Hash txHash) {
+        PendingSend pendingSend = pendingMap.get(txHash);
+        if (pendingSend == null || pendingSend.seenTime == 0)
+            return -1;
+        return pendingSend.seenTime-pendingSend.broadcastTime;
+    }
+
+    /**
+     * Returns the number of times a pending send transaction has been announced to all peers
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Announcement count or 0 if the transaction is not pending
+     */
+    public synchronized int getAnnounceCount(Sha256Hash txHash) {
+        PendingSend pendingSend = pendingMap.get(txHash);
+        return (pendingSend != null ? pendingSend.announceCount : 0);
+    }
+
+    /**
+     * Notifies when a connection is started (ConnectionListener interface).  The pending
+     * transactions are announced to the new peer by the rebroadcast handler thread.
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public void connectionStarted(Peer peer) {
+        peerQueue.offer(peer);
+    }
+
+    /**
+     * Notifies when a connection is terminated (ConnectionListener interface)
+     *
+     * @param       peer            Remote peer
+     */
+    @Override
+    public void connectionEnded(Peer peer) {
+    }
+
+    /**
+     * Announces pending transactions until stopped
+     */
+    @Override
+    public void run() {
+        log.info("Rebroadcast handler started");
+        handlerThread = Thread.currentThread();
+        try {
+            //
+            // Get the unconfirmed send transactions
+            //
+            long currentTime = System.currentTimeMillis();
+            List<SendTransaction> sendList = Parameters.wallet.getSendTxList();
+            synchronized(this) {
+                for (SendTransaction sendTx : sendList) {
+                    if (sendTx.getBlockHash() == null && !pendingMap.containsKey(sendTx.getTxHash()))
+                        pendingMap.put(sendTx.getTxHash(), new PendingSend(sendTx.getTxHash(), currentTime));
+                }
+                if (!pendingMap.isEmpty())
+                    log.info(String.format("%d pending send transactions", pendingMap.size()));
+            }
+            //
+            // Announce the pending transactions to new peers and rebroadcast the transactions
+            // that are due until we are shutdown
+            //
+            while (!handlerShutdown) {
+                Peer peer = peerQueue.poll(getWaitTime(), TimeUnit.MILLISECONDS);
+                if (peer != null) {
+                    List<Sha256Hash> txList;
+                    synchronized(this) {
+                        removeConfirmed();
+                        txList = new ArrayList<>(pendingMap.keySet());
+                    }
+                    if (!txList.isEmpty() && peer.isConnected()) {
+                        sendInventory(peer, txList);
+                        log.info(String.format("Pending transaction inventory sent to %s", peer.getAddress()));
+                    }
+                } else {
+                    List<Sha256Hash> txList = new ArrayList<>();
+                    currentTime = System.currentTimeMillis();
+                    synchronized(this) {
+                        removeConfirmed();
+                        for (PendingSend pendingSend : pendingMap.values()) {
+                            if (pendingSend.seenTime == 0 && pendingSend.nextTime <= currentTime) {
+                                txList.add(pendingSend.txHash);
+                                pendingSend.announceCount++;
+                                pendingSend.interval = Math.min(pendingSend.interval*2, MAX_INTERVAL);
+                                pendingSend.nextTime = currentTime+pendingSend.interval;
+                            }
+                        }
+                    }
+                    if (!txList.isEmpty()) {
+                        sendInventory(null, txList);
+                        log.info(String.format("%d pending transactions rebroadcast", txList.size()));
+                    }
+                }
+            }
+        } catch (InterruptedException exc) {
+            if (!handlerShutdown)
+                log.warn("Rebroadcast handler interrupted", exc);
+        } catch (Exception exc) {
+            log.error("Exception while rebroadcasting transactions", exc);
+        }
+        log.info("Rebroadcast handler stopped");
+    }
+
+    /**
+     * Returns the time until the next rebroadcast is due
+     *
+     * @return                      Wait time in milliseconds
+     */
+    private synchronized long getWaitTime() {
+        long nextTime = Long.MAX_VALUE;
+        for (PendingSend pendingSend : pendingMap.values()) {
+            if (pendingSend.seenTime == 0)
+                nextTime = Math.min(nextTime, pendingSend.nextTime);
+        }
+        long currentTime = System.currentTimeMillis();
+        return (nextTime == Long.MAX_VALUE ? INITIAL_INTERVAL : Math.max(nextTime-currentTime, 1));
+    }
+
+    /**
+     * Removes the transactions that are no longer tracked by the mempool tracker
+     *
+     * This method must be called while holding the handler lock
+     */
+    private void removeConfirmed() {
+        Iterator<PendingSend> it = pendingMap.values().iterator();
+        while (it.hasNext()) {
+            PendingSend pendingSend = it.next();
+            if (!Parameters.mempoolTracker.contains(pendingSend.txHash)) {
+                it.remove();
+                log.debug(String.format("Pending transaction is no longer unconfirmed\n  Tx %s", pendingSend.txHash));
+            }
+        }
+    }
+
+    /**
+     * Sends an 'inv' message for a list of transactions
+     *
+     * @param       peer            Destination peer or null to broadcast to all peers
+     * @param       txList          Transaction hashes
+     */
+    private void sendInventory(Peer peer, List<Sha256Hash> txList) {
+        for (int i=0; i<txList.size(); i+=MAX_INV_ITEMS) {
+            List<InventoryItem> invList = new ArrayList<>(Math.min(txList.size()-i, MAX_INV_ITEMS));
+            txList.subList(i, Math.min(i+MAX_INV_ITEMS, txList.size())).forEach((txHash) ->
+                    invList.add(new InventoryItem(InventoryItem.INV_TX, txHash)));
+            Message invMsg = InventoryMessage.buildInventoryMessage(peer, invList);
+            if (peer != null)
+                Parameters.networkHandler.sendMessage(invMsg);
+            else
+                Parameters.networkHandler.broadcastMessage(invMsg);
+        }
+    }
+
+    /**
+     * A pending send transaction
+     */
+    private static class PendingSend {
+
+        /** Transaction hash */
+        private final Sha256Hash txHash;
+
+        /** Time of the first broadcast */
+        private final long broadcastTime;
+
+        /** Time when another peer announced the transaction or zero */
+        private long seenTime;
+
+        /** Time of the next rebroadcast */
+        private long nextTime;
+
+        /** Current rebroadcast interval */
+        private long interval;
+
+        /** Number of announcements to all peers */
+        private int announceCount;
+
+        /**
+         * Creates a pending send transaction
+         *
+         * @param       txHash          Transaction hash
+         * @param       broadcastTime   Time of the first broadcast
+         */
+        private PendingSend(Sha256Hash txHash, long broadcastTime) {
+            this.txHash = txHash;
+            this.broadcastTime = broadcastTime;
+            this.interval = INITIAL_INTERVAL;
+            this.nextTime = broadcastTime+INITIAL_INTERVAL;
+        }
+    }
+}
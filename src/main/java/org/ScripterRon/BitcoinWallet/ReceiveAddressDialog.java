@@ -17,9 +17,6 @@ package org.ScripterRon.BitcoinWallet;
 
 import org.ScripterRon.BitcoinCore.Address;
 import org.ScripterRon.BitcoinCore.ECKey;
-import org.ScripterRon.BitcoinCore.FilterLoadMessage;
-import org.ScripterRon.BitcoinCore.Message;
-import org.ScripterRon.BitcoinCore.Script;
 
 import javax.swing.*;
 import javax.swing.table.*;
@@ -172,21 +169,18 @@ public class ReceiveAddressDialog extends JDialog implements ActionListener {
                     }
                 }
             }
-        } catch (WalletException exc) {
-            Main.logException("Unable to update wallet database", exc);
         } catch (Exception exc) {
             Main.logException("Exception while processing action event", exc);
         }
     }
 
     /**
-     * Edit the key
+     * Edit the key.  The wallet database is updated by the wallet service.
      *
      * @param       key                 Key
      * @param       row                 Table row or -1 if the key is not in the table
-     * @throws      WalletException     Unable to update database
      */
-    private void editKey(ECKey key, int row) throws WalletException {
+    private void editKey(ECKey key, int row) {
         //
         // Show the address edit dialog and validate the return label
         //
@@ -234,17 +228,11 @@ public class ReceiveAddressDialog extends JDialog implements ActionListener {
                 //
                 // Update the database and load a new bloom filter if we generated a new key
                 //
-                if (row >= 0) {
-                    Parameters.wallet.setKeyLabel(key);
-                } else {
-                    Parameters.wallet.storeKey(key);
-                    Parameters.bloomFilter.insert(key.getPubKey());
-                    Parameters.bloomFilter.insert(Script.getRedeemScript(key.getPubKeyHash(), false));
-                    Parameters.bloomFilter.insert(key.getPubKeyHash());
-                    Parameters.bloomFilter.insert(key.getScriptHash());
-                    Message filterMsg = FilterLoadMessage.buildFilterLoadMessage(null, Parameters.bloomFilter);
-                    Parameters.networkHandler.broadcastMessage(filterMsg);
-                }
+                (row >= 0 ? Parameters.walletService.setKeyLabel(key) : Parameters.walletService.storeKey(key))
+                        .whenCompleteAsync((result, exc) -> {
+                    if (exc != null)
+                        Main.logException("Unable to update wallet database", WalletService.getCause(exc));
+                }, WalletService.GUI_EXECUTOR);
                 //
                 // Update the table
                 //
@@ -18,15 +18,8 @@ import static org.ScripterRon.BitcoinWallet.Main.log;
 
 import org.ScripterRon.BitcoinCore.Address;
 import org.ScripterRon.BitcoinCore.AddressFormatException;
-import org.ScripterRon.BitcoinCore.ECException;
-import org.ScripterRon.BitcoinCore.InventoryItem;
-import org.ScripterRon.BitcoinCore.InventoryMessage;
-import org.ScripterRon.BitcoinCore.Message;
-import org.ScripterRon.BitcoinCore.ScriptException;
 import org.ScripterRon.BitcoinCore.SignedInput;
-import org.ScripterRon.BitcoinCore.Transaction;
 import org.ScripterRon.BitcoinCore.TransactionOutput;
-import org.ScripterRon.BitcoinCore.VerificationException;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
@@ -46,6 +39,7 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.WindowConstants;
 
+import java.awt.Cursor;
 import java.awt.Dialog;
 import java.awt.Dimension;
 
@@ -54,8 +48,13 @@ import java.awt.event.ActionListener;
 
 /**
  * SendDialog will create a new transaction to send coins to a specified recipient.  Transactions in the safe and
- * unconfirmed transactions will not be selected as inputs.  Inputs will be selected starting with the smallest
- * value and then increasing in value until the send amount has been satisfied.
+ * unconfirmed transactions will not be selected as inputs, except for our own unconfirmed change when spending
+ * unconfirmed change is enabled.  The inputs are chosen by the coin selection engine, which looks for a set of
+ * inputs that does not require a change output.  With coin control, the inputs chosen by the user are used
+ * starting with the smallest value until the send amount has been satisfied.
+ *
+ * The selected inputs are reserved while the send is in progress so another send will not use the same inputs.
+ * The reservation is released if the send is not completed.
  */
 public class SendDialog extends JDialog implements ActionListener {
 
@@ -85,6 +84,9 @@ public class SendDialog extends JDialog implements ActionListener {
     
     /** Coin control */
     private boolean coinControl;
+
+    /** Send request is in progress */
+    private boolean sendPending;
     
     /** KByte to Byte conversion */
     private final BigInteger convertToByteFee = new BigInteger("1000");
@@ -215,7 +217,7 @@ public class SendDialog extends JDialog implements ActionListener {
                     }
                     break;
                 case "send":
-                    if (checkFields()) {
+                    if (!sendPending && checkFields()) {
                         sendCoins();
                     }
                     break;
@@ -229,8 +231,6 @@ public class SendDialog extends JDialog implements ActionListener {
                                           JOptionPane.ERROR_MESSAGE);
         } catch (AddressFormatException exc) {
             JOptionPane.showMessageDialog(this, "Send address is not valid", "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (WalletException exc) {
-            Main.logException("Unable to process send request", exc);
         } catch (Exception exc) {
             Main.logException("Exception while processing action event", exc);
         }
@@ -295,15 +295,51 @@ public class SendDialog extends JDialog implements ActionListener {
     }
 
     /**
-     * Send the coins
+     * Send the coins.  The wallet service reads the available inputs and then creates,
+     * signs and broadcasts the transaction, so the dialog is not blocked while the wallet
+     * database is accessed.
+     */
+    private void sendCoins() {
+        sendPending = true;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        if (coinControl) {
+            Parameters.walletService.getSpendableOutputs().whenCompleteAsync((outputList, exc) -> {
+                if (exc != null) {
+                    sendCompleted();
+                    Main.logException("Unable to process send request", WalletService.getCause(exc));
+                } else {
+                    List<SignedInput> inputList = CoinControlDialog.showDialog(Main.mainWindow, outputList);
+                    if (!Parameters.outputReservations.reserve(inputList)) {
+                        sendCompleted();
+                        JOptionPane.showMessageDialog(this,
+                                "One or more of the selected coins are being spent by another send",
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        buildTransaction(inputList);
+                    }
+                }
+            }, WalletService.GUI_EXECUTOR);
+        } else {
+            Parameters.walletService.selectCoins(sendAmount, baseTxSize.multiply(sendFee), inputSize.multiply(sendFee))
+                    .whenCompleteAsync((selection, exc) -> {
+                if (exc != null) {
+                    sendCompleted();
+                    Main.logException("Unable to process send request", WalletService.getCause(exc));
+                } else {
+                    buildTransaction(selection.getInputs());
+                }
+            }, WalletService.GUI_EXECUTOR);
+        }
+    }
+
+    /**
+     * Build the transaction using the available inputs and send it after the user confirms
+     * the send request.  The available inputs have been reserved and the inputs which are
+     * not used are released.
      *
-     * @throws      WalletException     Unable to process send request
+     * @param       inputList           Available inputs
      */
-    private void sendCoins() throws WalletException {
-        //
-        // Get the list of available inputs
-        //
-        List<SignedInput> inputList = BuildInputList.buildSignedInputs(coinControl);
+    private void buildTransaction(List<SignedInput> inputList) {
         //
         // Build the new transaction
         //
@@ -317,7 +353,6 @@ public class SendDialog extends JDialog implements ActionListener {
         // Each input consists of just the redeem script (23 bytes).
         // Each witness data contains the signature and the public key (108 bytes).
         //
-        Transaction tx = null;
         totalFee = baseTxSize.multiply(sendFee);
         BigInteger totalAmount = sendAmount.add(totalFee);
         List<SignedInput> inputs = new ArrayList<>(inputList.size());
@@ -329,7 +364,10 @@ public class SendDialog extends JDialog implements ActionListener {
             if (totalAmount.signum() <= 0)
                 break;
         }
+        Parameters.outputReservations.release(inputList.subList(inputs.size(), inputList.size()));
         if (totalAmount.signum() > 0) {
+            Parameters.outputReservations.release(inputs);
+            sendCompleted();
             JOptionPane.showMessageDialog(this, "There are not enough coins available",
                                           "Error", JOptionPane.ERROR_MESSAGE);
             return;
@@ -358,25 +396,29 @@ public class SendDialog extends JDialog implements ActionListener {
                                                            Main.satoshiToString(totalFee));
         if (JOptionPane.showConfirmDialog(this, confirmText, "Send Coins", JOptionPane.YES_NO_OPTION,
                                           JOptionPane.QUESTION_MESSAGE) != JOptionPane.YES_OPTION) {
+            Parameters.outputReservations.release(inputs);
+            sendCompleted();
             return;
         }
         //
-        // Create the new transaction using the supplied inputs and outputs
-        //
-        try {
-            tx = new Transaction(inputs, outputs, Parameters.wallet.getChainHeight());
-        } catch (ECException | ScriptException | VerificationException exc) {
-            throw new WalletException("Unable to create transaction", exc);
-        }
-        //
-        // Store the new transaction in the database and broadcast it to our peers
-        //
-        Parameters.databaseHandler.processTransaction(tx);
-        List<InventoryItem> invList = new ArrayList<>(1);
-        invList.add(new InventoryItem(InventoryItem.INV_TX, tx.getHash()));
-        Message invMsg = InventoryMessage.buildInventoryMessage(null, invList);
-        Parameters.networkHandler.broadcastMessage(invMsg);
-        JOptionPane.showMessageDialog(this, String.format("Transaction broadcast to peer nodes\n%s",
-                                      tx.getHash()), "Transaction Broadcast", JOptionPane.INFORMATION_MESSAGE);
+        // Create the new transaction using the supplied inputs and outputs, store it in the
+        // database and broadcast it to our peers
+        //
+        Parameters.walletService.sendTransaction(inputs, outputs, null).whenCompleteAsync((tx, exc) -> {
+            sendCompleted();
+            if (exc != null)
+                Main.logException("Unable to process send request", WalletService.getCause(exc));
+            else
+                JOptionPane.showMessageDialog(this, String.format("Transaction broadcast to peer nodes\n%s",
+                                              tx.getHash()), "Transaction Broadcast", JOptionPane.INFORMATION_MESSAGE);
+        }, WalletService.GUI_EXECUTOR);
+    }
+
+    /**
+     * The send request has completed
+     */
+    private void sendCompleted() {
+        sendPending = false;
+        setCursor(Cursor.getDefaultCursor());
     }
 }
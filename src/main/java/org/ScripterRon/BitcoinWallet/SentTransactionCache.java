@@ -0,0 +1,145 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.TransactionMessage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sent transaction cache holds the 'tx' messages for our pending and recently sent
+ * transactions, so a 'getdata' request can be answered without reading the wallet
+ * database.  The message is built once and a copy sharing the serialized transaction
+ * is created for each requesting peer.
+ *
+ * The number of cached transactions is limited and the least recently used transaction
+ * is removed when the limit is reached.  A transaction is removed once it has reached
+ * the confirmation depth.
+ *
+ * The cache is used by the message handler, database handler and GUI threads, so the
+ * methods are synchronized.
+ */
+public class SentTransactionCache implements WalletListener {
+
+    /** Maximum number of cached transactions */
+    private static final int MAX_TRANSACTIONS = 100;
+
+    /** Transaction messages in order of last use */
+    private final Map<Sha256Hash, Message> txMap = new LinkedHashMap<Sha256Hash, Message>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Message> eldest) {
+            return (size() > MAX_TRANSACTIONS);
+        }
+    };
+
+    /**
+     * Creates the sent transaction cache
+     */
+    public SentTransactionCache() {
+    }
+
+    /**
+     * Adds a transaction to the cache
+     *
+     * @param       txHash          Transaction hash
+     * @param       txData          Serialized transaction
+     */
+    public synchronized void add(Sha256Hash txHash, byte[] txData) {
+        if (!txMap.containsKey(txHash))
+            txMap.put(txHash, TransactionMessage.buildTransactionMessage(null, txData));
+    }
+
+    /**
+     * Returns the 'tx' message for a transaction.  The transaction is read from the
+     * wallet database and added to the cache if it is not already cached.
+     *
+     * @param       peer                Destination peer
+     * @param       txHash              Transaction hash
+     * @return                          'tx' message or null if this is not one of our transactions
+     * @throws      WalletException     Unable to get the transaction
+     */
+    public Message getMessage(Peer peer, Sha256Hash txHash) throws WalletException {
+        Message txMsg;
+        synchronized(this) {
+            txMsg = txMap.get(txHash);
+        }
+        if (txMsg == null) {
+            SendTransaction sendTx = Parameters.wallet.getSendTx(txHash);
+            if (sendTx == null)
+                return null;
+            add(txHash, sendTx.getTxData());
+            synchronized(this) {
+                txMsg = txMap.get(txHash);
+            }
+            if (txMsg == null)
+                return TransactionMessage.buildTransactionMessage(peer, sendTx.getTxData());
+        }
+        return txMsg.clone(peer);
+    }
+
+    /**
+     * Notification when a block is added to the chain (WalletListener interface).
+     * The transactions that have reached the confirmation depth are removed.  We don't
+     * check the cached transactions while we are downloading the block chain.
+     *
+     * @param       blockHeader     Block header
+     */
+    @Override
+    public void addChainBlock(StoredHeader blockHeader) {
+        List<Sha256Hash> txList;
+        synchronized(this) {
+            if (txMap.isEmpty() || Parameters.loadingChain)
+                return;
+            txList = new ArrayList<>(txMap.keySet());
+        }
+        try {
+            for (Sha256Hash txHash : txList) {
+                if (Parameters.wallet.getTxDepth(txHash) >= Parameters.TRANSACTION_CONFIRMED) {
+                    synchronized(this) {
+                        txMap.remove(txHash);
+                    }
+                    log.debug(String.format("Confirmed transaction removed from sent transaction cache\n  Tx %s",
+                                            txHash));
+                }
+            }
+        } catch (WalletException exc) {
+            log.error("Unable to get transaction depth", exc);
+        }
+    }
+
+    /**
+     * Notification when one or more transactions have been updated (WalletListener interface)
+     *
+     * @param       changes         Transaction changes
+     */
+    @Override
+    public void txUpdated(List<TransactionChange> changes) {
+    }
+
+    /**
+     * Notification when a block chain rescan is completed (WalletListener interface)
+     */
+    @Override
+    public void rescanCompleted() {
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.SignedInput;
+
+import java.math.BigInteger;
+
+/**
+ * A spendable output is an unspent wallet transaction output together with the signed
+ * input used to spend it and the height of the block containing the transaction.  The
+ * confirmation depth is computed from the chain height when the output list is built.
+ */
+public class SpendableOutput {
+
+    /** Receive transaction */
+    private final ReceiveTransaction rcvTx;
+
+    /** Signed input */
+    private final SignedInput input;
+
+    /** Block height */
+    private final int blockHeight;
+
+    /** Confirmation depth */
+    private final int depth;
+
+    /** Address string (created when first requested) */
+    private String addressString;
+
+    /**
+     * Creates a spendable output
+     *
+     * @param       rcvTx           Receive transaction
+     * @param       input           Signed input
+     * @param       blockHeight     Height of the block containing the transaction
+     * @param       depth           Confirmation depth
+     */
+    public SpendableOutput(ReceiveTransaction rcvTx, SignedInput input, int blockHeight, int depth) {
+        this.rcvTx = rcvTx;
+        this.input = input;
+        this.blockHeight = blockHeight;
+        this.depth = depth;
+    }
+
+    /**
+     * Returns the receive transaction
+     *
+     * @return                  Receive transaction
+     */
+    public ReceiveTransaction getTransaction() {
+        return rcvTx;
+    }
+
+    /**
+     * Returns the signed input
+     *
+     * @return                  Signed input
+     */
+    public SignedInput getInput() {
+        return input;
+    }
+
+    /**
+     * Returns the output value
+     *
+     * @return                  Value
+     */
+    public BigInteger getValue() {
+        return rcvTx.getValue();
+    }
+
+    /**
+     * Returns the height of the block containing the transaction
+     *
+     * @return                  Block height
+     */
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * Returns the confirmation depth
+     *
+     * @return                  Confirmation depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the name of the key that owns the output
+     *
+     * @return                  Key label
+     */
+    public String getName() {
+        return input.getKey().getLabel();
+    }
+
+    /**
+     * Returns the receiving address as a string
+     *
+     * @return                  Address string
+     */
+    public String getAddressString() {
+        if (addressString == null)
+            addressString = rcvTx.getAddress().toString();
+        return addressString;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2016 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel with millisecond resolution.  Each timeout is placed in the wheel
+ * slot corresponding to its deadline.  A slot contains a doubly-linked list of timeouts,
+ * so scheduling and cancelling a timeout are O(1) operations.  A timeout that is more than
+ * one wheel revolution in the future remains in its slot until the wheel has turned far
+ * enough to reach its deadline.
+ *
+ * The wheel does not have its own thread.  The owner calls advance() to run the expired
+ * timeouts and calls getNextDelay() to determine how long it can wait before the next
+ * timeout expires.  The network handler does this as part of its selector loop.
+ *
+ * The scheduling methods are thread-safe.  The timeout tasks are run by the thread calling
+ * advance() while not holding the wheel lock.
+ */
+public class TimerWheel {
+
+    /** Number of wheel slots (must be a power of 2) */
+    private static final int WHEEL_SIZE = 512;
+
+    /** Wheel slot mask */
+    private static final int WHEEL_MASK = WHEEL_SIZE-1;
+
+    /** Wheel slots */
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+    /** Last tick processed by advance() */
+    private long lastTick;
+
+    /** Number of scheduled timeouts */
+    private int timeoutCount;
+
+    /**
+     * Creates a new timer wheel
+     */
+    public TimerWheel() {
+        lastTick = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules a timeout
+     *
+     * @param       task            Task to run when the timeout expires
+     * @param       delay           Delay in milliseconds
+     * @return                      Timeout
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis()+Math.max(delay, 0));
+        synchronized(this) {
+            link(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Returns the number of scheduled timeouts
+     *
+     * @return                      Timeout count
+     */
+    public synchronized int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Returns the time until the next timeout expires.  We will look ahead one wheel
+     * revolution and return the revolution time if there are no timeouts expiring
+     * during that interval.
+     *
+     * @param       currentTime     Current time
+     * @return                      Delay in milliseconds (at least 1)
+     */
+    public synchronized long getNextDelay(long currentTime) {
+        if (timeoutCount == 0)
+            return WHEEL_SIZE;
+        for (long tick=Math.max(lastTick+1, currentTime-WHEEL_MASK); tick<currentTime+WHEEL_SIZE; tick++) {
+            for (Timeout timeout=wheel[(int)tick&WHEEL_MASK]; timeout!=null; timeout=timeout.next) {
+                if (timeout.deadline <= tick)
+                    return Math.max(1, timeout.deadline-currentTime);
+            }
+        }
+        return WHEEL_SIZE;
+    }
+
+    /**
+     * Advances the wheel to the current time and runs the expired timeouts
+     *
+     * @param       currentTime     Current time
+     * @return                      Number of timeouts that expired
+     */
+    public int advance(long currentTime) {
+        List<Timeout> expiredList = new ArrayList<>();
+        synchronized(this) {
+            //
+            // Visit each slot between the last processed tick and the current time.  We
+            // don't need to visit a slot more than once since a visit processes all of
+            // the expired timeouts in the slot.
+            //
+            long startTick = Math.max(lastTick+1, currentTime-WHEEL_MASK);
+            for (long tick=startTick; tick<=currentTime; tick++) {
+                Timeout timeout = wheel[(int)tick&WHEEL_MASK];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= currentTime) {
+                        unlink(timeout);
+                        expiredList.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            lastTick = Math.max(lastTick, currentTime);
+        }
+        //
+        // Run the expired tasks
+        //
+        expiredList.forEach((timeout) -> timeout.task.run());
+        return expiredList.size();
+    }
+
+    /**
+     * Adds a timeout to its wheel slot
+     *
+     * @param       timeout         Timeout
+     */
+    private void link(Timeout timeout) {
+        //
+        // A timeout that is already due is placed in the next slot to be processed
+        //
+        int slot = (int)Math.max(timeout.deadline, lastTick+1)&WHEEL_MASK;
+        timeout.slot = slot;
+        timeout.next = wheel[slot];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        wheel[slot] = timeout;
+        timeout.scheduled = true;
+        timeoutCount++;
+    }
+
+    /**
+     * Removes a timeout from its wheel slot
+     *
+     * @param       timeout         Timeout
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheel[timeout.slot] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        timeoutCount--;
+    }
+
+    /**
+     * A scheduled timeout
+     */
+    public class Timeout {
+
+        /** Task to run when the timeout expires */
+        private final Runnable task;
+
+        /** Timeout deadline */
+        private final long deadline;
+
+        /** Wheel slot */
+        private int slot;
+
+        /** Previous timeout in the wheel slot */
+        private Timeout prev;
+
+        /** Next timeout in the wheel slot */
+        private Timeout next;
+
+        /** Timeout is scheduled */
+        private boolean scheduled;
+
+        /**
+         * Creates a timeout
+         *
+         * @param       task            Task to run when the timeout expires
+         * @param       deadline        Timeout deadline
+         */
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns the timeout deadline
+         *
+         * @return                      Deadline
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Cancels the timeout.  Nothing is done if the timeout has already expired.
+         *
+         * @return                      TRUE if the timeout was cancelled
+         */
+        public boolean cancel() {
+            synchronized(TimerWheel.this) {
+                if (!scheduled)
+                    return false;
+                unlink(this);
+            }
+            return true;
+        }
+    }
+}
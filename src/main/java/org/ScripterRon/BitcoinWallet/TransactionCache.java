@@ -0,0 +1,407 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.VerificationException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The transaction cache is an append-only local store of the wallet transactions matched
+ * by the bloom filter.  Each transaction is compressed and stored with the hash of the
+ * block containing the transaction.  The cache index is rebuilt from the record headers
+ * when the cache is opened.
+ *
+ * The cache coverage records the range of blocks that have been scanned while the cache
+ * was enabled.  Each key is covered from the scan height when the key was added to the
+ * bloom filter up to the coverage end.  A block chain rescan can then replay the cached
+ * transactions for the covered blocks instead of requesting the filtered blocks from the
+ * network.
+ *
+ * Record format:
+ *   Block hash         32 bytes
+ *   Transaction hash   32 bytes
+ *   Data length        4 bytes
+ *   Data               Compressed serialized transaction
+ *
+ * The transaction cache is used only by the database handler thread and is not synchronized.
+ */
+public class TransactionCache {
+
+    /** Cache file name */
+    private static final String CACHE_FILE = "TransactionCache.dat";
+
+    /** Coverage file name */
+    private static final String COVERAGE_FILE = "TransactionCache.properties";
+
+    /** Record header length */
+    private static final int HEADER_LENGTH = 68;
+
+    /** Number of blocks scanned between coverage updates */
+    private static final int COVERAGE_INTERVAL = 1000;
+
+    /** Cache file */
+    private final RandomAccessFile cacheFile;
+
+    /** Coverage file */
+    private final File coverageFile;
+
+    /** Cached transactions indexed by block hash */
+    private final Map<Sha256Hash, Map<Sha256Hash, Long>> blockMap = new HashMap<>();
+
+    /** Key coverage start heights indexed by address */
+    private final Map<String, Integer> keyCoverage = new HashMap<>();
+
+    /** Cache creation time (seconds) */
+    private long creationTime;
+
+    /** Coverage start height for keys created after the cache */
+    private int coverageStart;
+
+    /** Coverage end height */
+    private int coverageEnd;
+
+    /** Number of blocks scanned since the coverage was saved */
+    private int coverageUpdates;
+
+    /**
+     * Opens the transaction cache.  A new cache is created if the cache does not exist
+     * and the current keys are covered from the block following the scan height.
+     *
+     * @param       dataPath            Application data path
+     * @param       keys                Current keys
+     * @param       scanHeight          Current scan height
+     * @throws      WalletException     Unable to open the cache
+     */
+    public TransactionCache(String dataPath, List<ECKey> keys, int scanHeight) throws WalletException {
+        File file = new File(dataPath+Main.fileSeparator+CACHE_FILE);
+        coverageFile = new File(dataPath+Main.fileSeparator+COVERAGE_FILE);
+        try {
+            if (!file.exists() || !coverageFile.exists()) {
+                file.delete();
+                creationTime = System.currentTimeMillis()/1000;
+                coverageStart = scanHeight+1;
+                coverageEnd = scanHeight;
+                keys.forEach((key) -> keyCoverage.put(key.toAddress().toString(), scanHeight+1));
+                saveCoverage();
+                log.info(String.format("Transaction cache created at height %d", scanHeight+1));
+            } else {
+                loadCoverage();
+            }
+            cacheFile = new RandomAccessFile(file, "rw");
+            loadIndex();
+        } catch (IOException | NumberFormatException exc) {
+            log.error("Unable to open the transaction cache", exc);
+            throw new WalletException("Unable to open the transaction cache");
+        }
+        log.info(String.format("Transaction cache contains %d blocks, coverage ends at height %d",
+                               blockMap.size(), coverageEnd));
+    }
+
+    /**
+     * Closes the transaction cache
+     */
+    public void close() {
+        try {
+            saveCoverage();
+            cacheFile.close();
+        } catch (IOException exc) {
+            log.error("Unable to close the transaction cache", exc);
+        }
+    }
+
+    /**
+     * Adds a transaction to the cache.  Nothing is done if the transaction is already
+     * cached for the block.
+     *
+     * @param       blockHash           Block containing the transaction
+     * @param       tx                  Transaction
+     * @throws      WalletException     Unable to write the cache
+     */
+    public void addTransaction(Sha256Hash blockHash, Transaction tx) throws WalletException {
+        Map<Sha256Hash, Long> txMap = blockMap.get(blockHash);
+        if (txMap != null && txMap.containsKey(tx.getHash()))
+            return;
+        byte[] txData = compress(tx.isWitness() ? tx.getWitnessBytes() : tx.getBytes());
+        try {
+            long offset = cacheFile.length();
+            cacheFile.seek(offset);
+            cacheFile.write(blockHash.getBytes());
+            cacheFile.write(tx.getHash().getBytes());
+            cacheFile.writeInt(txData.length);
+            cacheFile.write(txData);
+            if (txMap == null) {
+                txMap = new LinkedHashMap<>();
+                blockMap.put(blockHash, txMap);
+            }
+            txMap.put(tx.getHash(), offset);
+        } catch (IOException exc) {
+            log.error(String.format("Unable to cache transaction\n  %s", tx.getHash()), exc);
+            throw new WalletException("Unable to write the transaction cache");
+        }
+    }
+
+    /**
+     * Returns the cached transactions for a block in the order they were added
+     *
+     * @param       blockHash           Block hash
+     * @return                          Transaction list (empty if there are no cached transactions)
+     * @throws      WalletException     Unable to read the cache
+     */
+    public List<Transaction> getTransactions(Sha256Hash blockHash) throws WalletException {
+        Map<Sha256Hash, Long> txMap = blockMap.get(blockHash);
+        if (txMap == null)
+            return Collections.emptyList();
+        List<Transaction> txList = new ArrayList<>(txMap.size());
+        try {
+            for (long offset : txMap.values()) {
+                cacheFile.seek(offset+HEADER_LENGTH-4);
+                byte[] txData = new byte[cacheFile.readInt()];
+                cacheFile.readFully(txData);
+                txList.add(new Transaction(new SerializedBuffer(decompress(txData))));
+            }
+        } catch (IOException | VerificationException exc) {
+            log.error(String.format("Unable to read cached transactions\n  Block %s", blockHash), exc);
+            throw new WalletException("Unable to read the transaction cache");
+        }
+        return txList;
+    }
+
+    /**
+     * Adds keys to the cache coverage.  The keys are covered from the specified height.
+     * The coverage start is not changed for a key that is already covered from an
+     * earlier height.
+     *
+     * @param       keys                Keys added to the bloom filter
+     * @param       startHeight         Height of the first block scanned with the keys
+     */
+    public void addKeys(List<ECKey> keys, int startHeight) {
+        boolean updated = false;
+        for (ECKey key : keys) {
+            String address = key.toAddress().toString();
+            Integer height = keyCoverage.get(address);
+            if (height == null || height > startHeight) {
+                keyCoverage.put(address, startHeight);
+                updated = true;
+            }
+        }
+        if (updated)
+            saveCoverage();
+    }
+
+    /**
+     * Returns the height of the first block covered for all of the keys.  A key that
+     * has not been added to the coverage is covered from the cache creation if it was
+     * created after the cache since it has always been in the bloom filter.
+     *
+     * @param       keys                Wallet keys
+     * @return                          Coverage start height or -1 if a key is not covered
+     */
+    public int getCoverageStart(List<ECKey> keys) {
+        int startHeight = coverageStart;
+        for (ECKey key : keys) {
+            Integer height = keyCoverage.get(key.toAddress().toString());
+            if (height == null) {
+                if (key.getCreationTime() < creationTime)
+                    return -1;
+                height = coverageStart;
+            }
+            startHeight = Math.max(startHeight, height);
+        }
+        return (startHeight <= coverageEnd ? startHeight : -1);
+    }
+
+    /**
+     * Returns the height of the last block covered by the cache
+     *
+     * @return                          Coverage end height
+     */
+    public int getCoverageEnd() {
+        return coverageEnd;
+    }
+
+    /**
+     * Extends the coverage when the scan height advances past the coverage end.  The
+     * coverage must be contiguous, so nothing is done if the previous scan height is
+     * not within the coverage.
+     *
+     * @param       prevHeight          Previous scan height
+     * @param       scanHeight          New scan height
+     */
+    public void blocksScanned(int prevHeight, int scanHeight) {
+        if (prevHeight > coverageEnd || scanHeight <= coverageEnd)
+            return;
+        coverageUpdates += scanHeight-coverageEnd;
+        coverageEnd = scanHeight;
+        if (coverageUpdates >= COVERAGE_INTERVAL)
+            saveCoverage();
+    }
+
+    /**
+     * Truncates the coverage when the block chain is reorganized.  The blocks on the
+     * new chain following the junction block have not been scanned.
+     *
+     * @param       junctionHeight      Height of the junction block
+     */
+    public void chainReorganized(int junctionHeight) {
+        if (junctionHeight < coverageEnd) {
+            coverageEnd = junctionHeight;
+            saveCoverage();
+        }
+    }
+
+    /**
+     * Loads the cache index from the record headers.  A partial record at the end of
+     * the file is discarded.
+     *
+     * @throws      IOException         Unable to read the cache
+     */
+    private void loadIndex() throws IOException {
+        long fileLength = cacheFile.length();
+        long offset = 0;
+        byte[] hashBytes = new byte[32];
+        while (offset+HEADER_LENGTH <= fileLength) {
+            cacheFile.seek(offset);
+            cacheFile.readFully(hashBytes);
+            Sha256Hash blockHash = new Sha256Hash(hashBytes);
+            cacheFile.readFully(hashBytes);
+            Sha256Hash txHash = new Sha256Hash(hashBytes);
+            int length = cacheFile.readInt();
+            if (length < 0 || offset+HEADER_LENGTH+length > fileLength)
+                break;
+            Map<Sha256Hash, Long> txMap = blockMap.get(blockHash);
+            if (txMap == null) {
+                txMap = new LinkedHashMap<>();
+                blockMap.put(blockHash, txMap);
+            }
+            txMap.put(txHash, offset);
+            offset += HEADER_LENGTH+length;
+        }
+        if (offset < fileLength) {
+            log.warn(String.format("Transaction cache truncated at offset %d", offset));
+            cacheFile.setLength(offset);
+        }
+    }
+
+    /**
+     * Loads the cache coverage
+     *
+     * @throws      IOException             Unable to read the coverage file
+     * @throws      NumberFormatException   Coverage value is not valid
+     */
+    private void loadCoverage() throws IOException, NumberFormatException {
+        Properties props = new Properties();
+        try (FileInputStream in = new FileInputStream(coverageFile)) {
+            props.load(in);
+        }
+        creationTime = Long.parseLong(props.getProperty("created"));
+        coverageStart = Integer.parseInt(props.getProperty("start"));
+        coverageEnd = Integer.parseInt(props.getProperty("end"));
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("key."))
+                keyCoverage.put(name.substring(4), Integer.parseInt(props.getProperty(name)));
+        }
+    }
+
+    /**
+     * Saves the cache coverage.  The coverage end is conservative if the coverage is
+     * not saved before the application stops.
+     */
+    private void saveCoverage() {
+        Properties props = new Properties();
+        props.setProperty("created", Long.toString(creationTime));
+        props.setProperty("start", Integer.toString(coverageStart));
+        props.setProperty("end", Integer.toString(coverageEnd));
+        keyCoverage.forEach((address, height) -> props.setProperty("key."+address, height.toString()));
+        try (FileOutputStream out = new FileOutputStream(coverageFile)) {
+            props.store(out, "BitcoinWallet Transaction Cache Coverage");
+            coverageUpdates = 0;
+        } catch (IOException exc) {
+            log.error("Unable to save the transaction cache coverage", exc);
+        }
+    }
+
+    /**
+     * Compresses the serialized transaction
+     *
+     * @param       data                Serialized transaction
+     * @return                          Compressed data
+     */
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length+64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length*2);
+            length += deflater.deflate(buffer, length, buffer.length-length);
+        }
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Decompresses the serialized transaction
+     *
+     * @param       data                Compressed data
+     * @return                          Serialized transaction
+     * @throws      EOFException        Compressed data is not valid
+     */
+    private static byte[] decompress(byte[] data) throws EOFException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] buffer = new byte[data.length*4+64];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length*2);
+                int count = inflater.inflate(buffer, length, buffer.length-length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new EOFException("Compressed transaction is incomplete");
+                length += count;
+            }
+        } catch (DataFormatException exc) {
+            throw new EOFException("Compressed transaction is not valid");
+        } finally {
+            inflater.end();
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+/**
+ * TransactionChange describes a change to a wallet transaction.  A transaction entry can
+ * be added, updated or deleted.  A status change indicates that the status of all of the
+ * entries for a transaction has changed without a change to the entries themselves.
+ */
+public class TransactionChange {
+
+    /** Change types */
+    public enum ChangeType {ADDED, UPDATED, DELETED, STATUS}
+
+    /** Change type */
+    private final ChangeType type;
+
+    /** Transaction hash */
+    private final Sha256Hash txHash;
+
+    /** Wallet transaction or null for a status change */
+    private final WalletTransaction tx;
+
+    /**
+     * Creates a change for a wallet transaction entry
+     *
+     * @param       type            Change type
+     * @param       tx              Wallet transaction
+     */
+    public TransactionChange(ChangeType type, WalletTransaction tx) {
+        this.type = type;
+        this.txHash = tx.getTxHash();
+        this.tx = tx;
+    }
+
+    /**
+     * Creates a status change for a transaction
+     *
+     * @param       txHash          Transaction hash
+     */
+    public TransactionChange(Sha256Hash txHash) {
+        this.type = ChangeType.STATUS;
+        this.txHash = txHash;
+        this.tx = null;
+    }
+
+    /**
+     * Returns the change type
+     *
+     * @return                  Change type
+     */
+    public ChangeType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the transaction hash
+     *
+     * @return                  Transaction hash
+     */
+    public Sha256Hash getTxHash() {
+        return txHash;
+    }
+
+    /**
+     * Returns the wallet transaction
+     *
+     * @return                  Wallet transaction or null for a status change
+     */
+    public WalletTransaction getTransaction() {
+        return tx;
+    }
+}
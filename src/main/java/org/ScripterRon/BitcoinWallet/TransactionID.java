@@ -0,0 +1,82 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+/**
+ * TransactionID consists of the transaction hash plus the transaction output index
+ */
+public class TransactionID {
+
+    /** Transaction hash */
+    private final Sha256Hash txHash;
+
+    /** Transaction output index */
+    private final int txIndex;
+
+    /**
+     * Creates the transaction ID
+     *
+     * @param       txHash          Transaction hash
+     * @param       txIndex         Transaction output index
+     */
+    public TransactionID(Sha256Hash txHash, int txIndex) {
+        this.txHash = txHash;
+        this.txIndex = txIndex;
+    }
+
+    /**
+     * Returns the transaction hash
+     *
+     * @return                  Transaction hash
+     */
+    public Sha256Hash getTxHash() {
+        return txHash;
+    }
+
+    /**
+     * Returns the transaction output index
+     *
+     * @return                  Transaction output index
+     */
+    public int getTxIndex() {
+        return txIndex;
+    }
+
+    /**
+     * Compares two objects
+     *
+     * @param       obj         Object to compare
+     * @return                  TRUE if the objects are equal
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return (obj!=null && (obj instanceof TransactionID) &&
+                    txHash.equals(((TransactionID)obj).txHash) &&
+                    txIndex==((TransactionID)obj).txIndex);
+    }
+
+    /**
+     * Returns the hash code
+     *
+     * @return                  Hash code
+     */
+    @Override
+    public int hashCode() {
+        return txHash.hashCode();
+    }
+}
@@ -14,16 +14,24 @@
  * limitations under the License.
  */
 package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
 
 import org.ScripterRon.BitcoinCore.Address;
 import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
 import javax.swing.*;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
@@ -33,9 +41,18 @@ import java.awt.Toolkit;
 
 /**
  * TransactionPanel displays a table containing all of the wallet transactions
+ *
+ * The transaction history is read from the database a page at a time by a background
+ * loader thread.  The display values for each row are computed when the row is loaded
+ * and are cached, so painting the table does not access the database.  The confirmation
+ * status is computed from the cached block height and the loader refreshes the block
+ * height for the recent transactions when a new block is added to the chain.
  */
 public class TransactionPanel extends JPanel implements ActionListener {
 
+    /** Number of transactions read from the database at a time */
+    private static final int PAGE_SIZE = 1000;
+
     /** Transaction table column classes */
     private static final Class<?>[] columnClasses = {
         Date.class, String.class, String.class, String.class, BigInteger.class, BigInteger.class,
@@ -70,10 +87,19 @@ public class TransactionPanel extends JPanel implements ActionListener {
     private final TransactionTableModel tableModel;
 
     /** Safe balance */
-    private BigInteger safeBalance;
+    private BigInteger safeBalance = BigInteger.ZERO;
 
     /** Wallet balance */
-    private BigInteger walletBalance;
+    private BigInteger walletBalance = BigInteger.ZERO;
+
+    /** Transaction loader requests */
+    private final LinkedBlockingQueue<Runnable> loaderQueue = new LinkedBlockingQueue<>();
+
+    /** Current load generation (incremented each time the table is rebuilt) */
+    private volatile int loadGeneration;
+
+    /** Block height refresh is pending */
+    private boolean refreshPending;
 
     /**
      * Create the transaction panel
@@ -132,6 +158,13 @@ public class TransactionPanel extends JPanel implements ActionListener {
         add(scrollPane);
         add(Box.createVerticalStrut(15));
         add(buttonPane);
+        //
+        // Start the transaction loader and load the transaction history
+        //
+        Thread loaderThread = new Thread(() -> runLoader(), "Transaction Loader");
+        loaderThread.setDaemon(true);
+        loaderThread.start();
+        tableModel.reload();
     }
 
     /**
@@ -161,46 +194,66 @@ public class TransactionPanel extends JPanel implements ActionListener {
                         cb.setContents(sel, null);
                         break;
                     case "move to safe":
-                        if (moveToSafe(row)) {
-                            tableModel.fireTableRowsUpdated(row, row);
-                            walletLabel.setText(getWalletText());
-                            safeLabel.setText(getSafeText());
-                        }
+                        moveToSafe(row);
                         break;
                     case "move to wallet":
-                        if (moveToWallet(row)) {
-                            tableModel.fireTableRowsUpdated(row, row);
-                            walletLabel.setText(getWalletText());
-                            safeLabel.setText(getSafeText());
-                        }
+                        moveToWallet(row);
                         break;
                 }
             }
-        } catch (WalletException exc) {
-            Main.logException("Unable to update wallet", exc);
         } catch (Exception exc) {
             Main.logException("Exception while processing action event", exc);
         }
     }
 
     /**
-     * The wallet has changed
+     * Wallet transactions have been added, updated or deleted
+     *
+     * @param       changes         Transaction changes
+     */
+    public void transactionsChanged(List<TransactionChange> changes) {
+        List<TransactionRow> refreshList = tableModel.applyChanges(changes);
+        if (!refreshList.isEmpty()) {
+            int generation = loadGeneration;
+            loaderQueue.offer(() -> refreshHeights(generation, refreshList));
+        }
+        walletLabel.setText(getWalletText());
+        safeLabel.setText(getSafeText());
+    }
+
+    /**
+     * The wallet has changed and the transaction table must be rebuilt
      */
     public void walletChanged() {
-        int row = table.getSelectedRow();
-        tableModel.walletChanged();
-        if (row >= 0 && row < table.getRowCount())
-            table.setRowSelectionInterval(row, row);
+        tableModel.reload();
         walletLabel.setText(getWalletText());
         safeLabel.setText(getSafeText());
     }
 
     /**
-     * A new block has been received
+     * A new block has been received.  The status is updated using the cached block heights
+     * and the block heights are refreshed for the unconfirmed and recently confirmed
+     * transactions.
      */
     public void statusChanged() {
         blockLabel.setText(getBlockText());
-        tableModel.fireTableDataChanged();
+        tableModel.fireColumnUpdated(7);
+        if (!refreshPending) {
+            List<TransactionRow> refreshList = tableModel.getRecentRows();
+            if (!refreshList.isEmpty()) {
+                refreshPending = true;
+                int generation = loadGeneration;
+                loaderQueue.offer(() -> refreshHeights(generation, refreshList));
+            }
+        }
+    }
+
+    /**
+     * The address labels have changed
+     */
+    public void labelsChanged() {
+        tableModel.clearNames();
+        tableModel.fireColumnUpdated(3);
     }
 
     /**
@@ -209,59 +262,68 @@ public class TransactionPanel extends JPanel implements ActionListener {
      * We will not move a transaction unless it has spendable coins
      *
      * @param       row                 The transaction row
-     * @return                          TRUE if the transaction was moved
-     * @throws      WalletException     Unable to update wallet
      */
-    private boolean moveToSafe(int row) throws WalletException {
+    private void moveToSafe(int row) {
         WalletTransaction tx = tableModel.getTransaction(row);
         if (!(tx instanceof ReceiveTransaction)) {
             JOptionPane.showMessageDialog(this, "The safe contains coins that you have received and not spent",
                                           "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+            return;
         }
         ReceiveTransaction rcvTx = (ReceiveTransaction)tx;
         if (rcvTx.inSafe()) {
             JOptionPane.showMessageDialog(this, "The transaction is already in the safe",
                                           "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+            return;
         }
         if (rcvTx.isSpent()) {
             JOptionPane.showMessageDialog(this, "The coins have already been spent",
                                           "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+            return;
         }
-        Parameters.wallet.setTxSafe(rcvTx.getTxHash(), rcvTx.getTxIndex(), true);
-        rcvTx.setSafe(true);
-        safeBalance = safeBalance.add(rcvTx.getValue());
-        walletBalance = walletBalance.subtract(rcvTx.getValue());
-        return true;
+        Parameters.walletService.setTxSafe(rcvTx, true)
+                .whenCompleteAsync((result, exc) -> safeUpdated(rcvTx, true, exc), WalletService.GUI_EXECUTOR);
     }
 
     /**
      * Move a transaction from the safe to the wallet
      *
      * @param       row                 The transaction row
-     * @return                          TRUE if the transaction was moved
-     * @throws      WalletException     Unable to update wallet
      */
-    private boolean moveToWallet(int row) throws WalletException {
+    private void moveToWallet(int row) {
         WalletTransaction tx = tableModel.getTransaction(row);
         if (!(tx instanceof ReceiveTransaction)) {
             JOptionPane.showMessageDialog(this, "The safe contains coins that you have received and not spent",
                                           "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+            return;
         }
         ReceiveTransaction rcvTx = (ReceiveTransaction)tx;
         if (!rcvTx.inSafe()) {
             JOptionPane.showMessageDialog(this, "The transaction is not in the safe",
                                           "Error", JOptionPane.ERROR_MESSAGE);
-            return false;
+            return;
+        }
+        Parameters.walletService.setTxSafe(rcvTx, false)
+                .whenCompleteAsync((result, exc) -> safeUpdated(rcvTx, false, exc), WalletService.GUI_EXECUTOR);
+    }
+
+    /**
+     * The wallet service has moved a transaction to or from the safe.  The table row is
+     * located again since the table may have changed while the wallet was updated.
+     *
+     * @param       rcvTx               Receive transaction
+     * @param       inSafe              TRUE if the transaction was moved to the safe
+     * @param       exc                 Exception or null if the wallet was updated
+     */
+    private void safeUpdated(ReceiveTransaction rcvTx, boolean inSafe, Throwable exc) {
+        if (exc != null) {
+            Main.logException("Unable to update wallet", WalletService.getCause(exc));
+            return;
+        }
+        if (tableModel.setSafe(rcvTx, inSafe)) {
+            walletLabel.setText(getWalletText());
+            safeLabel.setText(getSafeText());
         }
-        Parameters.wallet.setTxSafe(rcvTx.getTxHash(), rcvTx.getTxIndex(), false);
-        walletBalance = walletBalance.add(rcvTx.getValue());
-        safeBalance = safeBalance.subtract(rcvTx.getValue());
-        rcvTx.setSafe(false);
-        return true;
     }
 
     /**
@@ -285,6 +347,156 @@ public class TransactionPanel extends JPanel implements ActionListener {
         return String.format("<html><h2>Block %d</h2></html>", Parameters.wallet.getChainHeight());
     }
 
+    /**
+     * Processes transaction loader requests until the application exits.  The loader
+     * thread reads the wallet database and passes the results to the event dispatch thread.
+     */
+    private void runLoader() {
+        try {
+            while (true) {
+                Runnable request = loaderQueue.take();
+                request.run();
+            }
+        } catch (InterruptedException exc) {
+            log.warn("Transaction loader interrupted", exc);
+        } catch (Exception exc) {
+            log.error("Exception while loading transactions", exc);
+        }
+    }
+
+    /**
+     * Loads the wallet transactions a page at a time (loader thread).  Each page is added
+     * to the table once the display values have been computed.  Loading stops if the table
+     * is rebuilt before all of the pages have been read.
+     *
+     * @param       generation      Load generation
+     * @param       keys            Wallet keys
+     * @param       addresses       Send addresses
+     */
+    private void loadTransactions(int generation, List<ECKey> keys, List<Address> addresses) {
+        long startTime = System.currentTimeMillis();
+        Map<Sha256Hash, Integer> heightMap = new HashMap<>();
+        int sendOffset = 0, rcvOffset = 0, rowCount = 0;
+        boolean sendDone = false, rcvDone = false;
+        try {
+            while (!sendDone || !rcvDone) {
+                if (generation != loadGeneration)
+                    return;
+                List<TransactionRow> rows = new ArrayList<>(2*PAGE_SIZE);
+                if (!sendDone) {
+                    List<SendTransaction> sendList = Parameters.wallet.getSendTxPage(sendOffset, PAGE_SIZE);
+                    sendOffset += sendList.size();
+                    sendDone = (sendList.size() < PAGE_SIZE);
+                    for (SendTransaction sendTx : sendList)
+                        rows.add(new TransactionRow(sendTx, getBlockHeight(sendTx, heightMap),
+                                                    getName(sendTx, keys, addresses)));
+                }
+                if (!rcvDone) {
+                    List<ReceiveTransaction> rcvList = Parameters.wallet.getReceiveTxPage(rcvOffset, PAGE_SIZE);
+                    rcvOffset += rcvList.size();
+                    rcvDone = (rcvList.size() < PAGE_SIZE);
+                    for (ReceiveTransaction rcvTx : rcvList) {
+                        if (!rcvTx.isChange())
+                            rows.add(new TransactionRow(rcvTx, getBlockHeight(rcvTx, heightMap),
+                                                        getName(rcvTx, keys, addresses)));
+                    }
+                }
+                rowCount += rows.size();
+                boolean done = (sendDone && rcvDone);
+                SwingUtilities.invokeLater(() -> {
+                    tableModel.addRows(generation, rows, done);
+                    walletLabel.setText(getWalletText());
+                    safeLabel.setText(getSafeText());
+                });
+            }
+            log.info(String.format("%d wallet transactions loaded in %d ms",
+                                   rowCount, System.currentTimeMillis()-startTime));
+        } catch (WalletException exc) {
+            log.error("Unable to load wallet transactions", exc);
+        }
+    }
+
+    /**
+     * Refreshes the block heights for a list of table rows (loader thread)
+     *
+     * @param       generation      Load generation
+     * @param       rows            Table rows
+     */
+    private void refreshHeights(int generation, List<TransactionRow> rows) {
+        int[] heights = new int[rows.size()];
+        try {
+            for (int i=0; i<rows.size(); i++) {
+                if (generation != loadGeneration)
+                    break;
+                heights[i] = Parameters.wallet.getTxHeight(rows.get(i).getTransaction().getTxHash());
+            }
+        } catch (WalletException exc) {
+            log.error("Unable to refresh transaction heights", exc);
+        }
+        SwingUtilities.invokeLater(() -> {
+            refreshPending = false;
+            tableModel.setHeights(generation, rows, heights);
+        });
+    }
+
+    /**
+     * Returns the height of the block containing a transaction (loader thread)
+     *
+     * @param       tx                  Wallet transaction
+     * @param       heightMap           Block heights indexed by block hash
+     * @return                          Block height or -1 if the transaction is not confirmed
+     * @throws      WalletException     Unable to get the block header
+     */
+    private int getBlockHeight(WalletTransaction tx, Map<Sha256Hash, Integer> heightMap)
+                                        throws WalletException {
+        Sha256Hash blockHash = tx.getBlockHash();
+        if (blockHash == null)
+            return -1;
+        Integer height = heightMap.get(blockHash);
+        if (height == null) {
+            StoredHeader header = Parameters.wallet.getHeader(blockHash);
+            height = (header != null ? header.getBlockHeight() : -1);
+            heightMap.put(blockHash, height);
+        }
+        return height;
+    }
+
+    /**
+     * Returns the display name for a transaction.  This is the label for the address if
+     * it has one, otherwise it is the address.
+     *
+     * @param       tx              Wallet transaction
+     * @param       keys            Wallet keys
+     * @param       addresses       Send addresses
+     * @return                      Display name
+     */
+    private static String getName(WalletTransaction tx, List<ECKey> keys, List<Address> addresses) {
+        String name = null;
+        Address addr = tx.getAddress();
+        if (tx instanceof ReceiveTransaction) {
+            // We store the P2PKH address for all receive transactions
+            for (ECKey chkKey : keys) {
+                if (Arrays.equals(chkKey.getPubKeyHash(), addr.getHash())) {
+                    if (chkKey.getLabel().length() > 0)
+                        name = chkKey.getLabel();
+                    break;
+                }
+            }
+        } else {
+            for (Address chkAddr : addresses) {
+                // We store the actual address (P2PKH or P2SH) for send transactions
+                if (chkAddr.equals(addr)) {
+                    if (chkAddr.getLabel().length() > 0)
+                        name = chkAddr.getLabel();
+                    break;
+                }
+            }
+        }
+        if (name == null)
+            name = addr.toString();
+        return name;
+    }
+
     /**
      * Transaction table model
      */
@@ -296,8 +508,38 @@ public class TransactionPanel extends JPanel implements ActionListener {
         /** Column classes */
         private Class<?>[] columnClasses;
 
-        /** Wallet transactions */
-        private final List<WalletTransaction> txList = new LinkedList<>();
+        /** Table rows sorted by descending transaction time */
+        private final List<TransactionRow> rowList = new ArrayList<>();
+
+        /** Table rows indexed by transaction hash */
+        private final Map<Sha256Hash, List<TransactionRow>> rowIndex = new HashMap<>();
+
+        /** Send transaction rows indexed by normalized transaction ID */
+        private final Map<Sha256Hash, TransactionRow> sendIndex = new HashMap<>();
+
+        /** Updates for rows that have not been loaded yet */
+        private final Map<TransactionID, WalletTransaction> pendingUpdates = new HashMap<>();
+
+        /** Transaction history is being loaded */
+        private boolean loading;
+
+        /**
+         * Table row order.  The newest transaction is first.  A receive transaction is sorted
+         * before a send transaction with the same time and the transaction hash and output
+         * index provide a unique order for the remaining entries.
+         */
+        private final Comparator<TransactionRow> rowComparator = (row1, row2) -> {
+            WalletTransaction tx1 = row1.getTransaction();
+            WalletTransaction tx2 = row2.getTransaction();
+            int cmp = Long.compare(tx2.getTxTime(), tx1.getTxTime());
+            if (cmp == 0)
+                cmp = Boolean.compare(tx1 instanceof SendTransaction, tx2 instanceof SendTransaction);
+            if (cmp == 0)
+                cmp = tx1.getTxHash().compareTo(tx2.getTxHash());
+            if (cmp == 0)
+                cmp = Integer.compare(getTxIndex(tx1), getTxIndex(tx2));
+            return cmp;
+        };
 
         /**
          * Create the transaction table model
@@ -311,55 +553,328 @@ public class TransactionPanel extends JPanel implements ActionListener {
                 throw new IllegalArgumentException("Number of names not same as number of classes");
             this.columnNames = columnNames;
             this.columnClasses = columnClasses;
-            buildTxList();
         }
 
         /**
-         * Build the wallet transaction list and update the balances
+         * Clears the table and starts loading the transaction history
          */
-        private void buildTxList() {
-            txList.clear();
+        public void reload() {
+            rowList.clear();
+            rowIndex.clear();
+            sendIndex.clear();
+            pendingUpdates.clear();
             walletBalance = BigInteger.ZERO;
             safeBalance = BigInteger.ZERO;
-            try {
-                List<SendTransaction> sendList = Parameters.wallet.getSendTxList();
-                for (SendTransaction sendTx : sendList) {
-                    long txTime = sendTx.getTxTime();
-                    walletBalance = walletBalance.subtract(sendTx.getValue()).subtract(sendTx.getFee());
-                    boolean added = false;
-                    for (int i=0; i<txList.size(); i++) {
-                        if (txList.get(i).getTxTime() <= txTime) {
-                            txList.add(i, sendTx);
-                            added = true;
-                            break;
-                        }
-                    }
-                    if (!added)
-                        txList.add(sendTx);
+            loading = true;
+            fireTableDataChanged();
+            int generation = ++loadGeneration;
+            List<ECKey> keys = new ArrayList<>(Parameters.keys);
+            List<Address> addresses = new ArrayList<>(Parameters.addresses);
+            loaderQueue.offer(() -> loadTransactions(generation, keys, addresses));
+        }
+
+        /**
+         * Adds a page of rows read by the transaction loader.  Rows that are already in the
+         * table are skipped and updates received while the page was being read are applied.
+         * The selected row remains selected.
+         *
+         * @param       generation      Load generation
+         * @param       rows            Table rows
+         * @param       done            TRUE if this is the last page
+         */
+        public void addRows(int generation, List<TransactionRow> rows, boolean done) {
+            if (generation != loadGeneration)
+                return;
+            TransactionRow selectedRow = null;
+            int viewRow = table.getSelectedRow();
+            if (viewRow >= 0)
+                selectedRow = rowList.get(table.convertRowIndexToModel(viewRow));
+            for (TransactionRow row : rows) {
+                WalletTransaction tx = pendingUpdates.remove(getKey(row.getTransaction()));
+                if (tx != null)
+                    row.setTransaction(tx);
+                if (replaceDuplicate(row))
+                    continue;
+                rowList.add(row);
+                indexRow(row);
+                updateBalance(row.getTransaction(), true);
+            }
+            Collections.sort(rowList, rowComparator);
+            fireTableDataChanged();
+            if (selectedRow != null) {
+                int row = Collections.binarySearch(rowList, selectedRow, rowComparator);
+                if (row >= 0) {
+                    viewRow = table.convertRowIndexToView(row);
+                    table.setRowSelectionInterval(viewRow, viewRow);
                 }
-                List<ReceiveTransaction> rcvList = Parameters.wallet.getReceiveTxList();
-                for (ReceiveTransaction rcvTx : rcvList) {
-                    if (rcvTx.isChange())
-                        continue;
-                    if (rcvTx.inSafe())
-                        safeBalance = safeBalance.add(rcvTx.getValue());
-                    else
-                        walletBalance = walletBalance.add(rcvTx.getValue());
-                    long txTime = rcvTx.getTxTime();
-                    boolean added = false;
-                    for (int i=0; i<txList.size(); i++) {
-                        if (txList.get(i).getTxTime() <= txTime) {
-                            txList.add(i, rcvTx);
-                            added = true;
-                            break;
+            }
+            if (done) {
+                loading = false;
+                pendingUpdates.clear();
+            }
+        }
+
+        /**
+         * Applies wallet transaction changes to the table rows and the balances.  The
+         * table is notified of the inserted, updated and deleted rows.
+         *
+         * @param       changes         Transaction changes
+         * @return                      Rows needing a block height refresh
+         */
+        public List<TransactionRow> applyChanges(List<TransactionChange> changes) {
+            List<TransactionRow> refreshList = new ArrayList<>();
+            for (TransactionChange change : changes) {
+                WalletTransaction tx = change.getTransaction();
+                if (tx instanceof ReceiveTransaction && ((ReceiveTransaction)tx).isChange())
+                    continue;
+                switch (change.getType()) {
+                    case ADDED:
+                        TransactionRow newRow = new TransactionRow(tx, -1,
+                                                        getName(tx, Parameters.keys, Parameters.addresses));
+                        TransactionRow oldRow = findRow(tx);
+                        if (oldRow != null) {
+                            updateRow(oldRow, tx);
+                            refreshList.add(oldRow);
+                        } else if (!replaceDuplicate(newRow)) {
+                            int row = -(Collections.binarySearch(rowList, newRow, rowComparator)+1);
+                            rowList.add(row, newRow);
+                            indexRow(newRow);
+                            updateBalance(tx, true);
+                            fireTableRowsInserted(row, row);
+                            refreshList.add(newRow);
                         }
-                    }
-                    if (!added)
-                        txList.add(rcvTx);
+                        break;
+                    case UPDATED:
+                        oldRow = findRow(tx);
+                        if (oldRow != null) {
+                            updateRow(oldRow, tx);
+                            refreshList.add(oldRow);
+                        } else if (loading) {
+                            pendingUpdates.put(getKey(tx), tx);
+                        }
+                        break;
+                    case DELETED:
+                        oldRow = findRow(tx);
+                        if (oldRow != null) {
+                            removeRow(oldRow);
+                        } else if (loading) {
+                            pendingUpdates.remove(getKey(tx));
+                        }
+                        break;
+                    case STATUS:
+                        List<TransactionRow> rows = rowIndex.get(change.getTxHash());
+                        if (rows != null) {
+                            for (TransactionRow row : rows) {
+                                int index = Collections.binarySearch(rowList, row, rowComparator);
+                                fireTableRowsUpdated(index, index);
+                            }
+                        }
+                        break;
                 }
-            } catch (WalletException exc) {
-                Main.logException("Unable to build transaction list", exc);
             }
+            return refreshList;
+        }
+
+        /**
+         * Sets the refreshed block heights
+         *
+         * @param       generation      Load generation
+         * @param       rows            Table rows
+         * @param       heights         Block heights
+         */
+        public void setHeights(int generation, List<TransactionRow> rows, int[] heights) {
+            if (generation != loadGeneration)
+                return;
+            for (int i=0; i<rows.size(); i++) {
+                TransactionRow row = rows.get(i);
+                if (row.getHeight() == heights[i])
+                    continue;
+                row.setHeight(heights[i]);
+                int index = Collections.binarySearch(rowList, row, rowComparator);
+                if (index >= 0)
+                    fireTableRowsUpdated(index, index);
+            }
+        }
+
+        /**
+         * Returns the rows for the unconfirmed transactions and the transactions that have
+         * not reached the confirmation depth
+         *
+         * @return                      Table rows
+         */
+        public List<TransactionRow> getRecentRows() {
+            List<TransactionRow> rows = new ArrayList<>();
+            int chainHeight = Parameters.wallet.getChainHeight();
+            rowList.stream()
+                    .filter((row) -> row.getHeight() < 0 ||
+                                     chainHeight-row.getHeight()+1 < Parameters.TRANSACTION_CONFIRMED)
+                    .forEach((row) -> rows.add(row));
+            return rows;
+        }
+
+        /**
+         * Clears the cached display names
+         */
+        public void clearNames() {
+            rowList.forEach((row) -> row.setName(null));
+        }
+
+        /**
+         * Notifies the table that a column has changed for all rows
+         *
+         * @param       column          Column number
+         */
+        public void fireColumnUpdated(int column) {
+            if (!rowList.isEmpty())
+                fireTableChanged(new TableModelEvent(this, 0, rowList.size()-1, column));
+        }
+
+        /**
+         * Returns the table row for a wallet transaction
+         *
+         * @param       tx              Wallet transaction
+         * @return                      Table row or null if the transaction is not in the table
+         */
+        private TransactionRow findRow(WalletTransaction tx) {
+            List<TransactionRow> rows = rowIndex.get(tx.getTxHash());
+            if (rows != null) {
+                for (TransactionRow row : rows) {
+                    WalletTransaction rowTx = row.getTransaction();
+                    if (rowTx.getClass() == tx.getClass() && getTxIndex(rowTx) == getTxIndex(tx))
+                        return row;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Checks for a duplicate of a new row.  A duplicate is a row for the same transaction
+         * output or a send transaction with the same normalized ID.  The duplicate is replaced
+         * if the new row is confirmed and the duplicate is not.
+         *
+         * @param       newRow          New table row
+         * @return                      TRUE if the new row should not be added
+         */
+        private boolean replaceDuplicate(TransactionRow newRow) {
+            WalletTransaction tx = newRow.getTransaction();
+            TransactionRow oldRow;
+            if (tx instanceof SendTransaction)
+                oldRow = sendIndex.get(tx.getNormalizedID());
+            else
+                oldRow = findRow(tx);
+            if (oldRow == null)
+                return false;
+            if (tx.getBlockHash() == null || oldRow.getTransaction().getBlockHash() != null)
+                return true;
+            removeRow(oldRow);
+            return false;
+        }
+
+        /**
+         * Replaces the wallet transaction for a table row
+         *
+         * @param       row             Table row
+         * @param       tx              Updated wallet transaction
+         */
+        private void updateRow(TransactionRow row, WalletTransaction tx) {
+            int index = Collections.binarySearch(rowList, row, rowComparator);
+            updateBalance(row.getTransaction(), false);
+            updateBalance(tx, true);
+            if (tx.getTxTime() == row.getTransaction().getTxTime()) {
+                row.setTransaction(tx);
+                fireTableRowsUpdated(index, index);
+            } else {
+                rowList.remove(index);
+                fireTableRowsDeleted(index, index);
+                row.setTransaction(tx);
+                index = -(Collections.binarySearch(rowList, row, rowComparator)+1);
+                rowList.add(index, row);
+                fireTableRowsInserted(index, index);
+            }
+        }
+
+        /**
+         * Removes a table row
+         *
+         * @param       row             Table row
+         */
+        private void removeRow(TransactionRow row) {
+            int index = Collections.binarySearch(rowList, row, rowComparator);
+            rowList.remove(index);
+            unindexRow(row);
+            updateBalance(row.getTransaction(), false);
+            fireTableRowsDeleted(index, index);
+        }
+
+        /**
+         * Adds a table row to the indexes
+         *
+         * @param       row             Table row
+         */
+        private void indexRow(TransactionRow row) {
+            WalletTransaction tx = row.getTransaction();
+            List<TransactionRow> rows = rowIndex.get(tx.getTxHash());
+            if (rows == null) {
+                rows = new ArrayList<>(1);
+                rowIndex.put(tx.getTxHash(), rows);
+            }
+            rows.add(row);
+            if (tx instanceof SendTransaction)
+                sendIndex.put(tx.getNormalizedID(), row);
+        }
+
+        /**
+         * Removes a table row from the indexes
+         *
+         * @param       row             Table row
+         */
+        private void unindexRow(TransactionRow row) {
+            WalletTransaction tx = row.getTransaction();
+            List<TransactionRow> rows = rowIndex.get(tx.getTxHash());
+            if (rows != null) {
+                rows.remove(row);
+                if (rows.isEmpty())
+                    rowIndex.remove(tx.getTxHash());
+            }
+            if (tx instanceof SendTransaction && sendIndex.get(tx.getNormalizedID()) == row)
+                sendIndex.remove(tx.getNormalizedID());
+        }
+
+        /**
+         * Adds or removes the value of a wallet transaction from the balances
+         *
+         * @param       tx              Wallet transaction
+         * @param       add             TRUE to add the transaction, FALSE to remove it
+         */
+        private void updateBalance(WalletTransaction tx, boolean add) {
+            if (tx instanceof SendTransaction) {
+                BigInteger amount = tx.getValue().add(((SendTransaction)tx).getFee());
+                walletBalance = (add ? walletBalance.subtract(amount) : walletBalance.add(amount));
+            } else if (((ReceiveTransaction)tx).inSafe()) {
+                safeBalance = (add ? safeBalance.add(tx.getValue()) : safeBalance.subtract(tx.getValue()));
+            } else {
+                walletBalance = (add ? walletBalance.add(tx.getValue()) : walletBalance.subtract(tx.getValue()));
+            }
+        }
+
+        /**
+         * Returns the key for a wallet transaction
+         *
+         * @param       tx              Wallet transaction
+         * @return                      Transaction hash and output index
+         */
+        private TransactionID getKey(WalletTransaction tx) {
+            return new TransactionID(tx.getTxHash(), getTxIndex(tx));
+        }
+
+        /**
+         * Returns the output index for a wallet transaction
+         *
+         * @param       tx              Wallet transaction
+         * @return                      Output index or -1 for a send transaction
+         */
+        private int getTxIndex(WalletTransaction tx) {
+            return (tx instanceof ReceiveTransaction ? ((ReceiveTransaction)tx).getTxIndex() : -1);
         }
 
         /**
@@ -401,11 +916,12 @@ public class TransactionPanel extends JPanel implements ActionListener {
          */
         @Override
         public int getRowCount() {
-            return txList.size();
+            return rowList.size();
         }
 
         /**
-         * Get the value for a cell
+         * Get the value for a cell.  The values are computed from the cached row values
+         * and the database is not accessed.
          *
          * @param       row         Row number
          * @param       column      Column number
@@ -413,19 +929,20 @@ public class TransactionPanel extends JPanel implements ActionListener {
          */
         @Override
         public Object getValueAt(int row, int column) {
-            if (row >= txList.size())
+            if (row >= rowList.size())
                 throw new IndexOutOfBoundsException("Table row "+row+" is not valid");
             Object value;
-            WalletTransaction tx = txList.get(row);
+            TransactionRow txRow = rowList.get(row);
+            WalletTransaction tx = txRow.getTransaction();
             //
             // Get the value for the requested cell
             //
             switch (column) {
                 case 0:                                 // Date
-                    value = new Date(tx.getTxTime()*1000);
+                    value = txRow.getDate();
                     break;
                 case 1:                                 // Transaction ID
-                    value = tx.getTxHash().toString();
+                    value = txRow.getTxID();
                     break;
                 case 2:                                 // Type
                     if (tx instanceof ReceiveTransaction)
@@ -434,29 +951,9 @@ public class TransactionPanel extends JPanel implements ActionListener {
                         value = "Sent to";
                     break;
                 case 3:                                 // Name
-                    value = null;
-                    Address addr = tx.getAddress();
-                    if (tx instanceof ReceiveTransaction) {
-                        // We store the P2PKH address for all receive transactions
-                        for (ECKey chkKey : Parameters.keys) {
-                            if (Arrays.equals(chkKey.getPubKeyHash(), addr.getHash())) {
-                                if (chkKey.getLabel().length() > 0)
-                                    value = chkKey.getLabel();
-                                break;
-                            }
-                        }
-                    } else {
-                        for (Address chkAddr : Parameters.addresses) {
-                            // We store the actual address (P2PKH or P2SH) for send transactions
-                            if (chkAddr.equals(addr)) {
-                                if (chkAddr.getLabel().length() > 0)
-                                    value = chkAddr.getLabel();
-                                break;
-                            }
-                        }
-                    }
-                    if (value == null)
-                        value = addr.toString();
+                    if (txRow.getName() == null)
+                        txRow.setName(getName(tx, Parameters.keys, Parameters.addresses));
+                    value = txRow.getName();
                     break;
                 case 4:                                 // Amount
                     value = tx.getValue();
@@ -478,29 +975,25 @@ public class TransactionPanel extends JPanel implements ActionListener {
                     }
                     break;
                 case 7:                                 // Status
-                    try {
-                        if (tx instanceof ReceiveTransaction && ((ReceiveTransaction)tx).isSpent()) {
-                            value = "Spent";
-                        } else {
-                            int depth = Parameters.wallet.getTxDepth(tx.getTxHash());
-                            if ((tx instanceof ReceiveTransaction) && ((ReceiveTransaction)tx).isCoinBase()) {
-                                if (depth == 0)
-                                    value = "Pending";
-                                else if (depth < Parameters.COINBASE_MATURITY)
-                                    value = "Immature";
-                                else
-                                    value = "Mature";
-                            } else if (depth == 0) {
-                                value = "Pending";
-                            } else if (depth < Parameters.TRANSACTION_CONFIRMED) {
-                                value = "Building";
-                            } else {
-                                value = "Confirmed";
-                            }
-                        }
-                    } catch (WalletException exc) {
-                        Main.logException("Unable to get transaction depth", exc);
-                        value = "Unknown";
+                    int depth = (txRow.getHeight() >= 0 ?
+                                        Parameters.wallet.getChainHeight()-txRow.getHeight()+1 : 0);
+                    if (tx instanceof ReceiveTransaction && ((ReceiveTransaction)tx).isSpent()) {
+                        value = "Spent";
+                    } else if ((tx instanceof ReceiveTransaction) && ((ReceiveTransaction)tx).isCoinBase()) {
+                        if (depth == 0)
+                            value = "Pending";
+                        else if (depth < Parameters.COINBASE_MATURITY)
+                            value = "Immature";
+                        else
+                            value = "Mature";
+                    } else if (depth == 0 && Parameters.conflictIndex.isConflicted(tx.getTxHash())) {
+                        value = "Conflicted";
+                    } else if (depth == 0) {
+                        value = "Pending";
+                    } else if (depth < Parameters.TRANSACTION_CONFIRMED) {
+                        value = "Building";
+                    } else {
+                        value = "Confirmed";
                     }
                     break;
                 default:
@@ -509,14 +1002,6 @@ public class TransactionPanel extends JPanel implements ActionListener {
                 return value;
         }
 
-        /**
-         * Processes a wallet change
-         */
-        public void walletChanged() {
-            buildTxList();
-            fireTableDataChanged();
-        }
-
         /**
          * Returns the wallet transaction for the specified table model row
          *
@@ -524,7 +1009,29 @@ public class TransactionPanel extends JPanel implements ActionListener {
          * @return                      Wallet transaction
          */
         public WalletTransaction getTransaction(int row) {
-            return txList.get(row);
+            return rowList.get(row).getTransaction();
+        }
+
+        /**
+         * Moves a receive transaction to or from the safe and updates the balances
+         *
+         * @param       rcvTx           Receive transaction
+         * @param       inSafe          TRUE if the transaction is in the safe
+         * @return                      TRUE if the transaction is in the table and was changed
+         */
+        public boolean setSafe(ReceiveTransaction rcvTx, boolean inSafe) {
+            TransactionRow txRow = findRow(rcvTx);
+            if (txRow == null)
+                return false;
+            ReceiveTransaction rowTx = (ReceiveTransaction)txRow.getTransaction();
+            if (rowTx.inSafe() == inSafe)
+                return false;
+            updateBalance(rowTx, false);
+            rowTx.setSafe(inSafe);
+            updateBalance(rowTx, true);
+            int row = rowList.indexOf(txRow);
+            fireTableRowsUpdated(row, row);
+            return true;
         }
 
         /**
@@ -533,8 +1040,117 @@ public class TransactionPanel extends JPanel implements ActionListener {
          * @param       row             Table model row
          */
         public void deleteTransaction(int row) {
-            txList.remove(row);
-            fireTableRowsDeleted(row, row);
+            removeRow(rowList.get(row));
+        }
+    }
+
+    /**
+     * A transaction table row with its cached display values
+     */
+    private static class TransactionRow {
+
+        /** Wallet transaction */
+        private WalletTransaction tx;
+
+        /** Transaction date */
+        private Date txDate;
+
+        /** Transaction ID */
+        private final String txID;
+
+        /** Display name or null if not computed */
+        private String name;
+
+        /** Height of the block containing the transaction or -1 if not confirmed */
+        private int height;
+
+        /**
+         * Creates a table row
+         *
+         * @param       tx              Wallet transaction
+         * @param       height          Block height or -1
+         * @param       name            Display name
+         */
+        private TransactionRow(WalletTransaction tx, int height, String name) {
+            this.tx = tx;
+            this.txDate = new Date(tx.getTxTime()*1000);
+            this.txID = tx.getTxHash().toString();
+            this.height = height;
+            this.name = name;
+        }
+
+        /**
+         * Returns the wallet transaction
+         *
+         * @return                  Wallet transaction
+         */
+        private WalletTransaction getTransaction() {
+            return tx;
+        }
+
+        /**
+         * Sets the wallet transaction
+         *
+         * @param       tx          Wallet transaction
+         */
+        private void setTransaction(WalletTransaction tx) {
+            if (tx.getTxTime() != this.tx.getTxTime())
+                txDate = new Date(tx.getTxTime()*1000);
+            this.tx = tx;
+        }
+
+        /**
+         * Returns the transaction date
+         *
+         * @return                  Transaction date
+         */
+        private Date getDate() {
+            return txDate;
+        }
+
+        /**
+         * Returns the transaction ID
+         *
+         * @return                  Transaction ID
+         */
+        private String getTxID() {
+            return txID;
+        }
+
+        /**
+         * Returns the display name
+         *
+         * @return                  Display name or null
+         */
+        private String getName() {
+            return name;
+        }
+
+        /**
+         * Sets the display name
+         *
+         * @param       name        Display name or null
+         */
+        private void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the block height
+         *
+         * @return                  Block height or -1 if not confirmed
+         */
+        private int getHeight() {
+            return height;
+        }
+
+        /**
+         * Sets the block height
+         *
+         * @param       height      Block height or -1 if not confirmed
+         */
+        private void setHeight(int height) {
+            this.height = height;
         }
     }
 }
@@ -82,6 +82,9 @@ public abstract class Wallet {
     /** Current chain work */
     protected BigInteger chainWork;
 
+    /** Height of the last block scanned for wallet transactions */
+    protected int scanHeight;
+
     /** Application data path */
     protected final String dataPath;
 
@@ -121,6 +124,23 @@ public abstract class Wallet {
         return chainWork;
     }
 
+    /**
+     * Returns the height of the last block scanned for wallet transactions
+     *
+     * @return                          Scan height
+     */
+    public int getScanHeight() {
+        return scanHeight;
+    }
+
+    /**
+     * Sets the height of the last block scanned for wallet transactions
+     *
+     * @param       height              Scan height
+     * @throws      WalletException     Unable to update the scan height
+     */
+    public abstract void setScanHeight(int height) throws WalletException;
+
     /**
      * Returns the chain height of the latest block earlier than the requested time.
      *
@@ -225,7 +245,9 @@ public abstract class Wallet {
     public abstract void storeHeader(StoredHeader storedHeader) throws WalletException;
 
     /**
-     * Updates the matched transactions for a block
+     * Updates the matched transactions for a block.  The matched transactions are
+     * marked as confirmed if the block is already on the chain.  This happens when
+     * the block header is received before the merkle block.
      *
      * @param       header              Block Header
      * @throws      WalletException     Unable to update the database
@@ -318,6 +340,28 @@ public abstract class Wallet {
      */
     public abstract List<ReceiveTransaction> getReceiveTxList() throws WalletException;
 
+    /**
+     * Returns the receive transactions that have not been spent, deleted or moved to the safe.
+     * If we have multiple transactions with the same normalized ID, we will return the one
+     * that has been confirmed.
+     *
+     * @return                          List of unspent receive transactions
+     * @throws      WalletException     Unable to get transaction list
+     */
+    public abstract List<ReceiveTransaction> getUnspentTxList() throws WalletException;
+
+    /**
+     * Returns a page of receive transactions that have not been deleted.  The transactions
+     * are returned in descending timestamp order.  Transactions with the same normalized ID
+     * are not combined.
+     *
+     * @param       offset              Number of transactions to skip
+     * @param       limit               Maximum number of transactions to return
+     * @return                          List of receive transactions
+     * @throws      WalletException     Unable to get transaction list
+     */
+    public abstract List<ReceiveTransaction> getReceiveTxPage(int offset, int limit) throws WalletException;
+
     /**
      * Store a send transaction
      *
@@ -354,6 +398,18 @@ public abstract class Wallet {
      */
     public abstract List<SendTransaction> getSendTxList() throws WalletException;
 
+    /**
+     * Returns a page of send transactions that have not been deleted.  The transactions
+     * are returned in descending timestamp order.  Transactions with the same normalized ID
+     * are not combined.
+     *
+     * @param       offset              Number of transactions to skip
+     * @param       limit               Maximum number of transactions to return
+     * @return                          List of send transactions
+     * @throws      WalletException     Unable to get transaction list
+     */
+    public abstract List<SendTransaction> getSendTxPage(int offset, int limit) throws WalletException;
+
     /**
      * Returns the transaction depth.  This is the number of blocks in the chain
      * including the block containing the transaction.  So a depth of 0 indicates
@@ -366,6 +422,15 @@ public abstract class Wallet {
      */
     public abstract int getTxDepth(Sha256Hash txHash) throws WalletException;
 
+    /**
+     * Returns the height of the block containing a transaction
+     *
+     * @param       txHash                  Transaction hash
+     * @return                              Block height or -1 if the transaction is not confirmed
+     * @throws      WalletException         Unable to get the block height
+     */
+    public abstract int getTxHeight(Sha256Hash txHash) throws WalletException;
+
     /**
      * Deletes all wallet transactions.
      *
@@ -403,6 +468,52 @@ public abstract class Wallet {
      */
     public abstract void setChainHead(List<StoredHeader> chainList) throws WalletException, VerificationException;
 
+    /**
+     * Starts a unit of work for the current thread.  Database updates made by the current
+     * thread are not committed until commitUnit() is called.  Other threads continue to
+     * commit their updates immediately.
+     *
+     * @throws      WalletException         Unable to start the unit of work
+     */
+    public abstract void beginUnit() throws WalletException;
+
+    /**
+     * Commits the unit of work for the current thread
+     *
+     * @throws      WalletException         Unable to commit the unit of work
+     */
+    public abstract void commitUnit() throws WalletException;
+
+    /**
+     * Rolls back the unit of work for the current thread.  The chain head, chain height,
+     * chain work and scan height updated by the unit of work are discarded.
+     */
+    public abstract void rollbackUnit();
+
+    /**
+     * Sets a savepoint in the unit of work for the current thread.  The previous savepoint
+     * is released.  Nothing is done if the current thread does not have an active unit of work.
+     *
+     * @throws      WalletException         Unable to set the savepoint
+     */
+    public abstract void setSavepoint() throws WalletException;
+
+    /**
+     * Rolls back the unit of work for the current thread to the last savepoint.  The chain
+     * head, chain height, chain work and scan height are restored to their values at the
+     * savepoint.  Nothing is done if the current thread does not have an active unit of work.
+     *
+     * @throws      WalletException         Unable to roll back to the savepoint
+     */
+    public abstract void rollbackSavepoint() throws WalletException;
+
+    /**
+     * Checks if the current thread has an active unit of work
+     *
+     * @return                              TRUE if a unit of work is active
+     */
+    public abstract boolean isUnitActive();
+
     /**
      * Closes the database
      */
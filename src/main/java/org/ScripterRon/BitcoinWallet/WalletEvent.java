@@ -0,0 +1,248 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.math.BigInteger;
+
+/**
+ * A wallet event describes a change to the wallet that has been committed to the
+ * wallet database.  The following events are published:
+ * <ul>
+ * <li>PAYMENT_RECEIVED - A transaction output paying one of our addresses was received</li>
+ * <li>OUTPUT_SPENT - One of our transaction outputs was spent</li>
+ * <li>DEPTH_REACHED - A wallet transaction has reached the confirmation depth</li>
+ * <li>SEND_CONFIRMED - A send transaction was included in a chain block</li>
+ * <li>BLOCK_DETACHED - A block was removed from the chain by a chain reorganization</li>
+ * <li>BLOCK_ATTACHED - A block was added to the chain by a chain reorganization</li>
+ * </ul>
+ */
+public class WalletEvent {
+
+    /** Event types */
+    public enum EventType {PAYMENT_RECEIVED, OUTPUT_SPENT, DEPTH_REACHED, SEND_CONFIRMED,
+                           BLOCK_DETACHED, BLOCK_ATTACHED}
+
+    /** Event type */
+    private final EventType type;
+
+    /** Transaction hash or null for a block event */
+    private final Sha256Hash txHash;
+
+    /** Transaction output index or -1 */
+    private final int txIndex;
+
+    /** Spending transaction hash or null */
+    private final Sha256Hash spendingHash;
+
+    /** Address or null */
+    private final Address address;
+
+    /** Value or null */
+    private final BigInteger value;
+
+    /** Block hash or null */
+    private final Sha256Hash blockHash;
+
+    /** Block height or -1 */
+    private final int blockHeight;
+
+    /** Confirmation depth */
+    private final int depth;
+
+    /** Time the event was created (milliseconds) */
+    private final long eventTime;
+
+    /**
+     * Creates a wallet event
+     *
+     * @param       type            Event type
+     * @param       txHash          Transaction hash or null
+     * @param       txIndex         Transaction output index or -1
+     * @param       spendingHash    Spending transaction hash or null
+     * @param       address         Address or null
+     * @param       value           Value or null
+     * @param       blockHash       Block hash or null
+     * @param       blockHeight     Block height or -1
+     * @param       depth           Confirmation depth
+     */
+    private WalletEvent(EventType type, Sha256Hash txHash, int txIndex, Sha256Hash spendingHash,
+                        Address address, BigInteger value, Sha256Hash blockHash, int blockHeight, int depth) {
+        this.type = type;
+        this.txHash = txHash;
+        this.txIndex = txIndex;
+        this.spendingHash = spendingHash;
+        this.address = address;
+        this.value = value;
+        this.blockHash = blockHash;
+        this.blockHeight = blockHeight;
+        this.depth = depth;
+        this.eventTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates a payment received event
+     *
+     * @param       rcvTx           Receive transaction
+     * @return                      Wallet event
+     */
+    public static WalletEvent paymentReceived(ReceiveTransaction rcvTx) {
+        return new WalletEvent(EventType.PAYMENT_RECEIVED, rcvTx.getTxHash(), rcvTx.getTxIndex(), null,
+                               rcvTx.getAddress(), rcvTx.getValue(), rcvTx.getBlockHash(), -1, 0);
+    }
+
+    /**
+     * Creates an output spent event
+     *
+     * @param       rcvTx           Receive transaction for the spent output
+     * @param       spendingHash    Spending transaction hash
+     * @param       blockHash       Block containing the spending transaction or null
+     * @return                      Wallet event
+     */
+    public static WalletEvent outputSpent(ReceiveTransaction rcvTx, Sha256Hash spendingHash, Sha256Hash blockHash) {
+        return new WalletEvent(EventType.OUTPUT_SPENT, rcvTx.getTxHash(), rcvTx.getTxIndex(), spendingHash,
+                               rcvTx.getAddress(), rcvTx.getValue(), blockHash, -1, 0);
+    }
+
+    /**
+     * Creates a depth reached event
+     *
+     * @param       txHash          Transaction hash
+     * @param       blockHeight     Height of the block containing the transaction
+     * @param       depth           Confirmation depth
+     * @return                      Wallet event
+     */
+    public static WalletEvent depthReached(Sha256Hash txHash, int blockHeight, int depth) {
+        return new WalletEvent(EventType.DEPTH_REACHED, txHash, -1, null, null, null, null, blockHeight, depth);
+    }
+
+    /**
+     * Creates a send confirmed event
+     *
+     * @param       sendTx          Send transaction
+     * @param       blockHash       Block containing the transaction
+     * @param       blockHeight     Block height
+     * @return                      Wallet event
+     */
+    public static WalletEvent sendConfirmed(SendTransaction sendTx, Sha256Hash blockHash, int blockHeight) {
+        return new WalletEvent(EventType.SEND_CONFIRMED, sendTx.getTxHash(), -1, null,
+                               sendTx.getAddress(), sendTx.getValue(), blockHash, blockHeight, 1);
+    }
+
+    /**
+     * Creates a block detached or block attached event
+     *
+     * @param       type            BLOCK_DETACHED or BLOCK_ATTACHED
+     * @param       blockHash       Block hash
+     * @param       blockHeight     Block height
+     * @return                      Wallet event
+     */
+    public static WalletEvent blockEvent(EventType type, Sha256Hash blockHash, int blockHeight) {
+        return new WalletEvent(type, null, -1, null, null, null, blockHash, blockHeight, 0);
+    }
+
+    /**
+     * Returns the event type
+     *
+     * @return                  Event type
+     */
+    public EventType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the transaction hash
+     *
+     * @return                  Transaction hash or null for a block event
+     */
+    public Sha256Hash getTxHash() {
+        return txHash;
+    }
+
+    /**
+     * Returns the transaction output index
+     *
+     * @return                  Output index or -1 if the event is not for an output
+     */
+    public int getTxIndex() {
+        return txIndex;
+    }
+
+    /**
+     * Returns the spending transaction hash
+     *
+     * @return                  Spending transaction hash or null if this is not an OUTPUT_SPENT event
+     */
+    public Sha256Hash getSpendingHash() {
+        return spendingHash;
+    }
+
+    /**
+     * Returns the address
+     *
+     * @return                  Receiving address, send destination or null
+     */
+    public Address getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the value
+     *
+     * @return                  Value or null
+     */
+    public BigInteger getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the block hash
+     *
+     * @return                  Block hash or null if not confirmed
+     */
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /**
+     * Returns the block height
+     *
+     * @return                  Block height or -1 if not known
+     */
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * Returns the confirmation depth
+     *
+     * @return                  Confirmation depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the time the event was created
+     *
+     * @return                  Time in milliseconds
+     */
+    public long getEventTime() {
+        return eventTime;
+    }
+}
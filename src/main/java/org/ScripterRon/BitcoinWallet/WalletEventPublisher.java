@@ -0,0 +1,258 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The wallet event publisher delivers wallet events to the subscribers.  The events are
+ * published by the database handler after the changes have been committed to the wallet
+ * database.
+ *
+ * Each subscriber has a bounded event queue and a delivery thread, so a slow subscriber
+ * does not delay the database handler or the other subscribers.  An event is dropped if
+ * the subscriber queue is full.
+ *
+ * A subscriber can select events by type, address and transaction hash.  An event is
+ * selected if its address is one of the subscription addresses or its transaction hash or
+ * spending transaction hash is one of the subscription transactions.  All events of the
+ * selected types are delivered if the subscription has no addresses and no transactions.
+ * Block events are always delivered if their type is selected.  Addresses and transactions
+ * can be added after the subscription is created, for example to follow the confirmations
+ * for a payment.
+ */
+public class WalletEventPublisher {
+
+    /** Subscriptions */
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates the wallet event publisher
+     */
+    public WalletEventPublisher() {
+    }
+
+    /**
+     * Adds a subscriber
+     *
+     * @param       consumer        Event consumer called on the subscription delivery thread
+     * @param       types           Event types or null for all types
+     * @param       addresses       Addresses or null
+     * @param       txHashes        Transaction hashes or null
+     * @param       queueSize       Maximum number of undelivered events
+     * @return                      Subscription
+     */
+    public Subscription subscribe(Consumer<WalletEvent> consumer, Collection<WalletEvent.EventType> types,
+                                  Collection<Address> addresses, Collection<Sha256Hash> txHashes, int queueSize) {
+        Subscription subscription = new Subscription(consumer, types, addresses, txHashes, queueSize);
+        subscriptions.add(subscription);
+        Thread thread = new Thread(subscription, "Wallet Event Subscriber");
+        thread.setDaemon(true);
+        thread.start();
+        return subscription;
+    }
+
+    /**
+     * Checks if there are any subscribers
+     *
+     * @return                      TRUE if there is at least one subscriber
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publishes events to the subscribers
+     *
+     * @param       events          Wallet events
+     */
+    public void publish(List<WalletEvent> events) {
+        for (Subscription subscription : subscriptions) {
+            for (WalletEvent event : events) {
+                if (subscription.matches(event))
+                    subscription.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Cancels all subscriptions
+     */
+    public void shutdown() {
+        new ArrayList<>(subscriptions).forEach((subscription) -> subscription.cancel());
+    }
+
+    /**
+     * A subscription to wallet events
+     */
+    public class Subscription implements Runnable {
+
+        /** Event consumer */
+        private final Consumer<WalletEvent> consumer;
+
+        /** Event types */
+        private final Set<WalletEvent.EventType> types;
+
+        /** Selected addresses */
+        private final Set<Address> addresses = ConcurrentHashMap.newKeySet();
+
+        /** Selected transactions */
+        private final Set<Sha256Hash> txHashes = ConcurrentHashMap.newKeySet();
+
+        /** Undelivered events */
+        private final ArrayBlockingQueue<WalletEvent> eventQueue;
+
+        /** Delivery thread */
+        private Thread deliveryThread;
+
+        /** Subscription cancelled */
+        private volatile boolean cancelled;
+
+        /** Number of events dropped because the queue was full */
+        private final AtomicLong droppedCount = new AtomicLong();
+
+        /**
+         * Creates a subscription
+         *
+         * @param       consumer        Event consumer
+         * @param       types           Event types or null
+         * @param       addresses       Addresses or null
+         * @param       txHashes        Transaction hashes or null
+         * @param       queueSize       Maximum number of undelivered events
+         */
+        private Subscription(Consumer<WalletEvent> consumer, Collection<WalletEvent.EventType> types,
+                             Collection<Address> addresses, Collection<Sha256Hash> txHashes, int queueSize) {
+            this.consumer = consumer;
+            this.types = (types != null ? EnumSet.copyOf(types) : EnumSet.allOf(WalletEvent.EventType.class));
+            if (addresses != null)
+                this.addresses.addAll(addresses);
+            if (txHashes != null)
+                this.txHashes.addAll(txHashes);
+            this.eventQueue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        /**
+         * Returns the number of events dropped because the queue was full
+         *
+         * @return                  Dropped count
+         */
+        public long getDroppedCount() {
+            return droppedCount.get();
+        }
+
+        /**
+         * Adds an address to the subscription
+         *
+         * @param       address     Address
+         */
+        public void addAddress(Address address) {
+            addresses.add(address);
+        }
+
+        /**
+         * Adds a transaction to the subscription
+         *
+         * @param       txHash      Transaction hash
+         */
+        public void addTransaction(Sha256Hash txHash) {
+            txHashes.add(txHash);
+        }
+
+        /**
+         * Removes a transaction from the subscription
+         *
+         * @param       txHash      Transaction hash
+         */
+        public void removeTransaction(Sha256Hash txHash) {
+            txHashes.remove(txHash);
+        }
+
+        /**
+         * Cancels the subscription.  Undelivered events are discarded.
+         */
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized(this) {
+                if (deliveryThread != null)
+                    deliveryThread.interrupt();
+            }
+        }
+
+        /**
+         * Checks if an event is selected by the subscription filters
+         *
+         * @param       event       Wallet event
+         * @return                  TRUE if the event is selected
+         */
+        boolean matches(WalletEvent event) {
+            if (!types.contains(event.getType()))
+                return false;
+            if (event.getTxHash() == null || (addresses.isEmpty() && txHashes.isEmpty()))
+                return true;
+            return ((event.getAddress() != null && addresses.contains(event.getAddress())) ||
+                    txHashes.contains(event.getTxHash()) ||
+                    (event.getSpendingHash() != null && txHashes.contains(event.getSpendingHash())));
+        }
+
+        /**
+         * Adds an event to the queue.  The event is dropped if the queue is full.
+         *
+         * @param       event       Wallet event
+         */
+        void offer(WalletEvent event) {
+            if (!eventQueue.offer(event)) {
+                if (droppedCount.getAndIncrement() == 0)
+                    log.warn("Wallet event subscriber queue is full, events are being dropped");
+            }
+        }
+
+        /**
+         * Delivers events until the subscription is cancelled
+         */
+        @Override
+        public void run() {
+            synchronized(this) {
+                deliveryThread = Thread.currentThread();
+            }
+            while (!cancelled) {
+                try {
+                    WalletEvent event = eventQueue.take();
+                    consumer.accept(event);
+                } catch (InterruptedException exc) {
+                    if (!cancelled)
+                        log.warn("Wallet event delivery interrupted", exc);
+                    break;
+                } catch (Exception exc) {
+                    log.error("Exception while delivering wallet event", exc);
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.ScripterRon.BitcoinWallet;
 
+import java.util.List;
+
 /**
  * A wallet listener receives notifications when a new block or transaction
  * is received.
@@ -30,8 +32,10 @@ public interface WalletListener {
 
     /**
      * Notification when one or more transactions have been updated
+     *
+     * @param       changes         Transaction changes in the order they were made
      */
-    public void txUpdated();
+    public void txUpdated(List<TransactionChange> changes);
 
     /**
      * Notification when a block chain rescan is completed
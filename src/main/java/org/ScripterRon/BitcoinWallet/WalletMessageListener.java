@@ -22,6 +22,7 @@ import org.ScripterRon.BitcoinCore.Alert;
 import org.ScripterRon.BitcoinCore.BlockHeader;
 import org.ScripterRon.BitcoinCore.InventoryItem;
 import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.MessageHeader;
 import org.ScripterRon.BitcoinCore.NetParams;
 import org.ScripterRon.BitcoinCore.NotFoundMessage;
 import org.ScripterRon.BitcoinCore.Peer;
@@ -30,9 +31,10 @@ import org.ScripterRon.BitcoinCore.PongMessage;
 import org.ScripterRon.BitcoinCore.RejectMessage;
 import org.ScripterRon.BitcoinCore.Sha256Hash;
 import org.ScripterRon.BitcoinCore.Transaction;
-import org.ScripterRon.BitcoinCore.TransactionMessage;
+import org.ScripterRon.BitcoinCore.Utils;
 import org.ScripterRon.BitcoinCore.VersionAckMessage;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -46,6 +48,14 @@ public class WalletMessageListener extends AbstractMessageListener {
     private static final long REQUIRED_SERVICES =
             NetParams.NODE_NETWORK + NetParams.NODE_BLOOM + NetParams.NODE_WITNESS;
 
+    /** Required node services when using compact block filters */
+    private static final long REQUIRED_FILTER_SERVICES =
+            NetParams.NODE_NETWORK + Parameters.NODE_COMPACT_FILTERS + NetParams.NODE_WITNESS;
+
+    /** Required services for the current operating mode */
+    private final long requiredServices =
+            (Parameters.compactFilters ? REQUIRED_FILTER_SERVICES : REQUIRED_SERVICES);
+
     /**
      * Handle an inventory request
      *
@@ -66,15 +76,15 @@ public class WalletMessageListener extends AbstractMessageListener {
         // will fail without the witness data.  A node that supports segregated
         // witness will always use INV_WITNESS_TX instead of INV_TX when requesting
         // a transaction.  Our response will be a normal transaction if there is
-        // no witness data.
+        // no witness data.  The transaction messages are obtained from the sent
+        // transaction cache, so we don't need to read the database for each peer.
         //
         invList.forEach((item) -> {
             switch (item.getType()) {
                 case InventoryItem.INV_WITNESS_TX:
                     try {
-                        SendTransaction sendTx = Parameters.wallet.getSendTx(item.getHash());
-                        if (sendTx != null) {
-                            Message txMsg = TransactionMessage.buildTransactionMessage(peer, sendTx.getTxData());
+                        Message txMsg = Parameters.sentTxCache.getMessage(peer, item.getHash());
+                        if (txMsg != null) {
                             Parameters.networkHandler.sendMessage(txMsg);
                             log.info(String.format("Transaction sent to peer %s\n  Tx %s",
                                                    peer.getAddress().toString(), item.getHash().toString()));
@@ -114,19 +124,26 @@ public class WalletMessageListener extends AbstractMessageListener {
     public void requestInventory(Message msg, List<InventoryItem> invList) {
         Peer peer = msg.getPeer();
         //
-        // Process the inventory list and request new transactions and blocks.  We also
-        // need to request a block already in our database if we are catching up to the
-        // current network height because the previous scan may have been interrupted and
-        // the Bloom filter changed.
+        // Process the inventory list and request new transactions.  A new block is handled
+        // by requesting the block headers.  The database handler requests the filtered
+        // blocks once the headers have been added to the chain (or the compact filter
+        // handler downloads the block if it contains one of our transactions).  We ignore
+        // block announcements while we are downloading the headers since we will receive
+        // the new headers as part of the download.
         //
         // Since we don't do signature verification, we will use INV_TX instead of
         // INV_WITNESS_TX so the node doesn't send us the witness data.
         //
-        invList.forEach((item) -> {
+        // Compact block filters do not cover unconfirmed transactions, so we ignore
+        // transaction announcements when using compact filters.
+        //
+        boolean getHeaders = false;
+        for (InventoryItem item : invList) {
             try {
                 switch (item.getType()) {
                     case InventoryItem.INV_TX:
-                        if (Parameters.wallet.isNewTransaction(item.getHash())) {
+                        Parameters.rebroadcastHandler.transactionSeen(item.getHash());
+                        if (!Parameters.compactFilters && Parameters.wallet.isNewTransaction(item.getHash())) {
                             PeerRequest request = new PeerRequest(item.getHash(), InventoryItem.INV_TX, peer);
                             synchronized(Parameters.lock) {
                                 if (!Parameters.pendingRequests.contains(request) &&
@@ -136,22 +153,16 @@ public class WalletMessageListener extends AbstractMessageListener {
                         }
                         break;
                     case InventoryItem.INV_BLOCK:
-                        if (Parameters.wallet.isNewBlock(item.getHash()) ||
-                                        Parameters.networkChainHeight > Parameters.wallet.getChainHeight()) {
-                            PeerRequest request = new PeerRequest(item.getHash(),
-                                        InventoryItem.INV_FILTERED_BLOCK, peer);
-                            synchronized(Parameters.lock) {
-                                if (!Parameters.pendingRequests.contains(request) &&
-                                            !Parameters.processedRequests.contains(request))
-                                    Parameters.pendingRequests.add(request);
-                            }
-                        }
+                        if (!Parameters.loadingChain && Parameters.wallet.isNewBlock(item.getHash()))
+                            getHeaders = true;
                         break;
                 }
             } catch (WalletException exc) {
                 log.error("Unable to check wallet status", exc);
             }
-        });
+        }
+        if (getHeaders)
+            Parameters.networkHandler.getHeaders(peer);
     }
 
     /**
@@ -168,28 +179,37 @@ public class WalletMessageListener extends AbstractMessageListener {
     @Override
     public void requestNotFound(Message msg, List<InventoryItem> invList) {
         //
-        // Process the inventory list and retry the failing requests
+        // Process the inventory list and retry the failing requests.  A key rescan request
+        // can only be processed by the rescan peer, so the key rescan is moved to another
+        // peer instead.
         //
-        invList.forEach((item) -> {
+        boolean rescanFailed = false;
+        for (InventoryItem item : invList) {
             synchronized(Parameters.lock) {
                 Iterator<PeerRequest> it = Parameters.processedRequests.iterator();
                 while (it.hasNext()) {
                     PeerRequest request = it.next();
                     if (request.getType()==item.getType() && request.getHash().equals(item.getHash())) {
                         it.remove();
-                        Parameters.pendingRequests.add(request);
+                        if (request.isTargeted())
+                            rescanFailed = true;
+                        else
+                            Parameters.pendingRequests.add(request);
                         break;
                     }
                 }
             }
-        });
+        }
+        if (rescanFailed)
+            Parameters.databaseHandler.rescanPeerFailed(msg.getPeer());
     }
 
     /**
      * Process a peer address list
      *
      * <p>This method is called when an 'addr' message is received.  We will
-     * add nodes that support bloom filters and segregated witness to our address list.</p>
+     * add nodes that support bloom filters (or compact block filters) and segregated
+     * witness to our address list.</p>
      *
      * @param       msg             Message
      * @param       addresses       Peer address list
@@ -205,7 +225,7 @@ public class WalletMessageListener extends AbstractMessageListener {
                 PeerAddress chkAddr = Parameters.peerMap.get(addr);
                 if (chkAddr != null) {
                     chkAddr.setTimeStamp(addr.getTimeStamp());
-                } else if ((addr.getServices()&REQUIRED_SERVICES) == REQUIRED_SERVICES) {
+                } else if ((addr.getServices()&requiredServices) == requiredServices) {
                     Parameters.peerAddresses.add(0, addr);
                     Parameters.peerMap.put(addr, addr);
                 }
@@ -234,23 +254,46 @@ public class WalletMessageListener extends AbstractMessageListener {
     /**
      * Process a block header
      *
-     * <p>This method is called when a 'headers' message is received.</p>
+     * <p>This method is called when a 'headers' message is received.  This is either the
+     * response to a 'getheaders' request or an announcement of new blocks from a peer
+     * that has received our 'sendheaders' message (BIP 130).</p>
      *
      * @param       msg             Message
      * @param       hdrList         Block header list
      */
     @Override
     public void processBlockHeaders(Message msg, List<BlockHeader> hdrList) {
+        Peer peer = msg.getPeer();
         //
-        // Add the block headers to the database handler queue for processing
+        // Record the response to our 'getheaders' request
         //
-        hdrList.forEach((header) -> {
-            try {
-                Parameters.databaseQueue.put(header);
-            } catch (InterruptedException exc) {
-                log.error("Thread interrupted while adding to database handler queue", exc);
+        Parameters.networkHandler.syncResponse(peer);
+        //
+        // Verify the proof of work and the header linkage.  We will queue the headers
+        // preceding the first invalid header and then disconnect the peer.
+        //
+        List<BlockHeader> verifiedList = hdrList;
+        int verified = HeaderVerifier.verify(hdrList);
+        if (verified < hdrList.size()) {
+            log.error(String.format("Block header verification failed for %s from %s",
+                                    hdrList.get(verified).getHash().toString(), peer.getAddress().toString()));
+            verifiedList = hdrList.subList(0, verified);
+            synchronized(Parameters.lock) {
+                peer.setBanScore(Parameters.MAX_BAN_SCORE);
+                peer.setDisconnect(true);
             }
-        });
+            Parameters.networkHandler.wakeup();
+        }
+        //
+        // Add the block headers to the database handler queue for processing.  The database
+        // handler requests the filtered blocks once the headers have been added to the chain.
+        //
+        try {
+            for (BlockHeader header : verifiedList)
+                Parameters.databaseQueue.put(new PeerBlock(header, peer));
+        } catch (InterruptedException exc) {
+            log.error("Thread interrupted while adding to database handler queue", exc);
+        }
     }
 
     /**
@@ -284,12 +327,23 @@ public class WalletMessageListener extends AbstractMessageListener {
      */
     @Override
     public void processMerkleBlock(Message msg, BlockHeader blkHeader) {
+        //
+        // Get the number of transactions in the block.  The 'merkleblock' payload starts with
+        // the 80-byte block header followed by the total transaction count.
+        //
+        int txCount = 0;
+        ByteBuffer msgBuffer = msg.getBuffer();
+        if (msgBuffer != null && msgBuffer.hasArray()) {
+            byte[] msgBytes = msgBuffer.array();
+            if (msgBytes.length >= MessageHeader.HEADER_LENGTH+84)
+                txCount = (int)Utils.readUint32LE(msgBytes, MessageHeader.HEADER_LENGTH+80);
+        }
         //
         // Add the block header to the database handler queue for processing
         //
         try {
-            requestCompleted(InventoryItem.INV_FILTERED_BLOCK, blkHeader.getHash());
-            Parameters.databaseQueue.put(blkHeader);
+            requestCompleted(InventoryItem.INV_FILTERED_BLOCK, blkHeader.getHash(), msg.getPeer());
+            Parameters.databaseQueue.put(new PeerBlock(blkHeader, msg.getPeer(), txCount));
         } catch (InterruptedException exc) {
             log.error("Thread interrupted while adding to database handler queue", exc);
         }
@@ -357,7 +411,7 @@ public class WalletMessageListener extends AbstractMessageListener {
     @Override
     public void processTransaction(Message msg, Transaction tx) {
         try {
-            requestCompleted(InventoryItem.INV_TX, tx.getHash());
+            requestCompleted(InventoryItem.INV_TX, tx.getHash(), msg.getPeer());
             Parameters.databaseQueue.put(tx);
         } catch (InterruptedException exc) {
             log.error("Thread interrupted while adding to database handler queue", exc);
@@ -380,7 +434,7 @@ public class WalletMessageListener extends AbstractMessageListener {
         // Disconnect the peer if it doesn't provide the required node services.  Otherwise,
         // increment the version handshake stage.
         //
-        if ((peer.getServices()&REQUIRED_SERVICES) != REQUIRED_SERVICES) {
+        if ((peer.getServices()&requiredServices) != requiredServices) {
             peer.setDisconnect(true);
             log.info(String.format("Connection rejected from %s", peer.getAddress().toString()));
         } else {
@@ -409,21 +463,30 @@ public class WalletMessageListener extends AbstractMessageListener {
     }
 
     /**
-     * Process a completed request
+     * Process a completed request.  There is a merkle block request for each bloom filter
+     * shard, so we complete the request that was sent to the responding peer.
      *
      * @param       type            Type of inventory item (INV_FILTERED_BLOCK or INV_TX)
      * @param       hash            Item hash
+     * @param       peer            Responding peer
      */
-    private void requestCompleted(int type, Sha256Hash hash) {
+    private void requestCompleted(int type, Sha256Hash hash, Peer peer) {
         synchronized(Parameters.lock) {
-            Iterator<PeerRequest> it = Parameters.processedRequests.iterator();
-            while (it.hasNext()) {
-                PeerRequest request = it.next();
+            PeerRequest completed = null;
+            for (PeerRequest request : Parameters.processedRequests) {
                 if (request.getType() == type && request.getHash().equals(hash)) {
-                    it.remove();
-                    break;
+                    if (request.getPeer() == peer) {
+                        completed = request;
+                        break;
+                    }
+                    if (completed == null)
+                        completed = request;
                 }
             }
+            if (completed != null) {
+                Parameters.processedRequests.remove(completed);
+                Parameters.networkHandler.requestResponse(completed);
+            }
         }
     }
 }
@@ -0,0 +1,501 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import org.ScripterRon.BitcoinCore.DumpedPrivateKey;
+import org.ScripterRon.BitcoinCore.ECException;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.ScriptException;
+import org.ScripterRon.BitcoinCore.SignedInput;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.TransactionOutput;
+import org.ScripterRon.BitcoinCore.VerificationException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import javax.swing.SwingUtilities;
+
+/**
+ * The wallet service performs wallet operations for the GUI on a dedicated service thread,
+ * so the event dispatch thread never waits for the wallet database, transaction signing
+ * or a block chain rescan.  Each operation returns a CompletableFuture which is completed
+ * on the service thread.  The GUI uses GUI_EXECUTOR to process the result on the event
+ * dispatch thread.
+ *
+ * The operations are performed in the order they are submitted.  A long operation reports
+ * its progress to an optional progress listener which is called on the event dispatch thread.
+ */
+public class WalletService {
+
+    /** Executor which runs a task on the event dispatch thread */
+    public static final Executor GUI_EXECUTOR = SwingUtilities::invokeLater;
+
+    /** Number of coin selections attempted before a send fails */
+    private static final int SELECTION_ATTEMPTS = 3;
+
+    /** Service executor */
+    private final ExecutorService executor;
+
+    /**
+     * Creates the wallet service
+     */
+    public WalletService() {
+        executor = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "Wallet Service");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the wallet service.  Pending operations are not performed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the exception that caused an operation to fail
+     *
+     * @param       exc             Exception passed to the completion handler
+     * @return                      Exception thrown by the operation
+     */
+    public static Throwable getCause(Throwable exc) {
+        Throwable cause = exc;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) &&
+                                cause.getCause() != null)
+            cause = cause.getCause();
+        return cause;
+    }
+
+    /**
+     * Selects the inputs for a new transaction using the coin selection engine.  The
+     * selected inputs are reserved until the send completes or the caller releases them.
+     * The selection and the reservation are done on the wallet service thread, so two
+     * selections will not choose the same output.  Coin control reserves its outputs on
+     * the event dispatch thread, so the selection is made again if one of the selected
+     * outputs was reserved after the spendable outputs were read.
+     *
+     * @param       amount          Send amount
+     * @param       baseFee         Fee for the transaction without any inputs
+     * @param       inputFee        Fee for each input
+     * @return                      Future for the selection result
+     */
+    public CompletableFuture<CoinSelection.Result> selectCoins(BigInteger amount, BigInteger baseFee,
+                                                               BigInteger inputFee) {
+        return submit(() -> {
+            for (int attempt=0; attempt<SELECTION_ATTEMPTS; attempt++) {
+                CoinSelection.Result selection = new CoinSelection(BuildInputList.buildSpendableOutputs())
+                        .select(amount, baseFee, inputFee, Parameters.DUST_TRANSACTION, CoinSelection.TIME_LIMIT);
+                if (Parameters.outputReservations.reserve(selection.getInputs()))
+                    return selection;
+                log.debug("Selected outputs were reserved by another send, selecting again");
+            }
+            throw new WalletException("The selected coins are being spent by another send");
+        });
+    }
+
+    /**
+     * Builds the spendable output list for coin control
+     *
+     * @return                      Future for the spendable output list
+     */
+    public CompletableFuture<List<SpendableOutput>> getSpendableOutputs() {
+        return submit(() -> BuildInputList.buildSpendableOutputs());
+    }
+
+    /**
+     * Creates and signs a new transaction, stores it in the wallet and broadcasts it to
+     * our peers.  The progress is reported as the transaction is signed (1), stored (2)
+     * and broadcast (3).  The reservation for the inputs is released when the send
+     * completes.  The spent outputs have been marked as spent in the wallet if the
+     * send was successful.
+     *
+     * @param       inputs          Signed inputs
+     * @param       outputs         Transaction outputs
+     * @param       listener        Progress listener or null
+     * @return                      Future for the new transaction
+     */
+    public CompletableFuture<Transaction> sendTransaction(List<SignedInput> inputs, List<TransactionOutput> outputs,
+                                                          ProgressListener listener) {
+        return submit(() -> {
+            Transaction tx;
+            try {
+                tx = new Transaction(inputs, outputs, Parameters.wallet.getChainHeight());
+            } catch (ECException | ScriptException | VerificationException exc) {
+                throw new WalletException("Unable to create transaction", exc);
+            }
+            reportProgress(listener, 1, 3);
+            return tx;
+        }).thenCompose((tx) -> {
+            //
+            // Store the new transaction in the database.  The database handler stores the
+            // transaction in its unit of work and commits the unit before completing the
+            // future, so the transaction inputs are not locked by the database handler.
+            //
+            return Parameters.databaseHandler.storeTransaction(tx).thenApply((v) -> tx);
+        }).thenCompose((tx) -> submit(() -> {
+            //
+            // Broadcast the new transaction to our peers
+            //
+            reportProgress(listener, 2, 3);
+            Parameters.sentTxCache.add(tx.getHash(), (tx.isWitness() ? tx.getWitnessBytes() : tx.getBytes()));
+            Parameters.rebroadcastHandler.broadcast(tx.getHash());
+            reportProgress(listener, 3, 3);
+            return tx;
+        })).whenComplete((tx, exc) -> Parameters.outputReservations.release(inputs));
+    }
+
+    /**
+     * Deletes the wallet transactions and starts a block chain rescan.  The future is
+     * completed once the rescan has been started.  The database handler notifies the
+     * wallet listeners when the rescan is completed.
+     *
+     * @return                      Future for the rescan request
+     */
+    public CompletableFuture<Void> rescan() {
+        return submit(() -> {
+            long creationTime = System.currentTimeMillis()/1000;
+            synchronized(Parameters.lock) {
+                for (ECKey key : Parameters.keys)
+                    creationTime = Math.min(creationTime, key.getCreationTime());
+            }
+            Parameters.wallet.deleteTransactions();
+            Parameters.databaseHandler.rescanChain(creationTime);
+            return null;
+        });
+    }
+
+    /**
+     * Stores a new key in the wallet and adds it to the bloom filter
+     *
+     * @param       key             New key
+     * @return                      Future for the store request
+     */
+    public CompletableFuture<Void> storeKey(ECKey key) {
+        return submit(() -> {
+            Parameters.wallet.storeKey(key);
+            Parameters.filterManager.addKey(key);
+            return null;
+        });
+    }
+
+    /**
+     * Updates the label for a key
+     *
+     * @param       key             Key
+     * @return                      Future for the update request
+     */
+    public CompletableFuture<Void> setKeyLabel(ECKey key) {
+        return submit(() -> {
+            Parameters.wallet.setKeyLabel(key);
+            return null;
+        });
+    }
+
+    /**
+     * Moves a receive transaction to or from the safe
+     *
+     * @param       rcvTx           Receive transaction
+     * @param       inSafe          TRUE to move the transaction to the safe
+     * @return                      Future for the update request
+     */
+    public CompletableFuture<Void> setTxSafe(ReceiveTransaction rcvTx, boolean inSafe) {
+        return submit(() -> {
+            Parameters.wallet.setTxSafe(rcvTx.getTxHash(), rcvTx.getTxIndex(), inSafe);
+            return null;
+        });
+    }
+
+    /**
+     * Imports a private key and scans the block chain for transactions involving the key
+     *
+     * @param       key             Private key
+     * @return                      Future for the import request (FALSE if the key is already in the wallet)
+     */
+    public CompletableFuture<Boolean> importKey(ECKey key) {
+        return submit(() -> {
+            if (!addKey(key))
+                return false;
+            Parameters.filterManager.addKey(key);
+            Parameters.databaseHandler.rescanKeys(Collections.singletonList(key));
+            return true;
+        });
+    }
+
+    /**
+     * Exports the private keys as Base58-encoded strings (compatible with the Bitcoin-Qt client)
+     *
+     * The keys will be written to the export file in the following format:
+     *   Label: <text>
+     *   Time: <creation-time>
+     *   Address: <bitcoin-address>
+     *   Private: <private-key>
+     *
+     * @param       keyFile         Export file
+     * @param       listener        Progress listener or null
+     * @return                      Future for the number of keys exported
+     */
+    public CompletableFuture<Integer> exportKeys(File keyFile, ProgressListener listener) {
+        return submit(() -> {
+            List<ECKey> keyList;
+            synchronized(Parameters.lock) {
+                keyList = new ArrayList<>(Parameters.keys);
+            }
+            if (keyFile.exists())
+                keyFile.delete();
+            StringBuilder keyText = new StringBuilder(256);
+            int count = 0;
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(keyFile))) {
+                for (ECKey key : keyList) {
+                    String address = key.toAddress().toString();
+                    DumpedPrivateKey dumpedKey = key.getPrivKeyEncoded();
+                    keyText.append("Label:");
+                    keyText.append(key.getLabel());
+                    keyText.append("\nTime:");
+                    keyText.append(Long.toString(key.getCreationTime()));
+                    keyText.append("\nAddress:");
+                    keyText.append(address);
+                    keyText.append("\nPrivate:");
+                    keyText.append(dumpedKey.toString());
+                    keyText.append("\n\n");
+                    out.write(keyText.toString());
+                    keyText.delete(0,keyText.length());
+                    reportProgress(listener, ++count, keyList.size());
+                }
+            }
+            return count;
+        });
+    }
+
+    /**
+     * Imports private keys from a key file and scans the block chain for transactions
+     * involving the new keys
+     *
+     * The keys must be in the format created by exportKeys().  Blank lines and lines beginning
+     * with '#' will be ignored.  Lines containing unrecognized prefixes will also be ignored.
+     * A key is not imported if its address does not match the address in the key file.
+     *
+     * @param       keyFile         Import file
+     * @param       listener        Progress listener or null
+     * @return                      Future for the addresses that did not match the imported keys
+     */
+    public CompletableFuture<List<String>> importKeys(File keyFile, ProgressListener listener) {
+        return submit(() -> {
+            //
+            // Read the key file
+            //
+            List<String> lines = new ArrayList<>();
+            int keyCount = 0;
+            try (BufferedReader in = new BufferedReader(new FileReader(keyFile))) {
+                String line;
+                while ((line=in.readLine()) != null) {
+                    //
+                    // Remove leading and trailing whitespace and skip comment lines and blank lines
+                    //
+                    line = line.trim();
+                    if (line.length() == 0 || line.charAt(0) == '#')
+                        continue;
+                    lines.add(line);
+                    if (line.startsWith("Private:"))
+                        keyCount++;
+                }
+            }
+            //
+            // Process each line
+            //
+            String importedLabel = "";
+            String importedTime = "";
+            String importedAddress = "";
+            String encodedPrivateKey = "";
+            boolean foundKey = false;
+            int processed = 0;
+            List<ECKey> newKeys = new ArrayList<>();
+            List<String> mismatches = new ArrayList<>();
+            for (String line : lines) {
+                int sep = line.indexOf(':');
+                if (sep <1 || line.length() == sep+1)
+                    continue;
+                //
+                // Parse the line formatted as "keyword:value".  The following keywords are supported and
+                // must appear in the listed order:
+                //    Label = Name assigned to the key (may be omitted)
+                //    Time = Key creation time (may be omitted)
+                //    Address = Bitcoin address for the key (may be omitted)
+                //    Private = Private key (must be specified and must be the last line for the key)
+                //
+                String keyword = line.substring(0, sep);
+                String value = line.substring(sep+1);
+                switch (keyword) {
+                    case "Label":
+                        importedLabel = value;
+                        break;
+                    case "Time":
+                        importedTime = value;
+                        break;
+                    case "Address":
+                        importedAddress = value;
+                        break;
+                    case "Private":
+                        encodedPrivateKey = value;
+                        foundKey = true;
+                        break;
+                }
+                //
+                // Add the key to the wallet
+                //
+                if (foundKey) {
+                    DumpedPrivateKey dumpedKey = new DumpedPrivateKey(encodedPrivateKey);
+                    ECKey key = dumpedKey.getKey();
+                    if (importedAddress.equals(key.toAddress().toString())) {
+                        key.setLabel(importedLabel);
+                        key.setCreationTime(Long.parseLong(importedTime));
+                        if (addKey(key))
+                            newKeys.add(key);
+                    } else {
+                        mismatches.add(importedAddress);
+                    }
+                    reportProgress(listener, ++processed, keyCount);
+                    //
+                    // Reset for the next key
+                    //
+                    foundKey = false;
+                    importedLabel = "";
+                    importedTime = "";
+                    importedAddress = "";
+                    encodedPrivateKey = "";
+                }
+            }
+            //
+            // Add the new keys to the bloom filter and scan the block chain for
+            // transactions involving the new keys
+            //
+            if (!newKeys.isEmpty()) {
+                Parameters.filterManager.addKeys(newKeys);
+                Parameters.databaseHandler.rescanKeys(newKeys);
+            }
+            return mismatches;
+        });
+    }
+
+    /**
+     * Stores a key in the wallet and adds it to the key list sorted by label
+     *
+     * @param       key                 Key
+     * @return                          FALSE if the key is already in the wallet
+     * @throws      WalletException     Unable to store the key
+     */
+    private boolean addKey(ECKey key) throws WalletException {
+        synchronized(Parameters.lock) {
+            if (Parameters.keys.contains(key))
+                return false;
+        }
+        Parameters.wallet.storeKey(key);
+        synchronized(Parameters.lock) {
+            boolean added = false;
+            for (int i=0; i<Parameters.keys.size(); i++) {
+                if (Parameters.keys.get(i).getLabel().compareToIgnoreCase(key.getLabel()) > 0) {
+                    Parameters.keys.add(i, key);
+                    added = true;
+                    break;
+                }
+            }
+            if (!added)
+                Parameters.keys.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * Submits an operation to the service thread
+     *
+     * @param       task            Wallet operation
+     * @return                      Future for the operation result
+     */
+    private <T> CompletableFuture<T> submit(ServiceTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Exception exc) {
+                    log.error("Wallet service operation failed", exc);
+                    future.completeExceptionally(exc);
+                }
+            });
+        } catch (RejectedExecutionException exc) {
+            future.completeExceptionally(new WalletException("The wallet service has been stopped"));
+        }
+        return future;
+    }
+
+    /**
+     * Reports the progress of an operation on the event dispatch thread
+     *
+     * @param       listener        Progress listener or null
+     * @param       completed       Number of steps completed
+     * @param       total           Total number of steps
+     */
+    private static void reportProgress(ProgressListener listener, int completed, int total) {
+        if (listener != null)
+            GUI_EXECUTOR.execute(() -> listener.progress(completed, total));
+    }
+
+    /**
+     * A wallet operation performed on the service thread
+     */
+    @FunctionalInterface
+    private interface ServiceTask<T> {
+
+        /**
+         * Performs the operation
+         *
+         * @return                      Operation result
+         * @throws      Exception       Operation failed
+         */
+        T call() throws Exception;
+    }
+
+    /**
+     * Receives progress reports for a long operation
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+
+        /**
+         * Reports the progress of an operation (event dispatch thread)
+         *
+         * @param       completed       Number of steps completed
+         * @param       total           Total number of steps
+         */
+        void progress(int completed, int total);
+    }
+}
@@ -34,12 +34,14 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -54,7 +56,8 @@ public class WalletSql extends Wallet {
     /** Settings table definition */
     private static final String Settings_Table = "CREATE TABLE IF NOT EXISTS Settings ("
             + "schema_name          VARCHAR(32) NOT NULL,"          // Database schema name
-            + "schema_version       SMALLINT NOT NULL)";            // Database schema version
+            + "schema_version       SMALLINT NOT NULL,"             // Database schema version
+            + "scan_height          INTEGER NOT NULL)";             // Wallet scan height
 
     /** Headers table definitions */
     private static final String Headers_Table = "CREATE TABLE IF NOT EXISTS Headers ("
@@ -93,6 +96,7 @@ public class WalletSql extends Wallet {
             + "is_deleted           BOOLEAN NOT NULL)";             // Transaction output is deleted
 
     private static final String Received_IX1 = "CREATE INDEX IF NOT EXISTS Received_IX1 ON Received(tx_hash_index)";
+    private static final String Received_IX2 = "CREATE INDEX IF NOT EXISTS Received_IX2 ON Received(timestamp DESC,db_id DESC)";
 
     /** Sent table definitions */
     private static final String Sent_Table = "CREATE TABLE IF NOT EXISTS Sent ("
@@ -109,6 +113,7 @@ public class WalletSql extends Wallet {
             + "is_deleted           BOOLEAN NOT NULL,"              // Transaction is deleted
             + "tx_data              BINARY NOT NULL)";              // Transaction data
     private static final String Sent_IX1 = "CREATE UNIQUE INDEX IF NOT EXISTS Sent_IX1 ON Sent(tx_hash_index)";
+    private static final String Sent_IX2 = "CREATE INDEX IF NOT EXISTS Sent_IX2 ON Sent(timestamp DESC,db_id DESC)";
 
     /** Addresses table definitions */
     private static final String Addresses_Table = "CREATE TABLE IF NOT EXISTS Addresses ("
@@ -130,7 +135,7 @@ public class WalletSql extends Wallet {
     public static final String schemaName = "BitcoinWallet Block Store";
 
     /** Database schema version */
-    public static final int schemaVersion = 104;
+    public static final int schemaVersion = 106;
 
     /** Per-thread database connection */
     private final ThreadLocal<Connection> threadConnection = new ThreadLocal<>();
@@ -138,6 +143,18 @@ public class WalletSql extends Wallet {
     /** List of all database connections */
     private final List<Connection> allConnections = Collections.synchronizedList(new ArrayList<>());
 
+    /** Per-thread unit of work */
+    private final ThreadLocal<Boolean> threadUnit = new ThreadLocal<>();
+
+    /** Chain values updated by the current unit of work (applied when the unit is committed) */
+    private final ThreadLocal<ChainValues> threadChain = new ThreadLocal<>();
+
+    /** Current item savepoint for the unit of work */
+    private final ThreadLocal<Savepoint> threadSavepoint = new ThreadLocal<>();
+
+    /** Chain values at the current item savepoint */
+    private final ThreadLocal<ChainValues> threadSavepointChain = new ThreadLocal<>();
+
     /** Database connection URL */
     private final String connectionURL;
 
@@ -228,23 +245,211 @@ public class WalletSql extends Wallet {
     }
 
     /**
-     * Rollback the current transaction and turn auto commit back on
+     * Rollback the current transaction and turn auto commit back on.  Only the updates
+     * following the savepoint are rolled back if the current thread has an active
+     * unit of work.
      *
-     * @param       stmt            Statement to be closed or null
+     * @param       savepoint       Unit of work savepoint or null
+     * @param       stmts           Statements to be closed or null
      */
-    private void rollback(AutoCloseable... stmts) {
+    private void rollback(Savepoint savepoint, AutoCloseable... stmts) {
         try {
             Connection conn = getConnection();
             for (AutoCloseable stmt : stmts)
                 if (stmt != null)
                     stmt.close();
-            conn.rollback();
-            conn.setAutoCommit(true);
+            if (savepoint != null) {
+                conn.rollback(savepoint);
+            } else {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
         } catch (Exception exc) {
             log.error("Unable to rollback transaction", exc);
         }
     }
 
+    /**
+     * Starts a unit of work for the current thread
+     *
+     * @throws      WalletException         Unable to start the unit of work
+     */
+    @Override
+    public void beginUnit() throws WalletException {
+        if (isUnitActive())
+            return;
+        Connection conn = getConnection();
+        try {
+            conn.setAutoCommit(false);
+            threadUnit.set(Boolean.TRUE);
+            threadChain.set(new ChainValues());
+        } catch (SQLException exc) {
+            log.error("Unable to start unit of work", exc);
+            throw new WalletException("Unable to start unit of work");
+        }
+    }
+
+    /**
+     * Commits the unit of work for the current thread.  The chain values updated by
+     * the unit of work become visible to the other threads once the database updates
+     * have been committed.  A chain value that was not updated by the unit of work
+     * is not changed.
+     *
+     * @throws      WalletException         Unable to commit the unit of work
+     */
+    @Override
+    public void commitUnit() throws WalletException {
+        if (!isUnitActive())
+            return;
+        Connection conn = getConnection();
+        try {
+            conn.commit();
+            conn.setAutoCommit(true);
+            ChainValues values = threadChain.get();
+            synchronized (lock) {
+                if (values.chainUpdated) {
+                    chainHead = values.chainHead;
+                    chainHeight = values.chainHeight;
+                    chainWork = values.chainWork;
+                }
+                if (values.scanUpdated)
+                    scanHeight = values.scanHeight;
+            }
+            endUnit();
+        } catch (SQLException exc) {
+            log.error("Unable to commit unit of work", exc);
+            rollbackUnit();
+            throw new WalletException("Unable to commit unit of work");
+        }
+    }
+
+    /**
+     * Rolls back the unit of work for the current thread.  The chain values updated by
+     * the unit of work are discarded.
+     */
+    @Override
+    public void rollbackUnit() {
+        if (!isUnitActive())
+            return;
+        endUnit();
+        rollback(null);
+    }
+
+    /**
+     * Ends the unit of work for the current thread
+     */
+    private void endUnit() {
+        threadUnit.remove();
+        threadChain.remove();
+        threadSavepoint.remove();
+        threadSavepointChain.remove();
+    }
+
+    /**
+     * Checks if the current thread has an active unit of work
+     *
+     * @return                              TRUE if a unit of work is active
+     */
+    @Override
+    public boolean isUnitActive() {
+        return (threadUnit.get() != null);
+    }
+
+    /**
+     * Sets a savepoint in the unit of work for the current thread.  The previous
+     * savepoint is released.  Nothing is done if the current thread does not have
+     * an active unit of work.
+     *
+     * @throws      WalletException         Unable to set the savepoint
+     */
+    @Override
+    public void setSavepoint() throws WalletException {
+        if (!isUnitActive())
+            return;
+        Connection conn = getConnection();
+        try {
+            Savepoint savepoint = threadSavepoint.get();
+            threadSavepoint.remove();
+            if (savepoint != null)
+                conn.releaseSavepoint(savepoint);
+            threadSavepoint.set(conn.setSavepoint());
+            threadSavepointChain.set(new ChainValues(threadChain.get()));
+        } catch (SQLException exc) {
+            log.error("Unable to set savepoint", exc);
+            throw new WalletException("Unable to set savepoint");
+        }
+    }
+
+    /**
+     * Rolls back the unit of work for the current thread to the last savepoint.  The
+     * chain values are restored to their values at the savepoint.  Nothing is done if
+     * the current thread does not have an active unit of work or a savepoint has not
+     * been set.
+     *
+     * @throws      WalletException         Unable to roll back to the savepoint
+     */
+    @Override
+    public void rollbackSavepoint() throws WalletException {
+        Savepoint savepoint = threadSavepoint.get();
+        if (!isUnitActive() || savepoint == null)
+            return;
+        try {
+            getConnection().rollback(savepoint);
+            threadChain.set(new ChainValues(threadSavepointChain.get()));
+        } catch (SQLException exc) {
+            log.error("Unable to roll back to savepoint", exc);
+            throw new WalletException("Unable to roll back to savepoint");
+        }
+    }
+
+    /**
+     * Returns the chain height.  A thread with an active unit of work sees the chain
+     * height updated by the unit of work.
+     *
+     * @return                              Chain height
+     */
+    @Override
+    public int getChainHeight() {
+        ChainValues values = threadChain.get();
+        return (values != null && values.chainUpdated ? values.chainHeight : chainHeight);
+    }
+
+    /**
+     * Returns the chain head.  A thread with an active unit of work sees the chain
+     * head updated by the unit of work.
+     *
+     * @return                              Chain head
+     */
+    @Override
+    public Sha256Hash getChainHead() {
+        ChainValues values = threadChain.get();
+        return (values != null && values.chainUpdated ? values.chainHead : chainHead);
+    }
+
+    /**
+     * Returns the chain work.  A thread with an active unit of work sees the chain
+     * work updated by the unit of work.
+     *
+     * @return                              Chain work
+     */
+    @Override
+    public BigInteger getChainWork() {
+        ChainValues values = threadChain.get();
+        return (values != null && values.chainUpdated ? values.chainWork : chainWork);
+    }
+
+    /**
+     * Returns the scan height.  A thread with an active unit of work sees the scan
+     * height updated by the unit of work.
+     *
+     * @return                              Scan height
+     */
+    @Override
+    public int getScanHeight() {
+        ChainValues values = threadChain.get();
+        return (values != null && values.scanUpdated ? values.scanHeight : scanHeight);
+    }
+
     /**
      * Get the hash index for a SHA-256 hash
      *
@@ -329,8 +534,10 @@ public class WalletSql extends Wallet {
             s.executeUpdate(Headers_IX3);
             s.executeUpdate(Received_Table);
             s.executeUpdate(Received_IX1);
+            s.executeUpdate(Received_IX2);
             s.executeUpdate(Sent_Table);
             s.executeUpdate(Sent_IX1);
+            s.executeUpdate(Sent_IX2);
             s.executeUpdate(Addresses_Table);
             s.executeUpdate(Keys_Table);
             log.info("SQL database tables created");
@@ -352,11 +559,12 @@ public class WalletSql extends Wallet {
             chainHead = new Sha256Hash(NetParams.GENESIS_BLOCK_HASH);
             chainHeight = 0;
             chainWork = BigInteger.ONE;
+            scanHeight = 0;
             try (PreparedStatement s1 = conn.prepareStatement("INSERT INTO Headers "
                         + "(block_hash_index,block_hash,prev_hash_index,prev_hash,version,timestamp,target_difficulty,"
                         + "merkle_root,block_height,chain_work) VALUES(?,?,0,?,?,?,?,?,0,?)");
                 PreparedStatement s2 = conn.prepareStatement("INSERT INTO Settings "
-                        + "(schema_name,schema_version) VALUES(?,?)")) {
+                        + "(schema_name,schema_version,scan_height) VALUES(?,?,0)")) {
                 //
                 // Add the genesis block to the block chain
                 //
@@ -393,7 +601,7 @@ public class WalletSql extends Wallet {
                                    schemaVersion/100, schemaVersion%100));
         } catch (EOFException | SQLException | VerificationException exc) {
             log.error("Unable to initialize the database tables", exc);
-            rollback();
+            rollback(null);
             throw new WalletException("Unable to initialize the database tables");
         }
     }
@@ -435,24 +643,22 @@ public class WalletSql extends Wallet {
                     s.executeUpdate("ALTER TABLE Settings DROP COLUMN IF EXISTS witness_activated");
                     s.executeUpdate("ALTER TABLE Settings DROP COLUMN IF EXISTS previous_interval");
                     s.executeUpdate("ALTER TABLE Settings DROP COLUMN IF EXISTS current_interval");
+                case 104:
+                    s.executeUpdate("ALTER TABLE Settings ADD COLUMN IF NOT EXISTS scan_height INTEGER");
+                    s.executeUpdate("UPDATE Settings SET scan_height=(SELECT MAX(block_height) FROM Headers)");
+                    s.executeUpdate("ALTER TABLE Settings ALTER COLUMN scan_height SET NOT NULL");
+                case 105:
+                    s.executeUpdate(Received_IX2);
+                    s.executeUpdate(Sent_IX2);
                     //
                     // Insert new version updates before this comment
                     //
                     s.executeUpdate("UPDATE Settings SET schema_version=" + schemaVersion);
             }
             //
-            // Get the current chain values from the chain head block
+            // Get the current chain values
             //
-            r = s.executeQuery("SELECT block_hash,block_height,chain_work FROM Headers "
-                        + "WHERE block_height=(SELECT MAX(block_height) FROM Headers)");
-            if (!r.next()) {
-                log.error("SQL database is not initialized");
-                throw new WalletException("SQL database is not initialized");
-            }
-            chainHead = new Sha256Hash(r.getBytes(1));
-            chainHeight = r.getInt(2);
-            chainWork = new BigInteger(r.getBytes(3));
-            r.close();
+            loadChainValues(s);
             //
             // Initialization complete
             //
@@ -464,6 +670,35 @@ public class WalletSql extends Wallet {
         }
     }
 
+
+    /**
+     * Loads the chain values from the chain head block and the Settings table
+     *
+     * @param       s                   SQL statement
+     * @throws      SQLException        SQL error occurred
+     * @throws      WalletException     Database is not initialized
+     */
+    private void loadChainValues(Statement s) throws SQLException, WalletException {
+        //
+        // Get the current chain values from the chain head block
+        //
+        ResultSet r = s.executeQuery("SELECT block_hash,block_height,chain_work FROM Headers "
+                    + "WHERE block_height=(SELECT MAX(block_height) FROM Headers)");
+        if (!r.next()) {
+            log.error("SQL database is not initialized");
+            throw new WalletException("SQL database is not initialized");
+        }
+        chainHead = new Sha256Hash(r.getBytes(1));
+        chainHeight = r.getInt(2);
+        chainWork = new BigInteger(r.getBytes(3));
+        r.close();
+        //
+        // Get the wallet scan height
+        //
+        r = s.executeQuery("SELECT scan_height FROM Settings WHERE schema_name='" + schemaName + "'");
+        scanHeight = (r.next() ? r.getInt(1) : chainHeight);
+        r.close();
+    }
     /**
      * Returns the chain height of the latest block earlier than the requested time.
      *
@@ -489,6 +724,32 @@ public class WalletSql extends Wallet {
         return height;
     }
 
+    /**
+     * Sets the wallet scan height
+     *
+     * @param       height              Height of the last block scanned
+     * @throws      WalletException     Unable to update the scan height
+     */
+    @Override
+    public void setScanHeight(int height) throws WalletException {
+        Connection conn = getConnection();
+        try (PreparedStatement s = conn.prepareStatement("UPDATE Settings SET scan_height=? WHERE schema_name=?")) {
+            s.setInt(1, height);
+            s.setString(2, schemaName);
+            s.executeUpdate();
+            ChainValues values = threadChain.get();
+            if (values != null) {
+                values.scanHeight = height;
+                values.scanUpdated = true;
+            } else {
+                scanHeight = height;
+            }
+        } catch (SQLException exc) {
+            log.error("Unable to update scan height", exc);
+            throw new WalletException("Unable to update scan height");
+        }
+    }
+
     /**
      * Returns the block hash for the block at the requested height
      *
@@ -806,7 +1067,9 @@ public class WalletSql extends Wallet {
     }
 
     /**
-     * Updates the matched transactions for a block
+     * Updates the matched transactions for a block.  The matched transactions are
+     * marked as confirmed if the block is already on the chain.  This happens when
+     * the block header is received before the merkle block.
      *
      * @param       header              Block Header
      * @throws      WalletException     Unable to update the database
@@ -814,15 +1077,45 @@ public class WalletSql extends Wallet {
     @Override
     public void updateMatches(BlockHeader header) throws WalletException {
         Connection conn = getConnection();
+        ResultSet r;
         try (PreparedStatement s = conn.prepareStatement("UPDATE Headers SET matches=? "
-                            + "WHERE block_hash_index=? AND block_hash=?")) {
-            if (header.getMatches()==null || header.getMatches().isEmpty())
+                            + "WHERE block_hash_index=? AND block_hash=?");
+                PreparedStatement s1 = conn.prepareStatement("SELECT block_height FROM Headers "
+                            + "WHERE block_hash_index=? AND block_hash=?");
+                PreparedStatement s2 = conn.prepareStatement("UPDATE Received SET block_hash=? "
+                            + "WHERE tx_hash_index=? AND tx_hash=?");
+                PreparedStatement s3 = conn.prepareStatement("UPDATE Sent SET block_hash=? "
+                            + "WHERE tx_hash_index=? AND tx_hash=?")) {
+            List<Sha256Hash> txList = header.getMatches();
+            if (txList==null || txList.isEmpty())
                 s.setNull(1, Types.BINARY);
             else
-                s.setBytes(1, getMatches(header.getMatches()));
+                s.setBytes(1, getMatches(txList));
             s.setLong(2, getHashIndex(header.getHash()));
             s.setBytes(3, header.getHash().getBytes());
             s.executeUpdate();
+            //
+            // Mark the matched transactions as confirmed if the block is on the chain
+            //
+            if (txList != null && !txList.isEmpty()) {
+                s1.setLong(1, getHashIndex(header.getHash()));
+                s1.setBytes(2, header.getHash().getBytes());
+                r = s1.executeQuery();
+                boolean onChain = (r.next() && r.getInt(1) >= 0);
+                r.close();
+                if (onChain) {
+                    for (Sha256Hash txHash : txList) {
+                        s2.setBytes(1, header.getHash().getBytes());
+                        s2.setLong(2, getHashIndex(txHash));
+                        s2.setBytes(3, txHash.getBytes());
+                        s2.executeUpdate();
+                        s3.setBytes(1, header.getHash().getBytes());
+                        s3.setLong(2, getHashIndex(txHash));
+                        s3.setBytes(3, txHash.getBytes());
+                        s3.executeUpdate();
+                    }
+                }
+            }
         } catch (SQLException exc) {
             log.error(String.format("Unable to update matched transactions\n  Block %s", header.getHash()), exc);
             throw new WalletException("Unable to update matched transactions");
@@ -1090,25 +1383,10 @@ public class WalletSql extends Wallet {
                             + "FROM Received WHERE is_deleted=false")) {
             r = s.executeQuery();
             while (r.next()) {
-                Sha256Hash txHash = new Sha256Hash(r.getBytes(1));
-                int txIndex = r.getShort(2);
-                Sha256Hash normID = new Sha256Hash(r.getBytes(3));
-                long txTime = r.getLong(4);
-                byte[] bytes = r.getBytes(5);
-                Sha256Hash blockHash = (bytes!=null ? new Sha256Hash(bytes) : null);
-                Address address = new Address(r.getBytes(6));   // Receive transactions always use P2PKH address
-                BigInteger value = BigInteger.valueOf(r.getLong(7));
-                byte[] scriptBytes = r.getBytes(8);
-                boolean isSpent = r.getBoolean(9);
-                boolean isChange = r.getBoolean(10);
-                boolean inSafe = r.getBoolean(11);
-                boolean isCoinbase = r.getBoolean(12);
-                TransactionID txID = new TransactionID(txHash, txIndex);
-                ReceiveTransaction tx = new ReceiveTransaction(normID, txHash, txIndex, txTime, blockHash,
-                                                               address, value, scriptBytes, isSpent,
-                                                               isChange, isCoinbase, inSafe);
+                ReceiveTransaction tx = getReceiveTx(r);
+                TransactionID txID = new TransactionID(tx.getTxHash(), tx.getTxIndex());
                 ReceiveTransaction prevTx = txMap.get(txID);
-                if (blockHash != null) {
+                if (tx.getBlockHash() != null) {
                     if (prevTx != null)
                         txList.remove(prevTx);
                     txList.add(tx);
@@ -1125,6 +1403,92 @@ public class WalletSql extends Wallet {
         return txList;
     }
 
+    /**
+     * Returns the receive transactions that have not been spent, deleted or moved to the safe.
+     * If we have multiple transactions with the same normalized ID, we will return the one
+     * that has been confirmed.
+     *
+     * @return                          List of unspent receive transactions
+     * @throws      WalletException     Unable to get transaction list
+     */
+    @Override
+    public List<ReceiveTransaction> getUnspentTxList() throws WalletException {
+        Map<TransactionID, ReceiveTransaction> txMap = new LinkedHashMap<>();
+        Connection conn = getConnection();
+        ResultSet r;
+        try (PreparedStatement s = conn.prepareStatement("SELECT tx_hash,tx_index,norm_hash,timestamp,"
+                            + "block_hash,address,value,script_bytes,is_spent,is_change,in_safe,is_coinbase "
+                            + "FROM Received WHERE is_deleted=false AND is_spent=false AND in_safe=false")) {
+            r = s.executeQuery();
+            while (r.next()) {
+                ReceiveTransaction tx = getReceiveTx(r);
+                TransactionID txID = new TransactionID(tx.getTxHash(), tx.getTxIndex());
+                if (tx.getBlockHash() != null || !txMap.containsKey(txID))
+                    txMap.put(txID, tx);
+            }
+        } catch (SQLException exc) {
+            log.error("Unable to get unspent transaction list", exc);
+            throw new WalletException("Unable to get unspent transaction list");
+        }
+        return new ArrayList<>(txMap.values());
+    }
+
+    /**
+     * Returns a page of receive transactions that have not been deleted.  The transactions
+     * are returned in descending timestamp order.  Transactions with the same normalized ID
+     * are not combined.
+     *
+     * @param       offset              Number of transactions to skip
+     * @param       limit               Maximum number of transactions to return
+     * @return                          List of receive transactions
+     * @throws      WalletException     Unable to get transaction list
+     */
+    @Override
+    public List<ReceiveTransaction> getReceiveTxPage(int offset, int limit) throws WalletException {
+        List<ReceiveTransaction> txList = new ArrayList<>(limit);
+        Connection conn = getConnection();
+        ResultSet r;
+        try (PreparedStatement s = conn.prepareStatement("SELECT tx_hash,tx_index,norm_hash,timestamp,"
+                            + "block_hash,address,value,script_bytes,is_spent,is_change,in_safe,is_coinbase "
+                            + "FROM Received WHERE is_deleted=false "
+                            + "ORDER BY timestamp DESC,db_id DESC LIMIT ? OFFSET ?")) {
+            s.setInt(1, limit);
+            s.setInt(2, offset);
+            r = s.executeQuery();
+            while (r.next())
+                txList.add(getReceiveTx(r));
+        } catch (SQLException exc) {
+            log.error("Unable to get receive transaction page", exc);
+            throw new WalletException("Unable to get receive transaction page");
+        }
+        return txList;
+    }
+
+    /**
+     * Creates a receive transaction from the current result set row
+     *
+     * @param       r                   Result set positioned on a Received row
+     * @return                          Receive transaction
+     * @throws      SQLException        Unable to get a column value
+     */
+    private ReceiveTransaction getReceiveTx(ResultSet r) throws SQLException {
+        Sha256Hash txHash = new Sha256Hash(r.getBytes(1));
+        int txIndex = r.getShort(2);
+        Sha256Hash normID = new Sha256Hash(r.getBytes(3));
+        long txTime = r.getLong(4);
+        byte[] bytes = r.getBytes(5);
+        Sha256Hash blockHash = (bytes!=null ? new Sha256Hash(bytes) : null);
+        Address address = new Address(r.getBytes(6));   // Receive transactions always use P2PKH address
+        BigInteger value = BigInteger.valueOf(r.getLong(7));
+        byte[] scriptBytes = r.getBytes(8);
+        boolean isSpent = r.getBoolean(9);
+        boolean isChange = r.getBoolean(10);
+        boolean inSafe = r.getBoolean(11);
+        boolean isCoinbase = r.getBoolean(12);
+        return new ReceiveTransaction(normID, txHash, txIndex, txTime, blockHash, address, value,
+                                      scriptBytes, isSpent, isChange, isCoinbase, inSafe);
+    }
+
     /**
      * Store a send transaction
      *
@@ -1237,20 +1601,10 @@ public class WalletSql extends Wallet {
                 + "FROM Sent WHERE is_deleted=false")) {
             r = s.executeQuery();
             while (r.next()) {
-                Sha256Hash txHash = new Sha256Hash(r.getBytes(1));
-                Sha256Hash normID = new Sha256Hash(r.getBytes(2));
-                long txTime = r.getLong(3);
-                byte[] bytes = r.getBytes(4);
-                Sha256Hash blockHash = (bytes!=null ? new Sha256Hash(bytes) : null);
-                Address.AddressType type = (r.getByte(5)==1 ? Address.AddressType.P2SH : Address.AddressType.P2PKH);
-                Address address = new Address(type, r.getBytes(6));
-                BigInteger value = BigInteger.valueOf(r.getLong(7));
-                BigInteger fee = BigInteger.valueOf(r.getLong(8));
-                byte[] txData = r.getBytes(9);
-                SendTransaction tx = new SendTransaction(normID, txHash, txTime, blockHash, address,
-                                                         value, fee, txData);
+                SendTransaction tx = getSendTx(r);
+                Sha256Hash normID = tx.getNormalizedID();
                 SendTransaction prevTx = txMap.get(normID);
-                if (blockHash != null) {
+                if (tx.getBlockHash() != null) {
                     if (prevTx != null)
                         txList.remove(prevTx);
                     txList.add(tx);
@@ -1267,6 +1621,58 @@ public class WalletSql extends Wallet {
         return txList;
     }
 
+    /**
+     * Returns a page of send transactions that have not been deleted.  The transactions
+     * are returned in descending timestamp order.  Transactions with the same normalized ID
+     * are not combined.
+     *
+     * @param       offset              Number of transactions to skip
+     * @param       limit               Maximum number of transactions to return
+     * @return                          List of send transactions
+     * @throws      WalletException     Unable to get transaction list
+     */
+    @Override
+    public List<SendTransaction> getSendTxPage(int offset, int limit) throws WalletException {
+        List<SendTransaction> txList = new ArrayList<>(limit);
+        Connection conn = getConnection();
+        ResultSet r;
+        try (PreparedStatement s = conn.prepareStatement("SELECT tx_hash,norm_hash,timestamp,"
+                + "block_hash,address_type,address,value,fee,tx_data "
+                + "FROM Sent WHERE is_deleted=false "
+                + "ORDER BY timestamp DESC,db_id DESC LIMIT ? OFFSET ?")) {
+            s.setInt(1, limit);
+            s.setInt(2, offset);
+            r = s.executeQuery();
+            while (r.next())
+                txList.add(getSendTx(r));
+        } catch (SQLException exc) {
+            log.error("Unable to get send transaction page", exc);
+            throw new WalletException("Unable to get send transaction page");
+        }
+        return txList;
+    }
+
+    /**
+     * Creates a send transaction from the current result set row
+     *
+     * @param       r                   Result set positioned on a Sent row
+     * @return                          Send transaction
+     * @throws      SQLException        Unable to get a column value
+     */
+    private SendTransaction getSendTx(ResultSet r) throws SQLException {
+        Sha256Hash txHash = new Sha256Hash(r.getBytes(1));
+        Sha256Hash normID = new Sha256Hash(r.getBytes(2));
+        long txTime = r.getLong(3);
+        byte[] bytes = r.getBytes(4);
+        Sha256Hash blockHash = (bytes!=null ? new Sha256Hash(bytes) : null);
+        Address.AddressType type = (r.getByte(5)==1 ? Address.AddressType.P2SH : Address.AddressType.P2PKH);
+        Address address = new Address(type, r.getBytes(6));
+        BigInteger value = BigInteger.valueOf(r.getLong(7));
+        BigInteger fee = BigInteger.valueOf(r.getLong(8));
+        byte[] txData = r.getBytes(9);
+        return new SendTransaction(normID, txHash, txTime, blockHash, address, value, fee, txData);
+    }
+
     /**
      * Returns the transaction depth.  This is the number of blocks in the chain
      * including the block containing the transaction.  So a depth of 0 indicates
@@ -1279,7 +1685,20 @@ public class WalletSql extends Wallet {
      */
     @Override
     public int getTxDepth(Sha256Hash txHash) throws WalletException {
-        int txDepth = 0;
+        int txHeight = getTxHeight(txHash);
+        return (txHeight >= 0 ? getChainHeight() - txHeight + 1 : 0);
+    }
+
+    /**
+     * Returns the height of the block containing a transaction
+     *
+     * @param       txHash                  Transaction hash
+     * @return                              Block height or -1 if the transaction is not confirmed
+     * @throws      WalletException         Unable to get the block height
+     */
+    @Override
+    public int getTxHeight(Sha256Hash txHash) throws WalletException {
+        int txHeight = -1;
         Connection conn = getConnection();
         ResultSet r;
         try (PreparedStatement s1 = conn.prepareStatement("SELECT block_hash FROM Received "
@@ -1302,14 +1721,14 @@ public class WalletSql extends Wallet {
                     s2.setBytes(2, blockHash.getBytes());
                     r = s2.executeQuery();
                     if (r.next())
-                        txDepth = chainHeight - r.getInt(1) + 1;
+                        txHeight = r.getInt(1);
                 }
             }
         } catch (SQLException exc) {
-            log.error(String.format("Unable to get transaction depth\n  Tx %s", txHash), exc);
-            throw new WalletException("Unable to get transaction depth");
+            log.error(String.format("Unable to get transaction height\n  Tx %s", txHash), exc);
+            throw new WalletException("Unable to get transaction height");
         }
-        return txDepth;
+        return txHeight;
     }
 
     /**
@@ -1406,6 +1825,7 @@ public class WalletSql extends Wallet {
         // Make the new block the chain head
         //
         synchronized (lock) {
+            Savepoint savepoint = null;
             StoredHeader header;
             Sha256Hash blockHash;
             Sha256Hash prevHash;
@@ -1420,15 +1840,22 @@ public class WalletSql extends Wallet {
                             + "WHERE block_hash_index=? AND block_hash=?");
                     PreparedStatement s5 = conn.prepareStatement("UPDATE Headers SET block_height=?,chain_work=? "
                             + "WHERE block_hash_index=? AND block_hash=?")) {
-                conn.setAutoCommit(false);
+                //
+                // Use a savepoint if the chain update is part of a unit of work.  Otherwise,
+                // the chain update is a separate database transaction.
+                //
+                if (isUnitActive())
+                    savepoint = conn.setSavepoint();
+                else
+                    conn.setAutoCommit(false);
                 //
                 // The ideal case is where the new block links to the current chain head.
                 // If this is not the case, we need to remove all blocks from the block
                 // chain following the junction block.
                 //
-                if (!chainHead.equals(chainHeader.getPrevHash())) {
+                if (!getChainHead().equals(chainHeader.getPrevHash())) {
                     Sha256Hash junctionHash = chainList.get(0).getHash();
-                    blockHash = chainHead;
+                    blockHash = getChainHead();
                     //
                     // Process each block starting at the current chain head and working backwards
                     // until we reach the junction block
@@ -1513,82 +1940,74 @@ public class WalletSql extends Wallet {
                                            blockHeight, header.getChainWork(), blockHash));
                 }
                 //
-                // Commit the changes
+                // Commit the changes unless this is part of a unit of work
                 //
-                conn.commit();
-                conn.setAutoCommit(true);
-                chainHead = chainHeader.getHash();
-                chainHeight = chainHeader.getBlockHeight();
-                chainWork = chainHeader.getChainWork();
+                if (savepoint != null) {
+                    conn.releaseSavepoint(savepoint);
+                } else {
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                }
+                ChainValues values = threadChain.get();
+                if (values != null) {
+                    values.chainHead = chainHeader.getHash();
+                    values.chainHeight = chainHeader.getBlockHeight();
+                    values.chainWork = chainHeader.getChainWork();
+                    values.chainUpdated = true;
+                } else {
+                    chainHead = chainHeader.getHash();
+                    chainHeight = chainHeader.getBlockHeight();
+                    chainWork = chainHeader.getChainWork();
+                }
             } catch (SQLException exc) {
                 log.error("Unable to update block chain", exc);
-                rollback();
+                rollback(savepoint);
                 throw new WalletException("Unable to update block chain");
             }
         }
     }
 
     /**
-     * TransactionID consists of the transaction hash plus the transaction output index
+     * Chain values updated by a unit of work
      */
-    private class TransactionID {
+    private static class ChainValues {
 
-        /** Transaction hash */
-        private final Sha256Hash txHash;
+        /** Chain head */
+        private Sha256Hash chainHead;
 
-        /** Transaction output index */
-        private final int txIndex;
+        /** Chain height */
+        private int chainHeight;
 
-        /**
-         * Creates the transaction ID
-         *
-         * @param       txHash          Transaction hash
-         * @param       txIndex         Transaction output index
-         */
-        public TransactionID(Sha256Hash txHash, int txIndex) {
-            this.txHash = txHash;
-            this.txIndex = txIndex;
-        }
+        /** Chain work */
+        private BigInteger chainWork;
 
-        /**
-         * Returns the transaction hash
-         *
-         * @return                  Transaction hash
-         */
-        public Sha256Hash getTxHash() {
-            return txHash;
-        }
+        /** Scan height */
+        private int scanHeight;
 
-        /**
-         * Returns the transaction output index
-         *
-         * @return                  Transaction output index
-         */
-        public int getTxIndex() {
-            return txIndex;
-        }
+        /** Chain head, chain height and chain work have been updated */
+        private boolean chainUpdated;
+
+        /** Scan height has been updated */
+        private boolean scanUpdated;
 
         /**
-         * Compares two objects
-         *
-         * @param       obj         Object to compare
-         * @return                  TRUE if the objects are equal
+         * Creates the chain values for a new unit of work
          */
-        @Override
-        public boolean equals(Object obj) {
-            return (obj!=null && (obj instanceof TransactionID) &&
-                        txHash.equals(((TransactionID)obj).txHash) &&
-                        txIndex==((TransactionID)obj).txIndex);
+        private ChainValues() {
         }
 
         /**
-         * Returns the hash code
+         * Creates a copy of the chain values
          *
-         * @return                  Hash code
+         * @param       values          Chain values
          */
-        @Override
-        public int hashCode() {
-            return txHash.hashCode();
+        private ChainValues(ChainValues values) {
+            chainHead = values.chainHead;
+            chainHeight = values.chainHeight;
+            chainWork = values.chainWork;
+            scanHeight = values.scanHeight;
+            chainUpdated = values.chainUpdated;
+            scanUpdated = values.scanUpdated;
         }
     }
 }
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.SignedInput;
+import org.ScripterRon.BitcoinCore.Transaction;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * BuildInputList tests.  The wallet outputs are paid to a single key.  The unconfirmed
+ * change transactions form a chain where each transaction spends the change output of
+ * the previous transaction.
+ */
+public class BuildInputListTest {
+
+    /** Number of blocks in the fixture chain */
+    private static final int BLOCK_COUNT = 4;
+
+    /** Unconfirmed chain limit */
+    private static final int CHAIN_LIMIT = 3;
+
+    /** Random source for the spent transaction hashes */
+    private final Random random = new Random(17);
+
+    /** Block chain fixture */
+    private FixtureChain chain;
+
+    /** Test wallet */
+    private TestWallet wallet;
+
+    /** Output script */
+    private byte[] script;
+
+    /**
+     * Creates the wallet and the transaction trackers
+     */
+    @Before
+    public void setUp() throws Exception {
+        chain = new FixtureChain(BLOCK_COUNT, new HashMap<>());
+        wallet = new TestWallet();
+        for (int height=0; height<BLOCK_COUNT; height++)
+            wallet.addChainBlock(chain.getBlockHash(height));
+        ECKey key = new ECKey();
+        script = FixtureChain.p2pkhScript(key.getPubKeyHash());
+        Parameters.wallet = wallet;
+        Parameters.keys = new ArrayList<>(Collections.singletonList(key));
+        Parameters.mempoolTracker = new MempoolTracker();
+        Parameters.conflictIndex = new ConflictIndex();
+        Parameters.outputReservations = new OutputReservations();
+        Parameters.spendUnconfirmedChange = true;
+        Parameters.unconfirmedChainLimit = CHAIN_LIMIT;
+    }
+
+    /**
+     * Restores the default settings
+     */
+    @After
+    public void tearDown() {
+        Parameters.spendUnconfirmedChange = false;
+        Parameters.unconfirmedChainLimit = 5;
+    }
+
+    /**
+     * Unconfirmed change is spendable until the chain of unconfirmed transactions is
+     * longer than the chain limit
+     */
+    @Test
+    public void testChainLimit() throws Exception {
+        List<Transaction> txList = buildChain(5);
+        for (Transaction tx : txList)
+            wallet.addUnspentTx(buildReceive(tx, null, true));
+        Set<Sha256Hash> spendable = getSpendable();
+        assertEquals(CHAIN_LIMIT, spendable.size());
+        for (int i=0; i<txList.size(); i++)
+            assertEquals(i < CHAIN_LIMIT, spendable.contains(txList.get(i).getHash()));
+    }
+
+    /**
+     * Unconfirmed outputs are not spendable when spending unconfirmed change is disabled,
+     * when the output is not change or when the transaction is not tracked
+     */
+    @Test
+    public void testUnconfirmed() throws Exception {
+        Transaction changeTx = buildChain(1).get(0);
+        Transaction receiveTx = buildChain(1).get(0);
+        Transaction untrackedTx = buildTransaction(randomHash(), 10000);
+        Transaction confirmedTx = buildTransaction(randomHash(), 20000);
+        wallet.addUnspentTx(buildReceive(changeTx, null, true));
+        wallet.addUnspentTx(buildReceive(receiveTx, null, false));
+        wallet.addUnspentTx(buildReceive(untrackedTx, null, true));
+        wallet.addUnspentTx(buildReceive(confirmedTx, chain.getBlockHash(1), false));
+        List<SpendableOutput> outputs = BuildInputList.buildSpendableOutputs();
+        assertEquals(2, outputs.size());
+        assertEquals(confirmedTx.getHash(), outputs.get(0).getTransaction().getTxHash());
+        assertEquals(1, outputs.get(0).getBlockHeight());
+        assertEquals(BLOCK_COUNT-1, outputs.get(0).getDepth());
+        assertEquals(changeTx.getHash(), outputs.get(1).getTransaction().getTxHash());
+        assertEquals(-1, outputs.get(1).getBlockHeight());
+        assertEquals(0, outputs.get(1).getDepth());
+        Parameters.spendUnconfirmedChange = false;
+        outputs = BuildInputList.buildSpendableOutputs();
+        assertEquals(1, outputs.size());
+        assertEquals(confirmedTx.getHash(), outputs.get(0).getTransaction().getTxHash());
+    }
+
+    /**
+     * The change outputs of a conflicted transaction and its descendants are not spendable
+     */
+    @Test
+    public void testConflicted() throws Exception {
+        List<Transaction> txList = buildChain(2);
+        for (Transaction tx : txList) {
+            Parameters.conflictIndex.add(tx, null, true);
+            wallet.addUnspentTx(buildReceive(tx, null, true));
+        }
+        assertEquals(2, getSpendable().size());
+        byte[] spentHash = Utils.reverseBytes(txList.get(0).getInputs().get(0).getOutPoint().getHash().getBytes());
+        Parameters.conflictIndex.add(buildTransaction(spentHash, 20000), null, false);
+        assertTrue(Parameters.conflictIndex.isConflicted(txList.get(0).getHash()));
+        assertTrue(getSpendable().isEmpty());
+    }
+
+    /**
+     * Reserved outputs are not spendable until the reservation is released
+     */
+    @Test
+    public void testReserved() throws Exception {
+        Transaction tx1 = buildTransaction(randomHash(), 10000);
+        Transaction tx2 = buildTransaction(randomHash(), 20000);
+        wallet.addUnspentTx(buildReceive(tx1, chain.getBlockHash(2), false));
+        wallet.addUnspentTx(buildReceive(tx2, chain.getBlockHash(2), false));
+        List<SpendableOutput> outputs = BuildInputList.buildSpendableOutputs();
+        assertEquals(2, outputs.size());
+        List<SignedInput> reserved = Collections.singletonList(outputs.get(0).getInput());
+        assertTrue(Parameters.outputReservations.reserve(reserved));
+        Set<Sha256Hash> spendable = getSpendable();
+        assertEquals(1, spendable.size());
+        assertTrue(spendable.contains(tx2.getHash()));
+        Parameters.outputReservations.release(reserved);
+        assertEquals(2, getSpendable().size());
+    }
+
+    /**
+     * Returns the transactions with spendable outputs
+     *
+     * @return                      Transaction hashes
+     */
+    private static Set<Sha256Hash> getSpendable() throws WalletException {
+        Set<Sha256Hash> spendable = new HashSet<>();
+        for (SpendableOutput output : BuildInputList.buildSpendableOutputs())
+            spendable.add(output.getTransaction().getTxHash());
+        return spendable;
+    }
+
+    /**
+     * Builds a chain of unconfirmed transactions tracked by the mempool tracker.  The
+     * first transaction spends a confirmed output and each of the other transactions
+     * spends the change output of the previous transaction.
+     *
+     * @param       length          Number of transactions
+     * @return                      Transactions in chain order
+     */
+    private List<Transaction> buildChain(int length) throws Exception {
+        List<Transaction> txList = new ArrayList<>(length);
+        byte[] spentHash = randomHash();
+        for (int i=0; i<length; i++) {
+            Transaction tx = buildTransaction(spentHash, 100000 - i*1000);
+            Parameters.mempoolTracker.add(tx);
+            txList.add(tx);
+            spentHash = Utils.reverseBytes(tx.getHash().getBytes());
+        }
+        return txList;
+    }
+
+    /**
+     * Builds a transaction spending output 0 of a transaction and paying the wallet key
+     *
+     * @param       spentHash       Spent transaction hash in serialized byte order
+     * @param       value           Output value
+     * @return                      Transaction
+     */
+    private Transaction buildTransaction(byte[] spentHash, long value) throws Exception {
+        return new Transaction(new SerializedBuffer(FixtureChain.buildTransaction(spentHash, 0, value, script)));
+    }
+
+    /**
+     * Builds the receive transaction for output 0 of a transaction
+     *
+     * @param       tx              Transaction
+     * @param       blockHash       Block containing the transaction or null if unconfirmed
+     * @param       isChange        TRUE if the output is change
+     * @return                      Receive transaction
+     */
+    private ReceiveTransaction buildReceive(Transaction tx, Sha256Hash blockHash, boolean isChange) {
+        return new ReceiveTransaction(tx.getNormalizedID(), tx.getHash(), 0, 0, blockHash,
+                new Address(Address.AddressType.P2PKH, Arrays.copyOfRange(script, 3, 23)),
+                tx.getOutputs().get(0).getValue(), script, isChange, false);
+    }
+
+    /**
+     * Returns random hash bytes
+     *
+     * @return                      Hash bytes
+     */
+    private byte[] randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+import static org.ScripterRon.BitcoinWallet.Main.log;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.SignedInput;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coin selection benchmark.  The benchmark selects from synthetic sets of 1,000 to
+ * 100,000 outputs and logs the selection latency and the estimated transaction size
+ * for each selection.  It is not run with the unit tests since the latency depends on
+ * the host.  Run it with 'mvn test -Dtest=CoinSelectionBenchmark'.
+ */
+public class CoinSelectionBenchmark {
+
+    /** Fee for each input (satoshis) */
+    private static final long INPUT_FEE = 100;
+
+    /** Change window (satoshis) */
+    private static final long CHANGE_WINDOW = 546;
+
+    /** Estimated transaction size without inputs or outputs (bytes) */
+    private static final int TX_BASE_SIZE = 10;
+
+    /** Estimated P2PKH input size (bytes) */
+    private static final int TX_INPUT_SIZE = 148;
+
+    /** Estimated P2PKH output size (bytes) */
+    private static final int TX_OUTPUT_SIZE = 34;
+
+    /** Output script */
+    private static final byte[] SCRIPT = FixtureChain.p2pkhScript(new byte[20]);
+
+    /** Output address */
+    private static final Address ADDRESS = new Address(Address.AddressType.P2PKH, new byte[20]);
+
+    /** Key owning the outputs */
+    private final ECKey key = new ECKey();
+
+    /** Random source for the hashes and output values */
+    private final Random random = new Random(11);
+
+    /**
+     * Selects inputs for several amounts from each output set
+     */
+    @Test
+    public void benchmarkSelection() throws Exception {
+        for (int count : new int[] {1000, 10000, 100000}) {
+            CoinSelection engine = new CoinSelection(buildOutputs(count));
+            for (long amount : new long[] {25000, 1500000, 80000000}) {
+                long startTime = System.currentTimeMillis();
+                CoinSelection.Result result = engine.select(BigInteger.valueOf(amount), BigInteger.ZERO,
+                                                BigInteger.valueOf(INPUT_FEE), BigInteger.valueOf(CHANGE_WINDOW),
+                                                CoinSelection.TIME_LIMIT);
+                long elapsed = System.currentTimeMillis() - startTime;
+                List<SignedInput> inputs = result.getInputs();
+                long total = 0;
+                for (SignedInput input : inputs)
+                    total += input.getValue().longValue() - INPUT_FEE;
+                assertTrue(total >= amount);
+                int txSize = TX_BASE_SIZE + inputs.size()*TX_INPUT_SIZE +
+                             (result.getSelectorName().equals("branch-and-bound") ? 1 : 2)*TX_OUTPUT_SIZE;
+                log.info(String.format("Coin selection: %,d outputs, amount %,d: %s selected %d inputs " +
+                                       "in %d ms (limit %d ms), transaction size %,d bytes",
+                                       count, amount, result.getSelectorName(), inputs.size(),
+                                       elapsed, CoinSelection.TIME_LIMIT, txSize));
+            }
+        }
+    }
+
+    /**
+     * Builds the spendable outputs.  The values are spread over several orders of
+     * magnitude like the outputs of a fragmented wallet.
+     *
+     * @param       count           Number of outputs
+     * @return                      Spendable outputs
+     */
+    private List<SpendableOutput> buildOutputs(int count) {
+        List<SpendableOutput> outputs = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            Sha256Hash txHash = new Sha256Hash(bytes);
+            long value = INPUT_FEE + 1000 + (long)Math.pow(10, 2 + random.nextDouble()*5);
+            ReceiveTransaction rcvTx = new ReceiveTransaction(txHash, txHash, 0, 0, null, ADDRESS,
+                                                              BigInteger.valueOf(value), SCRIPT, false, false);
+            SignedInput input = new SignedInput(key, new OutPoint(txHash, 0), rcvTx.getValue(), SCRIPT);
+            outputs.add(new SpendableOutput(rcvTx, input, 1, 10));
+        }
+        return outputs;
+    }
+}
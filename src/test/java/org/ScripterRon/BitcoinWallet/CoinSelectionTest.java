@@ -0,0 +1,280 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.SignedInput;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coin selection tests.  The outputs are synthetic P2PKH outputs owned by a single key.
+ * The selection latency is measured by CoinSelectionBenchmark, which is not part of the
+ * unit tests.
+ */
+public class CoinSelectionTest {
+
+    /** Fee for each input (satoshis) */
+    private static final long INPUT_FEE = 100;
+
+    /** Change window (satoshis) */
+    private static final long CHANGE_WINDOW = 546;
+
+    /** Output script */
+    private static final byte[] SCRIPT = FixtureChain.p2pkhScript(new byte[20]);
+
+    /** Output address */
+    private static final Address ADDRESS = new Address(Address.AddressType.P2PKH, new byte[20]);
+
+    /** Key owning the outputs */
+    private final ECKey key = new ECKey();
+
+    /** Random source for the hashes and output values */
+    private final Random random = new Random(11);
+
+    /**
+     * The branch-and-bound selector finds an exact match and returns no selection when
+     * every subset either falls short of the target or creates change
+     */
+    @Test
+    public void testBranchAndBound() throws Exception {
+        BranchAndBoundSelector selector = new BranchAndBoundSelector();
+        long deadline = System.currentTimeMillis() + CoinSelection.TIME_LIMIT;
+        long[] values = new long[] {50000, 30000, 20000, 12000, 7000, 3000};
+        int[] indexes = selector.select(values, 39000, CHANGE_WINDOW, deadline);
+        assertNotNull(indexes);
+        assertEquals(39000, total(values, indexes));
+        indexes = selector.select(values, 38800, CHANGE_WINDOW, deadline);
+        assertNotNull(indexes);
+        assertEquals(39000, total(values, indexes));
+        assertNull(selector.select(new long[] {40000, 30000, 20000, 10000}, 25000, CHANGE_WINDOW, deadline));
+        assertNull(selector.select(values, 200000, CHANGE_WINDOW, deadline));
+    }
+
+    /**
+     * The engine uses the branch-and-bound selection when there is a changeless selection
+     */
+    @Test
+    public void testEngineExactMatch() throws Exception {
+        List<SpendableOutput> outputs = buildOutputs(new long[] {50000, 30000, 20000, 12000, 7000, 3000});
+        CoinSelection.Result result = select(outputs, 39000 - 3*INPUT_FEE, CoinSelection.TIME_LIMIT);
+        assertEquals("branch-and-bound", result.getSelectorName());
+        assertEquals(3, result.getInputs().size());
+        assertEquals(39000, inputTotal(result.getInputs()));
+        assertTrue(isAscending(result.getInputs()));
+    }
+
+    /**
+     * The engine falls back to the knapsack selector when there is no changeless
+     * selection, and the knapsack selection leaves change that is not dust
+     */
+    @Test
+    public void testKnapsackFallback() throws Exception {
+        List<SpendableOutput> outputs = buildOutputs(new long[] {40100, 30100, 20100, 10100});
+        CoinSelection.Result result = select(outputs, 25000, CoinSelection.TIME_LIMIT);
+        assertEquals("knapsack", result.getSelectorName());
+        long effective = inputTotal(result.getInputs()) - result.getInputs().size()*INPUT_FEE;
+        assertTrue(effective >= 25000 + CHANGE_WINDOW);
+        KnapsackSelector selector = new KnapsackSelector();
+        long deadline = System.currentTimeMillis() + CoinSelection.TIME_LIMIT;
+        long[] values = new long[] {40000, 30000, 20000, 10000};
+        int[] indexes = selector.select(values, 30000, CHANGE_WINDOW, deadline);
+        assertArrayEquals(new int[] {1}, indexes);
+        assertNull(selector.select(values, 200000, CHANGE_WINDOW, deadline));
+    }
+
+    /**
+     * The largest outputs are used when no selector finds a selection, and no outputs
+     * are selected when the outputs do not cover the amount
+     */
+    @Test
+    public void testLargestFirstFallback() throws Exception {
+        List<SpendableOutput> outputs = buildOutputs(new long[] {10100, 40100, 20100, 30100, 50});
+        CoinSelection engine = new CoinSelection(outputs, Collections.singletonList(new NullSelector()));
+        CoinSelection.Result result = engine.select(BigInteger.valueOf(75000), BigInteger.ZERO,
+                                                    BigInteger.valueOf(INPUT_FEE), BigInteger.valueOf(CHANGE_WINDOW),
+                                                    CoinSelection.TIME_LIMIT);
+        assertEquals("largest-first", result.getSelectorName());
+        List<SignedInput> inputs = result.getInputs();
+        assertEquals(3, inputs.size());
+        assertEquals(20100, inputs.get(0).getValue().longValue());
+        assertEquals(30100, inputs.get(1).getValue().longValue());
+        assertEquals(40100, inputs.get(2).getValue().longValue());
+        result = engine.select(BigInteger.valueOf(100001), BigInteger.ZERO, BigInteger.valueOf(INPUT_FEE),
+                               BigInteger.valueOf(CHANGE_WINDOW), CoinSelection.TIME_LIMIT);
+        assertEquals("none", result.getSelectorName());
+        assertTrue(result.getInputs().isEmpty());
+    }
+
+    /**
+     * The selectors return without a selection when the deadline has passed and each
+     * selector is given a deadline within the time limit
+     */
+    @Test
+    public void testDeadline() throws Exception {
+        long[] values = randomValues(100000);
+        long target = values[0] + values[1] + 1;
+        long deadline = System.currentTimeMillis() - 1;
+        assertNull(new BranchAndBoundSelector().select(values, target, CHANGE_WINDOW, deadline));
+        assertNull(new KnapsackSelector().select(values, target, CHANGE_WINDOW, deadline));
+        NullSelector first = new NullSelector();
+        NullSelector second = new NullSelector();
+        CoinSelection engine = new CoinSelection(buildOutputs(values), Arrays.asList(first, second));
+        long startTime = System.currentTimeMillis();
+        engine.select(BigInteger.valueOf(target), BigInteger.ZERO, BigInteger.valueOf(INPUT_FEE),
+                      BigInteger.valueOf(CHANGE_WINDOW), 100);
+        long endTime = System.currentTimeMillis();
+        assertTrue(first.deadline <= second.deadline);
+        assertTrue(second.deadline >= startTime + 100);
+        assertTrue(second.deadline <= endTime + 100);
+    }
+
+    /**
+     * Selects the inputs using the default selectors
+     *
+     * @param       outputs         Spendable outputs
+     * @param       amount          Amount including the base fee
+     * @param       timeLimit       Time limit (milliseconds)
+     * @return                      Selection result
+     */
+    private static CoinSelection.Result select(List<SpendableOutput> outputs, long amount, long timeLimit) {
+        return new CoinSelection(outputs).select(BigInteger.valueOf(amount), BigInteger.ZERO,
+                                                 BigInteger.valueOf(INPUT_FEE), BigInteger.valueOf(CHANGE_WINDOW),
+                                                 timeLimit);
+    }
+
+    /**
+     * Builds the spendable outputs
+     *
+     * @param       values          Output values
+     * @return                      Spendable outputs
+     */
+    private List<SpendableOutput> buildOutputs(long[] values) {
+        List<SpendableOutput> outputs = new ArrayList<>(values.length);
+        for (long value : values) {
+            Sha256Hash txHash = randomHash();
+            ReceiveTransaction rcvTx = new ReceiveTransaction(txHash, txHash, 0, 0, null, ADDRESS,
+                                                              BigInteger.valueOf(value), SCRIPT, false, false);
+            SignedInput input = new SignedInput(key, new OutPoint(txHash, 0), rcvTx.getValue(), SCRIPT);
+            outputs.add(new SpendableOutput(rcvTx, input, 1, 10));
+        }
+        return outputs;
+    }
+
+    /**
+     * Returns synthetic output values in descending order.  The values are spread over
+     * several orders of magnitude like the outputs of a fragmented wallet.
+     *
+     * @param       count           Number of values
+     * @return                      Output values
+     */
+    private long[] randomValues(int count) {
+        long[] values = new long[count];
+        for (int i=0; i<count; i++)
+            values[i] = INPUT_FEE + 1000 + (long)Math.pow(10, 2 + random.nextDouble()*5);
+        Arrays.sort(values);
+        for (int i=0; i<count/2; i++) {
+            long value = values[i];
+            values[i] = values[count-1-i];
+            values[count-1-i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Returns the total of the selected values
+     *
+     * @param       values          Values
+     * @param       indexes         Selected indexes
+     * @return                      Total
+     */
+    private static long total(long[] values, int[] indexes) {
+        long total = 0;
+        for (int index : indexes)
+            total += values[index];
+        return total;
+    }
+
+    /**
+     * Returns the total value of the inputs
+     *
+     * @param       inputs          Signed inputs
+     * @return                      Total value
+     */
+    private static long inputTotal(List<SignedInput> inputs) {
+        long total = 0;
+        for (SignedInput input : inputs)
+            total += input.getValue().longValue();
+        return total;
+    }
+
+    /**
+     * Checks if the inputs are in ascending value order
+     *
+     * @param       inputs          Signed inputs
+     * @return                      TRUE if the inputs are in ascending order
+     */
+    private static boolean isAscending(List<SignedInput> inputs) {
+        for (int i=1; i<inputs.size(); i++) {
+            if (inputs.get(i).getValue().compareTo(inputs.get(i-1).getValue()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a random hash
+     *
+     * @return                      Hash
+     */
+    private Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    /**
+     * Selector which never finds a selection and records the deadline it was given
+     */
+    private static class NullSelector implements CoinSelector {
+
+        /** Deadline passed to the selector */
+        private long deadline;
+
+        @Override
+        public String getName() {
+            return "null";
+        }
+
+        @Override
+        public int[] select(long[] values, long target, long changeWindow, long deadline) {
+            this.deadline = deadline;
+            return null;
+        }
+    }
+}
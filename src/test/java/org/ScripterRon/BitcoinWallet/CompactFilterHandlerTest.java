@@ -0,0 +1,341 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.InventoryItem;
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.VerificationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CompactFilterHandler tests.  The handler runs against stand-in peers serving a block
+ * chain fixture.  Blocks 5 and 12 pay the wallet keys, so the filters for these blocks
+ * match and the blocks are downloaded.
+ */
+public class CompactFilterHandlerTest {
+
+    /** Number of blocks in the fixture chain */
+    private static final int BLOCK_COUNT = 20;
+
+    /** Block chain fixture */
+    private FixtureChain chain;
+
+    /** Network handler */
+    private TestNetworkHandler network;
+
+    /** Stand-in peers */
+    private final Map<Peer, FixturePeer> peerMap = new HashMap<>();
+
+    /** Compact filter handler */
+    private CompactFilterHandler handler;
+
+    /**
+     * Creates the block chain fixture and the wallet
+     */
+    @Before
+    public void setUp() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        Parameters.keys = new ArrayList<>(Arrays.asList(key1, key2));
+        Map<Integer, byte[]> payments = new HashMap<>();
+        payments.put(5, FixtureChain.p2pkhScript(key1.getPubKeyHash()));
+        payments.put(12, FixtureChain.p2shScript(key2.getScriptHash()));
+        chain = new FixtureChain(BLOCK_COUNT, payments);
+        TestWallet wallet = new TestWallet();
+        for (int height=0; height<BLOCK_COUNT; height++)
+            wallet.addChainBlock(chain.getBlockHash(height));
+        wallet.setScanHeight(0);
+        Parameters.wallet = wallet;
+        network = new TestNetworkHandler();
+        Parameters.networkHandler = network;
+        Parameters.databaseQueue.clear();
+        synchronized(Parameters.lock) {
+            Parameters.pendingRequests.clear();
+            Parameters.processedRequests.clear();
+        }
+        handler = new CompactFilterHandler();
+    }
+
+    /**
+     * Clears the shared state
+     */
+    @After
+    public void tearDown() {
+        Parameters.databaseQueue.clear();
+        synchronized(Parameters.lock) {
+            Parameters.pendingRequests.clear();
+            Parameters.processedRequests.clear();
+        }
+    }
+
+    /**
+     * The matching blocks are passed to the database handler in height order and the
+     * scan height is updated when the batch is completed
+     */
+    @Test
+    public void testScan() throws Exception {
+        addPeers(2);
+        handler.startScan();
+        assertEquals(2, countMessages("getcfheaders"));
+        exchangeMessages();
+        deliverBlocks(peerMap.values().iterator().next());
+        List<FullBlock> blocks = getQueuedBlocks();
+        assertEquals(2, blocks.size());
+        assertEquals(chain.getBlockHash(5), blocks.get(0).getHeader().getHash());
+        assertEquals(5, blocks.get(0).getScanHeight());
+        assertFalse(blocks.get(0).isLastBlock());
+        assertEquals(2, blocks.get(0).getTransactions().size());
+        assertEquals(chain.getBlockHash(12), blocks.get(1).getHeader().getHash());
+        assertEquals(BLOCK_COUNT-1, blocks.get(1).getScanHeight());
+        assertTrue(blocks.get(1).isLastBlock());
+        assertTrue(handler.isCurrentBatch(blocks.get(1)));
+        handler.batchCompleted(blocks.get(1).getScanHeight());
+        assertEquals(BLOCK_COUNT-1, Parameters.wallet.getScanHeight());
+        assertNull(network.nextMessage());
+        for (FixturePeer fixturePeer : peerMap.values())
+            assertEquals(0, fixturePeer.peer.getBanScore());
+    }
+
+    /**
+     * A single peer is not used unless static connections are configured
+     */
+    @Test
+    public void testSinglePeer() throws Exception {
+        addPeers(1);
+        handler.startScan();
+        assertNull(network.nextMessage());
+        network.staticConnections = true;
+        handler.startScan();
+        assertEquals(1, countMessages("getcfheaders"));
+        exchangeMessages();
+        deliverBlocks(peerMap.values().iterator().next());
+        assertEquals(2, getQueuedBlocks().size());
+    }
+
+    /**
+     * The batch is discarded when the filter header chains from the two peers do not
+     * agree, so the peer serving a made-up filter cannot hide a wallet transaction
+     */
+    @Test
+    public void testFilterHeaderMismatch() throws Exception {
+        List<FixturePeer> peers = addPeers(2);
+        peers.get(1).madeUpFilterHeight = 12;
+        handler.startScan();
+        List<Message> requests = takeMessages();
+        assertEquals(2, requests.size());
+        for (Message msg : requests) {
+            for (Message response : peerMap.get(msg.getPeer()).respond(msg))
+                handler.processMessage(response);
+        }
+        List<Message> messages = takeMessages();
+        assertEquals(2, messages.size());
+        for (Message msg : messages)
+            assertEquals("getcfheaders", FixturePeer.getCommand(msg));
+        assertEquals(0, Parameters.wallet.getScanHeight());
+        assertTrue(Parameters.databaseQueue.isEmpty());
+    }
+
+    /**
+     * A filter that does not match the filter header is rejected and the batch is
+     * started again
+     */
+    @Test
+    public void testBadFilter() throws Exception {
+        List<FixturePeer> peers = addPeers(2);
+        peers.forEach((fixturePeer) -> fixturePeer.badFilters = true);
+        handler.startScan();
+        boolean rejected = false;
+        Message msg;
+        while (!rejected && (msg = network.nextMessage()) != null) {
+            for (Message response : peerMap.get(msg.getPeer()).respond(msg)) {
+                try {
+                    handler.processMessage(response);
+                } catch (VerificationException exc) {
+                    rejected = true;
+                    break;
+                }
+            }
+        }
+        assertTrue(rejected);
+        assertEquals(2, countMessages("getcfheaders"));
+        assertTrue(Parameters.databaseQueue.isEmpty());
+    }
+
+    /**
+     * A block that does not match the merkle root is rejected before it is passed to
+     * the database handler.  The peer is banned and the block is requested again.
+     */
+    @Test
+    public void testBadMerkleRoot() throws Exception {
+        List<FixturePeer> peers = addPeers(2);
+        handler.startScan();
+        exchangeMessages();
+        FixturePeer badPeer = new FixturePeer(chain, 8400);
+        badPeer.badBlocks = true;
+        List<PeerRequest> requests = takeBlockRequests();
+        assertEquals(2, requests.size());
+        try {
+            handler.processMessage(badPeer.blockMessage(requests.get(0).getHash()));
+            fail("Block with incorrect merkle root accepted");
+        } catch (VerificationException exc) {
+            // Expected
+        }
+        assertEquals(Parameters.MAX_BAN_SCORE, badPeer.peer.getBanScore());
+        assertTrue(badPeer.peer.shouldDisconnect());
+        assertTrue(Parameters.databaseQueue.isEmpty());
+        synchronized(Parameters.lock) {
+            assertEquals(1, Parameters.pendingRequests.size());
+            assertEquals(requests.get(0).getHash(), Parameters.pendingRequests.get(0).getHash());
+        }
+        handler.processMessage(peers.get(0).blockMessage(requests.get(1).getHash()));
+        assertTrue(Parameters.databaseQueue.isEmpty());
+        deliverBlocks(peers.get(0));
+        assertEquals(2, getQueuedBlocks().size());
+    }
+
+    /**
+     * A chain reorganization below the scan height discards the current batch and
+     * rewinds the scan height.  The blocks already queued for the database handler
+     * are no longer part of the current batch.
+     */
+    @Test
+    public void testChainReorganized() throws Exception {
+        addPeers(2);
+        handler.startScan();
+        exchangeMessages();
+        deliverBlocks(peerMap.values().iterator().next());
+        List<FullBlock> blocks = getQueuedBlocks();
+        assertEquals(2, blocks.size());
+        ((TestWallet)Parameters.wallet).truncateChain(8);
+        handler.chainReorganized(8);
+        assertEquals(8, Parameters.wallet.getScanHeight());
+        assertFalse(handler.isCurrentBatch(blocks.get(0)));
+        handler.batchCompleted(blocks.get(1).getScanHeight());
+        assertEquals(8, Parameters.wallet.getScanHeight());
+        assertNull(network.nextMessage());
+    }
+
+    /**
+     * Adds stand-in peers
+     *
+     * @param       count           Number of peers
+     * @return                      Peer list
+     */
+    private List<FixturePeer> addPeers(int count) {
+        List<FixturePeer> peers = new ArrayList<>();
+        for (int i=0; i<count; i++) {
+            FixturePeer fixturePeer = new FixturePeer(chain, 8333+i);
+            peerMap.put(fixturePeer.peer, fixturePeer);
+            network.connections.add(fixturePeer.peer);
+            peers.add(fixturePeer);
+        }
+        return peers;
+    }
+
+    /**
+     * Delivers the messages sent by the handler to the stand-in peers and passes the
+     * responses to the handler until there are no more messages
+     */
+    private void exchangeMessages() throws Exception {
+        Message msg;
+        while ((msg = network.nextMessage()) != null) {
+            for (Message response : peerMap.get(msg.getPeer()).respond(msg))
+                handler.processMessage(response);
+        }
+    }
+
+    /**
+     * Sends the requested blocks from a peer.  The network handler moves the pending
+     * requests to the processed list when it sends the 'getdata' message.
+     *
+     * @param       fixturePeer     Peer sending the blocks
+     */
+    private void deliverBlocks(FixturePeer fixturePeer) throws Exception {
+        for (PeerRequest request : takeBlockRequests())
+            handler.processMessage(fixturePeer.blockMessage(request.getHash()));
+    }
+
+    /**
+     * Moves the pending block requests to the processed list
+     *
+     * @return                      Block requests
+     */
+    private List<PeerRequest> takeBlockRequests() {
+        List<PeerRequest> requests = new ArrayList<>();
+        synchronized(Parameters.lock) {
+            for (PeerRequest request : Parameters.pendingRequests) {
+                assertEquals(InventoryItem.INV_BLOCK, request.getType());
+                requests.add(request);
+            }
+            Parameters.pendingRequests.clear();
+            Parameters.processedRequests.addAll(requests);
+        }
+        return requests;
+    }
+
+    /**
+     * Removes the messages sent by the handler
+     *
+     * @return                      Message list
+     */
+    private List<Message> takeMessages() {
+        List<Message> messages = new ArrayList<>();
+        Message msg;
+        while ((msg = network.nextMessage()) != null)
+            messages.add(msg);
+        return messages;
+    }
+
+    /**
+     * Counts the messages with the specified command that are waiting to be sent
+     *
+     * @param       cmd             Message command
+     * @return                      Message count
+     */
+    private int countMessages(String cmd) {
+        synchronized(network.sentMessages) {
+            return (int)network.sentMessages.stream()
+                    .filter((msg) -> FixturePeer.getCommand(msg).equals(cmd))
+                    .count();
+        }
+    }
+
+    /**
+     * Removes the full blocks queued for the database handler
+     *
+     * @return                      Block list
+     */
+    private List<FullBlock> getQueuedBlocks() {
+        List<FullBlock> blocks = new ArrayList<>();
+        Object obj;
+        while ((obj = Parameters.databaseQueue.poll()) != null)
+            blocks.add((FullBlock)obj);
+        return blocks;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ConflictIndex tests.  Each test transaction spends a single output, so transactions
+ * spending the same output with different values conflict with each other.
+ */
+public class ConflictIndexTest {
+
+    /** Output script paid by the test transactions */
+    private static final byte[] SCRIPT = FixtureChain.p2pkhScript(new byte[20]);
+
+    /** Random source for the spent transaction hashes */
+    private final Random random = new Random(7);
+
+    /**
+     * A transaction that is not relevant to the wallet is indexed only when it spends an
+     * output spent by an indexed transaction, and both transactions are then conflicted
+     */
+    @Test
+    public void testAdd() throws Exception {
+        ConflictIndex index = new ConflictIndex();
+        byte[] spentHash = randomHash();
+        Transaction walletTx = buildTransaction(spentHash, 0, 1000);
+        Transaction otherTx = buildTransaction(randomHash(), 0, 1000);
+        Transaction doubleSpend = buildTransaction(spentHash, 0, 2000);
+        List<Sha256Hash> changed = index.add(walletTx, null, true);
+        assertNotNull(changed);
+        assertTrue(changed.isEmpty());
+        assertNull(index.add(walletTx, null, true));
+        assertNull(index.add(otherTx, null, false));
+        assertFalse(index.contains(otherTx.getHash()));
+        assertFalse(index.isConflicted(walletTx.getHash()));
+        changed = index.add(doubleSpend, null, false);
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains(walletTx.getHash()));
+        assertTrue(changed.contains(doubleSpend.getHash()));
+        assertTrue(index.isConflicted(walletTx.getHash()));
+        assertTrue(index.isConflicted(doubleSpend.getHash()));
+        List<Sha256Hash> spenders = index.getSpenders(getSpentID(walletTx));
+        assertEquals(2, spenders.size());
+        assertTrue(index.getSpenders(getSpentID(otherTx)).isEmpty());
+    }
+
+    /**
+     * A confirmed transaction is not conflicted while the unconfirmed transaction
+     * spending the same output remains conflicted
+     */
+    @Test
+    public void testSetBlock() throws Exception {
+        ConflictIndex index = new ConflictIndex();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 1, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 1, 2000);
+        index.add(tx1, null, true);
+        index.add(tx2, null, true);
+        Sha256Hash blockHash = new Sha256Hash(randomHash());
+        List<Sha256Hash> changed = index.setBlock(tx2.getHash(), blockHash);
+        assertEquals(1, changed.size());
+        assertEquals(tx2.getHash(), changed.get(0));
+        assertFalse(index.isConflicted(tx2.getHash()));
+        assertTrue(index.isConflicted(tx1.getHash()));
+        assertTrue(index.setBlock(tx2.getHash(), blockHash).isEmpty());
+        assertTrue(index.setBlock(new Sha256Hash(randomHash()), blockHash).isEmpty());
+    }
+
+    /**
+     * Removing a transaction and clearing a confirmation restore the conflict status
+     * that the other transactions had before the transaction was added or confirmed
+     */
+    @Test
+    public void testUndo() throws Exception {
+        ConflictIndex index = new ConflictIndex();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 0, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 0, 2000);
+        index.add(tx1, null, true);
+        index.add(tx2, null, false);
+        assertTrue(index.isConflicted(tx1.getHash()));
+        List<Sha256Hash> changed = index.remove(tx2.getHash());
+        assertEquals(2, changed.size());
+        assertFalse(index.contains(tx2.getHash()));
+        assertFalse(index.isConflicted(tx1.getHash()));
+        assertEquals(1, index.getSpenders(getSpentID(tx1)).size());
+        assertTrue(index.remove(tx2.getHash()).isEmpty());
+        index.add(tx2, null, false);
+        Sha256Hash blockHash = new Sha256Hash(randomHash());
+        index.setBlock(tx1.getHash(), blockHash);
+        assertEquals(blockHash, index.getBlockHash(tx1.getHash()));
+        assertFalse(index.isConflicted(tx1.getHash()));
+        changed = index.setBlock(tx1.getHash(), null);
+        assertEquals(1, changed.size());
+        assertNull(index.getBlockHash(tx1.getHash()));
+        assertTrue(index.isConflicted(tx1.getHash()));
+        assertNull(index.getBlockHash(new Sha256Hash(randomHash())));
+    }
+
+    /**
+     * A transaction confirmed by a block that is no longer on the chain is conflicted
+     * again after a chain reorganization
+     */
+    @Test
+    public void testChainReorganized() throws Exception {
+        FixtureChain chain = new FixtureChain(6, new HashMap<>());
+        TestWallet wallet = new TestWallet();
+        for (int height=0; height<6; height++)
+            wallet.addChainBlock(chain.getBlockHash(height));
+        Parameters.wallet = wallet;
+        ConflictIndex index = new ConflictIndex();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 0, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 0, 2000);
+        Transaction tx3 = buildTransaction(randomHash(), 0, 1000);
+        index.add(tx1, null, true);
+        index.add(tx2, chain.getBlockHash(2), true);
+        index.add(tx3, chain.getBlockHash(4), true);
+        assertFalse(index.isConflicted(tx2.getHash()));
+        assertTrue(index.chainReorganized().isEmpty());
+        wallet.truncateChain(1);
+        List<Sha256Hash> changed = index.chainReorganized();
+        assertEquals(1, changed.size());
+        assertEquals(tx2.getHash(), changed.get(0));
+        assertTrue(index.isConflicted(tx2.getHash()));
+        assertFalse(index.isConflicted(tx3.getHash()));
+    }
+
+    /**
+     * The oldest transaction is removed when the index is full and the conflict status
+     * of the transaction sharing its input is updated
+     */
+    @Test
+    public void testCapacity() throws Exception {
+        ConflictIndex index = new ConflictIndex();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 0, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 0, 2000);
+        index.add(tx1, null, true);
+        index.add(tx2, null, true);
+        for (int i=2; i<5000; i++)
+            assertNotNull(index.add(buildTransaction(randomHash(), 0, 1000), null, true));
+        assertTrue(index.contains(tx1.getHash()));
+        List<Sha256Hash> changed = index.add(buildTransaction(randomHash(), 0, 1000), null, true);
+        assertFalse(index.contains(tx1.getHash()));
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains(tx1.getHash()));
+        assertTrue(changed.contains(tx2.getHash()));
+        assertFalse(index.isConflicted(tx2.getHash()));
+        assertEquals(1, index.getSpenders(getSpentID(tx2)).size());
+    }
+
+    /**
+     * Builds a transaction spending a single output
+     *
+     * @param       spentHash       Spent transaction hash
+     * @param       index           Spent output index
+     * @param       value           Output value
+     * @return                      Transaction
+     */
+    private static Transaction buildTransaction(byte[] spentHash, int index, long value) throws Exception {
+        return new Transaction(new SerializedBuffer(FixtureChain.buildTransaction(spentHash, index, value, SCRIPT)));
+    }
+
+    /**
+     * Returns the output spent by a transaction
+     *
+     * @param       tx              Transaction
+     * @return                      Spent output
+     */
+    private static TransactionID getSpentID(Transaction tx) {
+        OutPoint outPoint = tx.getInputs().get(0).getOutPoint();
+        return new TransactionID(outPoint.getHash(), outPoint.getIndex());
+    }
+
+    /**
+     * Returns random hash bytes
+     *
+     * @return                      Hash bytes
+     */
+    private byte[] randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Block chain fixture for the tests.  Each block contains a coinbase transaction paying
+ * a random address.  A block can also contain a transaction paying one of the supplied
+ * output scripts.  The serialized blocks, BIP 158 basic filters and filter headers are
+ * built when the fixture is created.
+ */
+class FixtureChain {
+
+    /** Block headers */
+    private final List<byte[]> headers = new ArrayList<>();
+
+    /** Block hashes */
+    private final List<Sha256Hash> hashes = new ArrayList<>();
+
+    /** Block height index */
+    private final Map<Sha256Hash, Integer> heightMap = new HashMap<>();
+
+    /** Serialized transactions for each block */
+    private final List<List<byte[]>> transactions = new ArrayList<>();
+
+    /** Serialized filter for each block */
+    private final List<byte[]> filters = new ArrayList<>();
+
+    /** Filter header for each block */
+    private final List<byte[]> filterHeaders = new ArrayList<>();
+
+    /**
+     * Creates the block chain fixture
+     *
+     * @param       blockCount          Number of blocks
+     * @param       payments            Output scripts paid by a block indexed by block height
+     */
+    FixtureChain(int blockCount, Map<Integer, byte[]> payments) {
+        Random random = new Random(blockCount);
+        byte[] prevHash = new byte[32];
+        byte[] prevFilterHeader = new byte[32];
+        for (int height=0; height<blockCount; height++) {
+            List<byte[]> txList = new ArrayList<>();
+            List<byte[]> scripts = new ArrayList<>();
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(pubKeyHash);
+            byte[] coinbaseScript = p2pkhScript(pubKeyHash);
+            txList.add(buildTransaction(null, height, 50_0000_0000L, coinbaseScript));
+            scripts.add(coinbaseScript);
+            byte[] payment = payments.get(height);
+            if (payment != null) {
+                byte[] prevTxHash = new byte[32];
+                random.nextBytes(prevTxHash);
+                txList.add(buildTransaction(prevTxHash, 0, 1_0000_0000L, payment));
+                scripts.add(payment);
+            }
+            byte[] header = new byte[80];
+            Utils.uint32ToByteArrayLE(1, header, 0);
+            System.arraycopy(prevHash, 0, header, 4, 32);
+            System.arraycopy(merkleRoot(txList), 0, header, 36, 32);
+            Utils.uint32ToByteArrayLE(1500000000L+height*600, header, 68);
+            Utils.uint32ToByteArrayLE(0x207fffffL, header, 72);
+            Utils.uint32ToByteArrayLE(height, header, 76);
+            prevHash = Utils.doubleDigest(header);
+            Sha256Hash blockHash = new Sha256Hash(Utils.reverseBytes(prevHash));
+            byte[] filter = GolombFilterBuilder.build(blockHash, scripts);
+            prevFilterHeader = CompactFilterHandler.calculateFilterHeader(prevFilterHeader,
+                                            Collections.singletonList(Utils.doubleDigest(filter)));
+            headers.add(header);
+            hashes.add(blockHash);
+            heightMap.put(blockHash, height);
+            transactions.add(txList);
+            filters.add(filter);
+            filterHeaders.add(prevFilterHeader);
+        }
+    }
+
+    /**
+     * Returns the number of blocks in the chain
+     *
+     * @return                      Block count
+     */
+    int getBlockCount() {
+        return hashes.size();
+    }
+
+    /**
+     * Returns the block hash
+     *
+     * @param       height          Block height
+     * @return                      Block hash
+     */
+    Sha256Hash getBlockHash(int height) {
+        return hashes.get(height);
+    }
+
+    /**
+     * Returns the block height
+     *
+     * @param       blockHash       Block hash
+     * @return                      Block height or -1 if the block is not in the chain
+     */
+    int getBlockHeight(Sha256Hash blockHash) {
+        Integer height = heightMap.get(blockHash);
+        return (height != null ? height : -1);
+    }
+
+    /**
+     * Returns the serialized block header
+     *
+     * @param       height          Block height
+     * @return                      Block header
+     */
+    byte[] getHeader(int height) {
+        return headers.get(height);
+    }
+
+    /**
+     * Returns the serialized transactions for a block
+     *
+     * @param       height          Block height
+     * @return                      Transaction list
+     */
+    List<byte[]> getTransactions(int height) {
+        return transactions.get(height);
+    }
+
+    /**
+     * Returns the serialized block.  The output script of the last transaction is changed
+     * if the block is tampered, so the transactions no longer match the merkle root.
+     *
+     * @param       height          Block height
+     * @param       tampered        TRUE to change the last transaction
+     * @return                      Serialized block
+     */
+    byte[] getBlock(int height, boolean tampered) {
+        List<byte[]> txList = transactions.get(height);
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        outStream.write(headers.get(height), 0, 80);
+        writeVarInt(outStream, txList.size());
+        for (int i=0; i<txList.size(); i++) {
+            byte[] txBytes = txList.get(i);
+            if (tampered && i == txList.size()-1) {
+                txBytes = txBytes.clone();
+                txBytes[txBytes.length-8]++;
+            }
+            outStream.write(txBytes, 0, txBytes.length);
+        }
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Returns the serialized basic filter
+     *
+     * @param       height          Block height
+     * @return                      Filter
+     */
+    byte[] getFilter(int height) {
+        return filters.get(height);
+    }
+
+    /**
+     * Returns the filter header for a block
+     *
+     * @param       height          Block height or -1 for the header preceding the first block
+     * @return                      Filter header
+     */
+    byte[] getFilterHeader(int height) {
+        return (height < 0 ? new byte[32] : filterHeaders.get(height));
+    }
+
+    /**
+     * Builds a P2PKH output script
+     *
+     * @param       pubKeyHash      Public key hash
+     * @return                      Output script
+     */
+    static byte[] p2pkhScript(byte[] pubKeyHash) {
+        byte[] script = new byte[25];
+        script[0] = (byte)0x76;
+        script[1] = (byte)0xa9;
+        script[2] = (byte)20;
+        System.arraycopy(pubKeyHash, 0, script, 3, 20);
+        script[23] = (byte)0x88;
+        script[24] = (byte)0xac;
+        return script;
+    }
+
+    /**
+     * Builds a P2SH output script
+     *
+     * @param       scriptHash      Script hash
+     * @return                      Output script
+     */
+    static byte[] p2shScript(byte[] scriptHash) {
+        byte[] script = new byte[23];
+        script[0] = (byte)0xa9;
+        script[1] = (byte)20;
+        System.arraycopy(scriptHash, 0, script, 2, 20);
+        script[22] = (byte)0x87;
+        return script;
+    }
+
+    /**
+     * Writes a variable-length integer
+     *
+     * @param       outStream       Output stream
+     * @param       value           Value
+     */
+    static void writeVarInt(ByteArrayOutputStream outStream, int value) {
+        if (value < 253) {
+            outStream.write(value);
+        } else {
+            outStream.write(253);
+            outStream.write(value);
+            outStream.write(value>>>8);
+        }
+    }
+
+    /**
+     * Builds a serialized transaction with a single input and a single output
+     *
+     * @param       prevTxHash      Spent transaction hash or null for a coinbase transaction
+     * @param       index           Spent output index or block height for a coinbase transaction
+     * @param       value           Output value
+     * @param       script          Output script
+     * @return                      Serialized transaction
+     */
+    static byte[] buildTransaction(byte[] prevTxHash, int index, long value, byte[] script) {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        byte[] bytes = new byte[8];
+        Utils.uint32ToByteArrayLE(1, bytes, 0);
+        outStream.write(bytes, 0, 4);
+        writeVarInt(outStream, 1);
+        if (prevTxHash == null) {
+            outStream.write(new byte[32], 0, 32);
+            Utils.uint32ToByteArrayLE(0xffffffffL, bytes, 0);
+            outStream.write(bytes, 0, 4);
+            writeVarInt(outStream, 4);
+            outStream.write(3);
+            Utils.uint32ToByteArrayLE(index, bytes, 0);
+            outStream.write(bytes, 0, 3);
+        } else {
+            outStream.write(prevTxHash, 0, 32);
+            Utils.uint32ToByteArrayLE(index, bytes, 0);
+            outStream.write(bytes, 0, 4);
+            writeVarInt(outStream, 0);
+        }
+        Utils.uint32ToByteArrayLE(0xffffffffL, bytes, 0);
+        outStream.write(bytes, 0, 4);
+        writeVarInt(outStream, 1);
+        Utils.uint32ToByteArrayLE(value&0xffffffffL, bytes, 0);
+        Utils.uint32ToByteArrayLE(value>>>32, bytes, 4);
+        outStream.write(bytes, 0, 8);
+        writeVarInt(outStream, script.length);
+        outStream.write(script, 0, script.length);
+        Utils.uint32ToByteArrayLE(0, bytes, 0);
+        outStream.write(bytes, 0, 4);
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Calculates the merkle root for a list of serialized transactions
+     *
+     * @param       txList          Transaction list
+     * @return                      Merkle root in internal byte order
+     */
+    private static byte[] merkleRoot(List<byte[]> txList) {
+        List<byte[]> level = new ArrayList<>();
+        txList.forEach((txBytes) -> level.add(Utils.doubleDigest(txBytes)));
+        while (level.size() > 1) {
+            if (level.size()%2 != 0)
+                level.add(level.get(level.size()-1));
+            List<byte[]> nextLevel = new ArrayList<>();
+            for (int i=0; i<level.size(); i+=2) {
+                byte[] bytes = Arrays.copyOf(level.get(i), 64);
+                System.arraycopy(level.get(i+1), 0, bytes, 32, 32);
+                nextLevel.add(Utils.doubleDigest(bytes));
+            }
+            level.clear();
+            level.addAll(nextLevel);
+        }
+        return level.get(0);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.MessageHeader;
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.PeerAddress;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stand-in peer for the tests.  The peer answers the compact filter requests and block
+ * requests from a block chain fixture.  The peer can be told to misbehave by serving a
+ * different filter header chain, filters that do not match the filter headers or blocks
+ * that do not match the merkle root.
+ */
+class FixturePeer {
+
+    /** Peer */
+    final Peer peer;
+
+    /** Block chain fixture */
+    private final FixtureChain chain;
+
+    /** Height of the block with a made-up filter or -1 */
+    int madeUpFilterHeight = -1;
+
+    /** Serve filters that do not match the filter headers */
+    boolean badFilters;
+
+    /** Serve blocks that do not match the merkle root */
+    boolean badBlocks;
+
+    /**
+     * Creates a stand-in peer
+     *
+     * @param       chain           Block chain fixture
+     * @param       port            Peer port
+     */
+    FixturePeer(FixtureChain chain, int port) {
+        this.chain = chain;
+        peer = new Peer(new PeerAddress(InetAddress.getLoopbackAddress(), port), null, null);
+        peer.setServices(Parameters.NODE_COMPACT_FILTERS);
+        peer.setHeight(chain.getBlockCount()-1);
+    }
+
+    /**
+     * Returns the responses to a message sent by the wallet
+     *
+     * @param       msg             Request message
+     * @return                      Response messages
+     */
+    List<Message> respond(Message msg) {
+        List<Message> responses = new ArrayList<>();
+        String cmd = getCommand(msg);
+        byte[] payload = getPayload(msg);
+        if (!cmd.equals("getcfheaders") && !cmd.equals("getcfilters"))
+            return responses;
+        int filterType = payload[0]&0xff;
+        int startHeight = (int)Utils.readUint32LE(payload, 1);
+        Sha256Hash stopHash = new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(payload, 5, 37)));
+        int stopHeight = chain.getBlockHeight(stopHash);
+        if (cmd.equals("getcfheaders")) {
+            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            outStream.write(filterType);
+            outStream.write(payload, 5, 32);
+            outStream.write(chain.getFilterHeader(startHeight-1), 0, 32);
+            FixtureChain.writeVarInt(outStream, stopHeight-startHeight+1);
+            for (int height=startHeight; height<=stopHeight; height++)
+                outStream.write(Utils.doubleDigest(getFilter(height)), 0, 32);
+            responses.add(buildMessage("cfheaders", outStream.toByteArray()));
+        } else {
+            for (int height=startHeight; height<=stopHeight; height++) {
+                byte[] filter = getFilter(height);
+                if (badFilters)
+                    filter = GolombFilterBuilder.build(chain.getBlockHash(height), new ArrayList<>());
+                ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+                outStream.write(filterType);
+                outStream.write(Utils.reverseBytes(chain.getBlockHash(height).getBytes()), 0, 32);
+                FixtureChain.writeVarInt(outStream, filter.length);
+                outStream.write(filter, 0, filter.length);
+                responses.add(buildMessage("cfilter", outStream.toByteArray()));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Returns the 'block' message for a block
+     *
+     * @param       blockHash       Block hash
+     * @return                      Block message
+     */
+    Message blockMessage(Sha256Hash blockHash) {
+        return buildMessage("block", chain.getBlock(chain.getBlockHeight(blockHash), badBlocks));
+    }
+
+    /**
+     * Returns the filter served for a block.  A made-up filter does not contain any
+     * of the block scripts.
+     *
+     * @param       height          Block height
+     * @return                      Serialized filter
+     */
+    private byte[] getFilter(int height) {
+        if (height == madeUpFilterHeight)
+            return GolombFilterBuilder.build(chain.getBlockHash(height), Arrays.asList(new byte[] {0x51}));
+        return chain.getFilter(height);
+    }
+
+    /**
+     * Builds a message sent by this peer
+     *
+     * @param       cmd             Message command
+     * @param       payload         Message payload
+     * @return                      Message
+     */
+    private Message buildMessage(String cmd, byte[] payload) {
+        SerializedBuffer msgBuffer = new SerializedBuffer(payload.length);
+        msgBuffer.putBytes(payload);
+        return new Message(MessageHeader.buildMessage(cmd, msgBuffer), peer, null);
+    }
+
+    /**
+     * Returns the command for a message
+     *
+     * @param       msg             Message
+     * @return                      Message command
+     */
+    static String getCommand(Message msg) {
+        return new String(msg.getBuffer().array(), 4, 12).replace((char)0, ' ').trim();
+    }
+
+    /**
+     * Returns the payload for a message
+     *
+     * @param       msg             Message
+     * @return                      Message payload
+     */
+    static byte[] getPayload(Message msg) {
+        byte[] msgBytes = msg.getBuffer().array();
+        return Arrays.copyOfRange(msgBytes, MessageHeader.HEADER_LENGTH, msgBytes.length);
+    }
+}
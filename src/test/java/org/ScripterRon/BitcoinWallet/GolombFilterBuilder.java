@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Builds a BIP 158 Golomb-coded set for the tests.  The wallet only decodes filters,
+ * so the encoder lives with the tests.
+ */
+class GolombFilterBuilder {
+
+    /** Golomb-Rice coding parameter */
+    private static final int P = 19;
+
+    /** Inverse false-positive rate */
+    private static final long M = 784931;
+
+    /**
+     * Builds a serialized filter.  Duplicate items are included once.
+     *
+     * @param       blockHash           Block hash
+     * @param       items               Filter items
+     * @return                          Serialized filter
+     */
+    static byte[] build(Sha256Hash blockHash, List<byte[]> items) {
+        byte[] hashBytes = blockHash.getBytes();
+        long k0 = 0, k1 = 0;
+        for (int i=7; i>=0; i--) {
+            k0 = (k0<<8) | (hashBytes[31-i]&0xff);
+            k1 = (k1<<8) | (hashBytes[23-i]&0xff);
+        }
+        List<byte[]> uniqueItems = new ArrayList<>();
+        items.stream()
+                .filter((item) -> uniqueItems.stream().noneMatch((prev) -> Arrays.equals(prev, item)))
+                .forEach((item) -> uniqueItems.add(item));
+        int count = uniqueItems.size();
+        BigInteger range = BigInteger.valueOf(count).multiply(BigInteger.valueOf(M));
+        TreeSet<BigInteger> values = new TreeSet<>();
+        for (byte[] item : uniqueItems) {
+            BigInteger hash = new BigInteger(Long.toUnsignedString(GolombFilter.sipHash(k0, k1, item)));
+            values.add(hash.multiply(range).shiftRight(64));
+        }
+        BitWriter writer = new BitWriter();
+        long lastValue = 0;
+        for (BigInteger value : values) {
+            long delta = value.longValue()-lastValue;
+            lastValue = value.longValue();
+            for (long q=delta>>>P; q>0; q--)
+                writer.writeBit(1);
+            writer.writeBit(0);
+            for (int i=P-1; i>=0; i--)
+                writer.writeBit((int)(delta>>>i)&1);
+        }
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        if (count < 253) {
+            outStream.write(count);
+        } else {
+            outStream.write(253);
+            outStream.write(count);
+            outStream.write(count>>>8);
+        }
+        byte[] data = writer.toByteArray();
+        outStream.write(data, 0, data.length);
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Writes bits starting with the most-significant bit of each byte
+     */
+    private static class BitWriter {
+
+        /** Output bytes */
+        private final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        /** Current byte */
+        private int current;
+
+        /** Number of bits in the current byte */
+        private int bitCount;
+
+        /**
+         * Writes a bit
+         *
+         * @param       bit             Bit value
+         */
+        private void writeBit(int bit) {
+            current = (current<<1) | bit;
+            if (++bitCount == 8) {
+                outStream.write(current);
+                current = 0;
+                bitCount = 0;
+            }
+        }
+
+        /**
+         * Returns the bytes written, padding the last byte with zero bits
+         *
+         * @return                      Output bytes
+         */
+        private byte[] toByteArray() {
+            if (bitCount != 0)
+                outStream.write(current<<(8-bitCount));
+            return outStream.toByteArray();
+        }
+    }
+}
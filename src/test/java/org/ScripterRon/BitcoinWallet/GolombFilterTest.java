@@ -0,0 +1,170 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Utils;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * GolombFilter tests.  The SipHash values are the SipHash-2-4 reference vectors (key
+ * 000102...0f and message 00 01 02 ...) and the filter is the BIP 158 basic filter for
+ * the testnet genesis block.
+ */
+public class GolombFilterTest {
+
+    /** Testnet genesis block hash */
+    private static final Sha256Hash GENESIS_HASH =
+            new Sha256Hash("000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943");
+
+    /** Basic filter for the testnet genesis block */
+    private static final byte[] GENESIS_FILTER = Utils.hexStringToBytes("019dfca8");
+
+    /** Filter header for the testnet genesis block */
+    private static final String GENESIS_FILTER_HEADER =
+            "21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750";
+
+    /** Output script for the testnet genesis coinbase transaction */
+    private static final byte[] GENESIS_SCRIPT = Utils.hexStringToBytes(
+            "4104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f3"+
+            "5504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac");
+
+    /**
+     * SipHash-2-4 matches the reference vectors
+     */
+    @Test
+    public void testSipHash() {
+        long k0 = 0x0706050403020100L;
+        long k1 = 0x0f0e0d0c0b0a0908L;
+        int[] lengths = {0, 1, 7, 8, 15, 63};
+        long[] expected = {0x726fdb47dd0e0e31L, 0x74f839c593dc67fdL, 0xab0200f58b01d137L,
+                           0x93f5f5799a932462L, 0xa129ca6149be45e5L, 0x958a324ceb064572L};
+        for (int i=0; i<lengths.length; i++) {
+            byte[] data = new byte[lengths[i]];
+            for (int j=0; j<data.length; j++)
+                data[j] = (byte)j;
+            assertEquals("Length "+lengths[i], expected[i], GolombFilter.sipHash(k0, k1, data));
+        }
+    }
+
+    /**
+     * The genesis block filter matches the coinbase output script
+     */
+    @Test
+    public void testGenesisFilter() throws Exception {
+        GolombFilter filter = new GolombFilter(GENESIS_HASH, GENESIS_FILTER);
+        assertEquals(1, filter.getElementCount());
+        assertTrue(filter.matchAny(Collections.singletonList(GENESIS_SCRIPT)));
+        assertTrue(filter.matchAny(Arrays.asList(new byte[] {0x51}, GENESIS_SCRIPT)));
+        assertFalse(filter.matchAny(Collections.singletonList(new byte[] {0x51})));
+        assertFalse(filter.matchAny(Collections.emptyList()));
+    }
+
+    /**
+     * The filter header chain starting with a zero previous header produces the
+     * genesis filter header
+     */
+    @Test
+    public void testGenesisFilterHeader() {
+        byte[] filterHash = Utils.doubleDigest(GENESIS_FILTER);
+        byte[] filterHeader = CompactFilterHandler.calculateFilterHeader(new byte[32],
+                                                    Collections.singletonList(filterHash));
+        assertEquals(new Sha256Hash(GENESIS_FILTER_HEADER), new Sha256Hash(Utils.reverseBytes(filterHeader)));
+    }
+
+    /**
+     * The builder produces the genesis filter
+     */
+    @Test
+    public void testBuilder() {
+        byte[] filterData = GolombFilterBuilder.build(GENESIS_HASH, Collections.singletonList(GENESIS_SCRIPT));
+        assertArrayEquals(GENESIS_FILTER, filterData);
+    }
+
+    /**
+     * An empty filter does not match anything
+     */
+    @Test
+    public void testEmptyFilter() throws Exception {
+        GolombFilter filter = new GolombFilter(GENESIS_HASH, new byte[] {0});
+        assertEquals(0, filter.getElementCount());
+        assertFalse(filter.matchAny(Collections.singletonList(GENESIS_SCRIPT)));
+    }
+
+    /**
+     * A truncated filter is rejected
+     */
+    @Test
+    public void testTruncatedFilter() throws Exception {
+        try {
+            new GolombFilter(GENESIS_HASH, new byte[0]);
+            fail("Empty filter data accepted");
+        } catch (EOFException exc) {
+            // Expected
+        }
+        GolombFilter filter = new GolombFilter(GENESIS_HASH, new byte[] {5, (byte)0x9d});
+        try {
+            filter.matchAny(Collections.singletonList(new byte[] {0x51}));
+            fail("Truncated filter accepted");
+        } catch (EOFException exc) {
+            // Expected
+        }
+    }
+
+    /**
+     * Every item in a large filter matches and other items rarely match.  The false
+     * positive rate is 1/784931, so a false positive for 1000 items is unlikely.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(158);
+        List<byte[]> items = new ArrayList<>();
+        for (int i=0; i<500; i++) {
+            byte[] item = new byte[25];
+            random.nextBytes(item);
+            items.add(item);
+        }
+        byte[] filterData = GolombFilterBuilder.build(GENESIS_HASH, items);
+        GolombFilter filter = new GolombFilter(GENESIS_HASH, filterData);
+        assertEquals(items.size(), filter.getElementCount());
+        for (byte[] item : items)
+            assertTrue(filter.matchAny(Collections.singletonList(item)));
+        int falsePositives = 0;
+        for (int i=0; i<1000; i++) {
+            byte[] item = new byte[25];
+            random.nextBytes(item);
+            if (filter.matchAny(Collections.singletonList(item)))
+                falsePositives++;
+        }
+        assertTrue(falsePositives <= 1);
+        List<GolombFilter> filters = Arrays.asList(filter,
+                new GolombFilter(GENESIS_HASH, GENESIS_FILTER), new GolombFilter(GENESIS_HASH, new byte[] {0}));
+        boolean[] results = GolombFilter.matchAll(filters, Collections.singletonList(items.get(7)));
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertFalse(results[2]);
+    }
+}
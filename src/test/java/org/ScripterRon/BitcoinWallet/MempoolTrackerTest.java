@@ -0,0 +1,202 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * MempoolTracker tests.  Each test transaction spends a single output and pays a
+ * fixed output script, so transactions spending the same output with different
+ * values conflict with each other.
+ */
+public class MempoolTrackerTest {
+
+    /** Output script paid by the test transactions */
+    private static final byte[] SCRIPT = FixtureChain.p2pkhScript(new byte[20]);
+
+    /** Random source for the spent transaction hashes */
+    private final Random random = new Random(5);
+
+    /**
+     * A tracked transaction is indexed by the output it spends until it is removed
+     */
+    @Test
+    public void testAddRemove() throws Exception {
+        MempoolTracker tracker = new MempoolTracker();
+        Transaction tx = buildTransaction(randomHash(), 1, 1000);
+        TransactionID spentID = getSpentID(tx);
+        assertTrue(tracker.add(tx));
+        assertFalse(tracker.add(tx));
+        assertEquals(1, tracker.size());
+        assertTrue(tracker.contains(tx.getHash()));
+        assertSame(tx, tracker.getTransaction(tx.getHash()));
+        assertEquals(tx.getHash(), tracker.getSpender(spentID));
+        assertSame(tx, tracker.remove(tx.getHash()));
+        assertNull(tracker.remove(tx.getHash()));
+        assertEquals(0, tracker.size());
+        assertNull(tracker.getSpender(spentID));
+    }
+
+    /**
+     * The unconfirmed transactions spending the outputs of a confirmed transaction are
+     * removed as conflicts, but the confirmed transaction itself is not a conflict
+     */
+    @Test
+    public void testRemoveConflicts() throws Exception {
+        MempoolTracker tracker = new MempoolTracker();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 0, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 0, 2000);
+        Transaction other = buildTransaction(randomHash(), 0, 1000);
+        tracker.add(tx1);
+        tracker.add(other);
+        assertTrue(tracker.removeConflicts(tx1).isEmpty());
+        assertTrue(tracker.contains(tx1.getHash()));
+        List<Sha256Hash> conflicts = tracker.removeConflicts(tx2);
+        assertEquals(1, conflicts.size());
+        assertEquals(tx1.getHash(), conflicts.get(0));
+        assertFalse(tracker.contains(tx1.getHash()));
+        assertNull(tracker.getSpender(getSpentID(tx1)));
+        assertTrue(tracker.contains(other.getHash()));
+    }
+
+    /**
+     * The conflicting transactions are returned without removing them and a removed
+     * transaction can be restored with its original receive time
+     */
+    @Test
+    public void testGetConflicts() throws Exception {
+        MempoolTracker tracker = new MempoolTracker();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 0, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 0, 2000);
+        long txTime = System.currentTimeMillis() - 60*1000;
+        tracker.add(tx1, txTime);
+        assertEquals(txTime, tracker.getTxTime(tx1.getHash()));
+        assertEquals(0, tracker.getTxTime(tx2.getHash()));
+        assertTrue(tracker.getConflicts(tx1).isEmpty());
+        List<Sha256Hash> conflicts = tracker.getConflicts(tx2);
+        assertEquals(1, conflicts.size());
+        assertEquals(tx1.getHash(), conflicts.get(0));
+        assertTrue(tracker.contains(tx1.getHash()));
+        Transaction removed = tracker.remove(tx1.getHash());
+        assertTrue(tracker.add(removed, txTime));
+        assertEquals(txTime, tracker.getTxTime(tx1.getHash()));
+        assertEquals(tx1.getHash(), tracker.getSpender(getSpentID(tx1)));
+    }
+
+    /**
+     * Removing a double spend does not remove the index entry for the later transaction
+     * spending the same output
+     */
+    @Test
+    public void testDoubleSpend() throws Exception {
+        MempoolTracker tracker = new MempoolTracker();
+        byte[] spentHash = randomHash();
+        Transaction tx1 = buildTransaction(spentHash, 2, 1000);
+        Transaction tx2 = buildTransaction(spentHash, 2, 2000);
+        tracker.add(tx1);
+        tracker.add(tx2);
+        assertEquals(tx2.getHash(), tracker.getSpender(getSpentID(tx1)));
+        tracker.remove(tx1.getHash());
+        assertEquals(tx2.getHash(), tracker.getSpender(getSpentID(tx2)));
+    }
+
+    /**
+     * An expired transaction is not added and the transactions are returned in order
+     * of arrival
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        MempoolTracker tracker = new MempoolTracker();
+        long currentTime = System.currentTimeMillis();
+        long expiry = 14*24*60*60*1000L;
+        Transaction expired = buildTransaction(randomHash(), 0, 1000);
+        assertFalse(tracker.add(expired, currentTime-expiry));
+        Transaction tx1 = buildTransaction(randomHash(), 0, 1000);
+        Transaction tx2 = buildTransaction(randomHash(), 0, 1000);
+        assertTrue(tracker.add(tx1, currentTime-expiry+60*1000));
+        assertTrue(tracker.add(tx2));
+        List<Transaction> txList = tracker.getTransactions();
+        assertEquals(2, txList.size());
+        assertSame(tx1, txList.get(0));
+        assertSame(tx2, txList.get(1));
+    }
+
+    /**
+     * The oldest transaction is removed when the tracker is full
+     */
+    @Test
+    public void testCapacity() throws Exception {
+        MempoolTracker tracker = new MempoolTracker();
+        Transaction first = buildTransaction(randomHash(), 0, 1000);
+        tracker.add(first);
+        for (int i=1; i<1000; i++)
+            assertTrue(tracker.add(buildTransaction(randomHash(), 0, 1000)));
+        assertEquals(1000, tracker.size());
+        assertTrue(tracker.contains(first.getHash()));
+        Transaction last = buildTransaction(randomHash(), 0, 1000);
+        assertTrue(tracker.add(last));
+        assertEquals(1000, tracker.size());
+        assertFalse(tracker.contains(first.getHash()));
+        assertNull(tracker.getSpender(getSpentID(first)));
+        assertTrue(tracker.contains(last.getHash()));
+    }
+
+    /**
+     * Builds a transaction spending a single output
+     *
+     * @param       spentHash       Spent transaction hash
+     * @param       index           Spent output index
+     * @param       value           Output value
+     * @return                      Transaction
+     */
+    private static Transaction buildTransaction(byte[] spentHash, int index, long value) throws Exception {
+        return new Transaction(new SerializedBuffer(FixtureChain.buildTransaction(spentHash, index, value, SCRIPT)));
+    }
+
+    /**
+     * Returns the output spent by a transaction
+     *
+     * @param       tx              Transaction
+     * @return                      Spent output
+     */
+    private static TransactionID getSpentID(Transaction tx) {
+        OutPoint outPoint = tx.getInputs().get(0).getOutPoint();
+        return new TransactionID(outPoint.getHash(), outPoint.getIndex());
+    }
+
+    /**
+     * Returns a random transaction hash
+     *
+     * @return                      Hash bytes
+     */
+    private byte[] randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NotificationBus tests.  The events for a batch are posted while holding the bus lock,
+ * so the batch can not be delivered until all of its events have been posted.
+ */
+public class NotificationBusTest {
+
+    /** Time to wait for a batch (seconds) */
+    private static final long BATCH_WAIT = 5;
+
+    /** Delivered batches */
+    private final LinkedBlockingQueue<NotificationBus.Batch> batches = new LinkedBlockingQueue<>();
+
+    /** Notification bus */
+    private final NotificationBus bus = new NotificationBus((batch) -> batches.add(batch));
+
+    /** Random source for the hashes */
+    private final Random random = new Random(9);
+
+    /**
+     * Changes to the same transaction output are merged, an added output that is deleted
+     * is dropped and changes to different outputs are delivered separately
+     */
+    @Test
+    public void testTransactionChanges() throws Exception {
+        Sha256Hash txHash = randomHash();
+        ReceiveTransaction rcv0 = buildReceive(txHash, 0);
+        ReceiveTransaction rcv1 = buildReceive(txHash, 1);
+        ReceiveTransaction rcv2 = buildReceive(randomHash(), 0);
+        SendTransaction send = buildSend(txHash);
+        synchronized(bus) {
+            bus.txUpdated(Arrays.asList(change(TransactionChange.ChangeType.ADDED, rcv0),
+                                        change(TransactionChange.ChangeType.ADDED, rcv1),
+                                        change(TransactionChange.ChangeType.ADDED, send)));
+            bus.txUpdated(Collections.singletonList(change(TransactionChange.ChangeType.UPDATED, rcv0)));
+            bus.txUpdated(Collections.singletonList(change(TransactionChange.ChangeType.DELETED, rcv1)));
+            bus.txUpdated(Arrays.asList(change(TransactionChange.ChangeType.UPDATED, rcv2),
+                                        change(TransactionChange.ChangeType.UPDATED, rcv2)));
+            bus.txUpdated(Collections.singletonList(new TransactionChange(txHash)));
+        }
+        NotificationBus.Batch batch = nextBatch();
+        List<TransactionChange> changes = batch.getChanges();
+        assertEquals(4, changes.size());
+        assertEquals(TransactionChange.ChangeType.ADDED, changes.get(0).getType());
+        assertSame(rcv0, changes.get(0).getTransaction());
+        assertEquals(TransactionChange.ChangeType.ADDED, changes.get(1).getType());
+        assertSame(send, changes.get(1).getTransaction());
+        assertEquals(TransactionChange.ChangeType.UPDATED, changes.get(2).getType());
+        assertSame(rcv2, changes.get(2).getTransaction());
+        assertEquals(TransactionChange.ChangeType.STATUS, changes.get(3).getType());
+        assertEquals(txHash, changes.get(3).getTxHash());
+        assertNull(batch.getChainBlock());
+        assertFalse(batch.isRescanCompleted());
+        assertFalse(batch.isPeersChanged());
+        assertEquals(8, bus.getEventCount());
+        assertEquals(2, bus.getMergedCount());
+        assertEquals(2, bus.getDroppedCount());
+        assertEquals(1, bus.getBatchCount());
+    }
+
+    /**
+     * Only the latest chain block is delivered and the peer changes and rescan
+     * completions are merged
+     */
+    @Test
+    public void testChainAndPeers() throws Exception {
+        StoredHeader header1 = buildHeader(1);
+        StoredHeader header2 = buildHeader(2);
+        StoredHeader header3 = buildHeader(3);
+        synchronized(bus) {
+            bus.addChainBlock(header1);
+            bus.connectionStarted(null);
+            bus.addChainBlock(header2);
+            bus.connectionStarted(null);
+            bus.rescanCompleted();
+            bus.connectionEnded(null);
+            bus.addChainBlock(header3);
+            bus.rescanCompleted();
+        }
+        NotificationBus.Batch batch = nextBatch();
+        assertSame(header3, batch.getChainBlock());
+        assertTrue(batch.getChanges().isEmpty());
+        assertTrue(batch.isRescanCompleted());
+        assertTrue(batch.isPeersChanged());
+        assertEquals(1, batch.getPeerChange());
+        assertEquals(8, bus.getEventCount());
+        assertEquals(3, bus.getMergedCount());
+        assertEquals(2, bus.getDroppedCount());
+    }
+
+    /**
+     * Events posted after a batch has been delivered start a new batch
+     */
+    @Test
+    public void testSeparateBatches() throws Exception {
+        StoredHeader header1 = buildHeader(1);
+        StoredHeader header2 = buildHeader(2);
+        ReceiveTransaction rcv = buildReceive(randomHash(), 0);
+        synchronized(bus) {
+            bus.addChainBlock(header1);
+            bus.txUpdated(Collections.singletonList(change(TransactionChange.ChangeType.ADDED, rcv)));
+        }
+        NotificationBus.Batch batch = nextBatch();
+        assertSame(header1, batch.getChainBlock());
+        assertEquals(1, batch.getChanges().size());
+        synchronized(bus) {
+            bus.addChainBlock(header2);
+            bus.txUpdated(Collections.singletonList(change(TransactionChange.ChangeType.UPDATED, rcv)));
+            bus.connectionEnded(null);
+        }
+        batch = nextBatch();
+        assertSame(header2, batch.getChainBlock());
+        assertEquals(1, batch.getChanges().size());
+        assertEquals(TransactionChange.ChangeType.UPDATED, batch.getChanges().get(0).getType());
+        assertEquals(-1, batch.getPeerChange());
+        assertEquals(2, bus.getBatchCount());
+        assertEquals(0, bus.getMergedCount());
+        assertEquals(0, bus.getDroppedCount());
+    }
+
+    /**
+     * Returns the next delivered batch
+     *
+     * @return                      Batch
+     */
+    private NotificationBus.Batch nextBatch() throws InterruptedException {
+        NotificationBus.Batch batch = batches.poll(BATCH_WAIT, TimeUnit.SECONDS);
+        assertNotNull("Batch not delivered", batch);
+        return batch;
+    }
+
+    /**
+     * Creates a transaction change
+     *
+     * @param       type            Change type
+     * @param       tx              Wallet transaction
+     * @return                      Transaction change
+     */
+    private static TransactionChange change(TransactionChange.ChangeType type, WalletTransaction tx) {
+        return new TransactionChange(type, tx);
+    }
+
+    /**
+     * Builds a receive transaction
+     *
+     * @param       txHash          Transaction hash
+     * @param       txIndex         Output index
+     * @return                      Receive transaction
+     */
+    private ReceiveTransaction buildReceive(Sha256Hash txHash, int txIndex) {
+        return new ReceiveTransaction(txHash, txHash, txIndex, 0, null,
+                new Address(Address.AddressType.P2PKH, new byte[20]), BigInteger.valueOf(1000),
+                FixtureChain.p2pkhScript(new byte[20]), false, false);
+    }
+
+    /**
+     * Builds a send transaction
+     *
+     * @param       txHash          Transaction hash
+     * @return                      Send transaction
+     */
+    private SendTransaction buildSend(Sha256Hash txHash) {
+        return new SendTransaction(txHash, txHash, 0, null,
+                new Address(Address.AddressType.P2PKH, new byte[20]), BigInteger.valueOf(1000),
+                BigInteger.valueOf(10), new byte[0]);
+    }
+
+    /**
+     * Builds a chain block header
+     *
+     * @param       height          Block height
+     * @return                      Block header
+     */
+    private StoredHeader buildHeader(int height) {
+        return new StoredHeader(1, randomHash(), randomHash(), 0, 0, Sha256Hash.ZERO_HASH, true,
+                                height, BigInteger.valueOf(height), null);
+    }
+
+    /**
+     * Returns a random hash
+     *
+     * @return                      Hash
+     */
+    private Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Peer;
+import org.ScripterRon.BitcoinCore.PeerAddress;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * OrphanPool tests
+ */
+public class OrphanPoolTest {
+
+    /**
+     * The children of a block are removed together and the descendants can be
+     * connected one generation at a time
+     */
+    @Test
+    public void testRemoveChildren() {
+        OrphanPool pool = new OrphanPool();
+        pool.add(header(2, 1), null);
+        pool.add(header(3, 1), null);
+        pool.add(header(4, 2), null);
+        assertEquals(3, pool.size());
+        assertTrue(pool.contains(hash(4)));
+        assertTrue(pool.removeChildren(hash(5)).isEmpty());
+        List<StoredHeader> children = pool.removeChildren(hash(1));
+        assertEquals(2, children.size());
+        Set<Sha256Hash> childHashes = new HashSet<>();
+        children.forEach((child) -> childHashes.add(child.getHash()));
+        assertTrue(childHashes.contains(hash(2)));
+        assertTrue(childHashes.contains(hash(3)));
+        assertEquals(1, pool.size());
+        assertFalse(pool.contains(hash(2)));
+        children = pool.removeChildren(hash(2));
+        assertEquals(1, children.size());
+        assertEquals(hash(4), children.get(0).getHash());
+        assertEquals(0, pool.size());
+        assertTrue(pool.removeChildren(hash(1)).isEmpty());
+    }
+
+    /**
+     * A duplicate block is not added
+     */
+    @Test
+    public void testDuplicate() {
+        OrphanPool pool = new OrphanPool();
+        pool.add(header(2, 1), null);
+        pool.add(header(2, 1), null);
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.removeChildren(hash(1)).size());
+    }
+
+    /**
+     * A removed block is also removed from the parent index
+     */
+    @Test
+    public void testRemove() {
+        OrphanPool pool = new OrphanPool();
+        pool.add(header(2, 1), null);
+        pool.add(header(3, 1), null);
+        pool.remove(hash(2));
+        pool.remove(hash(9));
+        assertEquals(1, pool.size());
+        List<StoredHeader> children = pool.removeChildren(hash(1));
+        assertEquals(1, children.size());
+        assertEquals(hash(3), children.get(0).getHash());
+    }
+
+    /**
+     * The oldest orphan from a peer is removed when the peer reaches its limit
+     * and orphans from other peers are not affected
+     */
+    @Test
+    public void testPeerLimit() {
+        OrphanPool pool = new OrphanPool();
+        Peer peer = peer(8333);
+        Peer otherPeer = peer(8334);
+        pool.add(header(1000, 0), otherPeer);
+        for (int i=1; i<=101; i++)
+            pool.add(header(i, 0), peer);
+        assertEquals(101, pool.size());
+        assertFalse(pool.contains(hash(1)));
+        assertTrue(pool.contains(hash(2)));
+        assertTrue(pool.contains(hash(101)));
+        assertTrue(pool.contains(hash(1000)));
+        //
+        // Connecting orphans reduces the peer count, so the peer can add more orphans
+        // without losing the remaining ones
+        //
+        for (int i=2; i<=11; i++)
+            pool.remove(hash(i));
+        for (int i=102; i<=111; i++)
+            pool.add(header(i, 0), peer);
+        assertTrue(pool.contains(hash(12)));
+        assertEquals(101, pool.size());
+    }
+
+    /**
+     * The oldest orphan is removed when the pool is full
+     */
+    @Test
+    public void testPoolLimit() {
+        OrphanPool pool = new OrphanPool();
+        for (int i=1; i<=501; i++)
+            pool.add(header(i, i-1), null);
+        assertEquals(500, pool.size());
+        assertFalse(pool.contains(hash(1)));
+        assertTrue(pool.removeChildren(hash(0)).isEmpty());
+        assertTrue(pool.contains(hash(2)));
+        assertTrue(pool.contains(hash(501)));
+    }
+
+    /**
+     * Returns a block hash for a test block
+     *
+     * @param       n               Block number
+     * @return                      Block hash
+     */
+    private static Sha256Hash hash(int n) {
+        byte[] bytes = new byte[32];
+        bytes[28] = (byte)(n>>>24);
+        bytes[29] = (byte)(n>>>16);
+        bytes[30] = (byte)(n>>>8);
+        bytes[31] = (byte)n;
+        return new Sha256Hash(bytes);
+    }
+
+    /**
+     * Returns a block header for a test block
+     *
+     * @param       n               Block number
+     * @param       parent          Parent block number
+     * @return                      Block header
+     */
+    private static StoredHeader header(int n, int parent) {
+        return new StoredHeader(1, hash(n), hash(parent), 0, 0, Sha256Hash.ZERO_HASH,
+                                false, -1, BigInteger.ONE, null);
+    }
+
+    /**
+     * Returns a peer
+     *
+     * @param       port            Peer port
+     * @return                      Peer
+     */
+    private static Peer peer(int port) {
+        return new Peer(new PeerAddress(InetAddress.getLoopbackAddress(), port), null, null);
+    }
+}
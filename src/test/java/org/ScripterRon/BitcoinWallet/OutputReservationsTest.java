@@ -0,0 +1,118 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.OutPoint;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.SignedInput;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * OutputReservations tests.  Each signed input spends an output of a random transaction.
+ */
+public class OutputReservationsTest {
+
+    /** Output script */
+    private static final byte[] SCRIPT = FixtureChain.p2pkhScript(new byte[20]);
+
+    /** Signing key */
+    private final ECKey key = new ECKey();
+
+    /** Random source for the spent transaction hashes */
+    private final Random random = new Random(15);
+
+    /**
+     * Reserved outputs are not reserved again until they are released
+     */
+    @Test
+    public void testReserveRelease() throws Exception {
+        OutputReservations reservations = new OutputReservations();
+        SignedInput input1 = buildInput(randomHash(), 0);
+        SignedInput input2 = buildInput(randomHash(), 1);
+        assertTrue(reservations.reserve(Arrays.asList(input1, input2)));
+        assertEquals(2, reservations.size());
+        assertTrue(reservations.contains(getID(input1)));
+        assertTrue(reservations.contains(getID(input2)));
+        assertFalse(reservations.reserve(Collections.singletonList(input1)));
+        reservations.release(Collections.singletonList(input1));
+        assertEquals(1, reservations.size());
+        assertFalse(reservations.contains(getID(input1)));
+        assertTrue(reservations.reserve(Collections.singletonList(input1)));
+        reservations.release(Arrays.asList(input1, input2));
+        assertEquals(0, reservations.size());
+    }
+
+    /**
+     * Nothing is reserved when one of the outputs is already reserved, and a different
+     * output of the same transaction can be reserved
+     */
+    @Test
+    public void testPartialConflict() throws Exception {
+        OutputReservations reservations = new OutputReservations();
+        Sha256Hash txHash = randomHash();
+        SignedInput input1 = buildInput(txHash, 0);
+        SignedInput input2 = buildInput(randomHash(), 0);
+        SignedInput input3 = buildInput(txHash, 1);
+        assertTrue(reservations.reserve(Collections.singletonList(input1)));
+        assertFalse(reservations.reserve(Arrays.asList(input2, buildInput(txHash, 0))));
+        assertEquals(1, reservations.size());
+        assertFalse(reservations.contains(getID(input2)));
+        assertTrue(reservations.reserve(Arrays.asList(input2, input3)));
+        assertEquals(3, reservations.size());
+        assertTrue(reservations.reserve(Collections.emptyList()));
+    }
+
+    /**
+     * Builds a signed input
+     *
+     * @param       txHash          Spent transaction hash
+     * @param       index           Spent output index
+     * @return                      Signed input
+     */
+    private SignedInput buildInput(Sha256Hash txHash, int index) {
+        return new SignedInput(key, new OutPoint(txHash, index), BigInteger.valueOf(10000), SCRIPT);
+    }
+
+    /**
+     * Returns the output spent by a signed input
+     *
+     * @param       input           Signed input
+     * @return                      Spent output
+     */
+    private static TransactionID getID(SignedInput input) {
+        return new TransactionID(input.getOutPoint().getHash(), input.getOutPoint().getIndex());
+    }
+
+    /**
+     * Returns a random hash
+     *
+     * @return                      Hash
+     */
+    private Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+}
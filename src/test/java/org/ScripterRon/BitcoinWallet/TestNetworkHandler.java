@@ -0,0 +1,105 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Message;
+import org.ScripterRon.BitcoinCore.Peer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Network handler stand-in for the tests.  The network handler thread is not started.
+ * Messages are queued for the test instead of being sent, the connection list is supplied
+ * by the test and scheduled tasks run only when the test advances the timer wheel.
+ */
+class TestNetworkHandler extends NetworkHandler {
+
+    /** Messages sent by the wallet */
+    final List<Message> sentMessages = new LinkedList<>();
+
+    /** Connected peers */
+    final List<Peer> connections = new ArrayList<>();
+
+    /** Completed peer requests */
+    final List<PeerRequest> completedRequests = new ArrayList<>();
+
+    /** Scheduled tasks */
+    final TimerWheel timerWheel = new TimerWheel();
+
+    /** Static connections */
+    boolean staticConnections;
+
+    /**
+     * Creates the network handler
+     *
+     * @throws      IOException     Unable to initialize selector
+     */
+    TestNetworkHandler() throws IOException {
+        super(null);
+    }
+
+    @Override
+    public void sendMessage(Message msg) {
+        synchronized(sentMessages) {
+            sentMessages.add(msg);
+        }
+    }
+
+    @Override
+    public void broadcastMessage(Message msg) {
+        synchronized(sentMessages) {
+            connections.forEach((peer) -> sentMessages.add(msg.clone(peer)));
+        }
+    }
+
+    @Override
+    public List<Peer> getConnections() {
+        return new ArrayList<>(connections);
+    }
+
+    @Override
+    public boolean isStaticConnections() {
+        return staticConnections;
+    }
+
+    @Override
+    public TimerWheel.Timeout schedule(Runnable task, long delay) {
+        return timerWheel.schedule(task, delay);
+    }
+
+    @Override
+    public void requestResponse(PeerRequest request) {
+        completedRequests.add(request);
+    }
+
+    @Override
+    public void wakeup() {
+    }
+
+    /**
+     * Removes and returns the next message sent by the wallet
+     *
+     * @return                      Message or null if there are no more messages
+     */
+    Message nextMessage() {
+        synchronized(sentMessages) {
+            return (sentMessages.isEmpty() ? null : sentMessages.remove(0));
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.BlockHeader;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.VerificationException;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory wallet for the tests.  The block chain is a list of block hashes indexed
+ * by height.  The wallet transactions are saved when a unit of work is started or a
+ * savepoint is set and are restored when the unit or savepoint is rolled back.  Methods
+ * that are not needed by the tests throw UnsupportedOperationException.
+ */
+class TestWallet extends Wallet {
+
+    /** Block chain indexed by height */
+    private final List<Sha256Hash> chain = new ArrayList<>();
+
+    /** Block headers */
+    private final Map<Sha256Hash, StoredHeader> headers = new HashMap<>();
+
+    /** Receive transactions */
+    private List<ReceiveTransaction> receiveTxList = new ArrayList<>();
+
+    /** Send transactions */
+    private List<SendTransaction> sendTxList = new ArrayList<>();
+
+    /** Receive transactions when the savepoint was set */
+    private List<ReceiveTransaction> savedReceiveTxList;
+
+    /** Send transactions when the savepoint was set */
+    private List<SendTransaction> savedSendTxList;
+
+    /** Receive transactions when the unit of work started */
+    private List<ReceiveTransaction> unitReceiveTxList;
+
+    /** Send transactions when the unit of work started */
+    private List<SendTransaction> unitSendTxList;
+
+    /** The next getReceiveTxList() call fails */
+    private boolean failReceiveTxList;
+
+    /** Database unit active */
+    private boolean unitActive;
+
+    /**
+     * Creates the test wallet
+     *
+     * @throws      WalletException     Unable to create the wallet
+     */
+    TestWallet() throws WalletException {
+        super("");
+        chainHeight = -1;
+        chainWork = BigInteger.ZERO;
+    }
+
+    /**
+     * Adds a block to the end of the chain
+     *
+     * @param       blockHash           Block hash
+     */
+    void addChainBlock(Sha256Hash blockHash) {
+        chainHeight = chain.size();
+        chainWork = chainWork.add(BigInteger.ONE);
+        StoredHeader storedHeader = new StoredHeader(1, blockHash, (chainHead != null ? chainHead : Sha256Hash.ZERO_HASH),
+                0, 0, Sha256Hash.ZERO_HASH, true, chainHeight, chainWork, null);
+        chain.add(blockHash);
+        headers.put(blockHash, storedHeader);
+        chainHead = blockHash;
+    }
+
+    /**
+     * Removes blocks from the end of the chain
+     *
+     * @param       height              Height of the new chain head
+     */
+    void truncateChain(int height) {
+        while (chain.size() > height+1)
+            headers.get(chain.remove(chain.size()-1)).setChain(false);
+        chainHeight = height;
+        chainHead = chain.get(height);
+    }
+
+    /**
+     * Adds an unspent transaction output
+     *
+     * @param       rcvTx               Receive transaction
+     */
+    void addUnspentTx(ReceiveTransaction rcvTx) {
+        receiveTxList.add(rcvTx);
+    }
+
+    /**
+     * Causes the next getReceiveTxList() call to throw WalletException
+     */
+    void failReceiveTxList() {
+        failReceiveTxList = true;
+    }
+
+    /**
+     * Returns a copy of a receive transaction, since the database returns a new object
+     * each time a transaction is read
+     *
+     * @param       rcvTx               Receive transaction
+     * @return                          Copy of the receive transaction
+     */
+    private static ReceiveTransaction copy(ReceiveTransaction rcvTx) {
+        return new ReceiveTransaction(rcvTx.getNormalizedID(), rcvTx.getTxHash(), rcvTx.getTxIndex(),
+                rcvTx.getTxTime(), rcvTx.getBlockHash(), rcvTx.getAddress(), rcvTx.getValue(),
+                rcvTx.getScriptBytes(), rcvTx.isSpent(), rcvTx.isChange(), rcvTx.isCoinBase(), rcvTx.inSafe());
+    }
+
+    /**
+     * Returns copies of the receive transactions
+     *
+     * @param       txList              Receive transactions
+     * @return                          Copies of the receive transactions
+     */
+    private static List<ReceiveTransaction> copy(List<ReceiveTransaction> txList) {
+        List<ReceiveTransaction> copyList = new ArrayList<>(txList.size());
+        txList.forEach((rcvTx) -> copyList.add(copy(rcvTx)));
+        return copyList;
+    }
+
+    @Override
+    public void setScanHeight(int height) throws WalletException {
+        scanHeight = height;
+    }
+
+    @Override
+    public int getRescanHeight(long rescanTime) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Sha256Hash getBlockHash(int blockHeight) throws WalletException {
+        return (blockHeight < chain.size() ? chain.get(blockHeight) : null);
+    }
+
+    @Override
+    public List<Sha256Hash> getChainList(int startHeight, Sha256Hash stopBlock) throws WalletException {
+        List<Sha256Hash> chainList = new ArrayList<>();
+        for (int height=startHeight+1; height<chain.size() && chainList.size()<500; height++) {
+            Sha256Hash blockHash = chain.get(height);
+            chainList.add(blockHash);
+            if (blockHash.equals(stopBlock))
+                break;
+        }
+        return chainList;
+    }
+
+    @Override
+    public void storeAddress(Address address) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setAddressLabel(Address address) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteAddress(Address address) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Address> getAddressList() throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeKey(ECKey key) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setKeyLabel(ECKey key) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<ECKey> getKeyList() throws KeyException, WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isNewBlock(Sha256Hash blockHash) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeHeader(StoredHeader storedHeader) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateMatches(BlockHeader header) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public StoredHeader getHeader(Sha256Hash blockHash) throws WalletException {
+        return headers.get(blockHash);
+    }
+
+    @Override
+    public List<Integer> getBlockVersions(int height) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public StoredHeader getChildHeader(Sha256Hash parentHash) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isNewTransaction(Sha256Hash txHash) throws WalletException {
+        return (receiveTxList.stream().noneMatch((rcvTx) -> rcvTx.getTxHash().equals(txHash)) &&
+                sendTxList.stream().noneMatch((sendTx) -> sendTx.getTxHash().equals(txHash)));
+    }
+
+    @Override
+    public void storeReceiveTx(ReceiveTransaction receiveTx) throws WalletException {
+        receiveTxList.add(copy(receiveTx));
+    }
+
+    @Override
+    public void setTxSpent(Sha256Hash txHash, int txIndex, boolean isSpent) throws WalletException {
+        receiveTxList.stream()
+                .filter((rcvTx) -> rcvTx.getTxHash().equals(txHash) && rcvTx.getTxIndex() == txIndex)
+                .forEach((rcvTx) -> rcvTx.setSpent(isSpent));
+    }
+
+    @Override
+    public void setTxSafe(Sha256Hash txHash, int txIndex, boolean inSafe) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setReceiveTxDelete(Sha256Hash txHash, int txIndex, boolean isDeleted) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<ReceiveTransaction> getReceiveTxList() throws WalletException {
+        if (failReceiveTxList) {
+            failReceiveTxList = false;
+            throw new WalletException("Receive transaction list not available");
+        }
+        return copy(receiveTxList);
+    }
+
+    @Override
+    public List<ReceiveTransaction> getUnspentTxList() throws WalletException {
+        List<ReceiveTransaction> txList = copy(receiveTxList);
+        txList.removeIf((rcvTx) -> rcvTx.isSpent() || rcvTx.inSafe());
+        return txList;
+    }
+
+    @Override
+    public List<ReceiveTransaction> getReceiveTxPage(int offset, int limit) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeSendTx(SendTransaction sendTx) throws WalletException {
+        sendTxList.add(sendTx);
+    }
+
+    @Override
+    public void setSendTxDelete(Sha256Hash txHash, boolean isDeleted) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SendTransaction getSendTx(Sha256Hash txHash) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<SendTransaction> getSendTxList() throws WalletException {
+        return new ArrayList<>(sendTxList);
+    }
+
+    @Override
+    public List<SendTransaction> getSendTxPage(int offset, int limit) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getTxDepth(Sha256Hash txHash) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getTxHeight(Sha256Hash txHash) throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteTransactions() throws WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<StoredHeader> getJunction(Sha256Hash chainHash) throws BlockNotFoundException, WalletException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setChainHead(List<StoredHeader> chainList) throws WalletException, VerificationException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void beginUnit() throws WalletException {
+        unitActive = true;
+        unitReceiveTxList = copy(receiveTxList);
+        unitSendTxList = new ArrayList<>(sendTxList);
+    }
+
+    @Override
+    public void commitUnit() throws WalletException {
+        unitActive = false;
+    }
+
+    @Override
+    public void rollbackUnit() {
+        unitActive = false;
+        if (unitReceiveTxList != null) {
+            receiveTxList = unitReceiveTxList;
+            sendTxList = unitSendTxList;
+        }
+    }
+
+    @Override
+    public boolean isUnitActive() {
+        return unitActive;
+    }
+
+    @Override
+    public void setSavepoint() throws WalletException {
+        savedReceiveTxList = copy(receiveTxList);
+        savedSendTxList = new ArrayList<>(sendTxList);
+    }
+
+    @Override
+    public void rollbackSavepoint() throws WalletException {
+        receiveTxList = copy(savedReceiveTxList);
+        sendTxList = new ArrayList<>(savedSendTxList);
+    }
+
+    @Override
+    public void close() {
+    }
+}
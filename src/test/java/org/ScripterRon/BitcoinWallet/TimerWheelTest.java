@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimerWheel tests.  The tests advance the wheel using the timeout deadlines, so they
+ * do not depend on the elapsed time.
+ */
+public class TimerWheelTest {
+
+    /**
+     * A timeout runs when the wheel reaches its deadline and not before
+     */
+    @Test
+    public void testExpire() {
+        TimerWheel wheel = new TimerWheel();
+        AtomicInteger count = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(() -> count.incrementAndGet(), 100);
+        assertEquals(1, wheel.getTimeoutCount());
+        assertEquals(0, wheel.advance(timeout.getDeadline()-1));
+        assertEquals(0, count.get());
+        assertEquals(1, wheel.advance(timeout.getDeadline()));
+        assertEquals(1, count.get());
+        assertEquals(0, wheel.getTimeoutCount());
+        assertEquals(0, wheel.advance(timeout.getDeadline()+1000));
+        assertEquals(1, count.get());
+    }
+
+    /**
+     * A cancelled timeout does not run
+     */
+    @Test
+    public void testCancel() {
+        TimerWheel wheel = new TimerWheel();
+        AtomicInteger count = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(() -> count.incrementAndGet(), 100);
+        TimerWheel.Timeout other = wheel.schedule(() -> count.incrementAndGet(), 100);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.getTimeoutCount());
+        assertEquals(1, wheel.advance(Math.max(timeout.getDeadline(), other.getDeadline())));
+        assertEquals(1, count.get());
+        assertFalse(other.cancel());
+    }
+
+    /**
+     * A timeout more than one revolution in the future stays in its slot until
+     * its deadline is reached
+     */
+    @Test
+    public void testMultipleRevolutions() {
+        TimerWheel wheel = new TimerWheel();
+        AtomicInteger count = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(() -> count.incrementAndGet(), 2000);
+        long deadline = timeout.getDeadline();
+        for (long time=deadline-1900; time<deadline; time+=7) {
+            assertEquals(0, wheel.advance(time));
+        }
+        assertEquals(0, count.get());
+        assertEquals(1, wheel.advance(deadline));
+        assertEquals(1, count.get());
+    }
+
+    /**
+     * Timeouts run in the order of their deadlines when the wheel advances in steps
+     */
+    @Test
+    public void testOrder() {
+        TimerWheel wheel = new TimerWheel();
+        List<Integer> order = new ArrayList<>();
+        TimerWheel.Timeout last = wheel.schedule(() -> order.add(3), 300);
+        wheel.schedule(() -> order.add(1), 100);
+        wheel.schedule(() -> order.add(2), 200);
+        for (long time=last.getDeadline()-300; time<=last.getDeadline(); time++)
+            wheel.advance(time);
+        assertEquals(3, order.size());
+        assertEquals(1, (int)order.get(0));
+        assertEquals(2, (int)order.get(1));
+        assertEquals(3, (int)order.get(2));
+    }
+
+    /**
+     * The next delay is the time until the earliest deadline
+     */
+    @Test
+    public void testNextDelay() {
+        TimerWheel wheel = new TimerWheel();
+        long currentTime = System.currentTimeMillis();
+        assertEquals(512, wheel.getNextDelay(currentTime));
+        TimerWheel.Timeout timeout = wheel.schedule(() -> {}, 200);
+        long delay = wheel.getNextDelay(timeout.getDeadline()-150);
+        assertEquals(150, delay);
+        assertEquals(1, wheel.getNextDelay(timeout.getDeadline()+10));
+        TimerWheel.Timeout distant = wheel.schedule(() -> {}, 5000);
+        timeout.cancel();
+        assertEquals(512, wheel.getNextDelay(distant.getDeadline()-5000));
+    }
+}
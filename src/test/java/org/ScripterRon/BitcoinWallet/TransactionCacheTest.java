@@ -0,0 +1,180 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * TransactionCache tests.  The cached transactions are taken from a block chain fixture
+ * and the cache is stored in a temporary directory.
+ */
+public class TransactionCacheTest {
+
+    /** Number of blocks in the fixture chain */
+    private static final int BLOCK_COUNT = 10;
+
+    /** Temporary data directory */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Block chain fixture */
+    private FixtureChain chain;
+
+    /** Data path */
+    private String dataPath;
+
+    /** Wallet key */
+    private ECKey key;
+
+    /**
+     * Creates the block chain fixture
+     */
+    @Before
+    public void setUp() throws Exception {
+        Main.fileSeparator = File.separator;
+        dataPath = folder.getRoot().getPath();
+        chain = new FixtureChain(BLOCK_COUNT, new HashMap<>());
+        key = new ECKey();
+        key.setCreationTime(System.currentTimeMillis()/1000-3600);
+    }
+
+    /**
+     * Cached transactions are returned in the order they were added and a duplicate
+     * transaction is not added again
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        TransactionCache cache = new TransactionCache(dataPath, Collections.singletonList(key), 0);
+        Sha256Hash blockHash = chain.getBlockHash(3);
+        List<Transaction> txList = Arrays.asList(getTransaction(3), getTransaction(5), getTransaction(7));
+        for (Transaction tx : txList)
+            cache.addTransaction(blockHash, tx);
+        cache.addTransaction(blockHash, txList.get(1));
+        assertTransactions(txList, cache.getTransactions(blockHash));
+        assertTrue(cache.getTransactions(chain.getBlockHash(4)).isEmpty());
+        cache.close();
+    }
+
+    /**
+     * The index and the coverage are rebuilt when the cache is opened again
+     */
+    @Test
+    public void testReopen() throws Exception {
+        TransactionCache cache = new TransactionCache(dataPath, Collections.singletonList(key), 0);
+        for (int height=1; height<BLOCK_COUNT; height++)
+            cache.addTransaction(chain.getBlockHash(height), getTransaction(height));
+        cache.blocksScanned(0, BLOCK_COUNT-1);
+        cache.close();
+        cache = new TransactionCache(dataPath, Collections.emptyList(), 0);
+        for (int height=1; height<BLOCK_COUNT; height++)
+            assertTransactions(Collections.singletonList(getTransaction(height)),
+                               cache.getTransactions(chain.getBlockHash(height)));
+        assertEquals(BLOCK_COUNT-1, cache.getCoverageEnd());
+        assertEquals(1, cache.getCoverageStart(Collections.singletonList(key)));
+        cache.close();
+    }
+
+    /**
+     * A partial record at the end of the cache file is discarded when the cache is opened
+     */
+    @Test
+    public void testPartialRecord() throws Exception {
+        TransactionCache cache = new TransactionCache(dataPath, Collections.singletonList(key), 0);
+        Sha256Hash blockHash = chain.getBlockHash(2);
+        List<Transaction> txList = Collections.singletonList(getTransaction(2));
+        cache.addTransaction(blockHash, txList.get(0));
+        cache.close();
+        File file = new File(dataPath, "TransactionCache.dat");
+        long length = file.length();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(length);
+            out.write(chain.getBlockHash(5).getBytes());
+            out.write(new byte[20]);
+        }
+        cache = new TransactionCache(dataPath, Collections.emptyList(), 0);
+        assertEquals(length, file.length());
+        assertTransactions(txList, cache.getTransactions(blockHash));
+        assertTrue(cache.getTransactions(chain.getBlockHash(5)).isEmpty());
+        cache.addTransaction(chain.getBlockHash(6), getTransaction(6));
+        assertTransactions(Collections.singletonList(getTransaction(6)), cache.getTransactions(chain.getBlockHash(6)));
+        cache.close();
+    }
+
+    /**
+     * A key is covered from the height where it was added and the coverage ends at
+     * the junction block after a chain reorganization
+     */
+    @Test
+    public void testCoverage() throws Exception {
+        TransactionCache cache = new TransactionCache(dataPath, Collections.singletonList(key), 0);
+        assertEquals(-1, cache.getCoverageStart(Collections.singletonList(key)));
+        cache.blocksScanned(0, 8);
+        assertEquals(1, cache.getCoverageStart(Collections.singletonList(key)));
+        ECKey oldKey = new ECKey();
+        oldKey.setCreationTime(System.currentTimeMillis()/1000-7200);
+        assertEquals(-1, cache.getCoverageStart(Arrays.asList(key, oldKey)));
+        cache.addKeys(Collections.singletonList(oldKey), 5);
+        assertEquals(5, cache.getCoverageStart(Arrays.asList(key, oldKey)));
+        cache.blocksScanned(10, 12);
+        assertEquals(8, cache.getCoverageEnd());
+        cache.chainReorganized(6);
+        assertEquals(6, cache.getCoverageEnd());
+        cache.chainReorganized(7);
+        assertEquals(6, cache.getCoverageEnd());
+        cache.close();
+    }
+
+    /**
+     * Returns the coinbase transaction for a fixture block
+     *
+     * @param       height          Block height
+     * @return                      Transaction
+     */
+    private Transaction getTransaction(int height) throws Exception {
+        return new Transaction(new SerializedBuffer(chain.getTransactions(height).get(0)));
+    }
+
+    /**
+     * Checks that the cached transactions match the expected transactions
+     *
+     * @param       expected        Expected transactions
+     * @param       actual          Cached transactions
+     */
+    private static void assertTransactions(List<Transaction> expected, List<Transaction> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i=0; i<expected.size(); i++) {
+            assertEquals(expected.get(i).getHash(), actual.get(i).getHash());
+            assertArrayEquals(expected.get(i).getBytes(), actual.get(i).getBytes());
+        }
+    }
+}
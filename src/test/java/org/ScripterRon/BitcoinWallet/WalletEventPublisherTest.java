@@ -0,0 +1,260 @@
+/**
+ * Copyright 2017 Ronald W Hoffman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.BitcoinWallet;
+
+import static org.junit.Assert.*;
+
+import org.ScripterRon.BitcoinCore.Address;
+import org.ScripterRon.BitcoinCore.ECKey;
+import org.ScripterRon.BitcoinCore.SerializedBuffer;
+import org.ScripterRon.BitcoinCore.Sha256Hash;
+import org.ScripterRon.BitcoinCore.Transaction;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WalletEventPublisher tests.  The events are delivered to consumers which record the
+ * events on a queue so the test thread can wait for the delivery.
+ */
+public class WalletEventPublisherTest {
+
+    /** Delivery wait time (seconds) */
+    private static final long WAIT_TIME = 5;
+
+    /** Random source for the transaction hashes and addresses */
+    private final Random random = new Random(19);
+
+    /** Wallet event publisher */
+    private final WalletEventPublisher publisher = new WalletEventPublisher();
+
+    /** Database handler or null */
+    private DatabaseHandler databaseHandler;
+
+    /**
+     * Stops the database handler and cancels the subscriptions
+     */
+    @After
+    public void tearDown() throws Exception {
+        if (databaseHandler != null) {
+            databaseHandler.shutdown();
+            Parameters.databaseQueue.clear();
+        }
+        publisher.shutdown();
+    }
+
+    /**
+     * An event is selected by type and then by address, transaction hash or spending
+     * transaction hash, and block events and unfiltered subscriptions match every
+     * event of a selected type
+     */
+    @Test
+    public void testMatches() throws Exception {
+        Address address = randomAddress();
+        Sha256Hash txHash = randomHash();
+        Sha256Hash spendingHash = randomHash();
+        WalletEvent payment = WalletEvent.paymentReceived(buildReceive(txHash, address));
+        WalletEvent spent = WalletEvent.outputSpent(buildReceive(randomHash(), randomAddress()),
+                                                    spendingHash, null);
+        WalletEvent block = WalletEvent.blockEvent(WalletEvent.EventType.BLOCK_ATTACHED, randomHash(), 10);
+        WalletEventPublisher.Subscription all = publisher.subscribe((event) -> {}, null, null, null, 10);
+        assertTrue(all.matches(payment));
+        assertTrue(all.matches(spent));
+        assertTrue(all.matches(block));
+        WalletEventPublisher.Subscription byType = publisher.subscribe((event) -> {},
+                Collections.singletonList(WalletEvent.EventType.PAYMENT_RECEIVED), null, null, 10);
+        assertTrue(byType.matches(payment));
+        assertFalse(byType.matches(spent));
+        assertFalse(byType.matches(block));
+        WalletEventPublisher.Subscription byAddress = publisher.subscribe((event) -> {}, null,
+                Collections.singletonList(address), null, 10);
+        assertTrue(byAddress.matches(payment));
+        assertFalse(byAddress.matches(spent));
+        assertTrue(byAddress.matches(block));
+        WalletEventPublisher.Subscription byTx = publisher.subscribe((event) -> {}, null,
+                Collections.singletonList(randomAddress()), Collections.singletonList(txHash), 10);
+        assertTrue(byTx.matches(payment));
+        assertFalse(byTx.matches(spent));
+        byTx.removeTransaction(txHash);
+        assertFalse(byTx.matches(payment));
+        byTx.addTransaction(spendingHash);
+        assertTrue(byTx.matches(spent));
+        byTx.addAddress(address);
+        assertTrue(byTx.matches(payment));
+    }
+
+    /**
+     * Events are dropped and counted when the subscriber queue is full, and the queued
+     * events are delivered in order once the consumer resumes
+     */
+    @Test
+    public void testOverflow() throws Exception {
+        int queueSize = 3;
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        BlockingQueue<WalletEvent> delivered = new LinkedBlockingQueue<>();
+        WalletEventPublisher.Subscription subscription = publisher.subscribe((event) -> {
+            delivered.add(event);
+            started.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }, null, null, null, queueSize);
+        publisher.publish(Collections.singletonList(blockEvent(0)));
+        assertTrue(started.await(WAIT_TIME, TimeUnit.SECONDS));
+        List<WalletEvent> events = new ArrayList<>();
+        for (int i=1; i<=queueSize+2; i++)
+            events.add(blockEvent(i));
+        publisher.publish(events);
+        assertEquals(2, subscription.getDroppedCount());
+        subscription.offer(blockEvent(queueSize+3));
+        assertEquals(3, subscription.getDroppedCount());
+        resume.countDown();
+        for (int i=0; i<=queueSize; i++) {
+            WalletEvent event = delivered.poll(WAIT_TIME, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertEquals(i, event.getBlockHeight());
+        }
+        assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A cancelled subscription stops its delivery thread and does not receive events
+     */
+    @Test
+    public void testCancel() throws Exception {
+        BlockingQueue<Thread> threads = new LinkedBlockingQueue<>();
+        BlockingQueue<WalletEvent> delivered = new LinkedBlockingQueue<>();
+        WalletEventPublisher.Subscription subscription = publisher.subscribe((event) -> {
+            threads.add(Thread.currentThread());
+            delivered.add(event);
+        }, null, null, null, 10);
+        assertTrue(publisher.hasSubscribers());
+        publisher.publish(Collections.singletonList(blockEvent(1)));
+        Thread deliveryThread = threads.poll(WAIT_TIME, TimeUnit.SECONDS);
+        assertNotNull(deliveryThread);
+        assertNotNull(delivered.poll(WAIT_TIME, TimeUnit.SECONDS));
+        subscription.cancel();
+        assertFalse(publisher.hasSubscribers());
+        deliveryThread.join(TimeUnit.SECONDS.toMillis(WAIT_TIME));
+        assertFalse(deliveryThread.isAlive());
+        publisher.publish(Collections.singletonList(blockEvent(2)));
+        assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    /**
+     * The events for a transaction are not published when the database updates for the
+     * transaction are rolled back
+     */
+    @Test
+    public void testRolledBackItem() throws Exception {
+        TestWallet wallet = new TestWallet();
+        ECKey key = new ECKey();
+        byte[] script = FixtureChain.p2pkhScript(key.getPubKeyHash());
+        Parameters.wallet = wallet;
+        Parameters.keys = new ArrayList<>(Collections.singletonList(key));
+        Parameters.mempoolTracker = new MempoolTracker();
+        Parameters.conflictIndex = new ConflictIndex();
+        Parameters.eventPublisher = publisher;
+        Parameters.compactFilters = false;
+        Parameters.databaseQueue.clear();
+        BlockingQueue<WalletEvent> delivered = new LinkedBlockingQueue<>();
+        publisher.subscribe((event) -> delivered.add(event), null, null, null, 10);
+        databaseHandler = new DatabaseHandler();
+        Thread handlerThread = new Thread(databaseHandler, "Database Handler");
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+        Transaction failedTx = new Transaction(new SerializedBuffer(
+                FixtureChain.buildTransaction(null, 1, 10000, script)));
+        Transaction storedTx = new Transaction(new SerializedBuffer(
+                FixtureChain.buildTransaction(null, 2, 20000, script)));
+        wallet.failReceiveTxList();
+        CompletableFuture<Void> failed = databaseHandler.storeTransaction(failedTx);
+        try {
+            failed.get(WAIT_TIME, TimeUnit.SECONDS);
+            fail("The failed transaction was stored");
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof WalletException);
+        }
+        databaseHandler.storeTransaction(storedTx).get(WAIT_TIME, TimeUnit.SECONDS);
+        WalletEvent event = delivered.poll(WAIT_TIME, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals(WalletEvent.EventType.PAYMENT_RECEIVED, event.getType());
+        assertEquals(storedTx.getHash(), event.getTxHash());
+        assertNull(delivered.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(wallet.isNewTransaction(failedTx.getHash()));
+        assertFalse(wallet.isNewTransaction(storedTx.getHash()));
+    }
+
+    /**
+     * Builds a block attached event
+     *
+     * @param       height          Block height
+     * @return                      Wallet event
+     */
+    private WalletEvent blockEvent(int height) {
+        return WalletEvent.blockEvent(WalletEvent.EventType.BLOCK_ATTACHED, randomHash(), height);
+    }
+
+    /**
+     * Builds an unconfirmed receive transaction for output 0 of a transaction
+     *
+     * @param       txHash          Transaction hash
+     * @param       address         Output address
+     * @return                      Receive transaction
+     */
+    private static ReceiveTransaction buildReceive(Sha256Hash txHash, Address address) {
+        return new ReceiveTransaction(txHash, txHash, 0, 0, null, address, BigInteger.valueOf(10000),
+                                      FixtureChain.p2pkhScript(address.getHash()), false, false);
+    }
+
+    /**
+     * Returns a random P2PKH address
+     *
+     * @return                      Address
+     */
+    private Address randomAddress() {
+        byte[] bytes = new byte[20];
+        random.nextBytes(bytes);
+        return new Address(Address.AddressType.P2PKH, bytes);
+    }
+
+    /**
+     * Returns a random hash
+     *
+     * @return                      Hash
+     */
+    private Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+}